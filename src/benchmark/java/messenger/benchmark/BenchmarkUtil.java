@@ -0,0 +1,118 @@
+package messenger.benchmark;
+
+import messenger.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the benchmarks, which are run with
+ * `./gradlew runBenchmark -Pbenchmark=<Name> --args="..."`.
+ */
+public class BenchmarkUtil {
+    // Where results are printed, as the servers log every request to stdout.
+    private static final PrintStream results = System.out;
+
+    /**
+     * Reads a `--name=value` option.
+     * @param args          The arguments of the benchmark.
+     * @param name          The name of the option, without the dashes.
+     * @param defaultValue  The value if the option is not given.
+     * @return              The value of the option.
+     */
+    public static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    public static int intOption(String[] args, String name, int defaultValue) {
+        return Integer.parseInt(option(args, name, Integer.toString(defaultValue)));
+    }
+
+    /**
+     * Discards the logging of the code being measured, which would otherwise
+     * dominate its cost. Results are still printed with `report`.
+     */
+    public static void silenceLogging() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    /**
+     * Prints a line of results.
+     * @param format    The format of the line, as for `String.format`.
+     * @param args      The arguments of the format.
+     */
+    public static void report(String format, Object... args) {
+        results.println(String.format(format, args));
+    }
+
+    /**
+     * Get a percentile of the given latencies, sorting them in place.
+     * @param nanos         The latencies, in nanoseconds.
+     * @param percentile    The percentile, between 0 and 100.
+     * @return              The latency in milliseconds.
+     */
+    public static double percentileMillis(long[] nanos, double percentile) {
+        if (nanos.length == 0) return 0;
+        Arrays.sort(nanos);
+        int index = (int) Math.min(nanos.length - 1, Math.round(percentile / 100 * (nanos.length - 1)));
+        return nanos[index] / 1e6;
+    }
+
+    /**
+     * Get the heap in use, after a garbage collection.
+     * @return  The heap in use, in megabytes.
+     */
+    public static double usedHeapMegabytes() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1e6;
+    }
+
+    /**
+     * Get the number of live threads of the JVM.
+     */
+    public static int liveThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /**
+     * Removes the files persisted by the gRPC server with the given offset, in
+     * the working directory.
+     * @param offset        The offset of the server.
+     * @throws IOException  Thrown if a file could not be removed.
+     */
+    public static void deleteServerFiles(int offset) throws IOException {
+        try (Stream<Path> files = Files.list(Path.of("."))) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("operations" + offset + ".")) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.deleteIfExists(Path.of(Constants.getSnapshotFileName(offset)));
+        for (String directory : List.of(Constants.getMessageStoreDirectoryName(offset),
+                Constants.getSpillDirectoryName(offset))) {
+            Path path = Path.of(directory);
+            if (!Files.exists(path)) continue;
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package messenger.benchmark;
+
+import messenger.Server;
+import messenger.network.Connection;
+import messenger.network.Protocol;
+import messenger.network.RequestPipeline;
+import messenger.objects.request.CreateAccountRequest;
+import messenger.objects.request.Request;
+import messenger.objects.request.SendMessageRequest;
+import messenger.util.Constants;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the socket server holding many idle connections alongside some
+ * active ones, which send each other messages as fast as the server responds.
+ * Reports the throughput and latency of the active clients, and the threads
+ * and heap of the server.
+ *
+ * Options: `--mode=platform|virtual|nio` (platform by default), `--idle=10000`,
+ * `--active=1000` and `--seconds=10`. The server runs in the same JVM on
+ * `Constants.API_PORT`, so that port must be free, and the open file limit
+ * must allow two descriptors per connection.
+ */
+public class ConnectionBenchmark {
+
+    /**
+     * A logged in client, which sends its next message as soon as the last
+     * one is acknowledged, until the deadline.
+     */
+    private static class ActiveClient {
+        final RequestPipeline pipeline;
+        final Request message;
+        long[] latencies = new long[1024];
+        int count = 0;
+
+        ActiveClient(RequestPipeline pipeline, Request message) {
+            this.pipeline = pipeline;
+            this.message = message;
+        }
+
+        void sendUntil(long deadline, CountDownLatch done, AtomicLong failures) {
+            if (System.nanoTime() - deadline > 0) {
+                done.countDown();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                pipeline.send(message).whenComplete((response, e) -> {
+                    if (e != null || !response.isSuccessful()) {
+                        failures.incrementAndGet();
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                    if (e != null) {
+                        done.countDown();
+                    } else {
+                        sendUntil(deadline, done, failures);
+                    }
+                });
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                done.countDown();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = BenchmarkUtil.option(args, "mode", "platform");
+        int idle = BenchmarkUtil.intOption(args, "idle", 10000);
+        int active = BenchmarkUtil.intOption(args, "active", 1000);
+        int seconds = BenchmarkUtil.intOption(args, "seconds", 10);
+        BenchmarkUtil.silenceLogging();
+
+        int threadsBefore = BenchmarkUtil.liveThreads();
+        String[] serverArgs = mode.equals("nio") ? new String[]{"--nio"}
+                : mode.equals("virtual") ? new String[]{"--virtual-threads"} : new String[0];
+        Thread server = new Thread(() -> Server.main(serverArgs));
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(1000);
+
+        List<Socket> idleSockets = new ArrayList<>();
+        for (int i = 0; i < idle; i++) {
+            idleSockets.add(new Socket("localhost", Constants.API_PORT));
+        }
+
+        List<ActiveClient> clients = new ArrayList<>();
+        AtomicLong delivered = new AtomicLong();
+        for (int i = 0; i < active; i++) {
+            Connection connection = new Connection(new Socket("localhost", Constants.API_PORT));
+            Protocol protocol = Protocol.negotiate(connection, Protocol.SUPPORTED_FLAGS);
+            RequestPipeline pipeline = new RequestPipeline(connection, protocol, message -> delivered.incrementAndGet());
+            Thread reader = new Thread(pipeline);
+            reader.setDaemon(true);
+            reader.start();
+            pipeline.send(new CreateAccountRequest("active" + i).genGenericRequest()).get();
+            Request message = new SendMessageRequest("active" + i, "active" + ((i + 1) % active),
+                    "benchmark").genGenericRequest();
+            clients.add(new ActiveClient(pipeline, message));
+        }
+        // Excludes the threads reading the responses of the active clients.
+        int serverThreads = BenchmarkUtil.liveThreads() - threadsBefore - active;
+        double heap = BenchmarkUtil.usedHeapMegabytes();
+
+        CountDownLatch done = new CountDownLatch(active);
+        AtomicLong failures = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        for (ActiveClient client : clients) {
+            client.sendUntil(deadline, done, failures);
+        }
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (ActiveClient client : clients) {
+            total += client.count;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (ActiveClient client : clients) {
+            System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+            offset += client.count;
+        }
+        BenchmarkUtil.report("mode=%s idle=%d active=%d: %.0f requests/s, p50 %.2fms, p99 %.2fms, "
+                        + "%d messages delivered, %d failures, %d server threads, %.0fMB heap",
+                mode, idle, active, total / elapsed, BenchmarkUtil.percentileMillis(latencies, 50),
+                BenchmarkUtil.percentileMillis(latencies, 99), delivered.get(), failures.get(),
+                serverThreads, heap);
+
+        System.exit(idleSockets.size() == idle ? 0 : 1);
+    }
+}
@@ -0,0 +1,82 @@
+package messenger.benchmark;
+
+import messenger.network.Connection;
+import messenger.network.Protocol;
+import messenger.objects.Message;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures draining a backlog of queued messages to a client over a loopback
+ * socket, as the `MessageHandler` does: written to unbuffered streams with a
+ * flush after every message (as before `Connection` was buffered), and written
+ * as one batch to the buffered `Connection` with a single flush.
+ *
+ * Options: `--messages=10000` and `--rounds=5`. The median round is reported.
+ */
+public class DrainBenchmark {
+
+    /**
+     * Sends the backlog and waits until the client has read every message.
+     * @return  The time taken, in nanoseconds.
+     */
+    private static long drain(List<Message> backlog, boolean buffered) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket clientSocket = new Socket("localhost", serverSocket.getLocalPort());
+             Socket socket = serverSocket.accept()) {
+            Connection client = new Connection(clientSocket);
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 0; i < backlog.size(); i++) {
+                        Message.genMessage(client);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            reader.start();
+
+            long start = System.nanoTime();
+            if (buffered) {
+                Protocol.LEGACY.writeMessages(new Connection(socket), backlog);
+            } else {
+                Connection connection = new Connection(socket.getInputStream(), socket.getOutputStream());
+                for (Message message : backlog) {
+                    message.writeToStream(connection);
+                    connection.flushOutput();
+                }
+            }
+            reader.join();
+            return System.nanoTime() - start;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = BenchmarkUtil.intOption(args, "messages", 10000);
+        int rounds = BenchmarkUtil.intOption(args, "rounds", 5);
+
+        List<Message> backlog = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            backlog.add(new Message(System.currentTimeMillis(), "sender", "recipient", "queued message " + i));
+        }
+        // Warms up both paths before measuring.
+        drain(backlog, false);
+        drain(backlog, true);
+
+        for (boolean buffered : new boolean[]{false, true}) {
+            long[] times = new long[rounds];
+            for (int i = 0; i < rounds; i++) {
+                times[i] = drain(backlog, buffered);
+            }
+            Arrays.sort(times);
+            long median = times[rounds / 2];
+            BenchmarkUtil.report("%s: drained %d messages in %.1fms (%.0f messages/s)",
+                    buffered ? "buffered, one flush" : "unbuffered, flush per message",
+                    messages, median / 1e6, messages / (median / 1e9));
+        }
+    }
+}
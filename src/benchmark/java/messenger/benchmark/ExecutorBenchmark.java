@@ -0,0 +1,112 @@
+package messenger.benchmark;
+
+import messenger.grpc.CreateAccountRequest;
+import messenger.grpc.GetAccountsRequest;
+import messenger.grpc.Message;
+import messenger.grpc.SendMessageRequest;
+import messenger.grpc.ServerCore;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the executors of `ServerGRPC` under an open-loop load on a persistent
+ * gRPC `ServerCore`, whose sends wait for the operation log to be synced. As gRPC
+ * does, a few transport threads receive the calls and hand each to the executor:
+ * `cached`, `fixed`, `direct` (which runs only the handshakes on the transport
+ * threads, and the sends and account listings on the fixed pool) or
+ * `direct-all` (which runs every call on the transport threads).
+ *
+ * Options: `--mode=fixed`, `--threads=64` (of the fixed pool), `--transport=4`
+ * (transport threads), `--calls=20000`, `--rate=10000` (calls per second) and
+ * `--offset=91`. Every other call is a send, the rest are split evenly between
+ * handshakes and account listings. The server's files are written to the working
+ * directory under the given offset, and are removed before and after the run.
+ */
+public class ExecutorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = BenchmarkUtil.option(args, "mode", "fixed");
+        int threads = BenchmarkUtil.intOption(args, "threads", 64);
+        int transportThreads = BenchmarkUtil.intOption(args, "transport", 4);
+        int calls = BenchmarkUtil.intOption(args, "calls", 20000);
+        int rate = BenchmarkUtil.intOption(args, "rate", 10000);
+        int offset = BenchmarkUtil.intOption(args, "offset", 91);
+        System.setProperty("messenger.snapshot.interval", "0");
+        BenchmarkUtil.silenceLogging();
+        BenchmarkUtil.deleteServerFiles(offset);
+
+        ServerCore core = new ServerCore(offset);
+        try {
+            for (int i = 0; i < 256; i++) {
+                core.createAccountAPI(CreateAccountRequest.newBuilder().setUsername("user" + i).build());
+            }
+            ExecutorService transport = Executors.newFixedThreadPool(transportThreads);
+            ExecutorService pool = mode.equals("cached") ? Executors.newCachedThreadPool()
+                    : mode.equals("direct-all") ? null : Executors.newFixedThreadPool(threads);
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            threadBean.resetPeakThreadCount();
+
+            long[] sendLatencies = new long[calls];
+            long[] readLatencies = new long[calls];
+            CountDownLatch done = new CountDownLatch(calls);
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                int call = i;
+                long submitted = System.nanoTime();
+                boolean send = call % 2 == 0;
+                Runnable handler = () -> {
+                    if (send) {
+                        core.sendMessageAPI(SendMessageRequest.newBuilder().setMessage(Message.newBuilder()
+                                .setSender("sender")
+                                .setRecipient("user" + (call % 256))
+                                .setMessage("message " + call)).build());
+                        sendLatencies[call] = System.nanoTime() - submitted;
+                    } else {
+                        if (call % 4 == 1) {
+                            core.isPrimary();
+                            core.getLeaderId();
+                            core.getAppliedSequence();
+                        } else {
+                            core.getAccountsAPI(GetAccountsRequest.newBuilder().build());
+                        }
+                        readLatencies[call] = System.nanoTime() - submitted;
+                    }
+                    done.countDown();
+                };
+                boolean direct = mode.equals("direct-all") || (mode.equals("direct") && call % 4 == 1);
+                Executor executor = direct ? Runnable::run : pool;
+                transport.execute(() -> executor.execute(handler));
+                // Paces the calls at the given rate.
+                long next = start + (long) (call + 1) * 1_000_000_000L / rate;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            done.await();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            long[] sends = Arrays.stream(sendLatencies).filter(latency -> latency > 0).toArray();
+            long[] reads = Arrays.stream(readLatencies).filter(latency -> latency > 0).toArray();
+            BenchmarkUtil.report("mode=%s: %.0f calls/s, sends p50 %.1fms p99 %.1fms, "
+                            + "handshakes and listings p50 %.1fms p99 %.1fms, %d peak threads",
+                    mode, calls / elapsed, BenchmarkUtil.percentileMillis(sends, 50),
+                    BenchmarkUtil.percentileMillis(sends, 99), BenchmarkUtil.percentileMillis(reads, 50),
+                    BenchmarkUtil.percentileMillis(reads, 99), threadBean.getPeakThreadCount());
+            transport.shutdown();
+            if (pool != null) {
+                pool.shutdown();
+            }
+        } finally {
+            core.close();
+            BenchmarkUtil.deleteServerFiles(offset);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package messenger.benchmark;
+
+import messenger.grpc.Message;
+import messenger.grpc.ServerCore;
+
+/**
+ * Measures how long a persistent gRPC `ServerCore` takes to recover its
+ * accounts and undelivered messages on restart: by replaying the whole
+ * operation log, and by reading a snapshot of the same state.
+ *
+ * Options: `--accounts=1000000`, `--messages=10000000` and `--offset=90`. The
+ * server's files are written to the working directory under the given offset,
+ * and are removed before and after the run.
+ */
+public class RecoveryBenchmark {
+
+    /**
+     * Restarts the server, reporting how long it took and what it recovered.
+     * @param label     What is being recovered from.
+     * @return          The recovered server.
+     */
+    private static ServerCore recover(String label, int offset, int accounts, int messages) {
+        System.gc();
+        long start = System.nanoTime();
+        ServerCore core = new ServerCore(offset);
+        long elapsed = System.nanoTime() - start;
+        int recoveredAccounts = core.getAccounts().size();
+        // Restored messages are counted towards the queue limits.
+        long recoveredMessages = core.getMetrics().snapshot().get("queue.depth");
+        BenchmarkUtil.report("%s: recovered %d/%d accounts and %d/%d messages in %.1fs, %.0fMB heap",
+                label, recoveredAccounts, accounts, recoveredMessages, messages, elapsed / 1e9,
+                BenchmarkUtil.usedHeapMegabytes());
+        return core;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int accounts = BenchmarkUtil.intOption(args, "accounts", 1_000_000);
+        int messages = BenchmarkUtil.intOption(args, "messages", 10_000_000);
+        int offset = BenchmarkUtil.intOption(args, "offset", 90);
+        // Every message must fit in the queues, and snapshots are only taken explicitly.
+        System.setProperty("messenger.queue.maxPerRecipient", Integer.toString(messages));
+        System.setProperty("messenger.queue.maxTotal", Integer.toString(messages));
+        System.setProperty("messenger.snapshot.interval", "0");
+        System.setProperty("messenger.log.durability", System.getProperty("messenger.log.durability", "none"));
+        BenchmarkUtil.silenceLogging();
+        BenchmarkUtil.deleteServerFiles(offset);
+
+        try {
+            long start = System.nanoTime();
+            ServerCore core = new ServerCore(offset);
+            for (int i = 0; i < accounts; i++) {
+                core.addUser("user" + i);
+            }
+            for (int i = 0; i < messages; i++) {
+                core.addUndeliveredMessage(Message.newBuilder()
+                        .setSender("user" + (i % accounts))
+                        .setRecipient("user" + ((i + 1) % accounts))
+                        .setMessage("message " + i).build());
+            }
+            core.close();
+            BenchmarkUtil.report("wrote %d accounts and %d messages in %.1fs",
+                    accounts, messages, (System.nanoTime() - start) / 1e9);
+
+            core = recover("operation log", offset, accounts, messages);
+            long snapshotStart = System.nanoTime();
+            core.snapshot();
+            core.close();
+            BenchmarkUtil.report("wrote snapshot in %.1fs", (System.nanoTime() - snapshotStart) / 1e9);
+
+            recover("snapshot", offset, accounts, messages).close();
+        } finally {
+            BenchmarkUtil.deleteServerFiles(offset);
+        }
+    }
+}
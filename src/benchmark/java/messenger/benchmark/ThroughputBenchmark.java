@@ -0,0 +1,85 @@
+package messenger.benchmark;
+
+import messenger.grpc.CreateAccountRequest;
+import messenger.grpc.GetUndeliveredMessagesRequest;
+import messenger.grpc.LogoutRequest;
+import messenger.grpc.Message;
+import messenger.grpc.SendMessageRequest;
+import messenger.grpc.ServerCore;
+import messenger.util.QueueLimits;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of the gRPC `ServerCore` as the number of threads
+ * calling it grows. Each thread sends messages to random logged out users, and
+ * fetches the undelivered messages of a random user on every eighth call, so
+ * that the messages held stay bounded.
+ *
+ * Options: `--threads=1,4,16,64`, `--users=1024` and `--seconds=5`. Each thread
+ * count is measured on a new in-memory `ServerCore`.
+ */
+public class ThroughputBenchmark {
+
+    /**
+     * Runs the calls of the given number of threads until the deadline.
+     * @return  The number of calls made.
+     */
+    private static long run(int threads, int users, int seconds) throws InterruptedException {
+        ServerCore core = new ServerCore(QueueLimits.fromSystemProperties());
+        for (int i = 0; i < users; i++) {
+            core.createAccountAPI(CreateAccountRequest.newBuilder().setUsername("user" + i).build());
+            core.logoutUserAPI(LogoutRequest.newBuilder().setUsername("user" + i).build());
+        }
+
+        AtomicLong calls = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String sender = "sender" + t;
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while (System.nanoTime() - deadline < 0) {
+                    String user = "user" + random.nextInt(users);
+                    if (count % 8 == 7) {
+                        core.getUndeliveredMessagesAPI(GetUndeliveredMessagesRequest.newBuilder()
+                                .setUsername(user).build());
+                    } else {
+                        core.sendMessageAPI(SendMessageRequest.newBuilder().setMessage(Message.newBuilder()
+                                .setSender(sender)
+                                .setRecipient(user)
+                                .setMessage("message " + count)).build());
+                    }
+                    count++;
+                }
+                calls.addAndGet(count);
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        core.close();
+        return calls.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] threadCounts = BenchmarkUtil.option(args, "threads", "1,4,16,64").split(",");
+        int users = BenchmarkUtil.intOption(args, "users", 1024);
+        int seconds = BenchmarkUtil.intOption(args, "seconds", 5);
+        BenchmarkUtil.silenceLogging();
+
+        // Warms up the calls before measuring.
+        run(4, users, 1);
+        BenchmarkUtil.report("%d available processors", Runtime.getRuntime().availableProcessors());
+        for (String threadCount : threadCounts) {
+            int threads = Integer.parseInt(threadCount.trim());
+            long calls = run(threads, users, seconds);
+            BenchmarkUtil.report("threads=%d: %.0f calls/s", threads, calls / (double) seconds);
+        }
+    }
+}
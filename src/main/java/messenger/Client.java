@@ -2,10 +2,13 @@ package messenger;
 
 import messenger.api.APIException;
 import messenger.network.Connection;
+import messenger.network.Protocol;
+import messenger.network.RequestPipeline;
 import messenger.objects.*;
 import messenger.api.API;
 import messenger.objects.request.*;
 import messenger.objects.response.Response;
+import messenger.objects.response.SendMessageBatchResponse;
 import messenger.objects.response.StatusMessageResponse;
 import messenger.util.Constants;
 import messenger.util.Logging;
@@ -13,6 +16,8 @@ import messenger.util.Logging;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class Client {
 
@@ -23,6 +28,10 @@ public class Client {
     private static Connection messageConnection = null;
     // The socket for the message connection
     private static Socket messageSocket;
+    // The protocol negotiated with the server.
+    private static Protocol protocol = Protocol.LEGACY;
+    // Sends requests and reads their responses (and messages, if multiplexed).
+    private static RequestPipeline pipeline;
 
     // The username associated with the client; if this is not
     // set, then only the `createUser` method can be called.
@@ -39,17 +48,48 @@ public class Client {
     public static Connection launchMessageReceiver(String address) throws IOException {
         messageSocket = new Socket(address, Constants.MESSAGE_PORT);
         Connection connection = new Connection(messageSocket);
-        MessageReceiver receiver = new MessageReceiver(connection);
+        MessageReceiver receiver = new MessageReceiver(connection, protocol);
         new Thread(receiver).start();
 
         return connection;
     }
 
+    /**
+     * Sends a request to the server and waits for its response.
+     * @param request       The request to send.
+     * @return              The response.
+     * @throws IOException  Thrown on any network exception
+     */
+    public static Response sendRequest(Request request) throws IOException {
+        return awaitResponse(pipeline.send(request));
+    }
+
+    /**
+     * Waits for the response to a request sent through the pipeline.
+     * @param response      The future returned when the request was sent.
+     * @return              The response.
+     * @throws IOException  Thrown on any network exception
+     */
+    public static Response awaitResponse(CompletableFuture<Response> response) throws IOException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
     /**
      * Handles the main loop of the client which includes asking for the
      * user for the API call that would like to call, then sending a
      * message to the server and fetching a response.
-     * @param args  Unused
+     *
+     * By default, messages are received over the same connection as responses.
+     * Passing `--legacy` opens a second connection for messages instead and
+     * uses the version 1 frames, as required by servers which do not support
+     * protocol negotiation.
+     * @param args  Optionally `--legacy`
      */
     public static void main(String[] args) {
         Scanner inputReader = new Scanner(System.in);
@@ -66,6 +106,13 @@ public class Client {
             Logging.logInfo("Connection established to " + address);
 
             connection = new Connection(socket);
+            if (!Arrays.asList(args).contains("--legacy")) {
+                protocol = Protocol.negotiate(connection,
+                        Protocol.MULTIPLEXED | Protocol.V2 | Protocol.REQUEST_IDS);
+            }
+            pipeline = new RequestPipeline(connection, protocol,
+                    message -> Logging.logInfo(message.toString()));
+            new Thread(pipeline).start();
             ClientCore client = new ClientCore();
 
             String options = "Pick an option:\n" +
@@ -91,6 +138,11 @@ public class Client {
                     Logging.logService("Option must be an integer (between 0 and 6).");
                     continue;
                 }
+                if (method == API.SEND_MESSAGE_BATCH) {
+                    // Batches are sent by picking several recipients for option 3.
+                    Logging.logService("Option must be between 0 and 6.");
+                    continue;
+                }
 
                 String username = client.getUsername();
                 if (username == null) {
@@ -106,8 +158,7 @@ public class Client {
                             Logging.logService("Pick your username.");
                             String localUsername = inputReader.nextLine();
                             CreateAccountRequest request = new CreateAccountRequest(localUsername);
-                            request.genGenericRequest().writeToStream(connection);
-                            Response responses = Response.genResponse(connection);
+                            Response responses = sendRequest(request.genGenericRequest());
                             responses.printResponses();
 
                             loginRequest = new LoginRequest(localUsername);
@@ -119,8 +170,7 @@ public class Client {
 
                             Logging.logService("Attempting to log in...");
                             loginRequest = new LoginRequest(username);
-                            loginRequest.genGenericRequest().writeToStream(connection);
-                            Response response = Response.genResponse(connection);
+                            Response response = sendRequest(loginRequest.genGenericRequest());
                             response.printResponses();
 
                             statusResponse = new StatusMessageResponse(response);
@@ -128,8 +178,11 @@ public class Client {
 
                         // Set status to logged in.
                         client.loginAPI(loginRequest, statusResponse);
-                        // Begin mesage receiver
-                        messageConnection = launchMessageReceiver(address);
+                        // Begin mesage receiver, unless messages already arrive
+                        // over the multiplexed connection.
+                        if (!protocol.isMultiplexed()) {
+                            messageConnection = launchMessageReceiver(address);
+                        }
                     }
                 } else {
                     // Username is already set and the user is logged in.
@@ -141,8 +194,7 @@ public class Client {
                                 client.getUsername());
 
                         LogoutRequest request = new LogoutRequest(username);
-                        request.genGenericRequest().writeToStream(connection);
-                        Response responses = Response.genResponse(connection);
+                        Response responses = sendRequest(request.genGenericRequest());
                         for (String response : responses.getResponses()) {
                             System.out.println("[RESPONSE] " + response);
                         }
@@ -166,28 +218,33 @@ public class Client {
                         // Make sure to handle case of text wildcard empty (search everything) or nonempty.
                         // And are there text wildcards we would disallow or that could cause issues?
                         GetAccountsRequest request = new GetAccountsRequest(text_wildcard);
-                        request.genGenericRequest().writeToStream(connection);
-                        Response responses = Response.genResponse(connection);
+                        Response responses = sendRequest(request.genGenericRequest());
                         responses.printResponses();
                     } else if (method == API.SEND_MESSAGE) {
-                        String recipient = "";
+                        String recipients = "";
                         String message = "";
-                        Logging.logService("Pick your recipient.");
-                        recipient = inputReader.nextLine();
+                        Logging.logService("Pick your recipient (or several, separated by commas).");
+                        recipients = inputReader.nextLine();
                         Logging.logService("Specify your message.");
                         message = inputReader.nextLine();
 
-                        SendMessageRequest request = new SendMessageRequest(username, recipient, message);
-                        request.genGenericRequest().writeToStream(connection);
-                        Response responses = Response.genResponse(connection);
-                        for (String response : responses.getResponses()) {
-                            System.out.println("[RESPONSE] " + response);
+                        // Send to every recipient in a single batch request.
+                        List<String> recipientList = new ArrayList<>();
+                        for (String recipient : recipients.split(",")) {
+                            recipientList.add(recipient.trim());
+                        }
+                        SendMessageBatchRequest request = new SendMessageBatchRequest(username, recipientList,
+                                Collections.nCopies(recipientList.size(), message));
+                        SendMessageBatchResponse batchResponse =
+                                new SendMessageBatchResponse(sendRequest(request.genGenericRequest()));
+                        List<Status> statuses = batchResponse.getStatuses();
+                        for (int i = 0; i < statuses.size(); i++) {
+                            System.out.println("[RESPONSE] " + recipientList.get(i) + ": " + statuses.get(i).getMessage());
                         }
                     } else if (method == API.GET_UNDELIVERED_MESSAGES){
                         Logging.logService("Delivering undelivered messages to: " + username);
                         GetUndeliveredMessagesRequest request = new GetUndeliveredMessagesRequest(username);
-                        request.genGenericRequest().writeToStream(connection);
-                        Response responses = Response.genResponse(connection);
+                        Response responses = sendRequest(request.genGenericRequest());
                         List<String> messageParts = responses.getResponses();
 
                         // Build up a nicely formatted string message
@@ -204,8 +261,7 @@ public class Client {
                     } else if (method ==API.DELETE_ACCOUNT) {
                         System.out.println("Deleting the account associated to the username: " + username);
                         DeleteAccountRequest request = new DeleteAccountRequest(username);
-                        request.genGenericRequest().writeToStream(connection);
-                        Response responses = Response.genResponse(connection);
+                        Response responses = sendRequest(request.genGenericRequest());
                         responses.printResponses();
 
                         StatusMessageResponse statusResponses = new StatusMessageResponse(responses);
@@ -233,14 +289,21 @@ public class Client {
      */
     public static class MessageReceiver implements Runnable {
         private final Connection connection;
+        private final Protocol protocol;
+
         public MessageReceiver(Connection connection) {
+            this(connection, Protocol.LEGACY);
+        }
+
+        public MessageReceiver(Connection connection, Protocol protocol) {
             this.connection = connection;
+            this.protocol = protocol;
         }
 
         public void run() {
             try {
                 while (true) {
-                    Message message = Message.genMessage(connection);
+                    Message message = protocol.readMessage(connection);
                     Logging.logInfo(message.toString());
                 }
             } catch (IOException e) {
@@ -248,4 +311,4 @@ public class Client {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,543 @@
+package messenger;
+
+import messenger.api.API;
+import messenger.api.APIException;
+import messenger.network.BinaryFrames;
+import messenger.network.BufferPool;
+import messenger.network.FrameCodec;
+import messenger.network.Protocol;
+import messenger.objects.Message;
+import messenger.objects.request.Request;
+import messenger.objects.response.MethodResponseInterface;
+import messenger.util.Constants;
+import messenger.util.Logging;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking alternative to the thread-per-connection `Server`. A single
+ * selector thread accepts connections and reads and writes all sockets, while
+ * complete requests are handed to a small pool of worker threads. The number
+ * of threads therefore scales with the number of cores rather than with the
+ * number of connected clients.
+ *
+ * The server speaks the same protocol as `Server`, so existing clients do not
+ * need to be changed: API calls arrive on `Constants.API_PORT`, and after
+ * logging in the client either receives its messages over the same connection
+ * (if it negotiated a multiplexed connection), or opens a second connection on
+ * `Constants.MESSAGE_PORT` over which its messages are delivered.
+ */
+public class NioServer {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // The most requests of a client waiting to be processed. Once reached, the
+    // connection is not read from until the workers catch up.
+    static final int MAX_PENDING_REQUESTS = 64;
+    // The most bytes waiting to be written to a connection. Once reached, the
+    // client's requests are not read, and its messages stay queued in the
+    // ServerCore, until the client reads what was written.
+    static final int MAX_PENDING_WRITE_BYTES = 1 << 20;
+
+    // Queued on a client's requests once its connection is lost, so that the
+    // user is logged out after any requests still being processed.
+    private static final Request DISCONNECT = new Request(-1, Collections.emptyList());
+
+    private final ServerCore server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    // Delivers messages; a single thread ensures each user's messages are
+    // delivered in order and exactly once.
+    private final ExecutorService dispatcher;
+    // Version 2 requests are copied here until they have been processed.
+    private final BufferPool frameBuffers = new BufferPool(INITIAL_BUFFER_SIZE, 1024);
+
+    // Outboxes with pending writes, for which the selector thread should
+    // register interest in writing.
+    private final Queue<Outbox> pendingWrites = new ConcurrentLinkedQueue<>();
+    // Sessions whose requests were processed while reading from them was
+    // paused, for which the selector thread should check whether to resume.
+    private final Queue<ClientSession> pendingResumes = new ConcurrentLinkedQueue<>();
+    // Clients which have logged in, but have not yet opened a message connection.
+    private final Queue<ClientSession> awaitingMessageChannel = new ConcurrentLinkedQueue<>();
+    // How messages are delivered to each logged in user.
+    private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+
+    /**
+     * Create a NioServer backed by the given ServerCore.
+     *
+     * @param server        The object used to update the state of the server.
+     * @param numWorkers    The number of threads used to process requests.
+     * @throws IOException  Thrown if the selector cannot be opened.
+     */
+    public NioServer(ServerCore server, int numWorkers) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(numWorkers);
+        this.dispatcher = Executors.newSingleThreadExecutor();
+
+        // Messages are pushed to the recipient's connection as soon as they are
+        // queued, and connections are closed as soon as their user logs out.
+        server.setDispatchListener(username -> {
+            Delivery delivery = deliveries.get(username);
+            if (delivery != null) {
+                dispatcher.execute(() -> deliverMessages(delivery));
+            }
+        });
+    }
+
+    /**
+     * Runs the event loop of the server. This method never returns unless
+     * the selector fails.
+     * @throws IOException  Thrown if the server sockets cannot be opened.
+     */
+    public void run() throws IOException {
+        Logging.logInfo("Starting non-blocking server...");
+        openServerChannel(Constants.API_PORT);
+        openServerChannel(Constants.MESSAGE_PORT);
+
+        Logging.logInfo("Waiting for connection...");
+        try {
+            while (true) {
+                selector.select();
+                registerPendingWrites();
+                resumePendingReads();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(key);
+                            continue;
+                        }
+                        if (key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) write(key);
+                    } catch (IOException e) {
+                        close((Outbox) key.attachment());
+                    }
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            dispatcher.shutdownNow();
+            selector.close();
+        }
+    }
+
+    private void openServerChannel(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT, port);
+    }
+
+    /**
+     * Accepts a new connection. Connections on the API port start a new client
+     * session, while connections on the message port are paired with the client
+     * which logged in the earliest and has no message connection yet.
+     */
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+
+        if ((Integer) key.attachment() == Constants.API_PORT) {
+            Logging.logInfo("New connection established " + channel.socket().getInetAddress().getHostAddress());
+            ClientSession session = new ClientSession(channel, new RequestHandler(server));
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            return;
+        }
+
+        ClientSession session = awaitingMessageChannel.poll();
+        if (session == null || !session.channel.isOpen()) {
+            // No logged in client is waiting for a message connection.
+            channel.close();
+            return;
+        }
+        MessageOutbox outbox = new MessageOutbox(channel, session.dispatchUsername);
+        // Clients never write over the message connection, but reading allows
+        // us to notice when the connection is closed.
+        outbox.key = channel.register(selector, SelectionKey.OP_READ, outbox);
+        startDelivery(new Delivery(outbox.username, outbox, session.protocol));
+    }
+
+    /**
+     * Starts delivering messages to a logged in user, including anything
+     * queued before delivery was started.
+     */
+    private void startDelivery(Delivery delivery) {
+        delivery.outbox.delivery = delivery;
+        deliveries.put(delivery.username, delivery);
+        Logging.logInfo("Message handler for user " + delivery.username + " started successfully.");
+        dispatcher.execute(() -> deliverMessages(delivery));
+    }
+
+    /**
+     * Reads whatever bytes are available and queues every request which has
+     * been completely received for processing by the workers.
+     */
+    private void read(SelectionKey key) throws IOException {
+        Outbox outbox = (Outbox) key.attachment();
+        if (!(outbox instanceof ClientSession)) {
+            if (outbox.channel.read(ByteBuffer.allocate(64)) < 0) close(outbox);
+            return;
+        }
+
+        ClientSession session = (ClientSession) outbox;
+        if (session.channel.read(session.readBuffer) < 0) {
+            close(session);
+            return;
+        }
+        decodeRequests(session);
+    }
+
+    /**
+     * Queues every request which has been completely received for processing
+     * by the workers, pausing reading from the connection once the client has
+     * too many requests pending, or too many bytes waiting to be written.
+     * Runs on the selector thread.
+     */
+    private void decodeRequests(ClientSession session) throws IOException {
+        session.readBuffer.flip();
+        if (session.protocol == null) {
+            // The first bytes of the connection may be the protocol header.
+            session.protocol = FrameCodec.decodeProtocol(session.readBuffer);
+            if (session.protocol != null && session.protocol != Protocol.LEGACY) {
+                Logging.logInfo("Negotiated protocol flags " + session.protocol.getFlags());
+                send(session, FrameCodec.encode(session.protocol));
+            }
+        }
+        Request request;
+        while (!isBackedUp(session) && session.protocol != null
+                && (request = FrameCodec.decodeRequest(session.protocol, session.readBuffer, frameBuffers)) != null) {
+            session.requests.add(request);
+        }
+        session.readBuffer.compact();
+
+        if (isBackedUp(session)) {
+            // The remaining requests are decoded once the workers catch up.
+            session.readPaused = true;
+            updateInterest(session);
+            if (!isBackedUp(session)) {
+                // The workers caught up before reading was paused.
+                pendingResumes.add(session);
+                selector.wakeup();
+            }
+        } else if (!session.readBuffer.hasRemaining()) {
+            // The pending request does not fit in the buffer, so grow it.
+            if (session.readBuffer.capacity() >= BinaryFrames.MAX_FRAME_SIZE) {
+                Logging.logInfo("Request exceeds maximum frame size. Dropping connection");
+                close(session);
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(session.readBuffer.capacity() * 2);
+            session.readBuffer.flip();
+            larger.put(session.readBuffer);
+            session.readBuffer = larger;
+        }
+        schedule(session);
+    }
+
+    /**
+     * Whether the client has too many requests pending, or too many bytes
+     * waiting to be written, for its connection to be read from.
+     */
+    private static boolean isBackedUp(ClientSession session) {
+        return session.requests.size() >= MAX_PENDING_REQUESTS
+                || session.pendingBytes.get() >= MAX_PENDING_WRITE_BYTES;
+    }
+
+    /**
+     * Writes as many pending buffers as the socket accepts. Interest in writing
+     * is dropped once all buffers have been written. Once enough has been
+     * written, reading from the connection and delivering messages to it resume.
+     */
+    private void write(SelectionKey key) throws IOException {
+        Outbox outbox = (Outbox) key.attachment();
+        boolean wasFull = outbox.pendingBytes.get() >= MAX_PENDING_WRITE_BYTES;
+        ByteBuffer buffer;
+        try {
+            while ((buffer = outbox.writeQueue.peek()) != null) {
+                outbox.pendingBytes.addAndGet(-outbox.channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    // The socket's send buffer is full, wait until it drains.
+                    return;
+                }
+                outbox.writeQueue.poll();
+            }
+            updateInterest(outbox);
+        } finally {
+            if (wasFull && outbox.pendingBytes.get() < MAX_PENDING_WRITE_BYTES) {
+                if (outbox instanceof ClientSession) {
+                    resumeReading((ClientSession) outbox);
+                }
+                Delivery delivery = outbox.delivery;
+                if (delivery != null) {
+                    dispatcher.execute(() -> deliverMessages(delivery));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets which operations the selector waits for on a connection: reading
+     * unless paused, and writing while buffers are waiting to be written. Runs
+     * on the selector thread.
+     */
+    private void updateInterest(Outbox outbox) {
+        SelectionKey key = outbox.key;
+        if (key == null || !key.isValid()) return;
+        boolean reading = !(outbox instanceof ClientSession) || !((ClientSession) outbox).readPaused;
+        key.interestOps((reading ? SelectionKey.OP_READ : 0)
+                | (outbox.writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    private void registerPendingWrites() {
+        Outbox outbox;
+        while ((outbox = pendingWrites.poll()) != null) {
+            updateInterest(outbox);
+        }
+    }
+
+    private void resumePendingReads() {
+        ClientSession session;
+        while ((session = pendingResumes.poll()) != null) {
+            try {
+                resumeReading(session);
+            } catch (IOException e) {
+                close(session);
+            }
+        }
+    }
+
+    /**
+     * Resumes reading from a paused connection, once the client no longer has
+     * too much pending. Requests which were received while paused are decoded
+     * first. Runs on the selector thread.
+     */
+    private void resumeReading(ClientSession session) throws IOException {
+        if (!session.readPaused || !session.channel.isOpen() || isBackedUp(session)) return;
+        session.readPaused = false;
+        updateInterest(session);
+        decodeRequests(session);
+    }
+
+    /**
+     * Queues a buffer to be written by the selector thread. May be called
+     * from any thread.
+     */
+    private void send(Outbox outbox, ByteBuffer buffer) {
+        outbox.pendingBytes.addAndGet(buffer.remaining());
+        outbox.writeQueue.add(buffer);
+        pendingWrites.add(outbox);
+        selector.wakeup();
+    }
+
+    private void close(Outbox outbox) {
+        try {
+            outbox.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (outbox instanceof ClientSession) {
+            Logging.logInfo("Connection closed");
+            ClientSession session = (ClientSession) outbox;
+            session.requests.add(DISCONNECT);
+            schedule(session);
+        } else {
+            MessageOutbox messageOutbox = (MessageOutbox) outbox;
+            deliveries.computeIfPresent(messageOutbox.username,
+                    (username, delivery) -> delivery.outbox == outbox ? null : delivery);
+        }
+    }
+
+    /**
+     * Submits the session to the worker pool, unless a worker is already
+     * processing its requests. This ensures requests from the same client
+     * are processed in order.
+     */
+    private void schedule(ClientSession session) {
+        if (!session.requests.isEmpty() && session.scheduled.compareAndSet(false, true)) {
+            workers.execute(() -> process(session));
+        }
+    }
+
+    /**
+     * Processes the queued requests of a session. Runs on a worker thread.
+     */
+    private void process(ClientSession session) {
+        try {
+            Request request;
+            while ((request = session.requests.poll()) != null) {
+                if (session.readPaused) {
+                    // Reading from the connection may resume now there is room.
+                    pendingResumes.add(session);
+                    selector.wakeup();
+                }
+                if (request == DISCONNECT) {
+                    // Always log out the user once the connection is gone.
+                    String username = session.handler.getUsername();
+                    if (username != null) {
+                        deliveries.computeIfPresent(username,
+                                (user, delivery) -> delivery.outbox == session ? null : delivery);
+                    }
+                    session.handler.disconnect();
+                    while ((request = session.requests.poll()) != null) {
+                        request.release();
+                    }
+                    return;
+                }
+
+                int requestId = request.getRequestId();
+                API calledMethod;
+                MethodResponseInterface response;
+                try {
+                    calledMethod = API.fromInt(request.getMethodId());
+                    Logging.logInfo("Processing API call " + calledMethod.toString());
+                    response = session.handler.handle(calledMethod, request);
+                } finally {
+                    request.release();
+                }
+                if (response != null) {
+                    Logging.logService(response.getStringStatus());
+                    Boolean loggedIn = session.handler.loggedInBy(calledMethod);
+                    if (loggedIn && !session.protocol.isMultiplexed()) {
+                        // Must be registered before the response is sent, since the
+                        // client opens the message connection once it has the response.
+                        session.dispatchUsername = session.handler.getUsername();
+                        awaitingMessageChannel.add(session);
+                    }
+                    send(session, FrameCodec.encode(session.protocol, requestId, response.genGenericResponse()));
+                    if (loggedIn && session.protocol.isMultiplexed()) {
+                        startDelivery(new Delivery(session.handler.getUsername(), session, session.protocol));
+                    }
+                }
+            }
+        } catch (APIException e) {
+            Logging.logInfo("API Exception encountered (" +
+                    e.getMessage() + "). Dropping connection");
+            close(session);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close(session);
+        } finally {
+            session.scheduled.set(false);
+        }
+        // Requests may have arrived after the queue was drained, but before the
+        // session was marked as no longer scheduled.
+        schedule(session);
+    }
+
+    /**
+     * Sends the messages queued for the user. If the user is no longer logged in,
+     * delivery is stopped instead, closing the connection if it was dedicated to
+     * messages. Runs on the dispatcher.
+     */
+    private void deliverMessages(Delivery delivery) {
+        Outbox outbox = delivery.outbox;
+        if (!outbox.channel.isOpen()) return;
+        try {
+            if (!server.isLoggedIn(delivery.username)) {
+                deliveries.remove(delivery.username, delivery);
+                if (outbox instanceof MessageOutbox) close(outbox);
+                return;
+            }
+
+            if (outbox.pendingBytes.get() >= MAX_PENDING_WRITE_BYTES) {
+                // The client is not reading, so its messages stay queued until
+                // the outbox drains, at which point delivery resumes.
+                return;
+            }
+            Optional<List<Message>> messageList = server.getQueuedMessages(delivery.username);
+            if (messageList.isPresent()) {
+                send(outbox, FrameCodec.encode(delivery.protocol, messageList.get()));
+                Logging.logInfo("All messages delivered to user " + delivery.username);
+                server.unqueueMessages(delivery.username, messageList.get());
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            close(outbox);
+        }
+    }
+
+    /**
+     * A non-blocking connection along with the buffers waiting to be written to it.
+     */
+    private static class Outbox {
+        final SocketChannel channel;
+        final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        // The bytes in the write queue not yet written.
+        final AtomicLong pendingBytes = new AtomicLong();
+        volatile SelectionKey key;
+        // The user whose messages are delivered over the connection, if any.
+        volatile Delivery delivery;
+
+        Outbox(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A connection over which messages are delivered to a logged in user.
+     */
+    private static class MessageOutbox extends Outbox {
+        final String username;
+
+        MessageOutbox(SocketChannel channel, String username) {
+            super(channel);
+            this.username = username;
+        }
+    }
+
+    /**
+     * Where, and in which format, the messages of a logged in user are sent.
+     */
+    private static class Delivery {
+        final String username;
+        final Outbox outbox;
+        final Protocol protocol;
+
+        Delivery(String username, Outbox outbox, Protocol protocol) {
+            this.username = username;
+            this.outbox = outbox;
+            this.protocol = protocol;
+        }
+    }
+
+    /**
+     * The state of a single connection on the API port. The read buffer is
+     * only accessed by the selector thread, while the request handler is only
+     * used by the (single) worker currently scheduled for the session.
+     */
+    private static class ClientSession extends Outbox {
+        final RequestHandler handler;
+        final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        // Whether reading from the connection is paused, as the client has too
+        // much pending. Only written by the selector thread.
+        volatile boolean readPaused;
+        // Null until the first bytes of the connection have been received.
+        volatile Protocol protocol;
+        volatile String dispatchUsername;
+
+        ClientSession(SocketChannel channel, RequestHandler handler) {
+            super(channel);
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package messenger;
+
+import messenger.api.API;
+import messenger.api.APIException;
+import messenger.objects.request.*;
+import messenger.objects.response.MethodResponseInterface;
+
+/**
+ * Maps generic Requests received from a single client onto the corresponding
+ * `ServerCore` API calls. The handler also remembers which user the client
+ * is logged in as, so that the user can be logged out once the client goes
+ * away.
+ *
+ * The handler is independent of how requests are read from the network, so
+ * it is shared by the blocking `Server.ClientHandler` and the `NioServer`.
+ */
+public class RequestHandler {
+    private final ServerCore server;
+
+    private String username = null;
+
+    /**
+     * Create a RequestHandler backed by the given ServerCore.
+     * @param server    The object used to update the state of the server.
+     */
+    public RequestHandler(ServerCore server) {
+        this.server = server;
+    }
+
+    /**
+     * Get the username the client is currently logged in as.
+     * @return  The username, or null if the client is not logged in.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Whether the given call has just logged in a user, in which case a
+     * message dispatcher should be started for that user.
+     * @param calledMethod  The API call which was just handled.
+     * @return              True if a user was logged in by the call.
+     */
+    public Boolean loggedInBy(API calledMethod) {
+        return (calledMethod == API.CREATE_ACCOUNT || calledMethod == API.LOGIN) && username != null;
+    }
+
+    /**
+     * Executes the API call corresponding to the request and returns the
+     * response to be sent back to the client.
+     *
+     * @param calledMethod  The API call specified by the request.
+     * @param request       The generic request received from the client.
+     * @return              The response, or null if the call has no response.
+     * @throws APIException Thrown if the request is malformed.
+     */
+    public MethodResponseInterface handle(API calledMethod, Request request) throws APIException {
+        MethodResponseInterface response = null;
+        if (calledMethod == API.CREATE_ACCOUNT) {
+            // Client wants to create a new user
+            CreateAccountRequest createAccountRequest = new CreateAccountRequest(request);
+            response = server.createAccountAPI(createAccountRequest);
+
+            // Set username and logged in status
+            username = createAccountRequest.getUsername();
+        } else if (calledMethod == API.DELETE_ACCOUNT) {
+            DeleteAccountRequest deleteAccountRequest = new DeleteAccountRequest(request);
+            response = server.deleteAccountAPI(deleteAccountRequest);
+
+            username = null;
+        } else if (calledMethod == API.GET_ACCOUNTS) {
+            GetAccountsRequest getAccountsRequest = new GetAccountsRequest(request);
+            response = server.getAccountsAPI(getAccountsRequest);
+        } else if (calledMethod == API.GET_UNDELIVERED_MESSAGES) {
+            GetUndeliveredMessagesRequest getUndeliveredMessagesRequest =
+                    new GetUndeliveredMessagesRequest(request);
+            response = server.getUndeliveredMessagesAPI(getUndeliveredMessagesRequest);
+        } else if (calledMethod == API.SEND_MESSAGE) {
+            SendMessageRequest sendMessageRequest = new SendMessageRequest(request);
+            response = server.sendMessageAPI(sendMessageRequest);
+        } else if (calledMethod == API.SEND_MESSAGE_BATCH) {
+            SendMessageBatchRequest sendMessageBatchRequest = new SendMessageBatchRequest(request);
+            response = server.sendMessageBatchAPI(sendMessageBatchRequest);
+        } else if (calledMethod == API.LOGIN) {
+            LoginRequest loginRequest = new LoginRequest(request);
+            response = server.loginUserAPI(loginRequest);
+
+            username = loginRequest.getUsername();
+        } else if (calledMethod == API.LOGOUT) {
+            LogoutRequest logoutRequest = new LogoutRequest(request);
+            response = server.logoutUserAPI(logoutRequest);
+
+            username = null;
+        }
+        return response;
+    }
+
+    /**
+     * Logs out the user associated with this client, if any. Called when
+     * the connection to the client is lost or closed.
+     */
+    public void disconnect() {
+        if (username != null) server.logoutUser(username);
+        username = null;
+    }
+}
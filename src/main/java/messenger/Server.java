@@ -1,30 +1,56 @@
 package messenger;
+import messenger.network.BufferPool;
 import messenger.network.Connection;
+import messenger.network.Protocol;
 import messenger.api.API;
 import messenger.api.APIException;
 import messenger.objects.Message;
-import messenger.objects.request.*;
+import messenger.objects.request.Request;
 import messenger.objects.response.MethodResponseInterface;
 import messenger.util.Constants;
 import messenger.util.Logging;
+import messenger.util.Metrics;
+import messenger.util.ThreadUtil;
 
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Multithreaded server implementation, loosely based on
  * https://www.geeksforgeeks.org/multithreaded-servers-in-java/
  *
  * For each connection, the server creates a ClientHandler instance in a separate
- * thread.
+ * thread. Passing `--virtual-threads` runs the handlers on virtual threads instead
+ * of platform threads. Passing `--nio` instead runs the non-blocking `NioServer`,
+ * which serves all connections from a single selector thread and a small worker pool.
  */
 public class Server {
     public static void main(String[] args){
         ServerCore server = new ServerCore();
+        long metricsInterval = Metrics.intervalFromSystemProperties();
+        if (metricsInterval > 0) {
+            server.getMetrics().logEvery(metricsInterval);
+        }
+        List<String> options = Arrays.asList(args);
+        if (options.contains("--nio")) {
+            try {
+                new NioServer(server, Runtime.getRuntime().availableProcessors()).run();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+            return;
+        }
+
         ServerSocket serverSocket = null;
         ServerSocket messageSocket = null;
+        ExecutorService executor = options.contains("--virtual-threads")
+                ? ThreadUtil.newVirtualThreadExecutor()
+                : ThreadUtil.newPlatformThreadExecutor();
 
         try {
             Logging.logInfo("Starting server...");
@@ -42,12 +68,13 @@ public class Server {
                 Socket socket = serverSocket.accept();
                 Logging.logInfo("New connection established " + socket.getInetAddress().getHostAddress());
                 Connection connection = new Connection(socket);
-                ClientHandler clientHandler = new ClientHandler(connection, server, messageSocket);
-                new Thread(clientHandler).start();
+                ClientHandler clientHandler = new ClientHandler(connection, server, messageSocket, executor);
+                executor.execute(clientHandler);
             }
         } catch(Exception e) {
             System.out.println(e);
         } finally {
+            executor.shutdownNow();
             if (serverSocket != null) {
                 try {
                     serverSocket.close();
@@ -63,34 +90,62 @@ public class Server {
      * from that client. It maintains a handle to a `ServerCore` object (shared)
      * by all the ClientHandlers, so that they can all update the same state.
      *
-     * Concurrency safety is not ensured for `ServerCore`.
+     * `ServerCore` guards its own state, so the handlers may run concurrently.
      */
     public static class ClientHandler implements Runnable {
         private final ServerCore server;
         private final ServerSocket messageSocket;
         private final Connection connection;
+        private final RequestHandler requestHandler;
+        // Runs the MessageHandler started once the client logs in.
+        private final Executor executor;
+        // Negotiated when the client connects; legacy unless the client asks otherwise.
+        private Protocol protocol = Protocol.LEGACY;
 
-        private String username = null;
+        // Shared by all handlers to read version 2 frames into.
+        private static final BufferPool FRAME_BUFFERS = new BufferPool(4096, 1024);
 
         /**
-         * Create a ClientHandler on a given Connection and ServerCore.
+         * Create a ClientHandler on a given Connection and ServerCore, which
+         * starts a new thread for its MessageHandler.
          *
          * @param connection    The connection this handler reads from and writes to.
          * @param server        The object used to update the state of the server.
          */
         public ClientHandler(Connection connection, ServerCore server, ServerSocket messageSocket) {
+            this(connection, server, messageSocket, command -> new Thread(command).start());
+        }
+
+        /**
+         * Create a ClientHandler on a given Connection and ServerCore.
+         *
+         * @param connection    The connection this handler reads from and writes to.
+         * @param server        The object used to update the state of the server.
+         * @param executor      The executor used to run the MessageHandler.
+         */
+        public ClientHandler(Connection connection, ServerCore server, ServerSocket messageSocket,
+                             Executor executor) {
             this.connection = connection;
             this.server = server;
             this.messageSocket = messageSocket;
+            this.requestHandler = new RequestHandler(server);
+            this.executor = executor;
         }
 
         /**
          * Launches a `MessageHandler` thread which manages sending users
-         * addressed towards the logged-in user.
+         * addressed towards the logged-in user. If the connection is multiplexed
+         * the messages are sent over it, otherwise the client is expected to open
+         * a second connection on the message socket.
          * @param username      The username to be associated with handler.
          * @throws IOException  Thrown if the connection fails for any reason.
          */
         public void launchMessageDispatcher(String username) throws IOException {
+            if (protocol.isMultiplexed()) {
+                executor.execute(new MessageHandler(connection, server, username, protocol));
+                return;
+            }
+
             // If no message socket has been set, immediately return.
             if (messageSocket == null) {
                 return;
@@ -98,65 +153,47 @@ public class Server {
 
             Socket socket = messageSocket.accept();//establishes connection
             Connection connection = new Connection(socket);
-            MessageHandler messageHandler = new MessageHandler(connection, server, username);
-            new Thread(messageHandler).start();
+            MessageHandler messageHandler = new MessageHandler(connection, server, username, protocol);
+            executor.execute(messageHandler);
         }
 
         /**
-         * The run method contains the logic of what APIs are called and what request and response objects are created
-         * corresponding to each of the method calls.
+         * The run method reads requests from the connection and hands them to
+         * the `RequestHandler`, which contains the logic of what APIs are called
+         * and what request and response objects are created.
+         *
+         * The client may open the connection with the protocol header, in which
+         * case the protocol options are negotiated before any request is read.
          */
         public void run() {
             try {
+                if (connection.peekInt() == Protocol.MAGIC) {
+                    connection.readInt();
+                    protocol = Protocol.accept(connection);
+                    Logging.logInfo("Negotiated protocol flags " + protocol.getFlags());
+                }
+
                 while (true) {
                     // Form request from input stream
-                    Request request = Request.genRequest(connection);
-
-                    // Response object to populate.
-                    MethodResponseInterface response = null;
+                    Request request = protocol.readRequest(connection, FRAME_BUFFERS);
 
+                    int requestId = request.getRequestId();
                     // Parse integer into the corresponding API call
-                    API calledMethod = API.fromInt(request.getMethodId());
-                    Logging.logInfo("Processing API call " + calledMethod.toString());
-                    if (calledMethod == API.CREATE_ACCOUNT) {
-                        // Client wants to create a new user
-                        CreateAccountRequest createAccountRequest = new CreateAccountRequest(request);
-                        response = server.createAccountAPI(createAccountRequest);
-
-                        // Set username and logged in status
-                        username = createAccountRequest.getUsername();
-                    } else if (calledMethod == API.DELETE_ACCOUNT) {
-                        DeleteAccountRequest deleteAccountRequest = new DeleteAccountRequest(request);
-                        response = server.deleteAccountAPI(deleteAccountRequest);
-
-                        username = null;
-                    } else if (calledMethod == API.GET_ACCOUNTS) {
-                        GetAccountsRequest getAccountsRequest = new GetAccountsRequest(request);
-                        response = server.getAccountsAPI(getAccountsRequest);
-                    } else if (calledMethod == API.GET_UNDELIVERED_MESSAGES) {
-                        GetUndeliveredMessagesRequest getUndeliveredMessagesRequest =
-                                new GetUndeliveredMessagesRequest(request);
-                        response = server.getUndeliveredMessagesAPI(getUndeliveredMessagesRequest);
-                    } else if (calledMethod == API.SEND_MESSAGE) {
-                        SendMessageRequest sendMessageRequest = new SendMessageRequest(request);
-                        response = server.sendMessageAPI(sendMessageRequest);
-                    } else if (calledMethod == API.LOGIN) {
-                        LoginRequest loginRequest = new LoginRequest(request);
-                        response = server.loginUserAPI(loginRequest);
-
-                        username = loginRequest.getUsername();
-                    } else if (calledMethod == API.LOGOUT) {
-                        LogoutRequest logoutRequest = new LogoutRequest(request);
-                        response = server.logoutUserAPI(logoutRequest);
-
-                        username = null;
+                    API calledMethod;
+                    MethodResponseInterface response;
+                    try {
+                        calledMethod = API.fromInt(request.getMethodId());
+                        Logging.logInfo("Processing API call " + calledMethod.toString());
+                        response = requestHandler.handle(calledMethod, request);
+                    } finally {
+                        request.release();
                     }
                     if (response != null) {
                         Logging.logService(response.getStringStatus());
-                        response.genGenericResponse().writeToStream(connection);
+                        protocol.writeResponse(connection, requestId, response.genGenericResponse());
 
-                        if ((calledMethod == API.CREATE_ACCOUNT || calledMethod == API.LOGIN) && username != null) {
-                            launchMessageDispatcher(username);
+                        if (requestHandler.loggedInBy(calledMethod)) {
+                            launchMessageDispatcher(requestHandler.getUsername());
                         }
                     }
                 }
@@ -172,7 +209,7 @@ public class Server {
                 // terminated for any reason. Additionally try to clean up
                 // the connection.
                 try {
-                    if (username != null) server.logoutUser(username);
+                    requestHandler.disconnect();
                     connection.close();
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -190,33 +227,47 @@ public class Server {
             private final Connection connection;
             private final ServerCore server;
             private final String username;
+            private final Protocol protocol;
 
+            /**
+             * Create a MessageHandler on a dedicated message connection, which
+             * is closed once the user logs out.
+             */
             public MessageHandler(Connection connection, ServerCore server, String username) {
+                this(connection, server, username, Protocol.LEGACY);
+            }
+
+            /**
+             * Create a MessageHandler which writes messages according to the given
+             * protocol. A multiplexed connection is shared with the ClientHandler,
+             * so it is left open once the user logs out.
+             */
+            public MessageHandler(Connection connection, ServerCore server, String username, Protocol protocol) {
                 this.connection = connection;
                 this.server = server;
                 this.username = username;
+                this.protocol = protocol;
             }
 
+            /**
+             * Waits for messages to be queued for the user and writes them to the
+             * connection as soon as they arrive. The handler exits once the user
+             * is no longer logged in.
+             */
             public void run() {
                 while (true) {
                     try {
-                        // Only execute this thread once every second.
-                        Thread.sleep(1000);
+                        Optional<List<Message>> messageList = server.awaitQueuedMessages(username);
 
                         // If the user is no longer logged in,
-                        if (!server.isLoggedIn(username)) {
-                            connection.close();
+                        if (!messageList.isPresent()) {
+                            if (!protocol.isMultiplexed()) connection.close();
                             return;
                         }
 
-                        Optional<List<Message>> messageList = server.getQueuedMessages(username);
-                        if (messageList.isPresent()) {
-                            for (Message message : messageList.get()) {
-                                message.writeToStream(connection);
-                            }
-                            Logging.logInfo("All messages delivered to user " + username);
-                            server.unqueueMessages(username);
-                        }
+                        protocol.writeMessages(connection, messageList.get());
+                        Logging.logInfo("All messages delivered to user " + username);
+                        server.unqueueMessages(username, messageList.get());
                     } catch(Exception ex){
                         ex.printStackTrace();
                         return;
@@ -1,12 +1,42 @@
 package messenger;
 
-import messenger.grpc.Status;
 import messenger.objects.Message;
+import messenger.objects.Status;
 import messenger.objects.request.*;
 import messenger.objects.response.*;
+import messenger.util.Logging;
+import messenger.util.MessageSpill;
+import messenger.util.Metrics;
+import messenger.util.QueueLimiter;
+import messenger.util.QueueLimits;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+/**
+ * The state of the socket server, shared by all client handlers.
+ *
+ * Handlers call into the core concurrently. The maps and sets are concurrent,
+ * and every operation on a user's state (their login status and message lists)
+ * holds the lock of the stripe that user hashes to. Operations on different
+ * users therefore rarely contend, while operations on the same user (e.g. a
+ * message being queued while the recipient logs out) are atomic. ReentrantLocks
+ * are used rather than `synchronized` so that handlers running on virtual threads
+ * unmount from their carrier thread while waiting for a lock, instead of pinning it.
+ *
+ * Messages for logged in users are pushed to their dispatcher: a blocking
+ * `MessageHandler` waits on a per-recipient condition in `awaitQueuedMessages`,
+ * while the `NioServer` registers a dispatch listener.
+ *
+ * The number of messages held for recipients is bounded by `QueueLimits`, both
+ * per recipient and in total. Messages beyond the limits are rejected, replace
+ * the oldest message of the recipient, or are spilled to disk and read back into
+ * the queue as it drains.
+ */
 public class ServerCore {
 
     // Maintain a map of usernames to lists of sent messages
@@ -22,12 +52,62 @@ public class ServerCore {
     // All created and not deleted accounts.
     private final Set<String> allAccounts;
 
+    // Must be a power of two.
+    private static final int NUM_STRIPES = 64;
+    // Each lock guards the state of the users hashing to it.
+    private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+    // Signalled when messages are queued for the recipient, or the recipient logs out.
+    // Each condition belongs to the stripe of its user.
+    private final Map<String, Condition> dispatchConditions = new ConcurrentHashMap<>();
+    // Optionally notified with the recipient whenever its condition is signalled.
+    private volatile Consumer<String> dispatchListener = null;
+
+    private final Metrics metrics = new Metrics();
+    // Bounds the messages in `queuedMessagesMap` and `undeliveredMessages`.
+    private final QueueLimiter queueLimiter;
+    // Holds the messages beyond the limits, if spilling to disk.
+    private final MessageSpill<Message> spill;
+
     public ServerCore() {
-       this.sentMessages = new HashMap<>();
-       this.queuedMessagesMap = new HashMap<>();
-       this.undeliveredMessages = new HashMap<>();
-       this.loggedInUsers = new HashSet<>();
-       this.allAccounts = new HashSet<>();
+        this(QueueLimits.fromSystemProperties());
+    }
+
+    /**
+     * Create a ServerCore with the given limits on queued messages.
+     * @param limits    The limits on the messages held for recipients.
+     */
+    public ServerCore(QueueLimits limits) {
+       this.queueLimiter = new QueueLimiter(limits, metrics);
+       this.spill = MessageSpill.temporary(Message.class);
+       metrics.gauge("queue.spilled", spill::getTotal);
+       metrics.gauge("queue.max_recipient_depth", this::maxQueueDepth);
+       this.sentMessages = new ConcurrentHashMap<>();
+       this.queuedMessagesMap = new ConcurrentHashMap<>();
+       this.undeliveredMessages = new ConcurrentHashMap<>();
+       this.loggedInUsers = ConcurrentHashMap.newKeySet();
+       this.allAccounts = ConcurrentHashMap.newKeySet();
+       for (int i = 0; i < NUM_STRIPES; i++) {
+           stripes[i] = new ReentrantLock();
+       }
+    }
+
+    /**
+     * Gets the lock guarding the state of the given user.
+     * @param username  The username
+     * @return          The lock of the stripe the user hashes to.
+     */
+    private ReentrantLock lockFor(String username) {
+        return stripes[stripeOf(username)];
+    }
+
+    /**
+     * Gets the index of the stripe the given user hashes to.
+     * @param username  The username
+     * @return          The index into `stripes`.
+     */
+    private int stripeOf(String username) {
+        int hash = username.hashCode();
+        return (hash ^ (hash >>> 16)) & (NUM_STRIPES - 1);
     }
 
     /** 
@@ -38,55 +118,210 @@ public class ServerCore {
         return allAccounts;
     }
 
+    /**
+     * Get the metrics of the server, such as the number of queued messages.
+     * @return  The metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Queue message for delivery (whether immediately or later
-     * if the user is not logged in).
+     * if the user is not logged in). Must hold the lock of the recipient.
      *
      * @param message   Message to be queued.
+     * @return          False if the message was rejected, since the queue is full.
      */
-    private void addMessageToList(Map<String, List<Message>> listToAdd, Message message) {
-        List<Message> messageList;
+    private boolean addMessageToList(Map<String, List<Message>> listToAdd, Message message) {
         String recepient = message.getRecepient();
-        if (listToAdd.containsKey(recepient)) {
-            messageList = listToAdd.get(recepient);
-        } else {
-            messageList = new ArrayList<>();
-            listToAdd.put(recepient, messageList);
+        String spillKey = spillKey(listToAdd, recepient);
+        List<Message> messages = listToAdd.get(recepient);
+        int depth = messages == null ? 0 : messages.size();
+        switch (queueLimiter.admit(depth, spill.size(spillKey) > 0)) {
+            case REJECT:
+                return false;
+            case SPILL:
+                try {
+                    spill.append(spillKey, message);
+                } catch (IOException e) {
+                    Logging.logInfo("Failed to spill message for " + recepient + ": " + e.getMessage());
+                    queueLimiter.reject();
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                messages.remove(0);
+                messages.add(message);
+                break;
+            default:
+                listToAdd.computeIfAbsent(recepient, key -> new ArrayList<>()).add(message);
+        }
+        if (listToAdd == queuedMessagesMap) {
+            signalDispatcher(recepient);
+        }
+        return true;
+    }
+
+    /**
+     * Moves spilled messages back into the queue of a recipient, as far as the
+     * limits allow. Must hold the lock of the recipient.
+     * @param listToAdd The map holding the queue.
+     * @param username  The recipient.
+     * @return          The number of messages moved into the queue.
+     */
+    private int refillFromSpill(Map<String, List<Message>> listToAdd, String username) {
+        String spillKey = spillKey(listToAdd, username);
+        int spilled = spill.size(spillKey);
+        if (spilled == 0) return 0;
+        List<Message> messages = listToAdd.get(username);
+        int depth = messages == null ? 0 : messages.size();
+        int room = queueLimiter.reserveRoom(depth, spilled);
+        if (room == 0) return 0;
+        try {
+            List<Message> restored = spill.take(spillKey, room);
+            queueLimiter.release(room - restored.size());
+            listToAdd.computeIfAbsent(username, key -> new ArrayList<>()).addAll(restored);
+            return restored.size();
+        } catch (IOException e) {
+            queueLimiter.release(room);
+            Logging.logInfo("Failed to read spilled messages for " + username + ": " + e.getMessage());
+            return 0;
         }
-        messageList.add(message);
     }
 
     /**
-     * Get the queued messages for the user associated to the username
+     * The name of the spilled queue of a recipient.
+     * @param listToAdd The map holding the queue in memory.
+     * @param username  The recipient.
+     * @return          The name of the queue.
+     */
+    private String spillKey(Map<String, List<Message>> listToAdd, String username) {
+        return (listToAdd == queuedMessagesMap ? "queued:" : "undelivered:") + username;
+    }
+
+    /**
+     * Get the number of messages in the largest queue held in memory.
+     * @return  The number of messages.
+     */
+    private long maxQueueDepth() {
+        long max = 0;
+        for (List<Message> messages : queuedMessagesMap.values()) max = Math.max(max, messages.size());
+        for (List<Message> messages : undeliveredMessages.values()) max = Math.max(max, messages.size());
+        return max;
+    }
+
+    /**
+     * Wakes up the dispatcher of the given user, since either messages have been
+     * queued for the user or the user has logged out. Must hold the lock of the user.
+     * @param username  The username
+     */
+    private void signalDispatcher(String username) {
+        Condition condition = dispatchConditions.get(username);
+        if (condition != null) {
+            condition.signalAll();
+        }
+        if (dispatchListener != null) {
+            dispatchListener.accept(username);
+        }
+    }
+
+    /**
+     * Sets a listener which is called with the username whenever messages are
+     * queued for a logged in user, or a user logs out. The listener is called
+     * while the user's state is locked, so it should only hand the work off.
+     * @param listener  The listener
+     */
+    public void setDispatchListener(Consumer<String> listener) {
+        this.dispatchListener = listener;
+    }
+
+    /**
+     * Get the queued messages for the user associated to the username. A copy
+     * is returned, so that the list may be iterated while new messages are queued.
+     * Spilled messages are first moved back into the queue, as far as the limits allow.
      * @param username The username
      * @return Optionally return a list of the queued messages
      */
     public Optional<List<Message>> getQueuedMessages(String username) {
-        if (queuedMessagesMap.containsKey(username)) {
-            return Optional.of(queuedMessagesMap.get(username));
-        } else {
-            return Optional.empty();
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            refillFromSpill(queuedMessagesMap, username);
+            List<Message> queuedMessages = queuedMessagesMap.get(username);
+            if (queuedMessages != null) {
+                return Optional.of(new ArrayList<>(queuedMessages));
+            } else {
+                return Optional.empty();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Unqueue the messages for the user associated to the username
-     * @param The username
+     * Blocks until messages are queued for the user associated to the username,
+     * or until the user is logged out. The messages remain queued until they are
+     * passed to `unqueueMessages`.
+     * @param username  The username
+     * @return          A copy of the queued messages, or empty if the user is not logged in.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting.
      */
-    public void unqueueMessages(String username) {
-        List<Message> messageList;
-
-        if (sentMessages.containsKey(username)) {
-            messageList = sentMessages.get(username);
-        } else {
-            messageList = new ArrayList<Message>();
-            sentMessages.put(username, messageList);
+    public Optional<List<Message>> awaitQueuedMessages(String username) throws InterruptedException {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Condition condition = dispatchConditions.computeIfAbsent(username, key -> lock.newCondition());
+            refillFromSpill(queuedMessagesMap, username);
+            while (loggedInUsers.contains(username) && !queuedMessagesMap.containsKey(username)) {
+                condition.await();
+                refillFromSpill(queuedMessagesMap, username);
+            }
+            if (!loggedInUsers.contains(username)) {
+                return Optional.empty();
+            }
+            return getQueuedMessages(username);
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /**
+     * Unqueue the delivered messages for the user associated to the username.
+     * Messages queued after `delivered` was fetched remain queued.
+     * @param username  The username
+     * @param delivered The messages which have been delivered, as previously
+     *                  returned by `getQueuedMessages`.
+     */
+    public void unqueueMessages(String username, List<Message> delivered) {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            List<Message> messageList = sentMessages.computeIfAbsent(username, key -> new ArrayList<>());
 
-        Optional<List<Message>> queuedMessages = getQueuedMessages(username);
-        if (queuedMessages.isPresent()) {
-            messageList.addAll(queuedMessages.get());
-            queuedMessagesMap.remove(username);
+            List<Message> queuedMessages = queuedMessagesMap.get(username);
+            if (queuedMessages != null) {
+                // Messages are only ever appended, and only the oldest are
+                // dropped, so the delivered messages which are still queued
+                // are always at the front of the queue.
+                int count = 0;
+                for (Message message : delivered) {
+                    if (count < queuedMessages.size() && queuedMessages.get(count) == message) count++;
+                }
+                List<Message> deliveredMessages = queuedMessages.subList(0, count);
+                messageList.addAll(deliveredMessages);
+                deliveredMessages.clear();
+                queueLimiter.release(count);
+                if (queuedMessages.isEmpty()) {
+                    queuedMessagesMap.remove(username);
+                }
+            }
+            // Wake up the dispatcher if spilled messages now fit in the queue.
+            if (refillFromSpill(queuedMessagesMap, username) > 0) {
+                signalDispatcher(username);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -104,7 +339,14 @@ public class ServerCore {
      * @param username The username
      */
     public void logoutUser(String username) {
-        loggedInUsers.remove(username);
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            loggedInUsers.remove(username);
+            signalDispatcher(username);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -113,6 +355,8 @@ public class ServerCore {
      * @return  a list of all users.
      */
     public GetAccountsResponse getAccountsAPI(GetAccountsRequest request) {
+        // The set of accounts is concurrent, so it can be iterated without
+        // locking; accounts created or deleted meanwhile may or may not be listed.
         List matches = new ArrayList<String>();
         String regex = request.getTextWildcard();
         if (!regex.isEmpty()) {
@@ -138,55 +382,108 @@ public class ServerCore {
      */
     public CreateAccountResponse createAccountAPI(CreateAccountRequest request) {
         String username = request.getUsername();
-        String message;
-        Boolean success = false;
-        if (allAccounts.contains(username)) {
-            message = "User " + username + " already exists.";
-        } else {
-            this.allAccounts.add(username);
-            // Also log in the user.
-            this.loggedInUsers.add(username);
-            success = true;
-            message = "User " + username + " created and logged in successfully.";
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            String message;
+            Boolean success = false;
+            if (!allAccounts.add(username)) {
+                message = "User " + username + " already exists.";
+            } else {
+                // Also log in the user.
+                this.loggedInUsers.add(username);
+                success = true;
+                message = "User " + username + " created and logged in successfully.";
+            }
+            return new CreateAccountResponse(success, message);
+        } finally {
+            lock.unlock();
         }
-        return new CreateAccountResponse(success, message);
     }
 
     /**
      * Deletes an account from `allAccounts` if the account exists
-     * otherwise do nothing.
+     * otherwise do nothing. The messages held for the user are discarded.
      * @param request   A deleteAccount request, containing a username.
      * @return          A status object, which is always successful.
      */
     public DeleteUserResponse deleteAccountAPI(DeleteAccountRequest request) {
         String username = request.getUsername();
-        String message;
-        Boolean success = false;
-        if (allAccounts.contains(username)) {
-            allAccounts.remove(username);
-            // Also remove from logged in users if logged in.
-            loggedInUsers.remove(username);
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            String message;
+            Boolean success = false;
+            if (allAccounts.contains(username)) {
+                allAccounts.remove(username);
+                // Also remove from logged in users if logged in.
+                loggedInUsers.remove(username);
+                signalDispatcher(username);
+                discardHeldMessages(username);
 
-            success = true;
-            message = "User " + username + " deleted.";
-        } else {
-            message = "User " + username + " does not exist and cannot be deleted.";
+                success = true;
+                message = "User " + username + " deleted.";
+            } else {
+                message = "User " + username + " does not exist and cannot be deleted.";
+            }
+            return new DeleteUserResponse(success, message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards the messages queued for a user, and their undelivered messages,
+     * including those spilled to disk, making room for other messages. Must hold
+     * the lock of the user.
+     * @param username  The username
+     */
+    private void discardHeldMessages(String username) {
+        for (Map<String, List<Message>> messages : List.of(queuedMessagesMap, undeliveredMessages)) {
+            List<Message> held = messages.remove(username);
+            if (held != null) {
+                queueLimiter.release(held.size());
+            }
+            try {
+                spill.clear(spillKey(messages, username));
+            } catch (IOException e) {
+                Logging.logInfo("Failed to discard spilled messages for " + username + ": " + e.getMessage());
+            }
         }
-        return new DeleteUserResponse(success, message);
     }
 
     /**
-     * Gets all messages which are queued for sending for a provided user.
+     * Gets all messages which are queued for sending for a provided user. The
+     * messages are removed from the undelivered messages, making room for others,
+     * and moved to the sent messages.
      *
      * @param request   A request for undelivered messages for a user.
      * @return          A response contained the messages.
      */
     public GetUndeliveredMessagesResponse getUndeliveredMessagesAPI(GetUndeliveredMessagesRequest request) {
         String username = request.getUsername();
-        if (undeliveredMessages.containsKey(username)) {
-            return new GetUndeliveredMessagesResponse(true, undeliveredMessages.get(username));
-        } else {
-            return new GetUndeliveredMessagesResponse(true, new ArrayList<>());
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            List<Message> messages = undeliveredMessages.remove(username);
+            if (messages == null) {
+                messages = new ArrayList<>();
+            } else {
+                queueLimiter.release(messages.size());
+            }
+            // Spilled messages are not counted against the limits.
+            String spillKey = spillKey(undeliveredMessages, username);
+            try {
+                messages.addAll(spill.take(spillKey, spill.size(spillKey)));
+            } catch (IOException e) {
+                Logging.logInfo("Failed to read spilled messages for " + username + ": " + e.getMessage());
+            }
+            if (!messages.isEmpty()) {
+                sentMessages.computeIfAbsent(username, key -> new ArrayList<>()).addAll(messages);
+            }
+            return new GetUndeliveredMessagesResponse(true, messages);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -198,21 +495,72 @@ public class ServerCore {
      * @return          A status of whether the message was delivered or added to undelivered messages.
      */
     public SendMessageResponse sendMessageAPI(SendMessageRequest request) {
-        String sender = request.getSender();
         String recipient = request.getRecipient();
-        String strMessage = request.getMessage();
+        // Only the recipient's state is updated, so the sender is not locked.
+        ReentrantLock lock = lockFor(recipient);
+        lock.lock();
+        try {
+            return sendMessage(request.getSender(), recipient, request.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends every message in a batch, as if by `sendMessageAPI`. The locks of
+     * all recipients are acquired once for the whole batch (in stripe order,
+     * so that concurrent batches cannot deadlock), rather than once per message.
+     * @param request   A request specifying the sender, and the recipient of each message.
+     * @return          The status of each message, in the order of the request.
+     */
+    public SendMessageBatchResponse sendMessageBatchAPI(SendMessageBatchRequest request) {
+        List<String> recipients = request.getRecipients();
+        List<String> messages = request.getMessages();
+        SortedSet<Integer> stripeIndices = new TreeSet<>();
+        for (String recipient : recipients) {
+            stripeIndices.add(stripeOf(recipient));
+        }
+
+        List<ReentrantLock> locks = new ArrayList<>(stripeIndices.size());
+        for (int index : stripeIndices) {
+            locks.add(stripes[index]);
+        }
+        locks.forEach(ReentrantLock::lock);
+        try {
+            List<Status> statuses = new ArrayList<>(recipients.size());
+            for (int i = 0; i < recipients.size(); i++) {
+                SendMessageResponse response = sendMessage(request.getSender(), recipients.get(i), messages.get(i));
+                statuses.add(new Status(response.isSuccessful(), response.getStringStatus()));
+            }
+            return new SendMessageBatchResponse(true, statuses);
+        } finally {
+            locks.forEach(ReentrantLock::unlock);
+        }
+    }
 
+    /**
+     * Sends a single message. Must hold the lock of the recipient.
+     * @param sender    The sender
+     * @param recipient The recipient
+     * @param text      The message
+     * @return          A status of whether the message was delivered or added to undelivered messages.
+     */
+    private SendMessageResponse sendMessage(String sender, String recipient, String text) {
         // Create Message object.
-        Message message = new Message(System.currentTimeMillis(), sender, recipient, strMessage);
+        Message message = new Message(System.currentTimeMillis(), sender, recipient, text);
         if (!allAccounts.contains(recipient)) {
             return new SendMessageResponse(false, "Recipient does not exist.");
         } else if (loggedInUsers.contains(recipient)) {
             // If the user is logged in, immediately send the message.
-            addMessageToList(queuedMessagesMap, message);
+            if (!addMessageToList(queuedMessagesMap, message)) {
+                return new SendMessageResponse(false, "Recipient's message queue is full.");
+            }
             return new SendMessageResponse(true, "Message sent successfully.");
         } else {
             // Otherwise add to undelivered messages for future delivery
-            addMessageToList(undeliveredMessages, message);
+            if (!addMessageToList(undeliveredMessages, message)) {
+                return new SendMessageResponse(false, "Recipient's message queue is full.");
+            }
             return new SendMessageResponse(true, "Message queued for delivery.");
         }
     }
@@ -226,16 +574,22 @@ public class ServerCore {
      */
     public LoginResponse loginUserAPI(LoginRequest request) {
         String username = request.getUsername();
-        if (!allAccounts.contains(username)) {
-            return new LoginResponse(false, "User " + username + " does not exist, account " +
-                    "must be created before user is logged in.");
-        }
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (!allAccounts.contains(username)) {
+                return new LoginResponse(false, "User " + username + " does not exist, account " +
+                        "must be created before user is logged in.");
+            }
 
-        if (loggedInUsers.contains(username)) {
-            return new LoginResponse(false, "User " + username + " already logged in.");
-        } else {
-            loggedInUsers.add(username);
-            return new LoginResponse(true, "User " + username + " logged in successfully.");
+            if (loggedInUsers.contains(username)) {
+                return new LoginResponse(false, "User " + username + " already logged in.");
+            } else {
+                loggedInUsers.add(username);
+                return new LoginResponse(true, "User " + username + " logged in successfully.");
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -246,11 +600,18 @@ public class ServerCore {
      */
     public LogoutResponse logoutUserAPI(LogoutRequest request) {
         String username = request.getUsername();
-        if (loggedInUsers.contains(username)) {
-            loggedInUsers.remove(username);
-            return new LogoutResponse(true, "User " + username + " logged out successfully.");
-        } else {
-            return new LogoutResponse(false, "User " + username + " not logged in.");
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (loggedInUsers.contains(username)) {
+                loggedInUsers.remove(username);
+                signalDispatcher(username);
+                return new LogoutResponse(true, "User " + username + " logged out successfully.");
+            } else {
+                return new LogoutResponse(false, "User " + username + " not logged in.");
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -13,7 +13,8 @@ public enum API {
     SEND_MESSAGE(3),
     GET_UNDELIVERED_MESSAGES(4),
     DELETE_ACCOUNT(5),
-    LOGIN(6);
+    LOGIN(6),
+    SEND_MESSAGE_BATCH(7);
     private final int identifier;
     private static final Map<Integer, API> intToAPI = new HashMap<Integer, API>();
     static {
@@ -19,6 +19,9 @@ public class ClientCore {
 
     private Boolean isPrimary = false;
 
+    // The server a call was redirected to as the primary, or -1 if none.
+    private volatile int redirect = -1;
+
     public ClientCore() {
         username = null;
         connectionEstablished = false;
@@ -39,6 +42,32 @@ public class ClientCore {
         isPrimary = primary;
     }
 
+    /**
+     * Notes the server a call was redirected to, as it is the primary.
+     * @param offset    The offset of the primary.
+     */
+    public void setRedirect(int offset) {
+        redirect = offset;
+    }
+
+    /**
+     * Takes the server the last call was redirected to, if any.
+     * @return  The offset of the primary, or -1 if no call was redirected.
+     */
+    public int takeRedirect() {
+        int offset = redirect;
+        redirect = -1;
+        return offset;
+    }
+
+    /**
+     * Whether a call was redirected since the redirect was last taken.
+     * @return  True if a call was redirected.
+     */
+    public Boolean hasRedirect() {
+        return redirect >= 0;
+    }
+
     /**
      * Returns the current channel used by the client
      * @return  A ManagedChannel
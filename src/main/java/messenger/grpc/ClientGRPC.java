@@ -11,48 +11,51 @@ import messenger.util.Constants;
 import messenger.util.GRPCUtil;
 import messenger.util.Logging;
 
-import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientGRPC {
+    // How long to wait for the servers to answer a handshake.
+    public static final long HANDSHAKE_TIMEOUT_MILLIS = 1000;
+    // How long to wait for the servers to elect a new primary after the primary fails.
+    public static final long FAILOVER_TIMEOUT_MILLIS = Constants.CLIENT_TIMEOUT * 500L;
+    // How long to wait between handshakes while the servers elect a new primary.
+    public static final long FAILOVER_RETRY_MILLIS = 50;
+
     public final MessengerGrpc.MessengerBlockingStub blockingStub;
+    public final MessengerGrpc.MessengerStub asyncStub;
+    public final MessengerGrpc.MessengerFutureStub futureStub;
     public final ClientCore core;
     public final Logging logger;
 
     private static List<ClientGRPC> clientInstances = new ArrayList<>();
 
+    // Whether reads are spread across every connected server, rather than sent to the primary.
+    private static boolean replicaReads = false;
+    // The server to try the next read on, before wrapping around.
+    private static final AtomicInteger nextReader = new AtomicInteger();
+    // The highest sequence number returned by the servers, which reads require
+    // the server to have applied, so that they reflect the changes made before.
+    private static final AtomicLong lastSequence = new AtomicLong();
+
     public ClientGRPC(ManagedChannel channel) {
         core = new ClientCore(channel);
         // Initialize stub which makes API calls.
         blockingStub = MessengerGrpc.newBlockingStub(channel);
+        // Initialize stub which receives streamed messages.
+        asyncStub = MessengerGrpc.newStub(channel);
+        // Initialize stub which makes calls to several servers at once.
+        futureStub = MessengerGrpc.newFutureStub(channel);
         logger = new Logging(core);
     }
 
-    /**
-     * Starts a service which allows the client to receive messages from the server.
-     * @param port          The port on which to start the receiver
-     * @throws IOException  Thrown on network exception.
-     */
-    private static Server startMessageReceiver(int port) throws IOException {
-        Server server = Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
-                .addService(new MessageReceiverImpl())
-                .build()
-                .start();
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                // Use stderr here since the logger may have been reset by its JVM shutdown hook.
-                System.err.println("*** shutting down gRPC server since JVM is shutting down");
-                interrupt();
-                System.err.println("*** server shut down");
-            }
-        });
-        return server;
-    }
-
     /**
      * Attempt a handshake with the associated server. Returns whether
      * the server is responsive.
@@ -69,6 +72,144 @@ public class ClientGRPC {
         return core.getConnectionStatus();
     }
 
+    /**
+     * Attempts a handshake with every server at once, so that finding the
+     * responsive servers takes as long as the slowest of them (up to the
+     * timeout), rather than the sum of their latencies. A server which fails or
+     * does not answer in time is marked as disconnected, and left to its pulse
+     * check to reconnect.
+     *
+     * @param clients       The clients of the servers, in order of offset.
+     * @param timeoutMillis How long to wait for each server.
+     * @return              The response of each server, or null for the servers
+     *                      which did not respond.
+     * @throws InterruptedException Thrown if interrupted while waiting.
+     */
+    public static List<HandshakeResponse> handshakeAll(List<ClientGRPC> clients, long timeoutMillis)
+            throws InterruptedException {
+        List<Future<HandshakeResponse>> futures = new ArrayList<>();
+        for (ClientGRPC client : clients) {
+            futures.add(client.futureStub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .handshake(HandshakeRequest.newBuilder().build()));
+        }
+        List<HandshakeResponse> responses = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i++) {
+            try {
+                responses.add(futures.get(i).get());
+                clients.get(i).core.setConnected();
+            } catch (ExecutionException e) {
+                Logging.logInfo("Server " + i + " did not respond: " + io.grpc.Status.fromThrowable(e.getCause()));
+                responses.add(null);
+                clients.get(i).core.setDisconnected();
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Picks the server to use as the primary from the responses to a handshake:
+     * the server which is already the primary if any, otherwise a responsive
+     * server another server names as the primary, otherwise the first
+     * responsive server from the given offset on.
+     * @param responses The responses of the servers, as returned by `handshakeAll`.
+     * @param start     The offset to start looking from.
+     * @return          The offset of the server, or -1 if none responded.
+     */
+    public static int choosePrimary(List<HandshakeResponse> responses, int start) {
+        for (int i = 0; i < responses.size(); i++) {
+            if (responses.get(i) != null && responses.get(i).getIsPrimary()) {
+                return i;
+            }
+        }
+        for (HandshakeResponse response : responses) {
+            if (response != null && response.hasLeader() && response.getLeader() < responses.size()
+                    && responses.get(response.getLeader()) != null) {
+                return response.getLeader();
+            }
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            int offset = (start + i) % responses.size();
+            if (responses.get(offset) != null) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Handshakes with every server until one reports being the primary, e.g.
+     * while the servers elect a new primary after the primary fails.
+     * @param clients       The clients of the servers, in order of offset.
+     * @param start         The offset to start looking from, if none becomes the primary.
+     * @param timeoutMillis How long to wait for a server to become the primary.
+     * @return              The offset of the primary, as chosen by `choosePrimary`
+     *                      once no longer waiting, or -1 if no server responded.
+     * @throws InterruptedException Thrown if interrupted while waiting.
+     */
+    public static int findPrimary(List<ClientGRPC> clients, int start, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            List<HandshakeResponse> responses = handshakeAll(clients, HANDSHAKE_TIMEOUT_MILLIS);
+            int offset = choosePrimary(responses, start);
+            if (offset < 0 || responses.get(offset).getIsPrimary() || System.currentTimeMillis() >= deadline) {
+                return offset;
+            }
+            Thread.sleep(FAILOVER_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Reads whether to spread reads across every connected server from the
+     * `messenger.client.replicaReads` system property.
+     * @return  True if reads are spread across the servers, false by default.
+     */
+    public static boolean replicaReadsFromSystemProperties() {
+        return Boolean.getBoolean("messenger.client.replicaReads");
+    }
+
+    /**
+     * Picks the server to send a read to: the first connected server from the
+     * given offset on.
+     * @param cores The clients of the servers, in order of offset.
+     * @param start The offset to start looking from.
+     * @return      The offset of the server, or -1 if none is connected.
+     */
+    public static int chooseReplica(List<ClientCore> cores, int start) {
+        for (int i = 0; i < cores.size(); i++) {
+            int offset = (start + i) % cores.size();
+            if (cores.get(offset).getConnectionStatus()) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Notes a sequence number returned by a server, so that later reads
+     * reflect the changes up to it.
+     * @param sequence  The sequence number.
+     */
+    private static void observeSequence(long sequence) {
+        lastSequence.accumulateAndGet(sequence, Math::max);
+    }
+
+    /**
+     * Handles a failed call. A call the server redirects to the primary is
+     * followed before the next command, and an unavailable server is treated
+     * as disconnected, so that the client looks for the new primary.
+     * @param e The failure of the call.
+     */
+    private void handleFailure(StatusRuntimeException e) {
+        logger.logInfoWithContext("RPC failed: " + e.getStatus());
+        int leader = GRPCUtil.leaderFromException(e);
+        if (leader >= 0) {
+            core.setRedirect(leader);
+        } else if (e.getStatus().getCode() == io.grpc.Status.Code.UNAVAILABLE) {
+            core.setDisconnected();
+        }
+    }
+
     /**
      * Implements API call to create an account.
      * @param username  The username to associate to this client.
@@ -81,10 +222,11 @@ public class ClientGRPC {
         LoginReply response;
         try {
             response = blockingStub.createAccount(request);
+            observeSequence(response.getSequence());
             logger.logServiceWithContext(response.getStatus().getMessage());
             return response.getStatus().getSuccess();
         } catch (StatusRuntimeException e) {
-            logger.logInfoWithContext("RPC failed: " + e.getStatus());
+            handleFailure(e);
             return false;
         }
     }
@@ -100,54 +242,95 @@ public class ClientGRPC {
         StatusReply response;
         try {
             response = blockingStub.deleteAccount(request);
+            observeSequence(response.getSequence());
             logger.logServiceWithContext(response.getStatus().getMessage());
             core.setLoggedOutStatus(response);
         } catch (StatusRuntimeException e) {
-            logger.logInfoWithContext("RPC failed: " + e.getStatus());
+            handleFailure(e);
+        }
+    }
+
+    /**
+     * Sends a read to another server, chosen in turn among those connected.
+     * @param request   The read.
+     * @return          The reply, or null if the read should be sent to the
+     *                  primary instead, e.g. as the server is behind.
+     */
+    private GetAccountsReply getAccountsFromReplica(GetAccountsRequest request) {
+        List<ClientCore> cores = new ArrayList<>();
+        for (ClientGRPC client : clientInstances) {
+            cores.add(client.core);
+        }
+        int offset = chooseReplica(cores, Math.floorMod(nextReader.getAndIncrement(), cores.size()));
+        if (offset < 0 || clientInstances.get(offset) == this) {
+            return null;
+        }
+        ClientGRPC replica = clientInstances.get(offset);
+        try {
+            GetAccountsReply response = replica.blockingStub.getAccounts(request);
+            if (!response.getStatus().getSuccess()) {
+                logger.logInfoWithContext("Server " + offset + " cannot serve the read: "
+                        + response.getStatus().getMessage());
+                return null;
+            }
+            return response;
+        } catch (StatusRuntimeException e) {
+            replica.handleFailure(e);
+            return null;
         }
     }
 
     /**
      * Implements API call to get all accounts associated with the 
-     * text wildcard that is input.
+     * text wildcard that is input. If reads are spread across the servers,
+     * the call is sent to the next connected server, falling back to the
+     * primary if that server has not applied the changes the client made.
      * @param text_wildcard  The text wildcard to use for returning accounts
      */
     public void getAccounts(String text_wildcard) {
         GetAccountsRequest request = GetAccountsRequest.newBuilder()
             .setTextWildcard(text_wildcard)
+            .setMinSequence(lastSequence.get())
             .build();
-        GetAccountsReply response;
+        GetAccountsReply response = replicaReads ? getAccountsFromReplica(request) : null;
         try {
-            response = blockingStub.getAccounts(request);
+            if (response == null) {
+                response = blockingStub.getAccounts(request);
+            }
+            if (!response.getStatus().getSuccess()) {
+                logger.logServiceWithContext(response.getStatus().getMessage());
+                return;
+            }
+            observeSequence(response.getSequence());
 
             logger.logServiceWithContext("Found accounts: ");
             for (String account : response.getAccountsList()) {
                 logger.logServiceWithContext("\t" + account);
             }
         } catch (StatusRuntimeException e) {
-            logger.logInfoWithContext("RPC failed: " + e.getStatus());
+            handleFailure(e);
         }
     }
 
     /**
      * Implements API call to get undelivered methods associated with 
-     * the username
+     * the username. The messages are streamed in pages, each of which is
+     * printed as it is received.
      * @param username The username associated to this client.
      */
     public void getUndeliveredMessages(String username) {
         GetUndeliveredMessagesRequest request = GetUndeliveredMessagesRequest.newBuilder()
             .setUsername(username)
             .build();
-        GetUndeliveredMessagesReply response;
         try {
-            response = blockingStub.getUndeliveredMessages(request);
+            Iterator<GetUndeliveredMessagesReply> pages = blockingStub.streamUndeliveredMessages(request);
+            while (pages.hasNext()) {
+                for (Message message : pages.next().getMessagesList()) {
+                    GRPCUtil.printMessage(logger, message);
+                }
+            }
         } catch (StatusRuntimeException e) {
-            e.printStackTrace();
-            logger.logInfoWithContext("RPC failed: " + e.getStatus());
-            return;
-        }
-        for (Message message : response.getMessagesList()) {
-            GRPCUtil.printMessage(logger, message);
+            handleFailure(e);
         }
     }
 
@@ -172,51 +355,182 @@ public class ClientGRPC {
         try {
             response = blockingStub.sendMessage(request);
             logger.logServiceWithContext(response.getStatus().getMessage());
-            return response.getStatus().getMessage().contains("queued");
+            return response.getStatus().getQueued();
         } catch (StatusRuntimeException e) {
-            logger.logInfoWithContext("RPC failed: " + e.getStatus());
+            handleFailure(e);
             return false;
         }
     }
 
+    /**
+     * Implements API call to send a message from a sender to several recipients
+     * in a single call.
+     * @param sender        The sender of the messages
+     * @param recipients    The recipients of the message
+     * @param message       The message to send
+     * @return List<Message>    The messages which were queued for later delivery.
+     */
+    public List<Message> sendMessageBatch(String sender, List<String> recipients, String message) {
+        List<Message> messages = new ArrayList<>();
+        long timestamp = System.currentTimeMillis();
+        for (String recipient : recipients) {
+            messages.add(Message.newBuilder()
+                .setSentTimestamp(timestamp)
+                .setSender(sender)
+                .setRecipient(recipient)
+                .setMessage(message)
+                .build());
+        }
+        return sendMessageBatch(messages);
+    }
+
+    /**
+     * Implements API call to send several messages in a single call.
+     * @param messages  The messages to send
+     * @return List<Message>    The messages which were queued for later delivery.
+     */
+    public List<Message> sendMessageBatch(List<Message> messages) {
+        SendMessageBatchRequest request = SendMessageBatchRequest.newBuilder()
+            .addAllMessages(messages)
+            .build();
+        List<Message> queued = new ArrayList<>();
+        try {
+            SendMessageBatchReply response = blockingStub.sendMessageBatch(request);
+            for (int i = 0; i < response.getStatusesCount(); i++) {
+                Status status = response.getStatuses(i);
+                logger.logServiceWithContext(messages.get(i).getRecipient() + ": " + status.getMessage());
+                if (status.getQueued()) {
+                    queued.add(messages.get(i));
+                }
+            }
+        } catch (StatusRuntimeException e) {
+            handleFailure(e);
+        }
+        return queued;
+    }
+
      /**
-     * Implements API call to log into an account. Additionally, this call will provide
-     * the server with the client's IP address to facilitate the server forming a
-     * client-connection back to this client, in order to send messages addressed to this
-     * client.
+     * Implements API call to log into an account. Messages addressed to this client
+     * are received once it subscribes, see `subscribe`.
+     * @param username  The username to associate to this client.
+     * @return Boolean  Success of request
+     */
+    public Boolean login(String username) {
+        try {
+            return sendLogin(username);
+        } catch (StatusRuntimeException e) {
+            handleFailure(e);
+            return false;
+        }
+    }
+
+    /**
+     * Sends the login of a user, noting the user as logged in if it succeeds.
      * @param username  The username to associate to this client.
-      * @return int      The port on which to start the MessageReceiver
+     * @return Boolean  Whether the server logged the user in.
+     * @throws StatusRuntimeException   Thrown if the call failed.
      */
-    public int login(String username) {
+    private Boolean sendLogin(String username) {
         // Try to fetch the local IP address to provide to server
         String ipAddress = null;
         try {
             ipAddress = NetworkUtil.getLocalIPAddress();
         } catch (UnknownHostException ex) {
-            Logging.logInfo("Failed to get local IP address, message handler will NOT be started.");
+            Logging.logInfo("Failed to get local IP address.");
         }
 
         LoginRequest request = LoginRequest.newBuilder()
                 .setIpAddress(ipAddress)
                 .setUsername(username)
                 .build();
-        LoginReply response;
+        LoginReply response = blockingStub.login(request);
+        if (response.getStatus().getSuccess()) {
+            core.setLoggedInStatus(username, response);
+            return true;
+        } else {
+            Logging.logService(response.getStatus().getMessage());
+            return false;
+        }
+    }
 
-        try {
-            response = blockingStub.login(request);
-            if (response.getStatus().getSuccess()) {
-                core.setLoggedInStatus(username, response);
-                return response.getReceiverPort();
-            } else {
-                Logging.logService(response.getStatus().getMessage());
-                return -1;
+    /**
+     * Logs a user back in once the client has switched to this server as the
+     * primary, and subscribes to their messages again, since logins are not
+     * replicated. A newly elected primary may not accept logins yet, so the
+     * login is retried for up to the failover timeout.
+     * @param username  The user logged in on the previous primary.
+     * @return Boolean  True if logged in again, false if the server refused the
+     *                  login, redirected it to another server, or was unreachable.
+     * @throws InterruptedException Thrown if interrupted while waiting to retry.
+     */
+    public Boolean resumeSession(String username) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + FAILOVER_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                if (!sendLogin(username)) {
+                    return false;
+                }
+                subscribe(username);
+                return true;
+            } catch (StatusRuntimeException e) {
+                handleFailure(e);
+                int leader = GRPCUtil.leaderFromException(e);
+                boolean electing = e.getStatus().getCode() == io.grpc.Status.Code.FAILED_PRECONDITION
+                        && (leader < 0 || leader >= clientInstances.size() || clientInstances.get(leader) == this);
+                if (!electing || System.currentTimeMillis() >= deadline) {
+                    return false;
+                }
+                // Not a redirect the caller can follow.
+                core.takeRedirect();
+                Thread.sleep(FAILOVER_RETRY_MILLIS);
             }
-        } catch (StatusRuntimeException e) {
-            Logging.logInfo("RPC failed: " + e.getStatus());
-            return -1;
         }
     }
 
+    /**
+     * Implements API call to subscribe to the messages addressed to a logged in
+     * user. The messages are printed as they are streamed from the server, until
+     * the user logs out or the connection is lost. Each window of messages is
+     * acknowledged once its last message is printed, so that the server removes
+     * them and sends the next.
+     * @param username  The username associated to this client.
+     */
+    public void subscribe(String username) {
+        SubscribeRequest request = SubscribeRequest.newBuilder()
+                .setUsername(username)
+                .build();
+        asyncStub.subscribe(request, new StreamObserver<Message>() {
+            // The messages received since the last acknowledgement.
+            private int received = 0;
+
+            @Override
+            public void onNext(Message message) {
+                GRPCUtil.printMessage(message);
+                received++;
+                if (message.getLastInWindow()) {
+                    // Not waited for: if the acknowledgement is lost, the
+                    // messages are sent again by the next subscription.
+                    futureStub.acknowledge(AcknowledgeRequest.newBuilder()
+                            .setUsername(username)
+                            .setCount(received)
+                            .build());
+                    received = 0;
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Logging.logInfo("Subscription for user " + username + " ended: "
+                        + io.grpc.Status.fromThrowable(t));
+            }
+
+            @Override
+            public void onCompleted() {
+                Logging.logInfo("Subscription for user " + username + " ended.");
+            }
+        });
+    }
+
     public Boolean isPrimary() {
         return core.isPrimary();
     }
@@ -243,7 +557,7 @@ public class ClientGRPC {
         try {
             response = blockingStub.logout(request);
         } catch (StatusRuntimeException e) {
-            Logging.logInfo("RPC failed: " + e.getStatus());
+            handleFailure(e);
             return;
         }
 
@@ -260,7 +574,6 @@ public class ClientGRPC {
         BreakableInputReader inputReader = new BreakableInputReader();
 
         // Get server IP address from user.
-        int primaryOffset = 0;
         for (int i = 0; i < 3; i++) {
             System.out.println("Enter IP address for server " + (i + 1) + " or leave line blank for `localhost`.");
             String address = inputReader.nextLine();
@@ -269,25 +582,38 @@ public class ClientGRPC {
             }
             // The port is assumed to be API_PORT + it's order as given to the client
             String destAddress = String.format("%s:%d", address, Constants.API_PORT + i);
-
-            // Start pulsecheck for each server
             ManagedChannel channel = Grpc.newChannelBuilder(destAddress, InsecureChannelCredentials.create()).build();
-            ClientGRPC client = new ClientGRPC(channel);
-            HandshakeResponse resp = client.blockingStub.handshake(HandshakeRequest.newBuilder().build());
-            client.core.setConnected();
-
-            new Thread(new PulseCheck(client)).start();
+            clientInstances.add(new ClientGRPC(channel));
+        }
 
-            if (resp.getIsPrimary()) {
-                primaryOffset = i;
+        // Handshake with every server at once, so a server which is down does
+        // not hold up (or stop) the client.
+        List<HandshakeResponse> responses = handshakeAll(clientInstances, HANDSHAKE_TIMEOUT_MILLIS);
+        int primaryOffset = choosePrimary(responses, 0);
+        if (primaryOffset < 0) {
+            Logging.logService("No server responded, exiting.");
+            for (ClientGRPC client : clientInstances) {
+                client.shutdown();
+            }
+            return;
+        }
+        // Start pulsecheck for each server
+        for (int i = 0; i < clientInstances.size(); i++) {
+            new Thread(new PulseCheck(clientInstances.get(i))).start();
+            if (responses.get(i) == null) {
+                clientInstances.get(i).core.setDisconnected();
             }
-            clientInstances.add(client);
         }
 
         Logging.logService("Server " + primaryOffset + " set as primary.");
+        replicaReads = replicaReadsFromSystemProperties();
+        if (replicaReads) {
+            Logging.logService("Spreading reads across the connected servers.");
+        }
         // Input reader is breakable only for the primary client
         ClientGRPC primaryClient = clientInstances.get(primaryOffset);
-        primaryClient.core.setPrimary(true);
+        // Asks the server to run for leader, unless it already is.
+        primaryClient.setPrimary(true);
         inputReader.setClientCore(primaryClient.core);
 
         String options = "Pick an option:\n" +
@@ -299,11 +625,41 @@ public class ClientGRPC {
                 "5. Delete an account (and delete all undelivered messages).\n" +
                 "6. Log in to an existing account.";
         int choice = -1;
+        // The user to log back in on the new primary, after switching to it.
+        String resumeUsername = null;
 
-        Server messageServer = null;
         try {
             while (true) {
                 try {
+                    // Follow the redirect of a server which is not the primary.
+                    int redirect = primaryClient.core.takeRedirect();
+                    if (redirect >= 0 && redirect != primaryOffset && redirect < clientInstances.size()) {
+                        Logging.logService("Server " + primaryOffset + " is not the primary, switching to server "
+                                + redirect + ".");
+                        if (primaryClient.core.getUsername() != null) {
+                            resumeUsername = primaryClient.core.getUsername();
+                        }
+                        primaryClient.setPrimary(false);
+                        primaryOffset = redirect;
+                        primaryClient = clientInstances.get(redirect);
+                        primaryClient.setPrimary(true);
+                        inputReader.setClientCore(primaryClient.core);
+                    }
+                    if (resumeUsername != null) {
+                        if (primaryClient.resumeSession(resumeUsername)) {
+                            Logging.logService("Logged in again as " + resumeUsername + ".");
+                            resumeUsername = null;
+                        } else if (primaryClient.core.hasRedirect()) {
+                            // Follow the redirect, then log in there.
+                            continue;
+                        } else if (!primaryClient.core.getConnectionStatus()) {
+                            throw new DisconnectException("Server has disconnected.");
+                        } else {
+                            Logging.logService("Could not log in again as " + resumeUsername
+                                    + ". Please log in to continue.");
+                            resumeUsername = null;
+                        }
+                    }
                     System.out.println(options);
 
                     // Get desired API call from user
@@ -317,6 +673,11 @@ public class ClientGRPC {
                         Logging.logService("Option must be an integer (between 0 and 6).");
                         continue;
                     }
+                    if (method == API.SEND_MESSAGE_BATCH) {
+                        // Batches are sent by picking several recipients for option 3.
+                        Logging.logService("Option must be between 0 and 6.");
+                        continue;
+                    }
 
                     String username = primaryClient.core.getUsername();
                     if (username == null) {
@@ -326,28 +687,20 @@ public class ClientGRPC {
                             Logging.logService("Please first create a username or log in, by selecting option "
                                     + API.CREATE_ACCOUNT.getIdentifier() + " or " + API.LOGIN.getIdentifier());
                         } else {
-                            int port;
+                            String localUsername;
                             if (method == API.CREATE_ACCOUNT) {
                                 Logging.logService("Pick your username.");
-                                String localUsername = inputReader.nextLine();
+                                localUsername = inputReader.nextLine();
                                 if (!primaryClient.createAccount(localUsername)) {
                                     continue;
                                 }
-                                port = primaryClient.login(localUsername);
-
-                                // Forward account creation
-                                for (ClientGRPC client : clientInstances) {
-                                    if (client != primaryClient && client.core.getConnectionStatus()) {
-                                        client.createAccount(localUsername);
-                                    }
-                                }
                             } else {
                                 Logging.logService("Select the username.");
-                                port = primaryClient.login(inputReader.nextLine());
+                                localUsername = inputReader.nextLine();
                             }
-                            // Start the service to receive messages
-                            if (port > 0) {
-                                messageServer = startMessageReceiver(port);
+                            // Start receiving messages
+                            if (primaryClient.login(localUsername)) {
+                                primaryClient.subscribe(localUsername);
                             }
                         }
                     } else {
@@ -377,96 +730,59 @@ public class ClientGRPC {
                         } else if (method == API.SEND_MESSAGE) {
                             String recipient = "";
                             String message = "";
-                            Logging.logService("Pick your recipient.");
+                            Logging.logService("Pick your recipient (or several, separated by commas).");
                             recipient = inputReader.nextLine();
 
                             Logging.logService("Specify your message.");
                             message = inputReader.nextLine();
 
-                            // Forward undelivered messages
-                            if (primaryClient.sendMessage(username, recipient, message)) {
-                                for (ClientGRPC client : clientInstances) {
-                                    if (client != primaryClient && client.core.getConnectionStatus()) {
-                                        client.sendMessage(username, recipient, message);
-                                    }
+                            if (!recipient.contains(",")) {
+                                primaryClient.sendMessage(username, recipient, message);
+                            } else {
+                                List<String> recipients = new ArrayList<>();
+                                for (String name : recipient.split(",")) {
+                                    recipients.add(name.trim());
                                 }
+                                primaryClient.sendMessageBatch(username, recipients, message);
                             }
                         } else if (method == API.GET_UNDELIVERED_MESSAGES) {
                             Logging.logService("Delivering undelivered messages to: " + username);
                             primaryClient.getUndeliveredMessages(username);
-
-                            for (ClientGRPC client : clientInstances) {
-                                if (client != primaryClient && client.core.getConnectionStatus()) {
-                                    client.getUndeliveredMessages(username);
-                                }
-                            }
                         } else if (method == API.DELETE_ACCOUNT) {
                             Logging.logService("Deleting the account associated to the username: " + username);
                             primaryClient.deleteAccount(username);
-
-                            for (ClientGRPC client : clientInstances) {
-                                if (client != primaryClient && client.core.getConnectionStatus()) {
-                                    client.deleteAccount(username);
-                                }
-                            }
                             break;
                         }
                     }
                 } catch (DisconnectException ex) {
-                    if (messageServer != null) {
-                        messageServer.shutdownNow();
+                    if (primaryClient.core.getUsername() != null) {
+                        resumeUsername = primaryClient.core.getUsername();
                     }
                     primaryClient.setPrimary(false);
 
-                    Logging.logService("Will attempt " + Constants.CLIENT_TIMEOUT +
-                            " times to restablish connection...");
-                    for (int i = 0; i < Constants.CLIENT_TIMEOUT; i++) {
-                        Thread.sleep(500);
-
-                        // offset should wrap back around to 0 after 2.
-                        primaryOffset = (primaryOffset + 1) % 3;
-                        Logging.logService("Trying connection to server " + primaryOffset);
-
-                        // Attempt handshake
-                        ClientGRPC client = clientInstances.get(primaryOffset);
-                        if (client.attemptHandshake()) {
-                            Logging.logService("Connection restablished. Please log in again to continue.");
-                            primaryClient = client;
-                            primaryClient.setPrimary(true);
-                            inputReader.setClientCore(primaryClient.core);
-
-                            break;
-                        } else {
-                            Logging.logService("Failed to connect.");
-                        }
-                    }
-                    if (!primaryClient.isPrimary()) {
-                        Logging.logService("Last attempt failed, terminating...");
+                    // Handshake with all servers at once until one reports being the
+                    // new primary, or failing that, take the next responsive one after
+                    // the failed primary (wrapping back around to 0 after 2).
+                    Logging.logService("Waiting up to " + FAILOVER_TIMEOUT_MILLIS
+                            + "ms for a new primary...");
+                    int offset = findPrimary(clientInstances, (primaryOffset + 1) % clientInstances.size(),
+                            FAILOVER_TIMEOUT_MILLIS);
+                    if (offset < 0) {
+                        Logging.logService("No server responded, terminating...");
                         break;
                     }
+                    Logging.logService("Connection restablished to server " + offset + ".");
+                    primaryOffset = offset;
+                    primaryClient = clientInstances.get(offset);
+                    primaryClient.setPrimary(true);
+                    inputReader.setClientCore(primaryClient.core);
                 }
             }
         } finally {
             inputReader.close();
-            if (messageServer != null) {
-                messageServer.shutdownNow();
-            }
             for (ClientGRPC client : clientInstances) {
                 client.shutdown();
             }
         }
     }
-
-    /**
-     * A simple message receiver implementation that prints out the messages
-     * it receives from the Server.
-     */
-    static class MessageReceiverImpl extends MessageReceiverGrpc.MessageReceiverImplBase {
-        @Override
-        public void sendMessage(Message req, StreamObserver<StatusReply> responseObserver) {
-            GRPCUtil.printMessage(req);
-            responseObserver.onNext(GRPCUtil.genSuccessfulReply());
-            responseObserver.onCompleted();
-        }
-    }
 }
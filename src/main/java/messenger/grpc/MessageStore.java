@@ -0,0 +1,545 @@
+package messenger.grpc;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import messenger.util.Logging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Holds the undelivered messages of each user off the heap, as serialized
+ * messages appended to memory-mapped segment files. The heap only holds an
+ * index of where each user's messages are, so a large backlog of undelivered
+ * messages does not need a large heap.
+ *
+ * Each segment is a sequence of records
+ * ```
+ * Record {
+ *     (4)int length of message,
+ *     (variable) serialized Message
+ * }
+ * ```
+ * and a segment is deleted once none of its messages remain in the index.
+ * The segments are not what makes the messages durable: that is the operation
+ * log, from which the store is rebuilt when the server starts. Opening a store
+ * therefore discards any segments left in its directory.
+ *
+ * The methods of the store are synchronized. A `View` of the store can be read
+ * without blocking further changes to it.
+ */
+public class MessageStore implements Closeable {
+    private static final String SUFFIX = ".segment";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+    // Whether the directory is removed when the store is closed.
+    private final boolean temporary;
+
+    // The mapped segments, by number.
+    private final Map<Integer, MappedByteBuffer> segments = new HashMap<>();
+    // The number of indexed messages in each segment.
+    private final Map<Integer, Integer> liveCounts = new HashMap<>();
+    // The locations of each user's messages, oldest first.
+    private final Map<String, Locations> index = new HashMap<>();
+    private long total = 0;
+
+    // The segment being appended to, and the position of the next record in it.
+    private int current = -1;
+    private int position = 0;
+
+    // The number of open views. Segments emptied while a view is open are only
+    // deleted once every view is closed, since the views may still read them.
+    private int openViews = 0;
+    private final List<Integer> emptiedSegments = new ArrayList<>();
+
+    /**
+     * The locations of a user's messages, each the number of a segment in the
+     * upper 32 bits and the position of the record in the lower 32 bits.
+     */
+    private static class Locations {
+        private long[] values = new long[4];
+        private int head = 0;
+        private int size = 0;
+
+        void add(long location) {
+            if (head + size == values.length) {
+                // Reclaim the room of removed locations before growing.
+                if (head > 0) {
+                    System.arraycopy(values, head, values, 0, size);
+                    head = 0;
+                }
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+            }
+            values[head + size++] = location;
+        }
+
+        long removeFirst() {
+            size--;
+            return values[head++];
+        }
+
+        long get(int i) {
+            return values[head + i];
+        }
+
+        long[] toArray() {
+            return Arrays.copyOfRange(values, head, head + size);
+        }
+    }
+
+    /**
+     * Create a store in the given directory, discarding any segments already in it.
+     * @param directory     The directory holding the segments.
+     * @param segmentSize   The size of each segment in bytes.
+     * @param temporary     Whether to remove the directory when the store is closed.
+     * @throws IOException  Thrown if the directory could not be created or cleared.
+     */
+    private MessageStore(Path directory, int segmentSize, boolean temporary) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.temporary = temporary;
+        Files.createDirectories(directory);
+        if (temporary) {
+            // In case the store is never closed.
+            directory.toFile().deleteOnExit();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Open the store of a server which persists its messages.
+     * @param directory     The directory holding the segments.
+     * @return              The store, which is empty.
+     * @throws IOException  Thrown if the directory could not be created or cleared.
+     */
+    public static MessageStore open(Path directory) throws IOException {
+        return new MessageStore(directory, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * Create a store in a new temporary directory, which is removed when the
+     * store is closed.
+     * @param segmentSize   The size of each segment in bytes.
+     * @return              The store.
+     */
+    public static MessageStore temporary(int segmentSize) {
+        Path directory = Path.of(System.getProperty("java.io.tmpdir"),
+                "messenger-store-" + ProcessHandle.current().pid() + "-" + System.nanoTime());
+        try {
+            return new MessageStore(directory, segmentSize, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get the number of messages held for a user.
+     * @param username  The username.
+     * @return          The number of messages.
+     */
+    public synchronized int size(String username) {
+        Locations locations = index.get(username);
+        return locations == null ? 0 : locations.size;
+    }
+
+    /**
+     * Get the number of messages held across all users.
+     * @return  The number of messages.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the number of segment files.
+     * @return  The number of segments.
+     */
+    public synchronized long getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Get the number of messages held for the user with the most messages.
+     * @return  The number of messages.
+     */
+    public synchronized long getMaxSize() {
+        return index.values().stream().mapToLong(locations -> locations.size).max().orElse(0);
+    }
+
+    /**
+     * Appends a message for its recipient.
+     * @param message       The message.
+     * @throws IOException  Thrown if a new segment could not be created.
+     */
+    public synchronized void append(Message message) throws IOException {
+        byte[] bytes = message.toByteArray();
+        int length = 4 + bytes.length;
+        if (current < 0 || position + length > segments.get(current).capacity()) {
+            startSegment(length);
+        }
+        ByteBuffer segment = segments.get(current).duplicate();
+        segment.position(position);
+        segment.putInt(bytes.length).put(bytes);
+
+        index.computeIfAbsent(message.getRecipient(), key -> new Locations())
+                .add(((long) current << 32) | position);
+        liveCounts.merge(current, 1, Integer::sum);
+        total++;
+        position += length;
+    }
+
+    /**
+     * Maps a new segment to append to.
+     * @param length        The length of the record which did not fit in the last segment.
+     * @throws IOException  Thrown if the segment could not be created.
+     */
+    private void startSegment(int length) throws IOException {
+        int segment = current + 1;
+        // A record larger than a segment gets a segment of its own.
+        int size = Math.max(segmentSize, length);
+        try (FileChannel channel = FileChannel.open(fileFor(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segments.put(segment, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+        if (temporary) {
+            fileFor(segment).toFile().deleteOnExit();
+        }
+        if (current >= 0 && !liveCounts.containsKey(current)) {
+            deleteSegment(current);
+        }
+        current = segment;
+        position = 0;
+    }
+
+    /**
+     * Removes the oldest message of a user.
+     * @param username  The username.
+     */
+    public synchronized void removeOldest(String username) {
+        Locations locations = index.get(username);
+        if (locations == null) return;
+        release(locations.removeFirst());
+        if (locations.size == 0) {
+            index.remove(username);
+        }
+    }
+
+    /**
+     * Removes the oldest messages of a user.
+     * @param username  The username.
+     * @param count     The number of messages to remove.
+     * @return          The number of messages removed, fewer if the user had fewer.
+     */
+    public synchronized int removeOldest(String username, int count) {
+        int removed = 0;
+        while (removed < count && index.containsKey(username)) {
+            removeOldest(username);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the locations of the oldest messages of a user, which identify the
+     * messages for `read` and `removeOldest`. Locations are not reused, so a
+     * location no longer in the store never refers to another message.
+     * @param username  The username.
+     * @param max       The most locations to return.
+     * @return          The locations, oldest first.
+     */
+    public synchronized long[] oldest(String username, int max) {
+        Locations locations = index.get(username);
+        if (locations == null) return new long[0];
+        long[] oldest = new long[Math.min(max, locations.size)];
+        for (int i = 0; i < oldest.length; i++) {
+            oldest[i] = locations.get(i);
+        }
+        return oldest;
+    }
+
+    /**
+     * Reads the messages at the given locations.
+     * @param locations The locations of the messages, as returned by `oldest`,
+     *                  which must still be in the store.
+     * @return          The messages, in the order of the locations.
+     */
+    public synchronized List<Message> read(long[] locations) {
+        List<Message> messages = new ArrayList<>(locations.length);
+        for (long location : locations) {
+            messages.add(read(segments, location));
+        }
+        return messages;
+    }
+
+    /**
+     * Removes the oldest messages of a user, as far as they are still the
+     * messages at the given locations. Messages removed in the meantime (e.g.
+     * dropped as the user's queue overflowed) are skipped, and no newer
+     * message is removed in their place.
+     * @param username  The username.
+     * @param locations The locations of the messages, oldest first, as returned by `oldest`.
+     * @return          The number of messages removed.
+     */
+    public synchronized int removeOldest(String username, long[] locations) {
+        Locations current = index.get(username);
+        if (current == null) return 0;
+        // The messages still in the store are a suffix of the locations, at the front of the index.
+        int first = 0;
+        while (first < locations.length && locations[first] != current.get(0)) {
+            first++;
+        }
+        int count = 0;
+        while (first + count < locations.length && count < current.size
+                && current.get(count) == locations[first + count]) {
+            count++;
+        }
+        return removeOldest(username, count);
+    }
+
+    /**
+     * Removes every message of a user.
+     * @param username  The username.
+     * @return          The number of messages removed.
+     */
+    public synchronized int remove(String username) {
+        Locations locations = index.remove(username);
+        if (locations == null) return 0;
+        for (int i = 0; i < locations.size; i++) {
+            release(locations.get(i));
+        }
+        return locations.size;
+    }
+
+    /**
+     * Stops counting a removed message towards its segment, deleting the
+     * segment if no messages remain in it and it is not being appended to.
+     * @param location  The location of the message.
+     */
+    private void release(long location) {
+        int segment = (int) (location >>> 32);
+        total--;
+        if (liveCounts.merge(segment, -1, Integer::sum) > 0) return;
+        liveCounts.remove(segment);
+        if (segment != current) {
+            deleteSegment(segment);
+        }
+    }
+
+    /**
+     * Deletes a segment, or defers deleting it until the open views are closed.
+     * @param segment   The number of the segment.
+     */
+    private void deleteSegment(int segment) {
+        if (openViews > 0) {
+            emptiedSegments.add(segment);
+            return;
+        }
+        segments.remove(segment);
+        try {
+            Files.deleteIfExists(fileFor(segment));
+        } catch (IOException e) {
+            Logging.logInfo("Failed to delete segment " + fileFor(segment) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the messages of a user straight from the segments, passing each
+     * to the consumer as it is read.
+     * @param username  The username.
+     * @param consumer  Receives the messages, oldest first.
+     */
+    public synchronized void forEach(String username, Consumer<Message> consumer) {
+        Locations locations = index.get(username);
+        if (locations == null) return;
+        for (int i = 0; i < locations.size; i++) {
+            consumer.accept(read(segments, locations.get(i)));
+        }
+    }
+
+    /**
+     * Reads the messages of a user.
+     * @param username  The username.
+     * @return          The messages, oldest first.
+     */
+    public List<Message> get(String username) {
+        List<Message> messages = new ArrayList<>();
+        forEach(username, messages::add);
+        return messages;
+    }
+
+    /**
+     * Gets the users which have messages.
+     * @return  A copy of their usernames.
+     */
+    public synchronized Set<String> getUsernames() {
+        return new HashSet<>(index.keySet());
+    }
+
+    /**
+     * Reads the messages of every user, e.g. to compare the stores of servers.
+     * @return  The messages, by recipient.
+     */
+    public synchronized Map<String, List<Message>> toMap() {
+        Map<String, List<Message>> messages = new HashMap<>();
+        for (String username : index.keySet()) {
+            messages.put(username, get(username));
+        }
+        return messages;
+    }
+
+    /**
+     * Takes a view of the messages held now, which can be read while further
+     * messages are added or removed. The view must be closed once read.
+     * @return  The view.
+     */
+    public synchronized View view() {
+        List<long[]> locations = new ArrayList<>(index.size());
+        for (Locations userLocations : index.values()) {
+            locations.add(userLocations.toArray());
+        }
+        openViews++;
+        return new View(new HashMap<>(segments), locations, total);
+    }
+
+    /**
+     * The messages held by the store when the view was taken.
+     */
+    public class View implements Iterable<Message>, Closeable {
+        private final Map<Integer, MappedByteBuffer> segments;
+        // The locations of the messages of each user.
+        private final List<long[]> locations;
+        private final long size;
+        private boolean closed = false;
+
+        private View(Map<Integer, MappedByteBuffer> segments, List<long[]> locations, long size) {
+            this.segments = segments;
+            this.locations = locations;
+            this.size = size;
+        }
+
+        /**
+         * Get the number of messages in the view.
+         * @return  The number of messages.
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Iterates over the messages, reading each from its segment as it is reached.
+         * @return  The messages, with the messages of each user oldest first.
+         */
+        @Override
+        public Iterator<Message> iterator() {
+            return new Iterator<>() {
+                private int user = 0;
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    while (user < locations.size() && next == locations.get(user).length) {
+                        user++;
+                        next = 0;
+                    }
+                    return user < locations.size();
+                }
+
+                @Override
+                public Message next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return read(segments, locations.get(user)[next++]);
+                }
+            };
+        }
+
+        /**
+         * Allows the segments emptied since the view was taken to be deleted.
+         */
+        @Override
+        public void close() {
+            synchronized (MessageStore.this) {
+                if (closed) return;
+                closed = true;
+                if (--openViews == 0) {
+                    List<Integer> emptied = new ArrayList<>(emptiedSegments);
+                    emptiedSegments.clear();
+                    emptied.forEach(MessageStore.this::deleteSegment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the message at a location.
+     * @param segments  The mapped segments.
+     * @param location  The location of the message.
+     * @return          The message.
+     */
+    private static Message read(Map<Integer, MappedByteBuffer> segments, long location) {
+        ByteBuffer segment = segments.get((int) (location >>> 32)).duplicate();
+        int position = (int) location;
+        int length = segment.getInt(position);
+        segment.position(position + 4).limit(position + 4 + length);
+        try {
+            return Message.parseFrom(segment);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Corrupt message in segment", e);
+        }
+    }
+
+    /**
+     * Removes the segments, and the directory if the store is temporary.
+     */
+    @Override
+    public synchronized void close() {
+        index.clear();
+        liveCounts.clear();
+        total = 0;
+        for (int segment : new ArrayList<>(segments.keySet())) {
+            segments.remove(segment);
+            try {
+                Files.deleteIfExists(fileFor(segment));
+            } catch (IOException e) {
+                Logging.logInfo("Failed to delete segment " + fileFor(segment) + ": " + e.getMessage());
+            }
+        }
+        current = -1;
+        if (temporary) {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                Logging.logInfo("Failed to delete " + directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Path fileFor(int segment) {
+        return directory.resolve(segment + SUFFIX);
+    }
+}
@@ -0,0 +1,849 @@
+package messenger.grpc;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import messenger.util.Constants;
+import messenger.util.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the operations which change the persisted state of the
+ * server: creating and deleting accounts, queueing and draining undelivered
+ * messages, and queueing messages for logged in users until they are delivered.
+ * Each operation appends a single record, so persisting it costs the same
+ * however much state the server holds. On startup, the state is rebuilt by
+ * replaying the log.
+ *
+ * Each record is framed as
+ * ```
+ * Record {
+ *     (4)int length of body,
+ *     (4)int CRC32 of body,
+ *     body:
+ *         (1)byte type,
+ *         (variable) payload: a UTF-8 username, a serialized Message,
+ *             a (4)int count of messages followed by a UTF-8 username, or
+ *             an (8)long index and (8)long term
+ * }
+ * ```
+ * A record which was only partially written when the server stopped fails its
+ * checksum (or is cut short), so it is discarded on replay along with anything
+ * after it.
+ *
+ * Once the state is replicated, an APPLIED record follows the records of each
+ * entry of the Raft log, holding the entry's index and term, so that a restarted
+ * server knows which entries its state reflects.
+ *
+ * So that the log does not grow without bound, it is split into segments,
+ * numbered by generation. A snapshot of the state at the start of a generation
+ * (as CREATE_USER, ENQUEUE and QUEUE records, after an (8)long generation, and
+ * followed by an APPLIED record if the state reflects an entry) replaces
+ * the segments before it. Recovery therefore reads the snapshot, then only the
+ * segments written since.
+ *
+ * Appending a record returns its sequence number, and `commit` waits until the
+ * record is durable. With BATCHED durability, a single background sync covers
+ * every record committed while it waits, so concurrent operations share the
+ * cost of syncing the file to disk.
+ */
+public class OperationLog implements Closeable {
+
+    /**
+     * When a committed record is considered durable.
+     */
+    public enum Durability {
+        // Once written to the file, so it survives the server but not the machine crashing.
+        NONE,
+        // Once synced to disk, by a sync shared with the other records committed
+        // within the maximum latency.
+        BATCHED,
+        // Once synced to disk, syncing as soon as the record is committed.
+        PER_OPERATION
+    }
+
+    public static final long DEFAULT_MAX_LATENCY_MILLIS = 5;
+
+    /**
+     * Applies replayed or replicated operations to the state of the server.
+     */
+    public interface Handler {
+        void createUser(String username) throws IOException;
+
+        void deleteUser(String username) throws IOException;
+
+        // Adds an undelivered message for its recipient.
+        void enqueue(Message message) throws IOException;
+
+        // Removes the oldest undelivered message of the user.
+        void dropOldest(String username) throws IOException;
+
+        // Removes all undelivered messages of the user.
+        void drain(String username) throws IOException;
+
+        // Removes the oldest undelivered messages of the user, once they have been delivered.
+        void removeOldest(String username, int count) throws IOException;
+
+        // Adds a message to the queue of its recipient, who is logged in.
+        void queue(Message message) throws IOException;
+
+        // Removes the oldest messages queued for the user, once delivered or dropped.
+        void unqueue(String username, int count) throws IOException;
+    }
+
+    /**
+     * Receives every record as it is appended, e.g. to replicate it to the other servers.
+     */
+    public interface Listener {
+        /**
+         * Called while appending a record, in the order of the sequence numbers,
+         * so must not block.
+         * @param sequence  The sequence number of the record.
+         * @param operation The body of the record, to be passed to `apply`.
+         * @return          The index and term of the Raft log entry holding the
+         *                  record, appended as an APPLIED record after it, or null if none.
+         */
+        long[] appended(long sequence, byte[] operation);
+    }
+
+    private static final byte CREATE_USER = 1;
+    private static final byte DELETE_USER = 2;
+    private static final byte ENQUEUE = 3;
+    private static final byte DROP_OLDEST = 4;
+    private static final byte DRAIN = 5;
+    private static final byte REMOVE_OLDEST = 6;
+    private static final byte QUEUE = 7;
+    private static final byte UNQUEUE = 8;
+    private static final byte APPLIED = 9;
+
+    // Bounds the memory allocated for a record whose length was corrupted.
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    // The offset of the server, or -1 if the records are discarded.
+    private final int offset;
+    private final Durability durability;
+    // How long a BATCHED sync waits for further records to commit.
+    private final long maxLatencyMillis;
+    private final CRC32 crc = new CRC32();
+    // The segment being appended to, or null if the records are discarded.
+    private FileOutputStream file;
+    private DataOutputStream out;
+    // The generation of the segment being appended to.
+    private long generation;
+    // The length of the current segment, including buffered records.
+    private long segmentLength;
+
+    // The sequence numbers of the last record appended, the last record synced
+    // to disk, and the last record waiting for a BATCHED sync.
+    private long appended = 0;
+    private long durable = 0;
+    private long requested = 0;
+    private boolean closed = false;
+    // The failure of the last sync, after which no further records are durable.
+    private IOException syncFailure;
+    private long syncCount = 0;
+    // Held while syncing, so that the segment is not closed during a sync
+    // which does not hold the monitor. Acquired before the monitor.
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private Thread syncer;
+    // Receives the records appended, if set.
+    private Listener listener;
+    // The index and term of the Raft log entry the state reflects, as of the last
+    // record appended, or null if the records since are not entries of the log.
+    private long[] appliedEntry;
+
+    private OperationLog(int offset, Durability durability, long maxLatencyMillis, long generation,
+                         long segmentLength, FileOutputStream file, long[] appliedEntry) {
+        this.offset = offset;
+        this.appliedEntry = appliedEntry;
+        this.durability = durability;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.generation = generation;
+        this.segmentLength = segmentLength;
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                file != null ? file : OutputStream.nullOutputStream()));
+        if (durability == Durability.BATCHED) {
+            syncer = new Thread(this::runSyncer, "operation-log-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    /**
+     * Reads the durability of committed records from the `messenger.log.durability`
+     * system property (one of `none`, `batched` or `per_operation`).
+     * @return  The durability, BATCHED by default.
+     */
+    public static Durability durabilityFromSystemProperties() {
+        String durability = System.getProperty("messenger.log.durability", Durability.BATCHED.name());
+        return Durability.valueOf(durability.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads how long a BATCHED sync waits for further records from the
+     * `messenger.log.maxLatencyMs` system property.
+     * @return  The latency in milliseconds.
+     */
+    public static long maxLatencyFromSystemProperties() {
+        return Long.getLong("messenger.log.maxLatencyMs", DEFAULT_MAX_LATENCY_MILLIS);
+    }
+
+    /**
+     * Replays the snapshot and log of the server with the given offset, then
+     * opens the last segment for appending further operations.
+     * @param offset            The offset of the server.
+     * @param durability        When committed records are considered durable.
+     * @param maxLatencyMillis  How long a BATCHED sync waits for further records.
+     * @param handler           Applies the replayed operations.
+     * @return                  The log.
+     * @throws IOException      Thrown if the snapshot or log could not be read or opened.
+     */
+    public static OperationLog open(int offset, Durability durability, long maxLatencyMillis,
+                                    Handler handler) throws IOException {
+        long generation = 0;
+        AppliedEntry applied = new AppliedEntry();
+        Path snapshot = Path.of(Constants.getSnapshotFileName(offset));
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                generation = in.readLong();
+                if (8 + replay(in, handler, applied) < Files.size(snapshot)) {
+                    throw new IOException("Invalid record in snapshot " + snapshot);
+                }
+            }
+            // Segments left over from a snapshot which failed part way through
+            // removing them.
+            deleteSegmentsBefore(offset, generation);
+        }
+
+        // Only the last segment can have been cut short, since the others were
+        // closed before the next was opened.
+        long validLength = 0;
+        while (true) {
+            Path file = Path.of(Constants.getOperationLogFileName(offset, generation));
+            if (!Files.exists(file)) break;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                validLength = replay(in, handler, applied);
+            }
+            if (validLength < Files.size(file)) {
+                Logging.logInfo("Discarding incomplete records at the end of " + file);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+            if (!Files.exists(Path.of(Constants.getOperationLogFileName(offset, generation + 1)))) break;
+            generation++;
+        }
+        return new OperationLog(offset, durability, maxLatencyMillis, generation, validLength,
+                new FileOutputStream(Constants.getOperationLogFileName(offset, generation), true), applied.entry);
+    }
+
+    /**
+     * The Raft log entry the replayed state reflects, carried from each file
+     * replayed to the next.
+     */
+    private static class AppliedEntry {
+        // The index and term of the entry, or null if not known.
+        private long[] entry;
+    }
+
+    /**
+     * Whether the server with the given offset has written a snapshot of its state.
+     * @param offset    The offset of the server.
+     * @return          True if there is a snapshot.
+     */
+    public static boolean hasSnapshot(int offset) {
+        return Files.exists(Path.of(Constants.getSnapshotFileName(offset)));
+    }
+
+    /**
+     * A log which discards its records, for servers which do not persist their state.
+     * @return  The log.
+     */
+    public static OperationLog inMemory() {
+        return new OperationLog(-1, Durability.NONE, 0, 0, 0, null, null);
+    }
+
+    /**
+     * Replays every complete record read from the given stream.
+     * @param in            The stream of records.
+     * @param handler       Applies the replayed operations.
+     * @param applied       Updated with the entry the state reflects after each record.
+     * @return              The number of bytes read up to the end of the last complete record.
+     * @throws IOException  Thrown if the stream could not be read.
+     */
+    private static long replay(DataInputStream in, Handler handler, AppliedEntry applied) throws IOException {
+        long position = 0;
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return position;
+                }
+                if (length < 1 || length > MAX_RECORD_SIZE) return position;
+                int checksum = in.readInt();
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) return position;
+
+                apply(body, handler);
+                applied.entry = body[0] == APPLIED ? appliedEntryOf(body) : null;
+                position += 8 + length;
+            }
+        } catch (EOFException e) {
+            // The last record was cut short.
+            return position;
+        }
+    }
+
+    /**
+     * Applies a single record, either replayed or replicated from the primary.
+     * @param body          The body of the record.
+     * @param handler       Applies the operation.
+     * @throws IOException  Thrown if the record is not a valid operation.
+     */
+    public static void apply(byte[] body, Handler handler) throws IOException {
+        String username = new String(body, 1, body.length - 1, StandardCharsets.UTF_8);
+        switch (body[0]) {
+            case CREATE_USER:
+                handler.createUser(username);
+                break;
+            case DELETE_USER:
+                handler.deleteUser(username);
+                break;
+            case ENQUEUE:
+                try {
+                    handler.enqueue(Message.parseFrom(ByteBuffer.wrap(body, 1, body.length - 1)));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IOException("Invalid message in operation log", e);
+                }
+                break;
+            case DROP_OLDEST:
+                handler.dropOldest(username);
+                break;
+            case DRAIN:
+                handler.drain(username);
+                break;
+            case REMOVE_OLDEST:
+                handler.removeOldest(new String(body, 5, body.length - 5, StandardCharsets.UTF_8),
+                        ByteBuffer.wrap(body, 1, 4).getInt());
+                break;
+            case QUEUE:
+                try {
+                    handler.queue(Message.parseFrom(ByteBuffer.wrap(body, 1, body.length - 1)));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IOException("Invalid message in operation log", e);
+                }
+                break;
+            case UNQUEUE:
+                handler.unqueue(new String(body, 5, body.length - 5, StandardCharsets.UTF_8),
+                        ByteBuffer.wrap(body, 1, 4).getInt());
+                break;
+            case APPLIED:
+                // Changes nothing, and is never replicated.
+                break;
+            default:
+                throw new IOException("Unknown operation " + body[0] + " in operation log");
+        }
+    }
+
+    /**
+     * Appends the creation of an account.
+     * @param username      The username of the account.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long createUser(String username) throws IOException {
+        return append(CREATE_USER, username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends the deletion of an account.
+     * @param username      The username of the account.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long deleteUser(String username) throws IOException {
+        return append(DELETE_USER, username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends an undelivered message being queued for its recipient.
+     * @param message       The message.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long enqueue(Message message) throws IOException {
+        return append(ENQUEUE, message.toByteArray());
+    }
+
+    /**
+     * Appends the oldest undelivered message of a user being dropped.
+     * @param username      The username.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long dropOldest(String username) throws IOException {
+        return append(DROP_OLDEST, username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends the undelivered messages of a user being removed.
+     * @param username      The username.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long drain(String username) throws IOException {
+        return append(DRAIN, username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends the oldest undelivered messages of a user being removed, once
+     * they have been delivered.
+     * @param username      The username.
+     * @param count         The number of messages removed.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long removeOldest(String username, int count) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        return append(REMOVE_OLDEST, ByteBuffer.allocate(4 + name.length).putInt(count).put(name).array());
+    }
+
+    /**
+     * Appends a message being queued for its recipient, who is logged in.
+     * @param message       The message.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long queue(Message message) throws IOException {
+        return append(QUEUE, message.toByteArray());
+    }
+
+    /**
+     * Appends the oldest messages queued for a user being removed, once they
+     * have been delivered or dropped.
+     * @param username      The username.
+     * @param count         The number of messages removed.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public long unqueue(String username, int count) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        return append(UNQUEUE, ByteBuffer.allocate(4 + name.length).putInt(count).put(name).array());
+    }
+
+    /**
+     * Appends the index and term of the Raft log entry the state reflects, once
+     * the records of its operation have been appended.
+     * @param index         The index of the entry.
+     * @param term          The term of the entry.
+     * @return              The sequence number of the record, to be passed to `commit`.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    public synchronized long applied(long index, long term) throws IOException {
+        long sequence = appendApplied(index, term);
+        appliedEntry = new long[]{index, term};
+        return sequence;
+    }
+
+    /**
+     * Get the Raft log entry the state reflects, as recorded by the last APPLIED
+     * record, including those replayed on startup.
+     * @return  The index and term of the entry, or null if records which are not
+     *          entries of the log were appended after it, or there is none.
+     */
+    public synchronized long[] getAppliedEntry() {
+        return appliedEntry;
+    }
+
+    /**
+     * The body of a record creating an account, as passed to listeners, e.g.
+     * to transfer the accounts to a backup.
+     * @param username  The username of the account.
+     * @return          The body of the record.
+     */
+    public static byte[] createUserOperation(String username) {
+        return body(CREATE_USER, username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The body of a record queueing an undelivered message, as passed to listeners.
+     * @param message   The message.
+     * @return          The body of the record.
+     */
+    public static byte[] enqueueOperation(Message message) {
+        return body(ENQUEUE, message.toByteArray());
+    }
+
+    /**
+     * The body of a record queueing a message for a logged in recipient, as passed to listeners.
+     * @param message   The message.
+     * @return          The body of the record.
+     */
+    public static byte[] queueOperation(Message message) {
+        return body(QUEUE, message.toByteArray());
+    }
+
+    /**
+     * Frames the type and payload of a record as its body.
+     * @param type      The type of operation.
+     * @param payload   The payload of the record.
+     * @return          The body of the record.
+     */
+    private static byte[] body(byte type, byte[] payload) {
+        return ByteBuffer.allocate(1 + payload.length).put(type).put(payload).array();
+    }
+
+    /**
+     * Sets the listener receiving the records appended from now on.
+     * @param listener  The listener, or null to stop passing records to a listener.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the sequence number of the last record appended.
+     * @return  The sequence number, or 0 if no records have been appended.
+     */
+    public synchronized long getLastSequence() {
+        return appended;
+    }
+
+    /**
+     * Whether any operations have been appended since the last rotation.
+     * @return  True if the current segment holds records.
+     */
+    public synchronized boolean hasRecords() {
+        return segmentLength > 0;
+    }
+
+    /**
+     * Starts a new segment, so that the current and earlier segments can be
+     * replaced by a snapshot of the state as of now. The caller must prevent
+     * operations from being appended until it has copied that state.
+     * @return              The generation of the new segment, to be passed to `writeSnapshot`.
+     * @throws IOException  Thrown if the new segment could not be created.
+     */
+    public long rotate() throws IOException {
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                if (file == null) return ++generation;
+                FileOutputStream next = new FileOutputStream(Constants.getOperationLogFileName(offset, generation + 1), true);
+                // Records committed to the current segment would otherwise never be synced.
+                out.flush();
+                if (durability != Durability.NONE) {
+                    file.getFD().sync();
+                    syncCount++;
+                    durable = appended;
+                    notifyAll();
+                }
+                out.close();
+                file = next;
+                out = new DataOutputStream(new BufferedOutputStream(next));
+                segmentLength = 0;
+                return ++generation;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the state at the start of the given generation,
+     * replacing the previous snapshot and the segments before that generation.
+     * The snapshot is written to a temporary file and synced before it is moved
+     * into place, so that a complete snapshot always exists once the segments
+     * are removed. This does not block appending to the log.
+     * @param generation    The generation returned by `rotate`.
+     * @param accounts      All accounts as of the rotation.
+     * @param messages      The undelivered messages as of the rotation, with
+     *                      each user's messages oldest first.
+     * @param queued        The messages queued for logged in users as of the
+     *                      rotation, with each user's messages oldest first.
+     * @param applied       The entry the state reflects as of the rotation, from
+     *                      `getAppliedEntry`, or null if none.
+     * @throws IOException  Thrown if the snapshot could not be written.
+     */
+    public void writeSnapshot(long generation, Iterable<String> accounts, Iterable<Message> messages,
+                              Iterable<Message> queued, long[] applied) throws IOException {
+        if (offset < 0) return;
+        Path snapshot = Path.of(Constants.getSnapshotFileName(offset));
+        Path temporary = Path.of(Constants.getSnapshotFileName(offset) + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream snapshotOut = new DataOutputStream(new BufferedOutputStream(file));
+            CRC32 snapshotCrc = new CRC32();
+            snapshotOut.writeLong(generation);
+            for (String account : accounts) {
+                writeRecord(snapshotOut, snapshotCrc, CREATE_USER, account.getBytes(StandardCharsets.UTF_8));
+            }
+            for (Message message : messages) {
+                writeRecord(snapshotOut, snapshotCrc, ENQUEUE, message.toByteArray());
+            }
+            for (Message message : queued) {
+                writeRecord(snapshotOut, snapshotCrc, QUEUE, message.toByteArray());
+            }
+            if (applied != null) {
+                writeRecord(snapshotOut, snapshotCrc, APPLIED, appliedPayload(applied[0], applied[1]));
+            }
+            snapshotOut.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteSegmentsBefore(offset, generation);
+    }
+
+    /**
+     * Deletes the segments of the log before the given generation, oldest
+     * first, so that the remaining segments are always consecutive.
+     * @param offset        The offset of the server.
+     * @param generation    The first generation to keep.
+     * @throws IOException  Thrown if a segment could not be deleted.
+     */
+    private static void deleteSegmentsBefore(int offset, long generation) throws IOException {
+        long oldest = generation;
+        while (oldest > 0 && Files.exists(Path.of(Constants.getOperationLogFileName(offset, oldest - 1)))) {
+            oldest--;
+        }
+        for (long segment = oldest; segment < generation; segment++) {
+            Files.delete(Path.of(Constants.getOperationLogFileName(offset, segment)));
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and every record
+     * before it, is durable. Records are buffered until committed, so that
+     * several records (e.g. those of a batch) can be committed at once.
+     * @param sequence      The sequence number returned when appending the record.
+     * @throws IOException  Thrown if the records could not be written or synced.
+     */
+    public void commit(long sequence) throws IOException {
+        switch (durability) {
+            case NONE:
+                synchronized (this) {
+                    out.flush();
+                }
+                break;
+            case PER_OPERATION:
+                sync(sequence);
+                break;
+            case BATCHED:
+                awaitSync(sequence);
+                break;
+        }
+    }
+
+    /**
+     * Syncs the records appended so far to disk, unless the record with the
+     * given sequence number has already been synced. Records can be appended
+     * while the file is synced.
+     * @param sequence      The sequence number of the record to sync.
+     * @throws IOException  Thrown if the records could not be written or synced.
+     */
+    private void sync(long sequence) throws IOException {
+        syncLock.lock();
+        try {
+            long target;
+            synchronized (this) {
+                if (durable >= sequence) return;
+                if (syncFailure != null) throw new IOException("Operation log could not be synced", syncFailure);
+                if (closed) throw new IOException("Operation log is closed");
+                out.flush();
+                target = appended;
+            }
+            try {
+                file.getFD().sync();
+            } catch (IOException e) {
+                synchronized (this) {
+                    syncFailure = e;
+                    notifyAll();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                syncCount++;
+                durable = target;
+                notifyAll();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the background sync to cover the record with the given sequence number.
+     * @param sequence      The sequence number of the record.
+     * @throws IOException  Thrown if the records could not be synced.
+     */
+    private synchronized void awaitSync(long sequence) throws IOException {
+        if (sequence > requested) {
+            requested = sequence;
+            notifyAll();
+        }
+        try {
+            while (durable < sequence && syncFailure == null && !closed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the operation log to sync");
+        }
+        if (durable < sequence) {
+            throw syncFailure != null ? new IOException("Operation log could not be synced", syncFailure)
+                    : new IOException("Operation log is closed");
+        }
+    }
+
+    /**
+     * Syncs the records awaiting a BATCHED sync, after waiting up to the maximum
+     * latency for further records to join the sync.
+     */
+    private void runSyncer() {
+        try {
+            while (true) {
+                long target;
+                synchronized (this) {
+                    while (!closed && requested <= durable) {
+                        wait();
+                    }
+                    if (closed) return;
+                }
+                if (maxLatencyMillis > 0) {
+                    Thread.sleep(maxLatencyMillis);
+                }
+                synchronized (this) {
+                    target = requested;
+                }
+                sync(target);
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        } catch (IOException e) {
+            Logging.logInfo("Failed to sync the operation log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of times the log has been synced to disk.
+     * @return  The number of syncs.
+     */
+    synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Writes the records appended so far to the file, syncing them unless the
+     * durability is NONE, and closes the log.
+     * @throws IOException  Thrown if the records could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                if (closed) return;
+                try {
+                    out.flush();
+                    if (file != null && durability != Durability.NONE && syncFailure == null) {
+                        file.getFD().sync();
+                        syncCount++;
+                        durable = appended;
+                    }
+                } finally {
+                    closed = true;
+                    notifyAll();
+                    out.close();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+        if (syncer != null) {
+            syncer.interrupt();
+        }
+    }
+
+    /**
+     * Appends a record to the buffer.
+     * @param type          The type of operation.
+     * @param payload       The payload of the record.
+     * @return              The sequence number of the record.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    private synchronized long append(byte type, byte[] payload) throws IOException {
+        if (closed) throw new IOException("Operation log is closed");
+        writeRecord(out, crc, type, payload);
+        segmentLength += 9 + payload.length;
+        long sequence = ++appended;
+        long[] entry = listener != null ? listener.appended(sequence, body(type, payload)) : null;
+        if (entry != null) {
+            appendApplied(entry[0], entry[1]);
+        }
+        appliedEntry = entry;
+        return sequence;
+    }
+
+    /**
+     * Appends an APPLIED record, without passing it to the listener. Must hold the monitor.
+     * @return  The sequence number of the record.
+     */
+    private long appendApplied(long index, long term) throws IOException {
+        if (closed) throw new IOException("Operation log is closed");
+        byte[] payload = appliedPayload(index, term);
+        writeRecord(out, crc, APPLIED, payload);
+        segmentLength += 9 + payload.length;
+        return ++appended;
+    }
+
+    private static byte[] appliedPayload(long index, long term) {
+        return ByteBuffer.allocate(16).putLong(index).putLong(term).array();
+    }
+
+    private static long[] appliedEntryOf(byte[] body) {
+        ByteBuffer payload = ByteBuffer.wrap(body, 1, 16);
+        return new long[]{payload.getLong(), payload.getLong()};
+    }
+
+    /**
+     * Writes a record to a stream.
+     * @param out           The stream.
+     * @param crc           Computes the checksum of the record.
+     * @param type          The type of operation.
+     * @param payload       The payload of the record.
+     * @throws IOException  Thrown if the record could not be written.
+     */
+    private static void writeRecord(DataOutputStream out, CRC32 crc, byte type, byte[] payload) throws IOException {
+        crc.reset();
+        crc.update(type);
+        crc.update(payload);
+        out.writeInt(1 + payload.length);
+        out.writeInt((int) crc.getValue());
+        out.writeByte(type);
+        out.write(payload);
+    }
+}
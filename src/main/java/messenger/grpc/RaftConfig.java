@@ -0,0 +1,93 @@
+package messenger.grpc;
+
+/**
+ * The timing of the Raft protocol between the servers, and how much of the log
+ * is kept in memory.
+ *
+ * The settings are read from system properties by `fromSystemProperties`:
+ * `messenger.raft.electionTimeoutMs`, `messenger.raft.heartbeatMs`,
+ * `messenger.raft.commitTimeoutMs` and `messenger.raft.maxLogEntries`.
+ */
+public class RaftConfig {
+
+    public static final long DEFAULT_ELECTION_TIMEOUT_MILLIS = 150;
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 30;
+    public static final long DEFAULT_COMMIT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_MAX_LOG_ENTRIES = 100_000;
+
+    private final long electionTimeoutMillis;
+    private final long heartbeatMillis;
+    private final long commitTimeoutMillis;
+    private final int maxLogEntries;
+
+    /**
+     * Specify the timing of the protocol.
+     * @param electionTimeoutMillis How long a server waits to hear from the leader before
+     *                              starting an election, randomized up to twice as long.
+     *                              Also how long the leader's lease lasts, so bounds how
+     *                              long a failed leader goes unnoticed.
+     * @param heartbeatMillis       How often the leader sends heartbeats, which should be
+     *                              well within the election timeout.
+     * @param commitTimeoutMillis   How long a request waits for its changes to be committed.
+     * @param maxLogEntries         The most applied entries kept in the log, beyond which the
+     *                              oldest are discarded, and servers missing them are sent a snapshot.
+     */
+    public RaftConfig(long electionTimeoutMillis, long heartbeatMillis, long commitTimeoutMillis,
+                      int maxLogEntries) {
+        this.electionTimeoutMillis = electionTimeoutMillis;
+        this.heartbeatMillis = heartbeatMillis;
+        this.commitTimeoutMillis = commitTimeoutMillis;
+        this.maxLogEntries = maxLogEntries;
+    }
+
+    /**
+     * Reads the settings from the system properties, using the defaults for any
+     * property which is not set.
+     * @return  The settings.
+     */
+    public static RaftConfig fromSystemProperties() {
+        return new RaftConfig(
+                Long.getLong("messenger.raft.electionTimeoutMs", DEFAULT_ELECTION_TIMEOUT_MILLIS),
+                Long.getLong("messenger.raft.heartbeatMs", DEFAULT_HEARTBEAT_MILLIS),
+                Long.getLong("messenger.raft.commitTimeoutMs", DEFAULT_COMMIT_TIMEOUT_MILLIS),
+                Integer.getInteger("messenger.raft.maxLogEntries", DEFAULT_MAX_LOG_ENTRIES));
+    }
+
+    /**
+     * Get the minimum time a server waits to hear from the leader before starting an election.
+     * @return  The timeout in milliseconds.
+     */
+    public long getElectionTimeoutMillis() {
+        return electionTimeoutMillis;
+    }
+
+    /**
+     * Get how often the leader sends heartbeats.
+     * @return  The interval in milliseconds.
+     */
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    /**
+     * Get how long a request waits for its changes to be committed.
+     * @return  The timeout in milliseconds.
+     */
+    public long getCommitTimeoutMillis() {
+        return commitTimeoutMillis;
+    }
+
+    /**
+     * Get the most applied entries kept in the log.
+     * @return  The number of entries.
+     */
+    public int getMaxLogEntries() {
+        return maxLogEntries;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("election timeout %dms, heartbeat %dms, commit timeout %dms",
+                electionTimeoutMillis, heartbeatMillis, commitTimeoutMillis);
+    }
+}
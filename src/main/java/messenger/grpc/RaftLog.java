@@ -0,0 +1,276 @@
+package messenger.grpc;
+
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The entries of a server's Raft log, persisted so that a restarted server
+ * still knows how far its log reaches, and so does not vote for a candidate
+ * missing entries it has stored.
+ *
+ * Records are framed as in the `OperationLog`, with a body of
+ * ```
+ * (1)byte type, (8)long index, (8)long term, then for an ENTRY, its operation
+ * ```
+ * An ENTRY record at an index the log already holds replaces that entry along
+ * with every entry after it, as the leader's entries replace conflicting ones.
+ * A BASE record discards the entries up to its index, which are committed, and
+ * keeps the entries after it only if the log holds the entry at its index with
+ * the same term, as installing a snapshot does. Once the file holds many more
+ * records than entries, it is rewritten as a BASE record followed by the entries.
+ *
+ * Records are written before the entries they hold are acted upon, but are only
+ * synced to disk by `sync`.
+ */
+public class RaftLog implements Closeable {
+
+    private static final byte ENTRY = 1;
+    private static final byte BASE = 2;
+    private static final int HEADER_SIZE = 17;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    // How many records beyond twice the entries held the file may grow to before being rewritten.
+    private static final int REWRITE_SLACK = 1000;
+
+    private final Path file;
+    private FileChannel channel;
+    // The length of the records written in full, to which a failed write is truncated.
+    private long length = 0;
+    private int records = 0;
+    private boolean dirty = false;
+
+    // The log as read when opened.
+    private final List<LogEntry> entries = new ArrayList<>();
+    private long baseIndex = 0;
+    private long baseTerm = 0;
+
+    /**
+     * Opens the log, reading the entries it holds. A record which was only
+     * partially written is discarded, along with anything after it.
+     * @param file  The file holding the log, created if it does not exist.
+     * @throws IOException  Thrown if the file cannot be read or opened.
+     */
+    public RaftLog(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                length = replay(in);
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(length);
+        channel.position(length);
+    }
+
+    /**
+     * Get the entries read when the log was opened, after the base index.
+     * @return  The entries, in order.
+     */
+    public List<LogEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the index of the last entry discarded, as read when the log was opened.
+     * @return  The index, or 0 if none.
+     */
+    public long getBaseIndex() {
+        return baseIndex;
+    }
+
+    public long getBaseTerm() {
+        return baseTerm;
+    }
+
+    /**
+     * Writes entries, replacing any the log holds from the first of them on.
+     * @param index     The index of the first entry.
+     * @param added     The entries.
+     * @throws IOException  Thrown if the entries cannot be written, in which case
+     *                      none of them are.
+     */
+    public synchronized void append(long index, List<LogEntry> added) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (LogEntry entry : added) {
+            writeRecord(out, ENTRY, index++, entry.getTerm(), entry.getOperation());
+        }
+        write(bytes.toByteArray(), added.size());
+    }
+
+    /**
+     * Discards the entries up to an index, rewriting the file if it has grown
+     * well beyond the entries left.
+     * @param index     The index of the last entry discarded.
+     * @param term      Its term.
+     * @param remaining The entries after it.
+     * @throws IOException  Thrown if the discarded entries cannot be recorded.
+     */
+    public synchronized void discard(long index, long term, List<LogEntry> remaining) throws IOException {
+        if (records > 2 * remaining.size() + REWRITE_SLACK) {
+            rewrite(index, term, remaining);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeRecord(new DataOutputStream(bytes), BASE, index, term, ByteString.EMPTY);
+        write(bytes.toByteArray(), 1);
+    }
+
+    /**
+     * Syncs the records written so far to disk, unless they already are.
+     * @throws IOException  Thrown if the records could not be synced.
+     */
+    public synchronized void sync() throws IOException {
+        if (!dirty) return;
+        channel.force(false);
+        dirty = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes records in full, or truncates the file back to the records before them.
+     * @param data  The framed records.
+     * @param count The number of records.
+     * @throws IOException  Thrown if the records cannot be written.
+     */
+    private void write(byte[] data, int count) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(length);
+                channel.position(length);
+            } catch (IOException ignored) {
+                // The partial record is discarded when the log is next read.
+            }
+            throw e;
+        }
+        length += data.length;
+        records += count;
+        dirty = true;
+    }
+
+    /**
+     * Replaces the file with one holding only a BASE record and the entries after it.
+     */
+    private void rewrite(long index, long term, List<LogEntry> remaining) throws IOException {
+        Path temporary = Path.of(file + ".tmp");
+        try (FileChannel rewritten = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeRecord(out, BASE, index, term, ByteString.EMPTY);
+            long next = index + 1;
+            for (LogEntry entry : remaining) {
+                writeRecord(out, ENTRY, next++, entry.getTerm(), entry.getOperation());
+                if (bytes.size() > 1024 * 1024) {
+                    writeFully(rewritten, bytes);
+                }
+            }
+            writeFully(rewritten, bytes);
+            rewritten.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        length = channel.size();
+        channel.position(length);
+        records = 1 + remaining.size();
+        dirty = false;
+    }
+
+    private static void writeFully(FileChannel channel, ByteArrayOutputStream bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        bytes.reset();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, long index, long term, ByteString operation)
+            throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(HEADER_SIZE + operation.size());
+        body.put(type).putLong(index).putLong(term);
+        operation.copyTo(body);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        out.writeInt(body.capacity());
+        out.writeInt((int) crc.getValue());
+        out.write(body.array());
+    }
+
+    /**
+     * Reads the records of the file, up to the first one not written in full.
+     * @return  The length of the records read.
+     */
+    private long replay(DataInputStream in) throws IOException {
+        long position = 0;
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException e) {
+                    return position;
+                }
+                if (size < HEADER_SIZE || size > MAX_RECORD_SIZE) return position;
+                int checksum = in.readInt();
+                byte[] body = new byte[size];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) return position;
+
+                apply(ByteBuffer.wrap(body));
+                position += 8 + size;
+                records++;
+            }
+        } catch (EOFException e) {
+            // The last record was cut short.
+            return position;
+        }
+    }
+
+    private void apply(ByteBuffer body) {
+        byte type = body.get();
+        long index = body.getLong();
+        long term = body.getLong();
+        if (type == ENTRY) {
+            if (index <= baseIndex || index > baseIndex + entries.size() + 1) return;
+            entries.subList((int) (index - baseIndex - 1), entries.size()).clear();
+            entries.add(LogEntry.newBuilder().setTerm(term).setOperation(ByteString.copyFrom(body)).build());
+        } else if (type == BASE) {
+            if (index > baseIndex && index - baseIndex <= entries.size()
+                    && entries.get((int) (index - baseIndex - 1)).getTerm() == term) {
+                entries.subList(0, (int) (index - baseIndex)).clear();
+            } else {
+                entries.clear();
+            }
+            baseIndex = index;
+            baseTerm = term;
+        }
+    }
+}
@@ -0,0 +1,1261 @@
+package messenger.grpc;
+
+import com.google.protobuf.ByteString;
+import messenger.util.Logging;
+import messenger.util.Metrics;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A server's part in the Raft consensus protocol (Ongaro and Ousterhout, "In
+ * Search of an Understandable Consensus Algorithm"), which elects one of the
+ * servers as the leader, and replicates the leader's changes to the others.
+ *
+ * The entries of the log are the records of the leader's operation log. The
+ * leader executes each request as it arrives, and proposes the records it
+ * appends, in order, so that its state always reflects every entry of its log.
+ * The request is only answered once its entries are committed, i.e. stored by
+ * a majority of the servers. The other servers apply the committed entries to
+ * their state in order, through the `StateMachine`.
+ *
+ * A newly elected leader first commits an empty entry, and only then accepts
+ * requests, so that it has applied every entry committed by earlier leaders. A
+ * server whose state may include entries which were never committed (e.g. a
+ * leader which lost its leadership, or a server which has just started and does
+ * not know how far its persisted state reaches) is stale, and is sent the state
+ * of the leader as a snapshot before applying further entries. So is a server
+ * which is missing entries the leader no longer holds. A stale server holding
+ * entries does not start elections, since its state may be missing committed
+ * entries; only when the servers first start, with empty logs, is the state of
+ * the first leader adopted as the state of every server.
+ *
+ * The leader holds a lease, which is extended whenever a majority of the
+ * servers acknowledge its requests, and lasts for the election timeout from
+ * when the requests were sent. A server which has heard from the leader within
+ * the election timeout does not vote for another server, so while the lease is
+ * valid no other leader can be elected, and the leader steps down as soon as
+ * its lease expires, rather than when it next hears from the new leader. Before
+ * starting an election, a server first asks the others whether they would vote
+ * for it (a pre-vote), so that a server which was cut off from the leader does
+ * not disrupt it once reconnected.
+ *
+ * The current term and vote, and the entries of the log, are persisted before
+ * they are acted upon: a follower syncs the entries it stores before
+ * acknowledging them, and the leader before sending them, so that a restarted
+ * server does not vote for a candidate missing entries it has stored. Each
+ * server persists its state in its own operation log, along with the last entry
+ * it reflects. A restarted server whose log still holds that entry applies the
+ * committed entries after it as usual; otherwise it is stale.
+ */
+public class RaftNode implements Closeable {
+
+    /**
+     * The role of a server in the current term.
+     */
+    public enum Role {
+        FOLLOWER,
+        CANDIDATE,
+        LEADER
+    }
+
+    /**
+     * Sends requests to another server, e.g. over a `Raft` call.
+     */
+    public interface Peer {
+        RequestVoteReply requestVote(RequestVoteRequest request) throws Exception;
+
+        AppendEntriesReply appendEntries(AppendEntriesRequest request) throws Exception;
+
+        InstallSnapshotReply installSnapshot(InstallSnapshotRequest request) throws Exception;
+    }
+
+    /**
+     * The state replicated by the log, i.e. the accounts and undelivered messages.
+     */
+    public interface StateMachine {
+        /**
+         * Applies committed entries proposed by another server.
+         * @param index         The index of the first entry.
+         * @param term          The term of the last entry.
+         * @param operations    The operations of the entries, in order. An empty
+         *                      operation changes nothing.
+         */
+        void apply(long index, long term, List<byte[]> operations);
+
+        /**
+         * Get the last entry the persisted state reflects, as the node is created.
+         * @return  The index and term of the entry, or null if not known.
+         */
+        long[] getPersistedEntry();
+
+        /**
+         * Takes a copy of the state, to be installed on another server.
+         * @return  The state.
+         */
+        Snapshot takeSnapshot();
+
+        // Discards the state, before a snapshot is installed.
+        void reset();
+
+        // Adds a chunk of the operations of a snapshot being installed.
+        void restore(List<byte[]> operations);
+
+        // Completes installing a snapshot of the state as of the entry with the given index and term.
+        void restored(long index, long term);
+
+        // Called as the server becomes, or stops being, the leader.
+        void roleChanged(boolean leader);
+    }
+
+    /**
+     * The state as of an entry of the log, as the operations which recreate it.
+     */
+    public static class Snapshot implements Closeable {
+        private final long index;
+        private final Iterable<byte[]> operations;
+        private final Closeable resources;
+
+        /**
+         * @param index         The index of the last entry the state reflects.
+         * @param operations    The operations which recreate the state.
+         * @param resources     Released once the operations have been read, or null.
+         */
+        public Snapshot(long index, Iterable<byte[]> operations, Closeable resources) {
+            this.index = index;
+            this.operations = operations;
+            this.resources = resources;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (resources != null) {
+                resources.close();
+            }
+        }
+    }
+
+    // Bounds the size of each request, which gRPC limits to 4MB by default.
+    private static final int MAX_BATCH_ENTRIES = 1000;
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    private final int id;
+    private final List<PeerState> peers = new ArrayList<>();
+    private final StateMachine machine;
+    // Holds the current term and vote, or null if they are not persisted.
+    private final Path stateFile;
+    // Holds the entries of the log, or null if they are only held in memory.
+    private final RaftLog log;
+    private final RaftConfig config;
+    private final Random random = new Random();
+    private final LongAdder elections;
+
+    // Held while applying entries or installing a snapshot, so that the state
+    // machine is only changed by one of them at a time. Acquired before the monitor.
+    private final ReentrantLock applyLock = new ReentrantLock();
+    private final List<Thread> threads = new ArrayList<>();
+
+    // The fields below are guarded by the monitor of the RaftNode.
+    private long currentTerm = 0;
+    // The server voted for in the current term, or -1 if none.
+    private int votedFor = -1;
+    private Role role = Role.FOLLOWER;
+    // The leader of the current term, or -1 if not known.
+    private int leaderId = -1;
+    // The entries after the snapshot index. The entries up to and including it
+    // have been discarded, since they are committed and applied.
+    private final List<LogEntry> entries = new ArrayList<>();
+    private long snapshotIndex = 0;
+    private long snapshotTerm = 0;
+    private long commitIndex = 0;
+    // The index of the last entry the state reflects.
+    private long lastApplied = 0;
+    // Whether the state may differ from the entries up to `lastApplied`.
+    private boolean stale = true;
+    // The index of the snapshot being installed, or -1 if none.
+    private long installing = -1;
+    // The index of the last entry the state of this server was taken to reflect
+    // on being elected while stale, or 0.
+    private long adoptedIndex = 0;
+    // The index of the empty entry appended by the leader of the current term.
+    private long readyIndex = Long.MAX_VALUE;
+    // Whether the election is a pre-vote, for the term after the current one.
+    private boolean preVote = false;
+    // The servers which voted for this server in the current election.
+    private final Set<Integer> votes = new HashSet<>();
+    // When this server last heard from the leader.
+    private long leaderContact;
+    // When to start an election, unless the leader is heard from first.
+    private long electionDeadline;
+    // Whether the state machine was last told it is the leader.
+    private boolean notifiedLeader = false;
+    private boolean closed = false;
+
+    /**
+     * Create a node, which takes part in the protocol once started.
+     * @param id        The offset of this server.
+     * @param peers     The other servers, by offset.
+     * @param machine   The state replicated by the log.
+     * @param stateFile The file persisting the current term and vote, or null.
+     *                  The entries of the log are persisted alongside it, with
+     *                  the suffix `.log`.
+     * @param config    The timing of the protocol.
+     * @param metrics   The metrics of the server.
+     * @throws IOException  Thrown if the persisted term, vote or log cannot be read.
+     */
+    public RaftNode(int id, Map<Integer, Peer> peers, StateMachine machine, Path stateFile,
+                    RaftConfig config, Metrics metrics) throws IOException {
+        this.id = id;
+        this.machine = machine;
+        this.stateFile = stateFile;
+        this.config = config;
+        for (Map.Entry<Integer, Peer> peer : peers.entrySet()) {
+            this.peers.add(new PeerState(peer.getKey(), peer.getValue()));
+        }
+        if (stateFile != null && Files.exists(stateFile)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(stateFile))) {
+                currentTerm = in.readLong();
+                votedFor = in.readInt();
+            }
+        }
+        if (stateFile != null) {
+            log = new RaftLog(Path.of(stateFile + ".log"));
+            entries.addAll(log.getEntries());
+            snapshotIndex = log.getBaseIndex();
+            snapshotTerm = log.getBaseTerm();
+            commitIndex = snapshotIndex;
+            lastApplied = snapshotIndex;
+            // Entries with the same index and term are preceded by the same entries,
+            // so if the log still holds the last entry the state reflects, the state
+            // reflects the log up to it.
+            long[] persisted = machine.getPersistedEntry();
+            if (persisted != null && persisted[0] >= snapshotIndex && termAt(persisted[0]) == persisted[1]) {
+                lastApplied = persisted[0];
+                stale = false;
+            }
+        } else {
+            log = null;
+        }
+        elections = metrics.counter("raft.elections");
+        metrics.gauge("raft.term", this::getCurrentTerm);
+        metrics.gauge("raft.commit", this::getCommitIndex);
+        // A restarted server may have voted for the current leader moments ago, so
+        // waits the election timeout before voting for another.
+        leaderContact = System.nanoTime();
+        resetElectionDeadline();
+    }
+
+    /**
+     * Starts the threads of the node: one which starts elections, one which
+     * applies committed entries, and one sending requests to each other server.
+     */
+    public void start() {
+        threads.add(new Thread(this::runTimer, "raft-timer"));
+        threads.add(new Thread(this::runApplier, "raft-applier"));
+        for (PeerState peer : peers) {
+            threads.add(new Thread(peer::run, "raft-peer-" + peer.id));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    System.out.println("IOException");
+                    e.printStackTrace();
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    public synchronized long getCurrentTerm() {
+        return currentTerm;
+    }
+
+    public synchronized long getCommitIndex() {
+        return commitIndex;
+    }
+
+    public synchronized long getLastApplied() {
+        return lastApplied;
+    }
+
+    public synchronized Role getRole() {
+        return role;
+    }
+
+    /**
+     * Get the leader of the current term.
+     * @return  The offset of the leader, or -1 if not known.
+     */
+    public synchronized int getLeaderId() {
+        return leaderId;
+    }
+
+    /**
+     * Whether this server is the leader, and has applied every entry committed
+     * by earlier leaders, so can accept requests.
+     * @return  True if ready.
+     */
+    public synchronized boolean isReady() {
+        return role == Role.LEADER && !stale && lastApplied >= readyIndex && System.nanoTime() - leaseExpiry() < 0;
+    }
+
+    /**
+     * Whether the state of this server may be read, i.e. it is not being
+     * replaced by the state of the leader, and the leader may still hold its
+     * lease, so the state lags the leader by at most the election timeout and
+     * the entries not yet applied.
+     * @return  True if the state may be read.
+     */
+    public synchronized boolean canServeReads() {
+        return !stale && installing < 0 && leaderAlive();
+    }
+
+    /**
+     * Starts an election now, unless this server is the leader, or has heard
+     * from the leader within the election timeout.
+     */
+    public synchronized void campaign() {
+        if (role != Role.LEADER && !leaderAlive()) {
+            electionDeadline = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Appends an operation the leader has executed to the log. Called as the
+     * operation is appended to the operation log, so in order.
+     * @param term      The term the operation was executed in, from `getCurrentTerm`.
+     * @param operation The body of the operation log record.
+     * @return          The index of the entry, or 0 if this server is not the
+     *                  leader of the term, in which case its state no longer
+     *                  matches the log.
+     */
+    public synchronized long propose(long term, byte[] operation) {
+        if (role != Role.LEADER || term != currentTerm || lastApplied < readyIndex || stale) {
+            markStale("executed an operation while not the leader");
+            if (role == Role.LEADER) {
+                becomeFollower(currentTerm);
+            }
+            return 0;
+        }
+        LogEntry entry = LogEntry.newBuilder().setTerm(currentTerm).setOperation(ByteString.copyFrom(operation)).build();
+        if (!persistEntries(lastLogIndex() + 1, List.of(entry))) {
+            markStale("could not persist an operation");
+            becomeFollower(currentTerm);
+            return 0;
+        }
+        entries.add(entry);
+        lastApplied = lastLogIndex();
+        advanceCommitIndex();
+        notifyAll();
+        return lastApplied;
+    }
+
+    /**
+     * Waits until the entry with the given index and term is committed.
+     * @param index         The index of the entry.
+     * @param term          The term in which it was proposed.
+     * @param timeoutMillis How long to wait.
+     * @return              True if committed, false if this server stopped being
+     *                      the leader, or the entry was not committed in time.
+     * @throws InterruptedException Thrown if interrupted while waiting.
+     */
+    public synchronized boolean awaitCommit(long index, long term, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!closed) {
+            if (commitIndex >= index) {
+                return index <= snapshotIndex || termAt(index) == term;
+            }
+            if (role != Role.LEADER || currentTerm != term) return false;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return false;
+    }
+
+    /**
+     * Waits until the entries up to the given index are committed, e.g. before
+     * replying with state which reflects them.
+     * @param index         The index of the last entry.
+     * @param timeoutMillis How long to wait.
+     * @return              True if committed in time, and the state of this
+     *                      server was not since found to differ from the log.
+     * @throws InterruptedException Thrown if interrupted while waiting.
+     */
+    public synchronized boolean awaitCommitted(long index, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!closed && commitIndex < index) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return !closed && !stale;
+    }
+
+    /**
+     * Handles a request for this server's vote.
+     * @param request   The request of the candidate.
+     * @return          The reply.
+     */
+    public synchronized RequestVoteReply requestVote(RequestVoteRequest request) {
+        boolean upToDate = request.getLastLogTerm() > lastLogTerm()
+                || request.getLastLogTerm() == lastLogTerm() && request.getLastLogIndex() >= lastLogIndex();
+        if (request.getPreVote()) {
+            boolean granted = request.getTerm() > currentTerm && !leaderAlive() && upToDate;
+            return RequestVoteReply.newBuilder().setTerm(currentTerm).setVoteGranted(granted).build();
+        }
+        if (request.getTerm() > currentTerm && leaderAlive()) {
+            // The leader may still hold its lease.
+            return RequestVoteReply.newBuilder().setTerm(currentTerm).setVoteGranted(false).build();
+        }
+        if (request.getTerm() > currentTerm) {
+            becomeFollower(request.getTerm());
+        }
+        boolean granted = request.getTerm() == currentTerm
+                && (votedFor == -1 || votedFor == request.getCandidate())
+                && upToDate;
+        if (granted) {
+            int previousVote = votedFor;
+            votedFor = request.getCandidate();
+            if (persistState()) {
+                resetElectionDeadline();
+            } else {
+                // The vote could be forgotten on restart, and cast again.
+                votedFor = previousVote;
+                granted = false;
+            }
+        }
+        return RequestVoteReply.newBuilder().setTerm(currentTerm).setVoteGranted(granted).build();
+    }
+
+    /**
+     * Handles a request from the leader to append entries to the log.
+     * @param request   The request of the leader.
+     * @return          The reply.
+     */
+    public synchronized AppendEntriesReply appendEntries(AppendEntriesRequest request) {
+        AppendEntriesReply.Builder reply = AppendEntriesReply.newBuilder().setSuccess(false);
+        if (request.getTerm() < currentTerm) {
+            return reply.setTerm(currentTerm).build();
+        }
+        if (request.getTerm() > currentTerm || role != Role.FOLLOWER) {
+            becomeFollower(request.getTerm());
+        }
+        leaderId = request.getLeader();
+        leaderContact = System.nanoTime();
+        resetElectionDeadline();
+        reply.setTerm(currentTerm);
+
+        long prevIndex = request.getPrevLogIndex();
+        if (stale || installing >= 0) {
+            return reply.setNeedsSnapshot(true).build();
+        } else if (prevIndex > lastLogIndex()) {
+            return reply.setConflictIndex(lastLogIndex() + 1).build();
+        } else if (prevIndex >= snapshotIndex && termAt(prevIndex) != request.getPrevLogTerm()) {
+            // Retry from the first entry of the conflicting term.
+            long conflict = prevIndex;
+            while (conflict - 1 > snapshotIndex && termAt(conflict - 1) == termAt(prevIndex)) {
+                conflict--;
+            }
+            return reply.setConflictIndex(conflict).build();
+        }
+
+        // Skips the entries already held, up to the first new or conflicting one.
+        List<LogEntry> received = request.getEntriesList();
+        int held = 0;
+        while (held < received.size()) {
+            long next = prevIndex + held + 1;
+            if (next > lastLogIndex() || next > snapshotIndex && termAt(next) != received.get(held).getTerm()) break;
+            held++;
+        }
+        long first = prevIndex + held + 1;
+        List<LogEntry> added = received.subList(held, received.size());
+        if (!added.isEmpty()) {
+            if (!persistEntries(first, added) || !syncEntries()) {
+                return reply.setConflictIndex(first).build();
+            }
+            if (first <= lastLogIndex()) {
+                if (first <= lastApplied) {
+                    markStale("applied entries were replaced by the leader");
+                }
+                entries.subList((int) (first - snapshotIndex - 1), entries.size()).clear();
+            }
+            entries.addAll(added);
+        }
+        long index = prevIndex + received.size();
+        if (request.getLeaderCommit() > commitIndex) {
+            commitIndex = Math.max(commitIndex, Math.min(request.getLeaderCommit(), index));
+            notifyAll();
+        }
+        if (stale) {
+            return reply.setNeedsSnapshot(true).build();
+        }
+        return reply.setSuccess(true).setMatchIndex(index).build();
+    }
+
+    /**
+     * Handles a chunk of the leader's snapshot, replacing the state of this
+     * server once every chunk has been received.
+     * @param request   The chunk.
+     * @return          The reply, unsuccessful if the chunk is not part of the
+     *                  snapshot being installed.
+     */
+    public InstallSnapshotReply installSnapshot(InstallSnapshotRequest request) {
+        long index = request.getLastIncludedIndex();
+        applyLock.lock();
+        try {
+            synchronized (this) {
+                InstallSnapshotReply.Builder reply = InstallSnapshotReply.newBuilder().setSuccess(false);
+                if (request.getTerm() < currentTerm) {
+                    return reply.setTerm(currentTerm).build();
+                }
+                if (request.getTerm() > currentTerm || role != Role.FOLLOWER) {
+                    becomeFollower(request.getTerm());
+                }
+                leaderId = request.getLeader();
+                leaderContact = System.nanoTime();
+                resetElectionDeadline();
+                if (request.getReset()) {
+                    installing = index;
+                    stale = true;
+                } else if (installing != index) {
+                    return reply.setTerm(currentTerm).build();
+                }
+            }
+
+            if (request.getReset()) {
+                machine.reset();
+            }
+            List<byte[]> operations = new ArrayList<>(request.getOperationsCount());
+            for (ByteString operation : request.getOperationsList()) {
+                operations.add(operation.toByteArray());
+            }
+            machine.restore(operations);
+            if (request.getDone()) {
+                machine.restored(index, request.getLastIncludedTerm());
+            }
+
+            synchronized (this) {
+                if (request.getDone() && installing == index) {
+                    if (index > snapshotIndex && termAt(index) == request.getLastIncludedTerm()) {
+                        // Keep the entries following the snapshot.
+                        entries.subList(0, (int) (index - snapshotIndex)).clear();
+                    } else {
+                        entries.clear();
+                    }
+                    snapshotIndex = index;
+                    snapshotTerm = request.getLastIncludedTerm();
+                    discardPersistedEntries();
+                    commitIndex = Math.min(Math.max(commitIndex, index), lastLogIndex());
+                    lastApplied = index;
+                    installing = -1;
+                    stale = false;
+                    Logging.logInfo("Installed snapshot from server " + request.getLeader() + " at index " + index + ".");
+                    notifyAll();
+                }
+                return InstallSnapshotReply.newBuilder().setTerm(currentTerm).setSuccess(true).build();
+            }
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    private long lastLogIndex() {
+        return snapshotIndex + entries.size();
+    }
+
+    private long lastLogTerm() {
+        return entries.isEmpty() ? snapshotTerm : entries.get(entries.size() - 1).getTerm();
+    }
+
+    /**
+     * Gets the term of an entry. Must hold the monitor.
+     * @param index The index of the entry.
+     * @return      The term, or -1 if the entry has been discarded or does not exist.
+     */
+    private long termAt(long index) {
+        if (index == snapshotIndex) return snapshotTerm;
+        if (index < snapshotIndex || index > lastLogIndex()) return -1;
+        return entries.get((int) (index - snapshotIndex - 1)).getTerm();
+    }
+
+    private void resetElectionDeadline() {
+        long timeout = config.getElectionTimeoutMillis();
+        electionDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout + random.nextInt((int) timeout + 1));
+    }
+
+    private long electionTimeoutNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(config.getElectionTimeoutMillis());
+    }
+
+    /**
+     * Whether the leader may still hold its lease, i.e. this server is the
+     * leader and holds the lease, or has heard from the leader within the
+     * election timeout. Must hold the monitor.
+     * @return  True if the leader may be alive.
+     */
+    private boolean leaderAlive() {
+        long now = System.nanoTime();
+        if (role == Role.LEADER) {
+            return now - leaseExpiry() < 0;
+        }
+        return now - leaderContact < electionTimeoutNanos();
+    }
+
+    /**
+     * Gets when the lease of the leader expires: the election timeout after
+     * the latest time by which a majority of the servers (including the leader)
+     * had been sent requests they acknowledged. Must hold the monitor.
+     * @return  The time, as by `System.nanoTime`.
+     */
+    private long leaseExpiry() {
+        int needed = (peers.size() + 1) / 2;
+        if (needed == 0) {
+            return System.nanoTime() + electionTimeoutNanos();
+        }
+        List<Long> acknowledged = new ArrayList<>();
+        for (PeerState peer : peers) {
+            acknowledged.add(peer.acknowledgedAt);
+        }
+        acknowledged.sort(Collections.reverseOrder());
+        return acknowledged.get(needed - 1) + electionTimeoutNanos();
+    }
+
+    /**
+     * Marks the state as no longer matching the log, until a snapshot is installed.
+     * @param reason    Why, to be logged.
+     */
+    private void markStale(String reason) {
+        if (!stale) {
+            Logging.logInfo("Server " + id + " " + reason + ", so will be sent a snapshot.");
+            stale = true;
+        }
+    }
+
+    /**
+     * Becomes a follower, e.g. on hearing from a server with a later term. Must
+     * hold the monitor.
+     * @param term  The term.
+     */
+    private void becomeFollower(long term) {
+        if (term > currentTerm) {
+            currentTerm = term;
+            votedFor = -1;
+            leaderId = -1;
+            persistState();
+        }
+        if (role == Role.LEADER) {
+            Logging.logInfo("Server " + id + " is no longer the leader, in term " + currentTerm + ".");
+            leaderId = -1;
+            if (lastApplied > commitIndex) {
+                markStale("executed operations which were not committed");
+            }
+        }
+        role = Role.FOLLOWER;
+        readyIndex = Long.MAX_VALUE;
+        resetElectionDeadline();
+        notifyAll();
+    }
+
+    /**
+     * Asks the other servers whether they would vote for this server in the
+     * next term, starting the election once a majority would. Must hold the monitor.
+     */
+    private void startPreVote() {
+        role = Role.CANDIDATE;
+        leaderId = -1;
+        preVote = true;
+        requestVotes();
+        if (votes.size() > (peers.size() + 1) / 2) {
+            startElection();
+        }
+    }
+
+    /**
+     * Starts an election for the next term. Must hold the monitor.
+     */
+    private void startElection() {
+        long previousTerm = currentTerm;
+        int previousVote = votedFor;
+        currentTerm++;
+        votedFor = id;
+        if (!persistState()) {
+            // The term could be reused on restart, so the election is abandoned.
+            currentTerm = previousTerm;
+            votedFor = previousVote;
+            role = Role.FOLLOWER;
+            resetElectionDeadline();
+            notifyAll();
+            return;
+        }
+        preVote = false;
+        requestVotes();
+        elections.increment();
+        if (votes.size() > (peers.size() + 1) / 2) {
+            becomeLeader();
+        }
+    }
+
+    /**
+     * Has the threads of the peers request their votes. Must hold the monitor.
+     */
+    private void requestVotes() {
+        votes.clear();
+        votes.add(id);
+        for (PeerState peer : peers) {
+            peer.voteRequested = false;
+            peer.retryAt = 0;
+            peer.acknowledgedAt = System.nanoTime() - electionTimeoutNanos();
+        }
+        resetElectionDeadline();
+        notifyAll();
+    }
+
+    /**
+     * Becomes the leader of the current term, appending an empty entry which
+     * commits the entries of earlier terms. Must hold the monitor.
+     */
+    private void becomeLeader() {
+        LogEntry empty = LogEntry.newBuilder().setTerm(currentTerm).build();
+        if (!persistEntries(lastLogIndex() + 1, List.of(empty))) {
+            becomeFollower(currentTerm);
+            return;
+        }
+        role = Role.LEADER;
+        leaderId = id;
+        boolean wasStale = stale;
+        adoptedIndex = 0;
+        if (stale) {
+            // Only a server which started with an empty log stands for election
+            // while stale. Its state becomes the state of the cluster, so
+            // replaces the state of every other server.
+            stale = false;
+            lastApplied = Math.max(lastApplied, lastLogIndex());
+            adoptedIndex = lastApplied;
+        }
+        for (PeerState peer : peers) {
+            peer.nextIndex = lastLogIndex() + 1;
+            peer.matchIndex = 0;
+            peer.needsSnapshot = wasStale;
+            peer.lastSent = 0;
+            peer.retryAt = 0;
+        }
+        entries.add(empty);
+        readyIndex = lastLogIndex();
+        Logging.logInfo("Server " + id + " elected leader for term " + currentTerm + ".");
+        leaderContact = System.nanoTime();
+        advanceCommitIndex();
+        notifyAll();
+    }
+
+    /**
+     * Commits the entries of the current term stored by a majority of the
+     * servers, along with every entry before them. Must hold the monitor.
+     */
+    private void advanceCommitIndex() {
+        // With other servers, the leader syncs its entries before sending them.
+        if (peers.isEmpty() && !syncEntries()) return;
+        for (long index = lastLogIndex(); index > commitIndex; index--) {
+            if (termAt(index) != currentTerm) break;
+            int stored = 1;
+            for (PeerState peer : peers) {
+                if (peer.matchIndex >= index) stored++;
+            }
+            if (stored > (peers.size() + 1) / 2) {
+                commitIndex = index;
+                notifyAll();
+                break;
+            }
+        }
+        discardAppliedEntries();
+    }
+
+    /**
+     * Discards the oldest entries beyond the most kept in memory, as long as
+     * they are committed and applied. Must hold the monitor.
+     */
+    private void discardAppliedEntries() {
+        int excess = entries.size() - config.getMaxLogEntries();
+        if (excess <= 0) return;
+        long last = Math.min(snapshotIndex + excess, Math.min(commitIndex, lastApplied));
+        if (last <= snapshotIndex || stale) return;
+        snapshotTerm = termAt(last);
+        entries.subList(0, (int) (last - snapshotIndex)).clear();
+        snapshotIndex = last;
+        discardPersistedEntries();
+    }
+
+    /**
+     * Writes entries to the persisted log, before they are added to the log
+     * in memory. Must hold the monitor.
+     * @param index The index of the first entry.
+     * @param added The entries.
+     * @return      True if written, or the log is not persisted.
+     */
+    private boolean persistEntries(long index, List<LogEntry> added) {
+        if (log == null) return true;
+        try {
+            log.append(index, added);
+            return true;
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Syncs the entries written to the persisted log to disk.
+     * @return  True if synced, or the log is not persisted.
+     */
+    private boolean syncEntries() {
+        if (log == null) return true;
+        try {
+            log.sync();
+            return true;
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Discards the entries up to the snapshot index from the persisted log.
+     * Failing to do so only leaves them to be read again on restart. Must hold
+     * the monitor.
+     */
+    private void discardPersistedEntries() {
+        if (log == null) return;
+        try {
+            log.discard(snapshotIndex, snapshotTerm, entries);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Persists the current term and vote, before they are acted upon. Must hold the monitor.
+     * @return  True if persisted, false if they must not be acted upon.
+     */
+    private boolean persistState() {
+        if (stateFile == null) return true;
+        Path temporary = Path.of(stateFile + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeLong(currentTerm);
+            out.writeInt(votedFor);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            Files.move(temporary, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Starts an election whenever the election timeout elapses without hearing
+     * from the leader.
+     */
+    private void runTimer() {
+        try {
+            synchronized (this) {
+                while (!closed) {
+                    long now = System.nanoTime();
+                    if (role == Role.LEADER && now - leaseExpiry() >= 0) {
+                        Logging.logInfo("Server " + id + " lost its lease, as a majority did not respond in time.");
+                        becomeFollower(currentTerm);
+                    } else if (role != Role.LEADER && now - electionDeadline >= 0) {
+                        if (stale && lastLogIndex() > 0) {
+                            // Waits to be sent the state of a leader instead.
+                            resetElectionDeadline();
+                        } else {
+                            startPreVote();
+                        }
+                    }
+                    long wait = role == Role.LEADER ? leaseExpiry() - now : electionDeadline - now;
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(wait, TimeUnit.MILLISECONDS.toNanos(1)));
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * Applies the committed entries, in order, and tells the state machine when
+     * this server becomes or stops being the leader.
+     */
+    private void runApplier() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && notifiedLeader == (role == Role.LEADER)
+                            && (stale || installing >= 0 || lastApplied >= commitIndex)) {
+                        wait();
+                    }
+                    if (closed) return;
+                }
+                applyLock.lockInterruptibly();
+                try {
+                    long first;
+                    long term = 0;
+                    List<byte[]> operations = new ArrayList<>();
+                    boolean leader;
+                    synchronized (this) {
+                        leader = role == Role.LEADER;
+                        first = lastApplied + 1;
+                        if (!stale && installing < 0) {
+                            long last = Math.min(commitIndex, lastLogIndex());
+                            for (long index = first; index <= last && operations.size() < MAX_BATCH_ENTRIES; index++) {
+                                LogEntry entry = entries.get((int) (index - snapshotIndex - 1));
+                                operations.add(entry.getOperation().toByteArray());
+                                term = entry.getTerm();
+                            }
+                        }
+                    }
+                    if (leader != notifiedLeader) {
+                        machine.roleChanged(leader);
+                        notifiedLeader = leader;
+                    }
+                    if (operations.isEmpty()) continue;
+                    machine.apply(first, term, operations);
+                    synchronized (this) {
+                        if (lastApplied == first - 1 && !stale) {
+                            lastApplied = first + operations.size() - 1;
+                            discardAppliedEntries();
+                            notifyAll();
+                        }
+                    }
+                } finally {
+                    applyLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * The leader's view of another server, along with the thread sending it
+     * requests: votes while this server is a candidate, and entries, heartbeats
+     * and snapshots while it is the leader.
+     */
+    private class PeerState {
+        private final int id;
+        private final Peer peer;
+        // The fields below are guarded by the monitor of the RaftNode.
+        // The index of the next entry to send, and of the last entry known to be stored.
+        private long nextIndex = 1;
+        private long matchIndex = 0;
+        private boolean needsSnapshot = false;
+        private boolean voteRequested = false;
+        // When the last request was sent, and when to retry after a failure.
+        private long lastSent = 0;
+        private long retryAt = 0;
+        // When the last request acknowledged in the current term was sent.
+        private long acknowledgedAt = 0;
+        // Accessed only by the thread of the peer.
+        private boolean reachable = true;
+
+        PeerState(int id, Peer peer) {
+            this.id = id;
+            this.peer = peer;
+        }
+
+        /**
+         * How long to wait before sending the next request. Must hold the monitor.
+         * @param now   The current time.
+         * @return      The time in nanoseconds, 0 to send now, or -1 to wait until notified.
+         */
+        private long nanosUntilRequest(long now) {
+            if (retryAt - now > 0) return retryAt - now;
+            if (role == Role.CANDIDATE) {
+                return voteRequested ? -1 : 0;
+            } else if (role == Role.LEADER) {
+                if (needsSnapshot || nextIndex <= lastLogIndex()) return 0;
+                return Math.max(0, lastSent + TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatMillis()) - now);
+            }
+            return -1;
+        }
+
+        void run() {
+            try {
+                while (true) {
+                    RequestVoteRequest vote = null;
+                    AppendEntriesRequest append = null;
+                    long sent;
+                    synchronized (RaftNode.this) {
+                        long wait;
+                        while (!closed && (wait = nanosUntilRequest(System.nanoTime())) != 0) {
+                            if (wait < 0) {
+                                RaftNode.this.wait();
+                            } else {
+                                TimeUnit.NANOSECONDS.timedWait(RaftNode.this, wait);
+                            }
+                        }
+                        if (closed) return;
+                        lastSent = System.nanoTime();
+                        sent = lastSent;
+                        if (role == Role.CANDIDATE) {
+                            voteRequested = true;
+                            vote = RequestVoteRequest.newBuilder()
+                                    .setTerm(preVote ? currentTerm + 1 : currentTerm)
+                                    .setCandidate(RaftNode.this.id)
+                                    .setLastLogIndex(lastLogIndex())
+                                    .setLastLogTerm(lastLogTerm())
+                                    .setPreVote(preVote)
+                                    .build();
+                        } else if (!needsSnapshot && nextIndex - 1 >= snapshotIndex) {
+                            append = nextAppend();
+                        }
+                    }
+                    if (vote != null) {
+                        sendVote(vote, sent);
+                    } else if (append != null) {
+                        // The entries must be durable here before the server acknowledging
+                        // them can count towards a majority.
+                        if (append.getEntriesCount() == 0 || syncEntries()) {
+                            sendAppend(append, sent);
+                        } else {
+                            retryLater();
+                        }
+                    } else {
+                        sendSnapshot();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            }
+        }
+
+        /**
+         * Builds the request appending the entries from `nextIndex` on, or a
+         * heartbeat if there are none. Must hold the monitor.
+         * @return  The request.
+         */
+        private AppendEntriesRequest nextAppend() {
+            long prevIndex = nextIndex - 1;
+            AppendEntriesRequest.Builder request = AppendEntriesRequest.newBuilder()
+                    .setTerm(currentTerm)
+                    .setLeader(RaftNode.this.id)
+                    .setPrevLogIndex(prevIndex)
+                    .setPrevLogTerm(termAt(prevIndex))
+                    .setLeaderCommit(commitIndex);
+            int bytes = 0;
+            for (long index = nextIndex; index <= lastLogIndex(); index++) {
+                if (request.getEntriesCount() == MAX_BATCH_ENTRIES || bytes > MAX_BATCH_BYTES) break;
+                LogEntry entry = entries.get((int) (index - snapshotIndex - 1));
+                request.addEntries(entry);
+                bytes += entry.getOperation().size();
+            }
+            return request.build();
+        }
+
+        private void sendVote(RequestVoteRequest request, long sent) {
+            RequestVoteReply reply;
+            try {
+                reply = peer.requestVote(request);
+                reachable = true;
+            } catch (Exception e) {
+                failed(e);
+                synchronized (RaftNode.this) {
+                    voteRequested = false;
+                }
+                return;
+            }
+            synchronized (RaftNode.this) {
+                if (reply.getTerm() > currentTerm) {
+                    becomeFollower(reply.getTerm());
+                } else if (role == Role.CANDIDATE && preVote == request.getPreVote()
+                        && request.getTerm() == (preVote ? currentTerm + 1 : currentTerm) && reply.getVoteGranted()) {
+                    votes.add(id);
+                    if (!preVote) {
+                        acknowledgedAt = sent;
+                    }
+                    if (votes.size() > (peers.size() + 1) / 2) {
+                        if (preVote) {
+                            startElection();
+                        } else {
+                            becomeLeader();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void sendAppend(AppendEntriesRequest request, long sent) {
+            AppendEntriesReply reply;
+            try {
+                reply = peer.appendEntries(request);
+                reachable = true;
+            } catch (Exception e) {
+                failed(e);
+                return;
+            }
+            synchronized (RaftNode.this) {
+                if (reply.getTerm() > currentTerm) {
+                    becomeFollower(reply.getTerm());
+                } else if (role == Role.LEADER && currentTerm == request.getTerm()) {
+                    acknowledgedAt = Math.max(acknowledgedAt, sent);
+                    if (reply.getSuccess()) {
+                        matchIndex = Math.max(matchIndex, reply.getMatchIndex());
+                        nextIndex = matchIndex + 1;
+                        advanceCommitIndex();
+                    } else if (reply.getNeedsSnapshot()) {
+                        needsSnapshot = true;
+                    } else {
+                        nextIndex = Math.max(1, Math.min(nextIndex - 1, reply.getConflictIndex()));
+                    }
+                    RaftNode.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Sends the state of the leader, in chunks, replacing the state of the
+         * server along with the entries it is missing.
+         * @throws InterruptedException Thrown if closed while sending.
+         */
+        private void sendSnapshot() throws InterruptedException {
+            try (Snapshot snapshot = machine.takeSnapshot()) {
+                long term;
+                long lastIncludedTerm;
+                synchronized (RaftNode.this) {
+                    if (role != Role.LEADER) return;
+                    term = currentTerm;
+                    lastIncludedTerm = termAt(snapshot.index);
+                    if (snapshot.index < adoptedIndex || lastIncludedTerm < 0) {
+                        // The state machine has not yet been told that its state
+                        // reflects the log.
+                        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatMillis());
+                        return;
+                    }
+                }
+                Logging.logInfo("Sending snapshot at index " + snapshot.index + " to server " + id + ".");
+                InstallSnapshotRequest.Builder chunk = newChunk(term, snapshot.index, lastIncludedTerm).setReset(true);
+                int bytes = 0;
+                for (byte[] operation : snapshot.operations) {
+                    if (chunk.getOperationsCount() == MAX_BATCH_ENTRIES || bytes > MAX_BATCH_BYTES) {
+                        if (!sendChunk(chunk.build())) return;
+                        chunk = newChunk(term, snapshot.index, lastIncludedTerm);
+                        bytes = 0;
+                    }
+                    chunk.addOperations(ByteString.copyFrom(operation));
+                    bytes += operation.length;
+                }
+                if (!sendChunk(chunk.setDone(true).build())) return;
+                synchronized (RaftNode.this) {
+                    if (role == Role.LEADER && currentTerm == term) {
+                        needsSnapshot = false;
+                        matchIndex = Math.max(matchIndex, snapshot.index);
+                        nextIndex = snapshot.index + 1;
+                        advanceCommitIndex();
+                        RaftNode.this.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("IOException");
+                e.printStackTrace();
+            }
+        }
+
+        private InstallSnapshotRequest.Builder newChunk(long term, long index, long lastIncludedTerm) {
+            return InstallSnapshotRequest.newBuilder()
+                    .setTerm(term)
+                    .setLeader(RaftNode.this.id)
+                    .setLastIncludedIndex(index)
+                    .setLastIncludedTerm(lastIncludedTerm);
+        }
+
+        /**
+         * Sends a chunk of a snapshot.
+         * @param request   The chunk.
+         * @return          True if the chunk was installed.
+         */
+        private boolean sendChunk(InstallSnapshotRequest request) {
+            InstallSnapshotReply reply;
+            long sent = System.nanoTime();
+            try {
+                reply = peer.installSnapshot(request);
+                reachable = true;
+            } catch (Exception e) {
+                failed(e);
+                return false;
+            }
+            synchronized (RaftNode.this) {
+                if (reply.getTerm() > currentTerm) {
+                    becomeFollower(reply.getTerm());
+                    return false;
+                }
+                if (role != Role.LEADER || currentTerm != request.getTerm()) return false;
+                acknowledgedAt = Math.max(acknowledgedAt, sent);
+                return reply.getSuccess();
+            }
+        }
+
+        /**
+         * Waits a heartbeat before sending the server further requests.
+         * @param e The failure of the last request.
+         */
+        private void failed(Exception e) {
+            if (reachable) {
+                Logging.logInfo("Server " + id + " is unreachable: " + e.getMessage());
+                reachable = false;
+            }
+            retryLater();
+        }
+
+        // Waits a heartbeat before sending the server further requests.
+        private void retryLater() {
+            synchronized (RaftNode.this) {
+                retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatMillis());
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package messenger.grpc;
+
+/**
+ * Thrown when a change cannot be committed by a majority of the servers, as the
+ * server is not (or is no longer) the leader, or a majority did not respond in time.
+ * The change may still be committed later, by this or a new leader.
+ */
+public class ReplicationException extends RuntimeException {
+    public ReplicationException(String message) {
+        super(message);
+    }
+}
@@ -1,19 +1,47 @@
 package messenger.grpc;
 
-import messenger.network.Address;
 import messenger.util.Constants;
 import messenger.util.Logging;
+import messenger.util.MessageSpill;
+import messenger.util.Metrics;
+import messenger.util.QueueLimiter;
+import messenger.util.QueueLimiter.Admission;
+import messenger.util.QueueLimits;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+/**
+ * The state of the gRPC server, shared by the calls gRPC dispatches on its
+ * executor threads.
+ *
+ * The maps and sets are concurrent, and every operation on a user's state
+ * (their account, login status, subscription and messages) holds the lock of
+ * the stripe that user hashes to, as in the socket server's core. Operations on
+ * different users therefore rarely contend, while operations on the same user
+ * (e.g. a message being queued while the recipient logs out) are atomic.
+ *
+ * Changes to the accounts and undelivered messages are appended to the operation
+ * log while holding the stripe, and committed after releasing it. The log is the
+ * single writer of the persisted state: appends are serialized by the log, and
+ * committed by one sync shared by all the operations waiting on it.
+ */
 public class ServerCore {
     // Maintain a map of usernames to lists of sent messages
     private final Map<String, List<Message>> sentMessages;
@@ -21,123 +49,506 @@ public class ServerCore {
     // is monitored by client/username-specific threads
     private final Map<String, List<Message>> queuedMessagesMap;
 
-    // A map of usernames to their undelivered messages
-    private final Map<String, List<Message>> undeliveredMessages;
-    // All currently logged-in users
-    private final Map<String, Address> loggedInUsers;
-    /**
-     * Stores a map of connected IP addresses as well as ports. This allows
-     * the server to assign a unique port if the IP address is repeated
-     */
-    private final Map<String, List<Integer>> ipToPorts;
+    // The undelivered messages of each user, held off the heap.
+    private final MessageStore undeliveredMessages;
+    // All currently logged-in users, with the IP address they logged in from
+    private final Map<String, String> loggedInUsers;
+    // The logged-in users whose messages are being streamed to them by `subscribeAPI`.
+    private final Set<String> subscribers = ConcurrentHashMap.newKeySet();
+    // The messages acknowledged by each subscriber and not yet unqueued.
+    private final Map<String, Integer> acknowledgedMessages = new ConcurrentHashMap<>();
     // All created and not deleted accounts.
     private final Set<String> allAccounts;
 
-    // FileWriter to write to the all_users file
-    FileWriter usersWriter;
-    // FileWriter to write to the undelivered_messages file
-    FileWriter undeliveredMessagesWriter;
+    // Persists changes to `allAccounts`, `undeliveredMessages` and `queuedMessagesMap`.
+    private final OperationLog operationLog;
+    // Ensures only one snapshot is written at a time.
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    // Periodically writes snapshots, if the state is persisted.
+    private ScheduledExecutorService snapshotExecutor;
 
     // Keeps track of whether the current server is the primary
     private Boolean isPrimary = false;
 
+    // Replicates the operation log to the other servers, once started.
+    private volatile RaftNode raft;
+    private RaftConfig raftConfig;
+    // The index of the last Raft log entry the state reflects. Written while
+    // appending to the operation log, or while holding the lock of every stripe.
+    private volatile long raftIndex = 0;
+    // Notified as entries replicated from the leader are applied, waking reads
+    // waiting for the changes they must reflect.
+    private final Object appliedMonitor = new Object();
+    // Whether the operations being appended were replicated from the leader,
+    // so are not proposed. Only set while holding the lock of every stripe.
+    private boolean applyingReplicated = false;
+    // The sequence number, Raft index and term of the last operation each thread
+    // proposed, which the operation log appends on the appending thread. An index
+    // of 0 marks an operation which was not proposed.
+    private final ThreadLocal<long[]> lastProposal = new ThreadLocal<>();
+
     private final int offset;
 
+    // The default number of messages sent to a subscriber before waiting for their acknowledgement.
+    public static final int DEFAULT_DELIVERY_WINDOW = 64;
+
+    // The default number of undelivered messages in each page streamed to a user.
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    // How long a read waits for the server to apply the changes it must reflect.
+    public static final long READ_WAIT_MILLIS = 100;
+
+    /**
+     * Sends the pages of a user's undelivered messages to the user.
+     */
+    public interface PageSender {
+        /**
+         * Sends a page to the user, waiting while the user cannot accept more.
+         * @param page  The page to send.
+         * @throws InterruptedException Thrown if interrupted while waiting.
+         */
+        void send(GetUndeliveredMessagesReply page) throws InterruptedException;
+    }
+
+    /**
+     * Sends the messages of a subscription to its user.
+     */
+    public interface Subscriber {
+        /**
+         * Sends a message to the user, waiting while the user cannot accept more.
+         * @param message   The message to send.
+         * @throws InterruptedException Thrown if interrupted while waiting.
+         */
+        void deliver(Message message) throws InterruptedException;
+    }
+
+    // Must be a power of two.
+    private static final int NUM_STRIPES = 64;
+    // Each lock guards the state of the users hashing to it, and is held while
+    // appending changes to that state to the operation log. Snapshots hold all
+    // of them, so that they see the state at a single point in the log.
+    private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+    // Signalled when messages are queued for the recipient, or the recipient logs out.
+    // Each condition belongs to the stripe of its user.
+    private final Map<String, Condition> dispatchConditions = new ConcurrentHashMap<>();
+
+    private final Metrics metrics = new Metrics();
+    // Bounds the messages in `queuedMessagesMap` and `undeliveredMessages`.
+    private final QueueLimiter queueLimiter;
+    // Holds the messages beyond the limits, if spilling to disk.
+    private final MessageSpill<Message> spill;
+
     public ServerCore() {
-        sentMessages = new HashMap<>();
-        queuedMessagesMap = new HashMap<>();
-        undeliveredMessages = new HashMap<>();
-        loggedInUsers = new HashMap<>();
-        allAccounts = new HashSet<>();
-        ipToPorts = new HashMap<>();
+        this(QueueLimits.fromSystemProperties());
+    }
+
+    /**
+     * Create a ServerCore with the given limits on queued messages, which
+     * does not persist its accounts or messages.
+     * @param limits    The limits on the messages held for recipients.
+     */
+    public ServerCore(QueueLimits limits) {
+        queueLimiter = new QueueLimiter(limits, metrics);
+        spill = MessageSpill.temporary(Message.class);
+        metrics.gauge("queue.spilled", spill::getTotal);
+        sentMessages = new ConcurrentHashMap<>();
+        queuedMessagesMap = new ConcurrentHashMap<>();
+        undeliveredMessages = MessageStore.temporary(MessageStore.DEFAULT_SEGMENT_SIZE);
+        metrics.gauge("store.segments", undeliveredMessages::getSegmentCount);
+        metrics.gauge("subscriptions", this::getSubscriptionCount);
+        loggedInUsers = new ConcurrentHashMap<>();
+        allAccounts = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
         this.offset = 0;
+        operationLog = OperationLog.inMemory();
     }
 
     public ServerCore(int offset) {
-        sentMessages = new HashMap<>();
-        queuedMessagesMap = new HashMap<>();
-        undeliveredMessages = new HashMap<>();
-        loggedInUsers = new HashMap<>();
-        allAccounts = new HashSet<>();
-        ipToPorts = new HashMap<>();
+        queueLimiter = new QueueLimiter(QueueLimits.fromSystemProperties(), metrics);
+        // Spilled messages are kept next to the persisted undelivered messages.
+        spill = new MessageSpill<>(Path.of(Constants.getSpillDirectoryName(offset)), Message.class);
+        metrics.gauge("queue.spilled", spill::getTotal);
+        sentMessages = new ConcurrentHashMap<>();
+        queuedMessagesMap = new ConcurrentHashMap<>();
+        MessageStore store;
+        try {
+            store = MessageStore.open(Path.of(Constants.getMessageStoreDirectoryName(offset)));
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+            store = MessageStore.temporary(MessageStore.DEFAULT_SEGMENT_SIZE);
+        }
+        undeliveredMessages = store;
+        metrics.gauge("store.segments", undeliveredMessages::getSegmentCount);
+        metrics.gauge("subscriptions", this::getSubscriptionCount);
+        loggedInUsers = new ConcurrentHashMap<>();
+        allAccounts = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
         this.offset = offset;
 
-        // Create the initialization of the all users and undelivered messages files
+        // Accounts and messages persisted by earlier versions of the server,
+        // which rewrote these files on every change, are loaded first. Once a
+        // snapshot has been written, it holds them instead.
+        if (!OperationLog.hasSnapshot(offset)) {
+            loadLegacyFiles();
+        }
+
+        // Then the snapshot and the changes since are replayed from the operation log.
+        OperationLog log;
+        try {
+            log = OperationLog.open(offset, OperationLog.durabilityFromSystemProperties(),
+                    OperationLog.maxLatencyFromSystemProperties(), new Replayer());
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+            log = OperationLog.inMemory();
+        }
+        operationLog = log;
+        // The replayed queues hold the messages spilled before the restart.
+        int queued = 0;
+        for (Map.Entry<String, List<Message>> entry : queuedMessagesMap.entrySet()) {
+            queued += entry.getValue().size();
+            try {
+                spill.clear(queuedSpillKey(entry.getKey()));
+            } catch (IOException e) {
+                System.out.println("IOException");
+                e.printStackTrace();
+            }
+        }
+        // Restored messages count towards the limits, even if they exceed them.
+        queueLimiter.acquire((int) undeliveredMessages.getTotal() + queued);
+
+        long snapshotInterval = snapshotIntervalFromSystemProperties();
+        if (snapshotInterval > 0) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotExecutor.scheduleWithFixedDelay(this::snapshot, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Gets the lock guarding the state of the given user.
+     * @param username  The username
+     * @return          The lock of the stripe the user hashes to.
+     */
+    private ReentrantLock lockFor(String username) {
+        return stripes[stripeOf(username)];
+    }
+
+    /**
+     * Gets the index of the stripe the given user hashes to.
+     * @param username  The username
+     * @return          The index into `stripes`.
+     */
+    private int stripeOf(String username) {
+        int hash = username.hashCode();
+        return (hash ^ (hash >>> 16)) & (NUM_STRIPES - 1);
+    }
+
+    /**
+     * Gets the locks guarding the state of the given users, in stripe order,
+     * so that threads acquiring several of them cannot deadlock.
+     * @param usernames The usernames
+     * @return          The locks of the stripes the users hash to.
+     */
+    private List<ReentrantLock> locksFor(Collection<String> usernames) {
+        SortedSet<Integer> stripeIndices = new TreeSet<>();
+        for (String username : usernames) {
+            stripeIndices.add(stripeOf(username));
+        }
+        List<ReentrantLock> locks = new ArrayList<>(stripeIndices.size());
+        for (int index : stripeIndices) {
+            locks.add(stripes[index]);
+        }
+        return locks;
+    }
+
+    /**
+     * Reads the interval at which persistent servers should snapshot their state
+     * from the `messenger.snapshot.interval` system property.
+     * @return  The interval in seconds, or 0 if snapshots should not be written periodically.
+     */
+    public static long snapshotIntervalFromSystemProperties() {
+        return Long.getLong("messenger.snapshot.interval", 60);
+    }
+
+    /**
+     * Loads the accounts and undelivered messages from the JSON files written
+     * by earlier versions of the server, if they exist.
+     */
+    private void loadLegacyFiles() {
         try {
+            Gson gson = new Gson();
             File allUsersFile = new File(Constants.getUsersFileName(offset));
-            // Creates file if doesn't exist
-            allUsersFile.createNewFile();
+            if (allUsersFile.exists()) {
+                BufferedReader usersReader = new BufferedReader(new FileReader(allUsersFile));
+                String userList = usersReader.readLine();
+                usersReader.close();
+                if (userList != null) {
+                    this.allAccounts.addAll(gson.fromJson(userList, new TypeToken<HashSet<String>>(){}.getType()));
+                }
+            }
             File undeliveredMsgsFile = new File(Constants.getUndeliveredFileName(offset));
-            // Creates file if doesn't exist
-            undeliveredMsgsFile.createNewFile();
+            if (undeliveredMsgsFile.exists()) {
+                BufferedReader undeliveredMessagesReader = new BufferedReader(new FileReader(undeliveredMsgsFile));
+                String undeliveredMsgList = undeliveredMessagesReader.readLine();
+                undeliveredMessagesReader.close();
+                if (undeliveredMsgList != null) {
+                    Map<String, List<Message>> messages = gson.fromJson(undeliveredMsgList,
+                            new TypeToken<HashMap<String, List<Message>>>(){}.getType());
+                    for (List<Message> queue : messages.values()) {
+                        for (Message message : queue) {
+                            undeliveredMessages.append(message);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        }
+    }
 
-            BufferedReader usersReader = new BufferedReader(new FileReader(allUsersFile));
-            BufferedReader undeliveredMessagesReader = new BufferedReader(new FileReader(undeliveredMsgsFile));
-            Gson gson = new Gson();
-            String userList = usersReader.readLine();
-            String undeliveredMsgList = undeliveredMessagesReader.readLine();
-
-            if (userList == null) {
-                usersWriter = new FileWriter(Constants.getUsersFileName(offset), false);
-                String jsonAccts = gson.toJson(allAccounts);
-                usersWriter.write(jsonAccts);
-                usersWriter.close();
-            } else {
-                // Add existing accounts in all_users to allAccounts (the list of accounts that exist)
-                this.allAccounts.addAll(gson.fromJson(userList, new TypeToken<HashSet<String>>(){}.getType()));
-            }
-            
-            if (undeliveredMsgList == null) {
-                usersWriter = new FileWriter(Constants.getUndeliveredFileName(offset), false);
-                String jsonMsgs = gson.toJson(undeliveredMessages);
-                usersWriter.write(jsonMsgs);
-                usersWriter.close();
+    /**
+     * Applies the operations replayed from the log to the state of the server.
+     * The operations have already been admitted, so the limits are not applied.
+     */
+    private class Replayer implements OperationLog.Handler {
+        @Override
+        public void createUser(String username) {
+            allAccounts.add(username);
+        }
+
+        @Override
+        public void deleteUser(String username) {
+            allAccounts.remove(username);
+            queuedMessagesMap.remove(username);
+        }
+
+        @Override
+        public void enqueue(Message message) throws IOException {
+            undeliveredMessages.append(message);
+        }
+
+        @Override
+        public void dropOldest(String username) {
+            undeliveredMessages.removeOldest(username);
+        }
+
+        @Override
+        public void drain(String username) {
+            undeliveredMessages.remove(username);
+        }
+
+        @Override
+        public void removeOldest(String username, int count) {
+            undeliveredMessages.removeOldest(username, count);
+        }
+
+        @Override
+        public void queue(Message message) {
+            queuedMessagesMap.computeIfAbsent(message.getRecipient(), key -> new ArrayList<>()).add(message);
+        }
+
+        @Override
+        public void unqueue(String username, int count) throws IOException {
+            removeOldestQueued(username, count);
+        }
+    }
+
+    /**
+     * Applies the operations replicated from the leader to the state of the
+     * server, appending them to its own operation log, so that the follower
+     * recovers the replicated state on restart. Must hold the lock of every stripe.
+     */
+    private class Applier implements OperationLog.Handler {
+        // The sequence number of the last record appended, or 0 if none was.
+        private long sequence = 0;
+
+        @Override
+        public void createUser(String username) throws IOException {
+            allAccounts.add(username);
+            sequence = operationLog.createUser(username);
+        }
+
+        @Override
+        public void deleteUser(String username) throws IOException {
+            allAccounts.remove(username);
+            discardQueuedMessages(username);
+            sequence = operationLog.deleteUser(username);
+        }
+
+        @Override
+        public void enqueue(Message message) throws IOException {
+            undeliveredMessages.append(message);
+            // Admitted by the leader, so counted even if beyond the limits.
+            queueLimiter.acquire(1);
+            sequence = operationLog.enqueue(message);
+        }
+
+        @Override
+        public void dropOldest(String username) throws IOException {
+            queueLimiter.release(undeliveredMessages.removeOldest(username, 1));
+            sequence = operationLog.dropOldest(username);
+        }
+
+        @Override
+        public void drain(String username) throws IOException {
+            sequence = drainUndeliveredMessages(username);
+        }
+
+        @Override
+        public void removeOldest(String username, int count) throws IOException {
+            queueLimiter.release(undeliveredMessages.removeOldest(username, count));
+            sequence = operationLog.removeOldest(username, count);
+        }
+
+        @Override
+        public void queue(Message message) throws IOException {
+            String spillKey = queuedSpillKey(message.getRecipient());
+            if (spill.size(spillKey) > 0) {
+                // Queued behind the messages this server spilled while it was the leader.
+                spill.append(spillKey, message);
             } else {
-                // Add existing accounts in all_users to allAccounts (the list of accounts that exist)
-                this.undeliveredMessages.putAll(gson.fromJson(undeliveredMsgList, new TypeToken<HashMap<String, List<Message>>>(){}.getType()));
+                queuedMessagesMap.computeIfAbsent(message.getRecipient(), key -> new ArrayList<>()).add(message);
+                queueLimiter.acquire(1);
             }
-            
-            
+            sequence = operationLog.queue(message);
+        }
+
+        @Override
+        public void unqueue(String username, int count) throws IOException {
+            queueLimiter.release(removeOldestQueued(username, count));
+            sequence = operationLog.unqueue(username, count);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the accounts and undelivered messages, which replaces
+     * the operation log up to this point. The state is copied while holding the
+     * lock of every stripe, but the snapshot is written after releasing them, so
+     * sending messages is only blocked while the accounts and the index of the
+     * undelivered messages are copied. Does nothing if nothing has
+     * changed since the last snapshot.
+     */
+    public void snapshot() {
+        MessageStore.View messages = null;
+        snapshotLock.lock();
+        try {
+            long generation;
+            Set<String> accounts;
+            List<Message> queued;
+            long[] applied;
+            List<ReentrantLock> locks = Arrays.asList(stripes);
+            locks.forEach(ReentrantLock::lock);
+            try {
+                if (!operationLog.hasRecords()) return;
+                queued = copyQueuedMessages();
+                applied = operationLog.getAppliedEntry();
+                generation = operationLog.rotate();
+                accounts = new HashSet<>(allAccounts);
+                messages = undeliveredMessages.view();
+            } finally {
+                locks.forEach(ReentrantLock::unlock);
+            }
+
+            operationLog.writeSnapshot(generation, accounts, messages, queued, applied);
+            // The snapshot now holds the state loaded from the legacy files.
+            Files.deleteIfExists(Path.of(Constants.getUsersFileName(offset)));
+            Files.deleteIfExists(Path.of(Constants.getUndeliveredFileName(offset)));
+            Logging.logInfo(String.format("Wrote snapshot of %d accounts and %d undelivered messages.",
+                    accounts.size(), messages.size()));
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        } finally {
+            if (messages != null) {
+                messages.close();
+            }
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Stops writing snapshots and closes the operation log. The ServerCore
+     * should not be used afterwards.
+     */
+    public void close() {
+        if (raft != null) {
+            raft.close();
+        }
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+        }
+        snapshotLock.lock();
+        try {
+            undeliveredMessages.close();
+            operationLog.close();
         } catch (IOException e) {
             System.out.println("IOException");
             e.printStackTrace();
+        } finally {
+            snapshotLock.unlock();
         }
     }
 
     /**
-     * Method to add a user to the list of all users and update the file storing all users
+     * Method to add a user to the list of all users and log the creation of the user
      * @param username the username
+     * @return False if the user already exists
      */
-    public void addUser(String username) {
+    public Boolean addUser(String username) {
+        long sequence = 0;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
         try {
-            usersWriter = new FileWriter(Constants.getUsersFileName(offset), false);
-            allAccounts.add(username);
-            Gson gson = new Gson();
-            String json = gson.toJson(allAccounts);
-            usersWriter.write(json);
-            usersWriter.close();
+            if (allAccounts.contains(username)) {
+                return false;
+            }
+            // Logged first, so that a read which sees the account also sees its Raft index.
+            try {
+                sequence = operationLog.createUser(username);
+            } finally {
+                allAccounts.add(username);
+            }
         } catch (IOException e) {
             System.out.println("IOException");
             e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
+        commitOperationLog(sequence);
+        return true;
     }
 
     /**
-     * Method to delete a user from the list of all users and update the file storing all users
+     * Method to delete a user from the list of all users and log the deletion of the user
      * @param username the username
      */
     public void deleteUser(String username) {
+        long sequence = 0;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
         try {
-            usersWriter = new FileWriter(Constants.getUsersFileName(offset), false);
-            allAccounts.remove(username);
-            Gson gson = new Gson();
-            String json = gson.toJson(allAccounts);
-            usersWriter.write(json);
-            usersWriter.close();
+            try {
+                sequence = operationLog.deleteUser(username);
+            } finally {
+                allAccounts.remove(username);
+            }
         } catch (IOException e) {
             System.out.println("IOException");
             e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
+        commitOperationLog(sequence);
     }
 
     /**
@@ -149,21 +560,96 @@ public class ServerCore {
     }
 
     /**
-     * Method to remove a message from the map of all undelivered messages and update the file storing all undelivered messages
+     * Method to remove the messages of a user from the map of all undelivered messages and log their removal
      * @param username the username
      */
     public void removeUndeliveredMessage(String username) {
+        long sequence = 0;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
         try {
-            undeliveredMessagesWriter = new FileWriter(Constants.getUndeliveredFileName(offset), false);
-            undeliveredMessages.remove(username);
-            Gson gson = new Gson();
-            String json = gson.toJson(undeliveredMessages);
-            undeliveredMessagesWriter.write(json);
-            undeliveredMessagesWriter.close();
+            sequence = drainUndeliveredMessages(username);
         } catch (IOException e) {
             System.out.println("IOException");
             e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
+        commitOperationLog(sequence);
+    }
+
+    /**
+     * Removes the undelivered messages of a user and appends their removal to
+     * the operation log, without committing it. Must hold the lock of the user.
+     * @param username  the username
+     * @return          the sequence number of the record appended
+     * @throws IOException  Thrown if the removal cannot be appended to the log.
+     */
+    private long drainUndeliveredMessages(String username) throws IOException {
+        queueLimiter.release(undeliveredMessages.remove(username));
+        long sequence = operationLog.drain(username);
+        spill.clear(undeliveredSpillKey(username));
+        return sequence;
+    }
+
+    /**
+     * Discards the messages queued for a user, including those spilled to disk,
+     * making room for other messages. Must hold the lock of the user.
+     * @param username  the username
+     */
+    private void discardQueuedMessages(String username) {
+        List<Message> queued = queuedMessagesMap.remove(username);
+        if (queued != null) {
+            queueLimiter.release(queued.size());
+        }
+        try {
+            spill.clear(queuedSpillKey(username));
+        } catch (IOException e) {
+            Logging.logInfo("Failed to discard spilled messages for " + username + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the oldest messages queued for a user, taking any beyond those in
+     * memory from the messages spilled to disk. Must hold the lock of the user.
+     * @param username  the username
+     * @param count     the number of messages to remove
+     * @return          the number of messages removed from memory
+     * @throws IOException  Thrown if the spilled messages cannot be removed.
+     */
+    private int removeOldestQueued(String username, int count) throws IOException {
+        List<Message> queued = queuedMessagesMap.get(username);
+        int removed = queued != null ? Math.min(count, queued.size()) : 0;
+        if (queued != null) {
+            queued.subList(0, removed).clear();
+            if (queued.isEmpty()) {
+                queuedMessagesMap.remove(username);
+            }
+        }
+        if (removed < count && spill.size(queuedSpillKey(username)) > 0) {
+            spill.take(queuedSpillKey(username), count - removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Copies the messages queued for every user, including those spilled to
+     * disk, with each user's messages oldest first. Must hold the lock of every stripe.
+     * @return  the messages
+     * @throws IOException  Thrown if the spilled messages cannot be read.
+     */
+    private List<Message> copyQueuedMessages() throws IOException {
+        List<Message> queued = new ArrayList<>();
+        for (String username : allAccounts) {
+            List<Message> messages = queuedMessagesMap.get(username);
+            if (messages != null) {
+                queued.addAll(messages);
+            }
+            if (spill.size(queuedSpillKey(username)) > 0) {
+                queued.addAll(spill.peek(queuedSpillKey(username)));
+            }
+        }
+        return queued;
     }
 
     /**
@@ -171,38 +657,131 @@ public class ServerCore {
      * @param username the username
      */
     public Boolean undeliveredMessageContainsKey(String username) {
-        return undeliveredMessages.containsKey(username);
+        return undeliveredMessages.size(username) > 0;
     }
 
     /**
-     * Method to get undelivered messages for a specified username from the map of all undelivered messages
+     * Method to read the undelivered messages for a specified username from the store of all undelivered messages
      * @param username the username
      */
     public List<Message> getUndeliveredMessages(String username) {
-        List<Message> messages;
-        messages = undeliveredMessages.get(username);
-        return messages;
+        return undeliveredMessages.get(username);
     }
 
     /**
-     * Method to get the undelivered messages map
+     * Method to read a copy of all undelivered messages, by recipient
      */
     public Map<String, List<Message>> getUndeliveredMessagesMap() {
-        return undeliveredMessages;
+        return undeliveredMessages.toMap();
     }
 
     /**
-     * Method to add a message to the map of all undelivered messages and update the file storing all undelivered messages
+     * Method to add a message to the map of all undelivered messages and log the message
      * @param message the message
+     * @return False if the message was rejected, since the recipient's queue is full
      */
-    public void addUndeliveredMessage(Message message) {
+    public Boolean addUndeliveredMessage(Message message) {
+        long sequence;
+        ReentrantLock lock = lockFor(message.getRecipient());
+        lock.lock();
         try {
-            addMessageToList(undeliveredMessages, message);
-            undeliveredMessagesWriter = new FileWriter(Constants.getUndeliveredFileName(offset), false);
-            Gson gson = new Gson();
-            String json = gson.toJson(undeliveredMessages);
-            undeliveredMessagesWriter.write(json);
-            undeliveredMessagesWriter.close();
+            Admission admission = addMessageToStore(message);
+            if (admission == Admission.REJECT) {
+                return false;
+            }
+            sequence = logUndeliveredMessage(message, admission);
+        } finally {
+            lock.unlock();
+        }
+        commitOperationLog(sequence);
+        return true;
+    }
+
+    /**
+     * Appends a message added to the map of undelivered messages to the
+     * operation log, without committing it.
+     * @param message   the message
+     * @param admission how the message was added
+     * @return          the sequence number of the last record appended, or 0 if none was
+     */
+    private long logUndeliveredMessage(Message message, Admission admission) {
+        long sequence = 0;
+        try {
+            if (admission == Admission.DROP_OLDEST) {
+                sequence = operationLog.dropOldest(message.getRecipient());
+            }
+            // Spilled messages are persisted by the spill itself.
+            if (admission != Admission.SPILL) {
+                sequence = operationLog.enqueue(message);
+            }
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        }
+        return sequence;
+    }
+
+    /**
+     * Appends a message added to the queue of a logged in recipient to the
+     * operation log, without committing it.
+     * @param message   the message
+     * @param admission how the message was added
+     * @return          the sequence number of the last record appended, or 0 if none was
+     */
+    private long logQueuedMessage(Message message, Admission admission) {
+        long sequence = 0;
+        try {
+            if (admission == Admission.DROP_OLDEST) {
+                operationLog.unqueue(message.getRecipient(), 1);
+            }
+            sequence = operationLog.queue(message);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        }
+        return sequence;
+    }
+
+    /**
+     * Waits until the operations appended to the operation log, up to the
+     * given one, are durable, so that they are not lost if the server crashes
+     * after replying. Once Raft is started, also waits (up to the commit timeout)
+     * for a majority of the servers to store them, so that they are not lost if
+     * the leader fails. Should not hold the lock of any stripe, so that other
+     * operations on its users can proceed and join the same sync.
+     * @param sequence  the sequence number of the last operation to wait for
+     * @throws ReplicationException Thrown if the operations were not committed by a majority.
+     */
+    private void commitOperationLog(long sequence) {
+        syncOperationLog(sequence);
+        RaftNode raft = this.raft;
+        if (raft == null || sequence <= 0) return;
+
+        // The operation's own records were proposed by this thread, the last of
+        // them last. Raft commits entries in order, so once it is committed in
+        // its term, so are the records before it.
+        long[] proposal = lastProposal.get();
+        boolean committed = false;
+        if (proposal != null && proposal[0] >= sequence && proposal[1] > 0) {
+            try {
+                committed = raft.awaitCommit(proposal[1], proposal[2], raftConfig.getCommitTimeoutMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!committed) {
+            throw new ReplicationException("Not committed by a majority of the servers.");
+        }
+    }
+
+    /**
+     * Waits until the operations appended to the operation log, up to the
+     * given one, are durable.
+     * @param sequence  the sequence number of the last operation to wait for
+     */
+    private void syncOperationLog(long sequence) {
+        try {
+            operationLog.commit(sequence);
         } catch (IOException e) {
             System.out.println("IOException");
             e.printStackTrace();
@@ -213,103 +792,95 @@ public class ServerCore {
         this.isPrimary = isPrimary;
     }
 
+    /**
+     * Whether this server accepts changes, i.e. once Raft is started, whether it
+     * is the leader and has applied the changes committed by earlier leaders.
+     * @return  True if the primary.
+     */
     public Boolean isPrimary() {
-        return isPrimary;
-    }
-
-    /**
-     * Returns the next port to assign to a user, assuming
-     * the other ports in the list have been assigned. This
-     * method assumes incoming list is sorted. Thus, this method
-     * just needs to find the first "gap" in the list of ports.
-     * @param assignedPorts The list of ports to check
-     * @return              The next unassigned port.
-     */
-    private int nextPortInList(List<Integer> assignedPorts) {
-        int port = Constants.MESSAGE_PORT;
-        ListIterator<Integer> it = assignedPorts.listIterator();
-        while (it.hasNext()) {
-            Integer currPort = it.next();
-            if (currPort <= port) {
-                // If the next port in the list is smaller than
-                // the current port we're attempting to add, then
-                // we should move further down the list.
-                port++;
-            } else {
-                // Otherwise, insert before the current element.
-                it.previous();
-                break;
+        RaftNode raft = this.raft;
+        return raft != null ? raft.isReady() : isPrimary;
+    }
+
+    /**
+     * Removes the given user from the logged in users, which ends
+     * their subscription.
+     * @param username  The username to log out.
+     */
+    private void removeUserConnection(String username) {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (loggedInUsers.remove(username) != null) {
+                signalDispatcher(username);
             }
+        } finally {
+            lock.unlock();
         }
-        it.add(port);
-        return port;
     }
 
     /**
-     * Returns the next available port on the IP Address
-     * @param ipAddress The ip address to check
-     * @return          Next available port, starting from Constants.MESSAGE_PORT
+     * Logs out every user, ending all subscriptions. Used as the server stops, so
+     * that the open Subscribe calls are completed rather than left to time out.
      */
-    private int assignPort(String ipAddress) {
-        List<Integer> ports;
-        if (ipToPorts.containsKey(ipAddress)) {
-            ports = ipToPorts.get(ipAddress);
-        } else {
-            ports = new ArrayList<>();
-            ipToPorts.put(ipAddress, ports);
+    public void logOutAllUsers() {
+        for (String username : loggedInUsers.keySet()) {
+            removeUserConnection(username);
         }
-        return nextPortInList(ports);
     }
 
     /**
-     * Removes the given user from the logged in users by removing
-     * their stored connection information (ip address and port). This
-     * also frees up the port for future connections on the same port.
-     * @param username  The username to log out.
+     * Returns the number of open subscriptions, each of which holds a delivery
+     * thread and a call streaming to its client.
+     * @return  The number of subscribed users.
      */
-    private void removeUserConnection(String username) {
-        if (!loggedInUsers.containsKey(username)) return;
-        Address address = loggedInUsers.remove(username);
-        List<Integer> ports = ipToPorts.get(address.getIpAddress());
-        ports.remove((Integer) address.getPort());
-        if (ports.size() == 0) {
-            // If the size of the ports list is 0 after
-            // removing this port, remove the IP address from
-            // the list
-            ipToPorts.remove(address.getIpAddress());
+    public int getSubscriptionCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Wakes up the subscription of the given user, since either messages have
+     * been queued for the user, the user has acknowledged messages, or the user
+     * has logged out. Must hold the lock of the user.
+     * @param username  The username
+     */
+    private void signalDispatcher(String username) {
+        Condition condition = dispatchConditions.get(username);
+        if (condition != null) {
+            condition.signalAll();
         }
     }
 
     /**
-     * Logs in a user by adding them to loggedInUsers
-     * as well as creating an entry in idToUserMap, with a
-     * generated connection id.
+     * Logs in a user by adding them to loggedInUsers. Messages
+     * are delivered to the user once they subscribe.
      * @param username      The username of user
      * @param ipAddress     The ip address of the user
      * @return              A LoginReply indicating status of the login request.
      */
     private LoginReply logInUser(String username, String ipAddress) {
         String message;
-        if (!allAccounts.contains(username)) {
-            message = "User " + username + " does not exist and cannot be logged in.";
-            return LoginReply.newBuilder()
-                    .setStatus(Status.newBuilder().setSuccess(false).setMessage(message).build())
-                    .build();
-        } else if (isLoggedIn(username)) {
-            message = "User " + username + " is already logged in.";
-            return LoginReply.newBuilder()
-                    .setStatus(Status.newBuilder().setSuccess(false).setMessage(message).build())
-                    .build();
-        } else {
-            int port = assignPort(ipAddress);
-            Logging.logInfo(String.format("Assigning port %d to user %s.", port, username));
-            loggedInUsers.put(username, new Address(ipAddress, port));
-            message = "User " + username + " logged in successfully";
-            return LoginReply.newBuilder()
-                    .setReceiverPort(port)
-                    .setStatus(Status.newBuilder().setSuccess(true).setMessage(message).build())
-                    .build();
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (!allAccounts.contains(username)) {
+                message = "User " + username + " does not exist and cannot be logged in.";
+                return LoginReply.newBuilder()
+                        .setStatus(Status.newBuilder().setSuccess(false).setMessage(message).build())
+                        .build();
+            } else if (loggedInUsers.putIfAbsent(username, ipAddress) != null) {
+                message = "User " + username + " is already logged in.";
+                return LoginReply.newBuilder()
+                        .setStatus(Status.newBuilder().setSuccess(false).setMessage(message).build())
+                        .build();
+            }
+        } finally {
+            lock.unlock();
         }
+        message = "User " + username + " logged in successfully";
+        return LoginReply.newBuilder()
+                .setStatus(Status.newBuilder().setSuccess(true).setMessage(message).build())
+                .build();
     }
 
     /**
@@ -320,15 +891,46 @@ public class ServerCore {
         return allAccounts;
     }
 
+    /**
+     * Get the metrics of the server, such as the number of queued messages.
+     * @return  The metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Queue message for delivery (whether immediately or later
-     * if the user is not logged in).
+     * if the user is not logged in), unless the recipient's queue is full.
+     * Must hold the lock of the recipient.
      *
      * @param message   Message to be queued.
+     * @return          How the message was queued, or REJECT if it was rejected.
      */
-    private void addMessageToList(Map<String, List<Message>> listToAdd, Message message) {
+    private Admission addMessageToList(Map<String, List<Message>> listToAdd, Message message) {
         List<Message> messageList;
         String recipient = message.getRecipient();
+        String spillKey = queuedSpillKey(recipient);
+        int depth = listToAdd.containsKey(recipient) ? listToAdd.get(recipient).size() : 0;
+        Admission admission = queueLimiter.admit(depth, spill.size(spillKey) > 0);
+        switch (admission) {
+            case REJECT:
+                return admission;
+            case SPILL:
+                try {
+                    spill.append(spillKey, message);
+                    return admission;
+                } catch (IOException e) {
+                    Logging.logInfo("Failed to spill message for " + recipient + ": " + e.getMessage());
+                    queueLimiter.reject();
+                    return Admission.REJECT;
+                }
+            case DROP_OLDEST:
+                listToAdd.get(recipient).remove(0);
+                break;
+            default:
+                break;
+        }
         if (listToAdd.containsKey(recipient)) {
             messageList = listToAdd.get(recipient);
         } else {
@@ -336,6 +938,85 @@ public class ServerCore {
             listToAdd.put(recipient, messageList);
         }
         messageList.add(message);
+        return admission;
+    }
+
+    /**
+     * Add a message to the store of undelivered messages, unless the
+     * recipient's queue is full. Must hold the lock of the recipient.
+     * @param message   Message to be added.
+     * @return          How the message was added, or REJECT if it was rejected.
+     */
+    private Admission addMessageToStore(Message message) {
+        String recipient = message.getRecipient();
+        String spillKey = undeliveredSpillKey(recipient);
+        Admission admission = queueLimiter.admit(undeliveredMessages.size(recipient), spill.size(spillKey) > 0);
+        try {
+            switch (admission) {
+                case REJECT:
+                    return admission;
+                case SPILL:
+                    spill.append(spillKey, message);
+                    return admission;
+                case DROP_OLDEST:
+                    undeliveredMessages.removeOldest(recipient);
+                    break;
+                default:
+                    break;
+            }
+            undeliveredMessages.append(message);
+            return admission;
+        } catch (IOException e) {
+            Logging.logInfo("Failed to store message for " + recipient + ": " + e.getMessage());
+            // The message, or the oldest message it replaced, no longer counts towards the limits.
+            if (admission != Admission.SPILL) queueLimiter.release(1);
+            queueLimiter.reject();
+            return Admission.REJECT;
+        }
+    }
+
+    /**
+     * Moves spilled messages back into the queue of a recipient, as far as the
+     * limits allow.
+     * @param listToAdd The map holding the queue.
+     * @param username  The recipient.
+     * @return          The number of messages moved into the queue.
+     */
+    private int refillFromSpill(Map<String, List<Message>> listToAdd, String username) {
+        String spillKey = queuedSpillKey(username);
+        int spilled = spill.size(spillKey);
+        if (spilled == 0) return 0;
+        int depth = listToAdd.containsKey(username) ? listToAdd.get(username).size() : 0;
+        int room = queueLimiter.reserveRoom(depth, spilled);
+        if (room == 0) return 0;
+        try {
+            List<Message> restored = spill.take(spillKey, room);
+            queueLimiter.release(room - restored.size());
+            listToAdd.computeIfAbsent(username, key -> new ArrayList<>()).addAll(restored);
+            return restored.size();
+        } catch (IOException e) {
+            queueLimiter.release(room);
+            Logging.logInfo("Failed to read spilled messages for " + username + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * The name of the spilled queue of a recipient.
+     * @param username  The recipient.
+     * @return          The name of the queue.
+     */
+    private String queuedSpillKey(String username) {
+        return "queued:" + username;
+    }
+
+    /**
+     * The name of the spilled undelivered messages of a recipient.
+     * @param username  The recipient.
+     * @return          The name of the queue.
+     */
+    private String undeliveredSpillKey(String username) {
+        return "undelivered:" + username;
     }
 
     /**
@@ -344,31 +1025,90 @@ public class ServerCore {
      * @return Optionally return the list of queued messages
      */
     public Optional<List<Message>> getQueuedMessages(String username) {
-        if (queuedMessagesMap.containsKey(username)) {
-            return Optional.of(queuedMessagesMap.get(username));
-        } else {
-            return Optional.empty();
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            refillFromSpill(queuedMessagesMap, username);
+            if (queuedMessagesMap.containsKey(username)) {
+                return Optional.of(new ArrayList<>(queuedMessagesMap.get(username)));
+            } else {
+                return Optional.empty();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Unqueue the messages for a particular user, specified by the username
-     * @param username The username
+     * Blocks until messages are queued for a particular user, or until the user
+     * is logged out. The messages remain queued until they are passed to
+     * `unqueueMessages`.
+     * @param username  The username
+     * @return          A copy of the queued messages, or empty if the user is not logged in.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting.
      */
-    public void unqueueMessages(String username) {
-        List<Message> messageList;
-
-        if (sentMessages.containsKey(username)) {
-            messageList = sentMessages.get(username);
-        } else {
-            messageList = new ArrayList<Message>();
-            sentMessages.put(username, messageList);
+    public Optional<List<Message>> awaitQueuedMessages(String username) throws InterruptedException {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Condition condition = dispatchConditions.computeIfAbsent(username, key -> lock.newCondition());
+            refillFromSpill(queuedMessagesMap, username);
+            while (loggedInUsers.containsKey(username) && !queuedMessagesMap.containsKey(username)) {
+                condition.await();
+                refillFromSpill(queuedMessagesMap, username);
+            }
+            if (!loggedInUsers.containsKey(username)) {
+                return Optional.empty();
+            }
+            return getQueuedMessages(username);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        Optional<List<Message>> queuedMessages = getQueuedMessages(username);
-        if (queuedMessages.isPresent()) {
-            messageList.addAll(queuedMessages.get());
-            queuedMessagesMap.remove(username);
+    /**
+     * Unqueue the delivered messages for a particular user, specified by the username.
+     * Messages queued after `delivered` was fetched remain queued. Their removal is
+     * appended to the operation log without waiting for it to be committed, since
+     * losing it only causes the messages to be delivered again.
+     * @param username  The username
+     * @param delivered The messages which have been delivered, as previously
+     *                  returned by `getQueuedMessages`.
+     */
+    public void unqueueMessages(String username, List<Message> delivered) {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            List<Message> messageList;
+
+            messageList = sentMessages.computeIfAbsent(username, key -> new ArrayList<>());
+
+            List<Message> queuedMessages = queuedMessagesMap.get(username);
+            if (queuedMessages != null) {
+                // Messages are only ever appended, and only the oldest are
+                // dropped, so the delivered messages which are still queued
+                // are always at the front of the queue.
+                int count = 0;
+                for (Message message : delivered) {
+                    if (count < queuedMessages.size() && queuedMessages.get(count) == message) count++;
+                }
+                List<Message> deliveredMessages = queuedMessages.subList(0, count);
+                messageList.addAll(deliveredMessages);
+                deliveredMessages.clear();
+                queueLimiter.release(count);
+                if (queuedMessages.isEmpty()) {
+                    queuedMessagesMap.remove(username);
+                }
+                if (count > 0) {
+                    operationLog.unqueue(username, count);
+                }
+            }
+            refillFromSpill(queuedMessagesMap, username);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -381,18 +1121,301 @@ public class ServerCore {
         return loggedInUsers.containsKey(username);
     }
 
+    /**
+     * Starts taking part in the Raft protocol with the other servers, so that
+     * one is elected the leader, and every change it makes is replicated to the
+     * others. Changes are then only made by the leader.
+     * @param id        The offset of this server.
+     * @param peers     The other servers, by offset.
+     * @param stateFile The file persisting the current term and vote, or null.
+     *                  The Raft log is persisted alongside it.
+     * @param config    The timing of the protocol.
+     * @throws IOException  Thrown if the persisted term, vote or log cannot be read.
+     */
+    public void startRaft(int id, Map<Integer, RaftNode.Peer> peers, Path stateFile, RaftConfig config)
+            throws IOException {
+        raftConfig = config;
+        raft = new RaftNode(id, peers, new RaftStateMachine(), stateFile, config, metrics);
+        // The entries after the one the persisted state reflects are applied once committed.
+        setApplied(raft.getLastApplied());
+        operationLog.setListener(this::proposeOperation);
+        raft.start();
+        Logging.logInfo(String.format("Started Raft with %d peers, %s.", peers.size(), config));
+    }
+
+    /**
+     * Get the primary, to which calls this server does not serve are redirected.
+     * @return  The offset of the primary, or -1 if not known.
+     */
+    public int getLeaderId() {
+        RaftNode raft = this.raft;
+        return raft != null ? raft.getLeaderId() : -1;
+    }
+
+    /**
+     * Get the sequence number of the last change this server has applied,
+     * which is the index of its Raft log entry, or 0 if Raft is not started.
+     * @return  The sequence number.
+     */
+    public long getAppliedSequence() {
+        return raftIndex;
+    }
+
+    /**
+     * Waits until this server has applied the changes up to a sequence number.
+     * @param sequence      The sequence number, from `getAppliedSequence`.
+     * @param timeoutMillis How long to wait.
+     * @return              True if the changes were applied in time.
+     */
+    private boolean awaitApplied(long sequence, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (appliedMonitor) {
+            while (raftIndex < sequence) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(appliedMonitor, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the changes up to a Raft index are committed, as the leader
+     * applies changes before they are.
+     * @param raft      The node taking part in the Raft protocol.
+     * @param index     The index.
+     * @return          True if committed in time.
+     */
+    private boolean awaitCommitted(RaftNode raft, long index) {
+        try {
+            return raft.awaitCommitted(index, READ_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Notes that the changes up to a Raft index were applied.
+     * @param index The index.
+     */
+    private void setApplied(long index) {
+        synchronized (appliedMonitor) {
+            raftIndex = index;
+            appliedMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Get the node taking part in the Raft protocol.
+     * @return  The node, or null if not started.
+     */
+    public RaftNode getRaft() {
+        return raft;
+    }
+
+    /**
+     * Proposes an operation appended to the operation log, unless it was
+     * replicated from the leader. Called by the log as it appends, so in order.
+     * @param sequence  The sequence number of the record.
+     * @param operation The body of the record.
+     * @return          The index and term of the entry proposed, which the state
+     *                  now reflects, or null if the operation was not proposed.
+     */
+    private long[] proposeOperation(long sequence, byte[] operation) {
+        if (applyingReplicated) return null;
+        long term = raft.getCurrentTerm();
+        long index = raft.propose(term, operation);
+        lastProposal.set(new long[]{sequence, index, term});
+        if (index == 0) return null;
+        raftIndex = index;
+        return new long[]{index, term};
+    }
+
+    /**
+     * Applies the entries committed by the Raft log to the accounts and
+     * undelivered messages, and takes and installs snapshots of them.
+     */
+    private class RaftStateMachine implements RaftNode.StateMachine {
+        @Override
+        public void apply(long index, long term, List<byte[]> operations) {
+            applyReplicated(operations, index + operations.size() - 1, term);
+        }
+
+        @Override
+        public long[] getPersistedEntry() {
+            return operationLog.getAppliedEntry();
+        }
+
+        @Override
+        public RaftNode.Snapshot takeSnapshot() {
+            List<ReentrantLock> locks = Arrays.asList(stripes);
+            locks.forEach(ReentrantLock::lock);
+            try {
+                List<String> accounts = new ArrayList<>(allAccounts);
+                List<Message> queued = new ArrayList<>();
+                try {
+                    queued = copyQueuedMessages();
+                } catch (IOException e) {
+                    Logging.logInfo("Failed to read spilled messages for the snapshot: " + e.getMessage());
+                }
+                List<Message> queuedMessages = queued;
+                MessageStore.View messages = undeliveredMessages.view();
+                Iterable<byte[]> operations = () -> Stream.concat(Stream.concat(
+                        accounts.stream().map(OperationLog::createUserOperation),
+                        StreamSupport.stream(messages.spliterator(), false).map(OperationLog::enqueueOperation)),
+                        queuedMessages.stream().map(OperationLog::queueOperation))
+                        .iterator();
+                return new RaftNode.Snapshot(raftIndex, operations, messages);
+            } finally {
+                locks.forEach(ReentrantLock::unlock);
+            }
+        }
+
+        @Override
+        public void reset() {
+            Applier applier = new Applier();
+            List<ReentrantLock> locks = Arrays.asList(stripes);
+            locks.forEach(ReentrantLock::lock);
+            applyingReplicated = true;
+            try {
+                resetReplicatedState(applier);
+            } catch (IOException e) {
+                System.out.println("IOException");
+                e.printStackTrace();
+            } finally {
+                applyingReplicated = false;
+                locks.forEach(ReentrantLock::unlock);
+            }
+            syncOperationLog(applier.sequence);
+        }
+
+        @Override
+        public void restore(List<byte[]> operations) {
+            applyReplicated(operations, 0, 0);
+        }
+
+        @Override
+        public void restored(long index, long term) {
+            applyReplicated(List.of(), index, term);
+            Logging.logInfo(String.format("Installed the state of the leader, with %d accounts and %d undelivered messages.",
+                    allAccounts.size(), undeliveredMessages.getTotal()));
+        }
+
+        @Override
+        public void roleChanged(boolean leader) {
+            if (leader) {
+                // A stale server which is elected takes its state to reflect its whole log.
+                setApplied(Math.max(raftIndex, raft.getLastApplied()));
+            }
+            setPrimary(leader);
+            if (!leader) {
+                // Users are only served by the leader.
+                logOutAllUsers();
+            }
+        }
+    }
+
+    /**
+     * Applies operations replicated from the leader, appending them to the
+     * operation log without proposing them, followed by the entry they bring
+     * the state up to, and waits until they are durable.
+     * @param operations    The bodies of the operations. Empty ones are skipped.
+     * @param index         The Raft index of the last operation, or 0 if part of a snapshot.
+     * @param term          The term of the entry at that index.
+     */
+    private void applyReplicated(List<byte[]> operations, long index, long term) {
+        Applier applier = new Applier();
+        List<ReentrantLock> locks = Arrays.asList(stripes);
+        locks.forEach(ReentrantLock::lock);
+        applyingReplicated = true;
+        try {
+            for (byte[] operation : operations) {
+                if (operation.length > 0) {
+                    OperationLog.apply(operation, applier);
+                }
+            }
+            if (index > 0) {
+                applier.sequence = operationLog.applied(index, term);
+                setApplied(index);
+            }
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        } finally {
+            applyingReplicated = false;
+            locks.forEach(ReentrantLock::unlock);
+        }
+        syncOperationLog(applier.sequence);
+    }
+
     public StatusReply markAsPrimaryAPI(SetPrimaryRequest request) {
         setPrimary(true);
+        RaftNode raft = this.raft;
+        if (raft != null) {
+            raft.campaign();
+        }
         return StatusReply.newBuilder().setStatus(
                 Status.newBuilder().setSuccess(true).setMessage("Server set as primary")).build();
     }
 
+    public RequestVoteReply requestVoteAPI(RequestVoteRequest request) {
+        return raft.requestVote(request);
+    }
+
+    public AppendEntriesReply appendEntriesAPI(AppendEntriesRequest request) {
+        return raft.appendEntries(request);
+    }
+
+    public InstallSnapshotReply installSnapshotAPI(InstallSnapshotRequest request) {
+        return raft.installSnapshot(request);
+    }
+
+    /**
+     * Discards every account and undelivered message, before the state of the
+     * leader is installed. Must hold the lock of every stripe.
+     * @param applier   Appends the changes to the operation log.
+     * @throws IOException  Thrown if the changes cannot be appended to the log.
+     */
+    private void resetReplicatedState(Applier applier) throws IOException {
+        for (String username : undeliveredMessages.getUsernames()) {
+            applier.drain(username);
+        }
+        for (String username : new ArrayList<>(allAccounts)) {
+            applier.deleteUser(username);
+        }
+    }
+
     /**
-     * Fetches all users registered with the server.
+     * Fetches all users registered with the server. Any server may serve this,
+     * so long as it is in contact with the primary, and has applied the
+     * changes up to the sequence number the request requires. The leader
+     * applies changes before they are committed, so only replies once the
+     * changes the accounts may reflect are committed.
      *
-     * @return  a list of all users.
+     * @return  a list of all users, and the sequence number they reflect.
      */
     public GetAccountsReply getAccountsAPI(GetAccountsRequest request) {
+        RaftNode raft = this.raft;
+        if (raft != null && !raft.canServeReads()) {
+            Status status = Status.newBuilder().setSuccess(false)
+                    .setMessage("Server is not in contact with the primary.").build();
+            return GetAccountsReply.newBuilder().setStatus(status).build();
+        }
+        if (!awaitApplied(request.getMinSequence(), READ_WAIT_MILLIS)) {
+            String message = "Server has not yet applied the changes up to " + request.getMinSequence() + ".";
+            Status status = Status.newBuilder().setSuccess(false).setMessage(message).build();
+            return GetAccountsReply.newBuilder().setStatus(status).build();
+        }
+        // Read before the accounts, so that they reflect at least this sequence number.
+        long sequence = raftIndex;
         List matches = new ArrayList<String>();
         String regex = request.getTextWildcard();
         if (!regex.isEmpty()) {
@@ -404,10 +1427,17 @@ public class ServerCore {
         } else {
             matches.addAll(allAccounts);
         }
+        // Changes are logged, so given a Raft index, before they are made.
+        if (raft != null && !awaitCommitted(raft, raftIndex)) {
+            Status status = Status.newBuilder().setSuccess(false)
+                    .setMessage("Server has not yet committed the changes it holds.").build();
+            return GetAccountsReply.newBuilder().setStatus(status).build();
+        }
         Status status = Status.newBuilder().setSuccess(true).setMessage("Successfully listing accounts.").build();
         return GetAccountsReply.newBuilder()
                 .addAllAccounts(matches)
                 .setStatus(status)
+                .setSequence(sequence)
                 .build();
     }
 
@@ -422,16 +1452,13 @@ public class ServerCore {
      */
     public LoginReply createAccountAPI(CreateAccountRequest request) {
         String username = request.getUsername();
-        if (allAccounts.contains(username)) {
+        if (!addUser(username)) {
             String message = "User " + username + " already exists.";
             Status status = Status.newBuilder().setSuccess(false).setMessage(message).build();
-            return LoginReply.newBuilder().setStatus(status).build();
+            return LoginReply.newBuilder().setStatus(status).setSequence(raftIndex).build();
         } else {
-            //allAccounts.add(username);
-            addUser(username);
-
             Status status = Status.newBuilder().setSuccess(true).setMessage("User created successfully.").build();
-            return LoginReply.newBuilder().setStatus(status).build();
+            return LoginReply.newBuilder().setStatus(status).setSequence(raftIndex).build();
         }
     }
 
@@ -445,15 +1472,31 @@ public class ServerCore {
         String username = request.getUsername();
         String message;
         Boolean success = false;
-        if (allAccounts.contains(username)) {
-            //allAccounts.remove(username);
-            deleteUser(username);
-            // Also clear undelivered messages
-            //undeliveredMessages.remove(username);
-            removeUndeliveredMessage(username);
-            removeUserConnection(username);
+        long sequence = 0;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (allAccounts.contains(username)) {
+                try {
+                    operationLog.deleteUser(username);
+                } finally {
+                    allAccounts.remove(username);
+                }
+                // Also clear undelivered messages, which are logged after the deletion.
+                sequence = drainUndeliveredMessages(username);
+                discardQueuedMessages(username);
+                removeUserConnection(username);
+                success = true;
+            }
+        } catch (IOException e) {
+            System.out.println("IOException");
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        commitOperationLog(sequence);
 
-            success = true;
+        if (success) {
             message = "User " + username + " deleted.";
         } else {
             message = "User " + username + " does not exist and cannot be deleted.";
@@ -461,7 +1504,7 @@ public class ServerCore {
         // Delete user from user map
         Logging.logInfo(String.format("Deleting user %s.", username));
         Status status = Status.newBuilder().setSuccess(success).setMessage(message).build();
-        return StatusReply.newBuilder().setStatus(status).build();
+        return StatusReply.newBuilder().setStatus(status).setSequence(raftIndex).build();
     }
 
     /**
@@ -472,23 +1515,104 @@ public class ServerCore {
      */
     public GetUndeliveredMessagesReply getUndeliveredMessagesAPI(GetUndeliveredMessagesRequest request) {
         String username = request.getUsername();
-        List<Message> messages;
-        /*if (undeliveredMessages.containsKey(username)) {
-            messages = undeliveredMessages.get(username);
-        } else {
-            messages = new ArrayList<>();
-        }*/
-        if (undeliveredMessageContainsKey(username)) {
-            messages = getUndeliveredMessages(username);
-        } else {
-            messages = new ArrayList<>();
+        GetUndeliveredMessagesReply.Builder reply = GetUndeliveredMessagesReply.newBuilder();
+        long sequence = 0;
+        // The messages are read straight from the store into the reply, then
+        // cleared before any further message can be added.
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            undeliveredMessages.forEach(username, reply::addMessages);
+            reply.addAllMessages(spill.peek(undeliveredSpillKey(username)));
+            sequence = drainUndeliveredMessages(username);
+        } catch (IOException e) {
+            Logging.logInfo("Failed to read undelivered messages for " + username + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
         }
+        commitOperationLog(sequence);
         Status status = Status.newBuilder().setSuccess(true).setMessage("Retrieving undelivered messages.").build();
+        return reply.setStatus(status).build();
+    }
 
-        // Clear the undelivered messages
-        //undeliveredMessages.remove(username);
-        removeUndeliveredMessage(username);
-        return GetUndeliveredMessagesReply.newBuilder().setStatus(status).addAllMessages(messages).build();
+    /**
+     * Streams the undelivered messages of a user in pages, oldest first. Each
+     * page is only removed from the store once it has been sent, so only one
+     * page is held in memory however large the backlog is, and the messages of
+     * a page which fails to send remain undelivered. Messages added while
+     * streaming are streamed too.
+     *
+     * @param request   A request for undelivered messages for a user, with the
+     *                  most messages in each page.
+     * @param sender    Sends the pages to the user.
+     * @throws InterruptedException Thrown if interrupted while sending, e.g. as
+     *                              the call is cancelled.
+     */
+    public void streamUndeliveredMessagesAPI(GetUndeliveredMessagesRequest request, PageSender sender)
+            throws InterruptedException {
+        String username = request.getUsername();
+        int pageSize = request.getPageSize() > 0 ? request.getPageSize() : DEFAULT_PAGE_SIZE;
+        Status status = Status.newBuilder().setSuccess(true).setMessage("Retrieving undelivered messages.").build();
+        ReentrantLock lock = lockFor(username);
+        while (true) {
+            long[] locations;
+            List<Message> page;
+            long sequence = 0;
+            lock.lock();
+            try {
+                sequence = refillStoreFromSpill(username);
+                locations = undeliveredMessages.oldest(username, pageSize);
+                page = undeliveredMessages.read(locations);
+            } finally {
+                lock.unlock();
+            }
+            commitOperationLog(sequence);
+            if (locations.length == 0) {
+                return;
+            }
+
+            sender.send(GetUndeliveredMessagesReply.newBuilder().setStatus(status).addAllMessages(page).build());
+
+            lock.lock();
+            try {
+                int removed = undeliveredMessages.removeOldest(username, locations);
+                queueLimiter.release(removed);
+                sequence = removed > 0 ? operationLog.removeOldest(username, removed) : 0;
+            } catch (IOException e) {
+                System.out.println("IOException");
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+            commitOperationLog(sequence);
+        }
+    }
+
+    /**
+     * Moves spilled undelivered messages of a recipient into the store, as far
+     * as the limits allow, appending them to the operation log without committing
+     * it. Must hold the lock of the recipient.
+     * @param username  The recipient.
+     * @return          The sequence number of the last record appended, or 0 if none was.
+     */
+    private long refillStoreFromSpill(String username) {
+        String spillKey = undeliveredSpillKey(username);
+        int spilled = spill.size(spillKey);
+        if (spilled == 0) return 0;
+        int room = queueLimiter.reserveRoom(undeliveredMessages.size(username), spilled);
+        if (room == 0) return 0;
+        long sequence = 0;
+        try {
+            List<Message> restored = spill.take(spillKey, room);
+            queueLimiter.release(room - restored.size());
+            for (Message message : restored) {
+                undeliveredMessages.append(message);
+                sequence = operationLog.enqueue(message);
+            }
+        } catch (IOException e) {
+            Logging.logInfo("Failed to restore spilled messages for " + username + ": " + e.getMessage());
+        }
+        return sequence;
     }
 
     /**
@@ -500,21 +1624,83 @@ public class ServerCore {
      */
     public StatusReply sendMessageAPI(SendMessageRequest request) {
         Message message = request.getMessage();
+        List<Status> statuses = new ArrayList<>(1);
+        long sequence;
+        ReentrantLock lock = lockFor(message.getRecipient());
+        lock.lock();
+        try {
+            sequence = sendMessage(message, statuses);
+        } finally {
+            lock.unlock();
+        }
+        commitOperationLog(sequence);
+        return StatusReply.newBuilder().setStatus(statuses.get(0)).build();
+    }
 
-        Status status;
+    /**
+     * Sends a single message, queueing it for the recipient if they are logged in,
+     * and otherwise adding it to their undelivered messages. Must hold the lock of
+     * the recipient.
+     * @param message   The message to send.
+     * @param statuses  The list to add the status of the message to.
+     * @return          The sequence number of the last record appended to the
+     *                  operation log, which the caller must commit, or 0 if none was.
+     */
+    private long sendMessage(Message message, List<Status> statuses) {
         if (!allAccounts.contains(message.getRecipient())) {
-            status = Status.newBuilder().setSuccess(false).setMessage("Recipient does not exist.").build();
+            statuses.add(Status.newBuilder().setSuccess(false).setMessage("Recipient does not exist.").build());
+            return 0;
         } else if (loggedInUsers.containsKey(message.getRecipient())) {
             // If the user is logged in, immediately send the message.
-            addMessageToList(queuedMessagesMap, message);
-            status = Status.newBuilder().setSuccess(true).setMessage("Message sent successfully.").build();
-        } else {
-            // Otherwise add to undelivered messages for future delivery
-            addUndeliveredMessage(message);
-            //addMessageToList(undeliveredMessages, message);
-            status = Status.newBuilder().setSuccess(true).setMessage("Message queued for delivery.").build();
+            Admission admission = addMessageToList(queuedMessagesMap, message);
+            if (admission == Admission.REJECT) {
+                statuses.add(Status.newBuilder().setSuccess(false).setMessage("Recipient's message queue is full.").build());
+                return 0;
+            }
+            signalDispatcher(message.getRecipient());
+            statuses.add(Status.newBuilder().setSuccess(true).setMessage("Message sent successfully.").build());
+            return logQueuedMessage(message, admission);
+        }
+
+        // Otherwise add to undelivered messages for future delivery
+        Admission admission = addMessageToStore(message);
+        if (admission == Admission.REJECT) {
+            statuses.add(Status.newBuilder().setSuccess(false).setMessage("Recipient's message queue is full.").build());
+            return 0;
         }
-        return StatusReply.newBuilder().setStatus(status).build();
+        statuses.add(Status.newBuilder().setSuccess(true).setQueued(true)
+                .setMessage("Message queued for delivery.").build());
+        return logUndeliveredMessage(message, admission);
+    }
+
+    /**
+     * Sends every message in a batch, as if by `sendMessageAPI`. The locks of
+     * all recipients are acquired once for the whole batch (in stripe order,
+     * so that concurrent batches cannot deadlock), rather than once per message,
+     * and the operation log is committed once for the whole batch.
+     * @param request   A request specifying the messages to be sent.
+     * @return          The status of each message, in the order of the request.
+     */
+    public SendMessageBatchReply sendMessageBatchAPI(SendMessageBatchRequest request) {
+        List<Status> statuses = new ArrayList<>(request.getMessagesCount());
+        long sequence = 0;
+        List<String> recipients = new ArrayList<>(request.getMessagesCount());
+        for (Message message : request.getMessagesList()) {
+            recipients.add(message.getRecipient());
+        }
+        List<ReentrantLock> locks = locksFor(recipients);
+        locks.forEach(ReentrantLock::lock);
+        try {
+            for (Message message : request.getMessagesList()) {
+                sequence = Math.max(sequence, sendMessage(message, statuses));
+            }
+        } finally {
+            locks.forEach(ReentrantLock::unlock);
+        }
+
+        commitOperationLog(sequence);
+        Status status = Status.newBuilder().setSuccess(true).setMessage("Batch processed.").build();
+        return SendMessageBatchReply.newBuilder().setStatus(status).addAllStatuses(statuses).build();
     }
 
     /**
@@ -528,6 +1714,159 @@ public class ServerCore {
         return logInUser(request.getUsername(), request.getIpAddress());
     }
 
+    /**
+     * Reads the number of messages sent to a subscriber before waiting for their
+     * acknowledgement from the `messenger.delivery.window` system property.
+     * @return  The delivery window.
+     */
+    public static int deliveryWindowFromSystemProperties() {
+        return Integer.getInteger("messenger.delivery.window", DEFAULT_DELIVERY_WINDOW);
+    }
+
+    /**
+     * Delivers the messages queued for a logged in user as they arrive, until
+     * the user logs out. A user may only have one subscription at a time.
+     *
+     * Messages are sent in order, in windows of at most `window` messages, the
+     * last of which is marked `last_in_window`. The next window is only sent once
+     * the user has acknowledged the last through `acknowledgeAPI`, and only the
+     * acknowledged messages are unqueued, and so moved to the sent messages. If
+     * sending fails, or the user logs out first, the messages which were not
+     * acknowledged remain queued and are sent again by the next subscription.
+     * @param request       A request specifying the user subscribing.
+     * @param window        The number of messages to send before waiting for them to be acknowledged.
+     * @param subscriber    Sends the messages to the user.
+     * @return          An unsuccessful status if the user is not logged in or is
+     *                  already subscribed, otherwise a successful status once the
+     *                  user has logged out.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting
+     *                              for messages, e.g. as the subscription is cancelled.
+     */
+    public Status subscribeAPI(SubscribeRequest request, int window, Subscriber subscriber)
+            throws InterruptedException {
+        String username = request.getUsername();
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (!loggedInUsers.containsKey(username)) {
+                String message = "User " + username + " is not logged in and cannot subscribe.";
+                return Status.newBuilder().setSuccess(false).setMessage(message).build();
+            }
+            if (!subscribers.add(username)) {
+                String message = "User " + username + " is already subscribed.";
+                return Status.newBuilder().setSuccess(false).setMessage(message).build();
+            }
+            acknowledgedMessages.remove(username);
+        } finally {
+            lock.unlock();
+        }
+
+        Logging.logInfo("Subscription for user " + username + " started successfully.");
+        try {
+            while (true) {
+                Optional<List<Message>> messageList = awaitQueuedMessages(username);
+
+                // If the user is no longer logged in,
+                if (!messageList.isPresent()) {
+                    break;
+                }
+
+                List<Message> messages = messageList.get();
+                boolean acknowledged = true;
+                for (int start = 0; start < messages.size() && acknowledged; start += window) {
+                    List<Message> sent = messages.subList(start, Math.min(start + window, messages.size()));
+                    long timestamp = System.currentTimeMillis();
+                    for (int i = 0; i < sent.size(); i++) {
+                        subscriber.deliver(sent.get(i).toBuilder()
+                                .setSentTimestamp(timestamp)
+                                .setLastInWindow(i == sent.size() - 1)
+                                .build());
+                    }
+                    int count = awaitAcknowledgement(username, sent.size());
+                    unqueueMessages(username, sent.subList(0, count));
+                    acknowledged = count == sent.size();
+                }
+                if (acknowledged) {
+                    Logging.logInfo("All messages delivered to user " + username);
+                }
+            }
+        } finally {
+            lock.lock();
+            try {
+                subscribers.remove(username);
+                acknowledgedMessages.remove(username);
+                // Only the subscription waits on the condition, so it is not kept
+                // for every user who has ever logged in.
+                dispatchConditions.remove(username);
+            } finally {
+                lock.unlock();
+            }
+        }
+        String message = "User " + username + " logged out, ending the subscription.";
+        return Status.newBuilder().setSuccess(true).setMessage(message).build();
+    }
+
+    /**
+     * Blocks until the subscriber has acknowledged the messages it was sent, or
+     * until the user is logged out.
+     * @param username  The username
+     * @param count     The number of messages sent and not yet acknowledged.
+     * @return          The number of those messages which were acknowledged.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting.
+     */
+    private int awaitAcknowledgement(String username, int count) throws InterruptedException {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Condition condition = dispatchConditions.computeIfAbsent(username, key -> lock.newCondition());
+            while (loggedInUsers.containsKey(username) && acknowledgedMessages.getOrDefault(username, 0) < count) {
+                condition.await();
+            }
+            int remaining = acknowledgedMessages.getOrDefault(username, 0);
+            int acknowledged = Math.min(count, remaining);
+            if (remaining > acknowledged) {
+                acknowledgedMessages.put(username, remaining - acknowledged);
+            } else {
+                acknowledgedMessages.remove(username);
+            }
+            return acknowledged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acknowledges the messages a subscriber has received, so that they are
+     * unqueued and the next window is sent.
+     * @param request   A request specifying the user and the number of messages
+     *                  received since their last acknowledgement.
+     * @return          A status message indicating success, or failure if the
+     *                  user is not subscribed.
+     */
+    public StatusReply acknowledgeAPI(AcknowledgeRequest request) {
+        String username = request.getUsername();
+        boolean success;
+        String message;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (!subscribers.contains(username)) {
+                success = false;
+                message = "User " + username + " is not subscribed.";
+            } else {
+                acknowledgedMessages.merge(username, request.getCount(), Integer::sum);
+                signalDispatcher(username);
+                success = true;
+                message = "Acknowledged " + request.getCount() + " messages for user " + username + ".";
+            }
+        } finally {
+            lock.unlock();
+        }
+        return StatusReply.newBuilder().setStatus(Status.newBuilder()
+                .setSuccess(success)
+                .setMessage(message).build()).build();
+    }
+
     /**
      * Logs out a given user, if they are logged in.
      * @param request   A request specifying the user to be logged out.
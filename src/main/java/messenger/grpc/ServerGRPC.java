@@ -1,33 +1,191 @@
 package messenger.grpc;
 
 import io.grpc.*;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import messenger.network.Address;
 import messenger.network.NetworkUtil;
 import messenger.util.Constants;
+import messenger.util.GRPCUtil;
 import messenger.util.Logging;
+import messenger.util.Metrics;
+import messenger.util.ThreadUtil;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Implements the Message Service API
  */
 public class ServerGRPC {
+    /**
+     * The executors on which gRPC can run the handlers of calls.
+     */
+    public enum ExecutorMode {
+        // gRPC's default, which starts a new thread whenever all are busy.
+        CACHED,
+        // A fixed number of threads, further calls wait for one to be free.
+        FIXED,
+        // A new virtual thread per call (Java 21+, otherwise CACHED).
+        VIRTUAL,
+        // The transport's own threads for the calls which do not block (see
+        // `DIRECT_METHODS`), and the FIXED threads for the others, which wait for
+        // the operation log to be synced or replicated.
+        DIRECT
+    }
+
+    // The default number of threads of the FIXED executor.
+    public static final int DEFAULT_EXECUTOR_THREADS = 64;
+    // The methods run on the transport's threads by the DIRECT executor, which
+    // neither wait nor do work that grows with the state. GetAccounts is not one:
+    // it may wait for changes to be applied, then matches a client's pattern
+    // against every account.
+    public static final Set<String> DIRECT_METHODS = Set.of(
+            MessengerGrpc.getHandshakeMethod().getFullMethodName());
+    // The number of servers, of which one is elected the leader (i.e. the primary).
+    public static final int NUM_REPLICAS = 3;
+    // Bounds how long a Raft call may hang on an unresponsive server before it is retried.
+    private static final long RAFT_DEADLINE_MILLIS = 1000;
+
     private Server server;
+    private ServerCore core;
+    // The executor running the handlers of calls, unless provided by gRPC.
+    private ExecutorService executor;
+    // The executor running the handlers of streaming calls, on virtual threads where available.
+    private ExecutorService streamExecutor;
+    // The channels to the other servers, over which the Raft protocol runs.
+    private final List<ManagedChannel> peerChannels = new ArrayList<>();
+
+    /**
+     * Reads the executor on which to run the handlers of calls from the
+     * `messenger.grpc.executor` system property.
+     * @return  The executor mode, FIXED by default.
+     */
+    public static ExecutorMode executorModeFromSystemProperties() {
+        String mode = System.getProperty("messenger.grpc.executor", ExecutorMode.FIXED.name());
+        return ExecutorMode.valueOf(mode.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads the number of threads of the FIXED executor from the
+     * `messenger.grpc.threads` system property.
+     * @return  The number of threads.
+     */
+    public static int executorThreadsFromSystemProperties() {
+        return Integer.getInteger("messenger.grpc.threads", DEFAULT_EXECUTOR_THREADS);
+    }
+
+    /**
+     * Reads the addresses of the servers, in order of offset, from the
+     * `messenger.replicas` system property, a comma-separated list of `host:port`.
+     * @return  The addresses, by default those of servers on this machine.
+     */
+    public static List<String> replicaAddressesFromSystemProperties() {
+        String replicas = System.getProperty("messenger.replicas");
+        List<String> addresses = new ArrayList<>();
+        if (replicas == null || replicas.isBlank()) {
+            for (int i = 0; i < NUM_REPLICAS; i++) {
+                addresses.add("localhost:" + (Constants.API_PORT + i));
+            }
+        } else {
+            for (String address : replicas.split(",")) {
+                addresses.add(address.trim());
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Creates the peers the server runs the Raft protocol with, one for each of
+     * the other servers. The channels only connect once used.
+     * @param offset    The offset of this server.
+     * @return          The peers, by offset.
+     */
+    private Map<Integer, RaftNode.Peer> connectPeers(int offset) {
+        Map<Integer, RaftNode.Peer> peers = new HashMap<>();
+        List<String> addresses = replicaAddressesFromSystemProperties();
+        for (int i = 0; i < addresses.size(); i++) {
+            if (i == offset) continue;
+            ManagedChannel channel = Grpc.newChannelBuilder(addresses.get(i), InsecureChannelCredentials.create())
+                    .build();
+            peerChannels.add(channel);
+            RaftGrpc.RaftBlockingStub stub = RaftGrpc.newBlockingStub(channel);
+            peers.put(i, new RaftNode.Peer() {
+                @Override
+                public RequestVoteReply requestVote(RequestVoteRequest request) {
+                    return stub.withDeadlineAfter(RAFT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS).requestVote(request);
+                }
+
+                @Override
+                public AppendEntriesReply appendEntries(AppendEntriesRequest request) {
+                    return stub.withDeadlineAfter(RAFT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS).appendEntries(request);
+                }
+
+                @Override
+                public InstallSnapshotReply installSnapshot(InstallSnapshotRequest request) {
+                    return stub.withDeadlineAfter(RAFT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS).installSnapshot(request);
+                }
+            });
+        }
+        return peers;
+    }
 
     /**
      * Start the Message server.
      * @throws IOException  Thrown on network exception
      */
     private void start(int offset) throws IOException {
-        ServerCore core = new ServerCore(offset);
-        server = Grpc.newServerBuilderForPort(Constants.API_PORT + offset, InsecureServerCredentials.create())
-                .addService(new MessageServerImpl(core))
+        core = new ServerCore(offset);
+        core.startRaft(offset, connectPeers(offset), Path.of(Constants.getRaftStateFileName(offset)),
+                RaftConfig.fromSystemProperties());
+        long metricsInterval = Metrics.intervalFromSystemProperties();
+        if (metricsInterval > 0) {
+            core.getMetrics().logEvery(metricsInterval);
+        }
+        ServerBuilder<?> builder = Grpc.newServerBuilderForPort(Constants.API_PORT + offset,
+                InsecureServerCredentials.create());
+        ExecutorMode mode = executorModeFromSystemProperties();
+        switch (mode) {
+            case FIXED:
+                executor = Executors.newFixedThreadPool(executorThreadsFromSystemProperties());
+                builder.executor(executor);
+                break;
+            case VIRTUAL:
+                executor = ThreadUtil.newVirtualThreadExecutor();
+                builder.executor(executor);
+                break;
+            case DIRECT:
+                executor = Executors.newFixedThreadPool(executorThreadsFromSystemProperties());
+                builder.executor(executor);
+                builder.callExecutor(new ServerCallExecutorSupplier() {
+                    @Override
+                    public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata) {
+                        // Null runs the call on the FIXED threads.
+                        return DIRECT_METHODS.contains(call.getMethodDescriptor().getFullMethodName())
+                                ? Runnable::run : null;
+                    }
+                });
+                break;
+            default:
+                break;
+        }
+        Logging.logInfo("Running calls on the " + mode.name().toLowerCase(Locale.ROOT) + " executor.");
+        streamExecutor = ThreadUtil.newVirtualThreadExecutor();
+        server = builder
+                .addService(new MessageServerImpl(core, streamExecutor))
+                .addService(new RaftServerImpl(core))
                 .build()
                 .start();
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -51,7 +209,18 @@ public class ServerGRPC {
      */
     private void stop() throws InterruptedException {
         if (server != null) {
-            server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
+            server.shutdown();
+            // Complete the open Subscribe calls, which would otherwise hold up termination.
+            core.logOutAllUsers();
+            server.awaitTermination(30, TimeUnit.SECONDS);
+            if (executor != null) {
+                executor.shutdown();
+            }
+            streamExecutor.shutdown();
+            core.close();
+            for (ManagedChannel channel : peerChannels) {
+                channel.shutdownNow();
+            }
         }
     }
 
@@ -75,8 +244,7 @@ public class ServerGRPC {
         System.out.println("Enter server id:");
         try {
             int offset = Integer.parseInt(inputReader.nextLine());
-            List<MessengerGrpc.MessengerBlockingStub> clients = new ArrayList<>();
-            if (offset > 2) {
+            if (offset < 0 || offset >= replicaAddressesFromSystemProperties().size()) {
                 Logging.logService("Invalid offset, exiting.");
                 return;
             }
@@ -97,14 +265,54 @@ public class ServerGRPC {
      * for implementation details and explanations.
      *
      * As such, comments for the methods are largely omitted, except where
-     * something interesting happens (e.g. launching the message handler).
+     * something interesting happens (e.g. launching the message handler for a
+     * subscription).
+     *
+     * Only the primary (the Raft leader) changes the state or logs users in,
+     * so the other servers fail these calls with FAILED_PRECONDITION, naming the
+     * primary if known so that the client is redirected to it. A change which
+     * is not committed by a majority of the servers fails with UNAVAILABLE.
      */
     public static class MessageServerImpl extends MessengerGrpc.MessengerImplBase {
 
         private final ServerCore core;
+        private final int deliveryWindow;
+        // Runs the handlers of streaming calls, which block while waiting to send.
+        private final ExecutorService streamExecutor;
 
         public MessageServerImpl(ServerCore core) {
+            this(core, ThreadUtil.newVirtualThreadExecutor());
+        }
+
+        public MessageServerImpl(ServerCore core, ExecutorService streamExecutor) {
             this.core = core;
+            this.deliveryWindow = ServerCore.deliveryWindowFromSystemProperties();
+            this.streamExecutor = streamExecutor;
+        }
+
+        /**
+         * Replies to a call which may only be served by the primary.
+         * @param responseObserver  The observer of the call.
+         * @param call              Handles the call, returning the reply.
+         * @param <T>               The type of the reply.
+         */
+        private <T> void replyOnPrimary(StreamObserver<T> responseObserver, Supplier<T> call) {
+            if (!core.isPrimary()) {
+                responseObserver.onError(notPrimary());
+                return;
+            }
+            try {
+                responseObserver.onNext(call.get());
+                responseObserver.onCompleted();
+            } catch (ReplicationException ex) {
+                responseObserver.onError(io.grpc.Status.UNAVAILABLE
+                        .withDescription(ex.getMessage())
+                        .asRuntimeException());
+            }
+        }
+
+        private StatusRuntimeException notPrimary() {
+            return GRPCUtil.notPrimaryException(core.getLeaderId());
         }
 
         @Override
@@ -117,55 +325,90 @@ public class ServerGRPC {
 
         @Override
         public void handshake(HandshakeRequest req, StreamObserver<HandshakeResponse> responseObservers) {
-            responseObservers.onNext(HandshakeResponse.newBuilder().setIsPrimary(core.isPrimary()).build());
+            HandshakeResponse.Builder response = HandshakeResponse.newBuilder()
+                    .setIsPrimary(core.isPrimary())
+                    .setSequence(core.getAppliedSequence());
+            int leader = core.getLeaderId();
+            if (leader >= 0) {
+                response.setLeader(leader);
+            }
+            responseObservers.onNext(response.build());
             responseObservers.onCompleted();
         }
 
-        /**
-         * The folowing two methods, createAccount and login, also start a MessageHandler
-         * service which sends messages received to the user which is logged in.
-         */
         @Override
         public void createAccount(CreateAccountRequest req, StreamObserver<LoginReply> responseObserver) {
-            responseObserver.onNext(core.createAccountAPI(req));
-            responseObserver.onCompleted();
+            replyOnPrimary(responseObserver, () -> core.createAccountAPI(req));
         }
 
         @Override
         public void login(LoginRequest req, StreamObserver<LoginReply> responseObserver) {
-            LoginReply reply = core.loginUserAPI(req);
-            responseObserver.onNext(reply);
-            if (!req.getIpAddress().isEmpty() && reply.getStatus().getSuccess()) {
-                MessageHandler handler = new MessageHandler(core, req.getUsername(),
-                        new Address(req.getIpAddress(), reply.getReceiverPort()));
-                new Thread(handler).start();
+            replyOnPrimary(responseObserver, () -> core.loginUserAPI(req));
+        }
+
+        /**
+         * Starts a MessageHandler which streams the messages received by the
+         * subscribing user until they log out, or the client cancels the call.
+         * The handler runs on the stream executor, so open subscriptions do not
+         * hold threads of the executor of the other calls.
+         */
+        @Override
+        public void subscribe(SubscribeRequest req, StreamObserver<Message> responseObserver) {
+            if (!core.isPrimary()) {
+                responseObserver.onError(notPrimary());
+                return;
             }
-            responseObserver.onCompleted();
+            new MessageHandler(core, req, (ServerCallStreamObserver<Message>) responseObserver, deliveryWindow)
+                    .start(streamExecutor);
+        }
+
+        @Override
+        public void acknowledge(AcknowledgeRequest req, StreamObserver<StatusReply> responseObserver) {
+            replyOnPrimary(responseObserver, () -> core.acknowledgeAPI(req));
         }
 
         @Override
         public void sendMessage(SendMessageRequest req, StreamObserver<StatusReply> responseObserver) {
-            responseObserver.onNext(core.sendMessageAPI(req));
-            responseObserver.onCompleted();
+            replyOnPrimary(responseObserver, () -> core.sendMessageAPI(req));
+        }
+
+        @Override
+        public void sendMessageBatch(SendMessageBatchRequest req,
+                                     StreamObserver<SendMessageBatchReply> responseObserver) {
+            replyOnPrimary(responseObserver, () -> core.sendMessageBatchAPI(req));
         }
 
         @Override
         public void getAccounts(GetAccountsRequest req, StreamObserver<GetAccountsReply> responseObserver) {
+            // Served by every server, so that reads can be spread across them.
             responseObserver.onNext(core.getAccountsAPI(req));
             responseObserver.onCompleted();
         }
 
         @Override
         public void deleteAccount(DeleteAccountRequest req, StreamObserver<StatusReply> responseObserver) {
-            responseObserver.onNext(core.deleteAccountAPI(req));
-            responseObserver.onCompleted();
+            replyOnPrimary(responseObserver, () -> core.deleteAccountAPI(req));
         }
 
         @Override
         public void getUndeliveredMessages(GetUndeliveredMessagesRequest req,
                                            StreamObserver<GetUndeliveredMessagesReply> responseObserver) {
-            responseObserver.onNext(core.getUndeliveredMessagesAPI(req));
-            responseObserver.onCompleted();
+            replyOnPrimary(responseObserver, () -> core.getUndeliveredMessagesAPI(req));
+        }
+
+        /**
+         * Starts an UndeliveredMessagesHandler which streams the undelivered
+         * messages of the user in pages, on the stream executor like a subscription.
+         */
+        @Override
+        public void streamUndeliveredMessages(GetUndeliveredMessagesRequest req,
+                                              StreamObserver<GetUndeliveredMessagesReply> responseObserver) {
+            if (!core.isPrimary()) {
+                responseObserver.onError(notPrimary());
+                return;
+            }
+            new UndeliveredMessagesHandler(core, req,
+                    (ServerCallStreamObserver<GetUndeliveredMessagesReply>) responseObserver).start(streamExecutor);
         }
 
         @Override
@@ -176,73 +419,162 @@ public class ServerGRPC {
     }
 
     /**
-     * Each client may have at most one MessageHandler, which allows
-     * the client to receive the messages directed towards their
-     * username. A MessageHandler is created only after a client logs in.
+     * The implementation of the Raft service, through which the servers elect
+     * the leader, and the leader replicates its changes to the others.
      */
-    public static class MessageHandler implements Runnable {
+    public static class RaftServerImpl extends RaftGrpc.RaftImplBase {
 
-        private final ServerCore server;
-        private final String username;
+        private final ServerCore core;
 
-        private final MessageReceiverGrpc.MessageReceiverBlockingStub blockingStub;
+        public RaftServerImpl(ServerCore core) {
+            this.core = core;
+        }
 
-        public MessageHandler(ServerCore server, String username, Address address) {
-            this.server = server;
-            this.username = username;
+        @Override
+        public void requestVote(RequestVoteRequest req, StreamObserver<RequestVoteReply> responseObserver) {
+            responseObserver.onNext(core.requestVoteAPI(req));
+            responseObserver.onCompleted();
+        }
 
-            ManagedChannel channel = Grpc.newChannelBuilder(address.toString(), InsecureChannelCredentials.create())
-                    .build();
-            blockingStub = MessageReceiverGrpc.newBlockingStub(channel);
+        @Override
+        public void appendEntries(AppendEntriesRequest req, StreamObserver<AppendEntriesReply> responseObserver) {
+            responseObserver.onNext(core.appendEntriesAPI(req));
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void installSnapshot(InstallSnapshotRequest req,
+                                    StreamObserver<InstallSnapshotReply> responseObserver) {
+            responseObserver.onNext(core.installSnapshotAPI(req));
+            responseObserver.onCompleted();
+        }
+    }
+
+    /**
+     * Streams the replies of a call from a task of an executor. Replies are only sent
+     * while the call is ready, i.e. while gRPC's flow control allows more to be
+     * sent without buffering them, so a slow client holds up its own replies
+     * rather than filling the server's memory.
+     * @param <T>   The type of the replies.
+     */
+    public abstract static class StreamHandler<T> implements Runnable {
+
+        protected final ServerCallStreamObserver<T> observer;
+        // Notified when the call becomes ready.
+        private final Object ready = new Object();
+
+        protected StreamHandler(ServerCallStreamObserver<T> observer) {
+            this.observer = observer;
+        }
+
+        /**
+         * Starts the handler on an executor. Cancelling the call interrupts it.
+         * @param executor  The executor, on whose threads the handler may block.
+         */
+        public void start(ExecutorService executor) {
+            observer.setOnReadyHandler(this::onReady);
+            Future<?> task = executor.submit(this);
+            observer.setOnCancelHandler(() -> task.cancel(true));
         }
 
         /**
-         * Sends a message over the network.
-         * @param message   The message to be sent.
+         * Called by gRPC when the call is ready to send further replies.
          */
-        public void sendMessage(Message message) {
-            Status status = blockingStub.sendMessage(message).getStatus();
+        public void onReady() {
+            synchronized (ready) {
+                ready.notifyAll();
+            }
+        }
 
-            if (status.getSuccess()) {
-                Logging.logInfo("Message successfully dispatched to user " + username);
-            } else {
-                Logging.logInfo("Message failed to send to " + username);
+        /**
+         * Sends a reply once the call is ready.
+         * @param reply The reply to send.
+         * @throws InterruptedException Thrown if the call is cancelled while waiting.
+         */
+        public void send(T reply) throws InterruptedException {
+            synchronized (ready) {
+                while (!observer.isReady()) {
+                    ready.wait();
+                }
             }
+            observer.onNext(reply);
+        }
+    }
+
+    /**
+     * Each client may have at most one MessageHandler, which streams the
+     * messages directed towards their username over their Subscribe call.
+     * A MessageHandler may only be created after a client logs in.
+     */
+    public static class MessageHandler extends StreamHandler<Message> implements ServerCore.Subscriber {
+
+        private final ServerCore server;
+        private final SubscribeRequest request;
+        private final int window;
+
+        public MessageHandler(ServerCore server, SubscribeRequest request,
+                              ServerCallStreamObserver<Message> observer, int window) {
+            super(observer);
+            this.server = server;
+            this.request = request;
+            this.window = window;
+        }
+
+        @Override
+        public void deliver(Message message) throws InterruptedException {
+            send(message);
         }
 
         /**
-         * The main loop of the MessageHandler. The handler routinely checks the list of
-         * queued messages, then if one is found which is addressed to the current user,
-         * it is sent using the `sendMessage` API call.
+         * The main loop of the MessageHandler is `subscribeAPI`, which sends messages
+         * addressed to the current user as they are queued. The stream is completed
+         * once the user is no longer logged in.
          */
         public void run() {
-            Logging.logInfo("Message handler for user " + username + " started successfully.");
+            try {
+                Status status = server.subscribeAPI(request, window, this);
+                if (status.getSuccess()) {
+                    observer.onCompleted();
+                } else {
+                    observer.onError(io.grpc.Status.FAILED_PRECONDITION
+                            .withDescription(status.getMessage())
+                            .asRuntimeException());
+                }
+            } catch (InterruptedException ex) {
+                Logging.logInfo("Subscription for user " + request.getUsername() + " cancelled.");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
 
-            while (true) {
-                try {
-                    // Only execute this thread once every second.
-                    Thread.sleep(1000);
+    /**
+     * Streams the undelivered messages of a user in pages, completing the call
+     * once no undelivered messages remain.
+     */
+    public static class UndeliveredMessagesHandler extends StreamHandler<GetUndeliveredMessagesReply>
+            implements ServerCore.PageSender {
 
-                    // If the user is no longer logged in,
-                    if (!server.isLoggedIn(username)) {
-                        return;
-                    }
+        private final ServerCore server;
+        private final GetUndeliveredMessagesRequest request;
 
-                    Optional<List<Message>> messageList = server.getQueuedMessages(username);
-                    if (messageList.isPresent()) {
-                        Long timestamp = System.currentTimeMillis();
-                        for (Message message : messageList.get()) {
-                            sendMessage(Message.newBuilder().mergeFrom(message)
-                                    .setSentTimestamp(timestamp)
-                                    .build());
-                        }
-                        Logging.logInfo("All messages delivered to user " + username);
-                        server.unqueueMessages(username);
-                    }
-                } catch(Exception ex){
-                    ex.printStackTrace();
-                    return;
-                }
+        public UndeliveredMessagesHandler(ServerCore server, GetUndeliveredMessagesRequest request,
+                                          ServerCallStreamObserver<GetUndeliveredMessagesReply> observer) {
+            super(observer);
+            this.server = server;
+            this.request = request;
+        }
+
+        public void run() {
+            try {
+                server.streamUndeliveredMessagesAPI(request, this);
+                observer.onCompleted();
+            } catch (InterruptedException ex) {
+                Logging.logInfo("Streaming undelivered messages to user " + request.getUsername() + " cancelled.");
+            } catch (ReplicationException ex) {
+                observer.onError(io.grpc.Status.UNAVAILABLE.withDescription(ex.getMessage()).asRuntimeException());
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
         }
     }
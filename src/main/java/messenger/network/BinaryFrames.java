@@ -0,0 +1,218 @@
+package messenger.network;
+
+import messenger.objects.Message;
+import messenger.objects.request.Request;
+import messenger.objects.response.Response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes and decodes the version 2 frames described in `wire_protocol.md`.
+ *
+ * Every frame starts with its total length, so the receiver can read the
+ * whole frame into a (pooled) buffer with a single read and parse it in
+ * place. Strings are UTF-8 encoded with a 4 byte length, so unlike the
+ * version 1 frames they are not limited to 64KB, and they are only decoded
+ * once they are accessed (see `Utf8Fields`).
+ */
+public class BinaryFrames {
+    // Frames larger than this are assumed to be malicious and dropped.
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    /**
+     * Reads the next frame into a buffer.
+     * @param connection    The connection to read from.
+     * @param pool          The pool to take the buffer from, or null to allocate one.
+     * @return              The frame, in read mode.
+     * @throws IOException  Thrown on network exception or if the frame is too large.
+     */
+    private static ByteBuffer readFrame(Connection connection, BufferPool pool) throws IOException {
+        int length = connection.readInt();
+        checkLength(length);
+        ByteBuffer frame = pool == null ? ByteBuffer.allocate(length) : pool.acquire(length);
+        try {
+            connection.readFully(frame.array(), frame.arrayOffset(), length);
+        } catch (IOException e) {
+            if (pool != null) pool.release(frame);
+            throw e;
+        }
+        return frame;
+    }
+
+    /**
+     * Reads a request from the connection into a pooled buffer. The request
+     * must be released once it has been handled, which returns the buffer.
+     * @param connection    The connection to read from.
+     * @param pool          The pool to take the buffer from.
+     * @return              The request, whose arguments are decoded lazily.
+     * @throws IOException  Thrown on network exception or if the frame is malformed.
+     */
+    public static Request readRequest(Connection connection, BufferPool pool) throws IOException {
+        return parseRequest(readFrame(connection, pool), pool);
+    }
+
+    /**
+     * Decodes a single request from the buffer, if it has been fully received.
+     * On success the position of the buffer is moved past the request,
+     * otherwise the buffer is left untouched. The frame is copied to a pooled
+     * buffer, which is returned once the request is released.
+     *
+     * @param buffer        A buffer in read mode.
+     * @param pool          The pool to take the buffer from.
+     * @return              The decoded request, or null if it is incomplete.
+     * @throws IOException  Thrown if the frame is malformed.
+     */
+    public static Request decodeRequest(ByteBuffer buffer, BufferPool pool) throws IOException {
+        if (buffer.remaining() < 4) return null;
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+        if (buffer.remaining() < 4 + length) return null;
+
+        buffer.getInt();
+        ByteBuffer frame = pool.acquire(length);
+        ByteBuffer source = buffer.duplicate();
+        source.limit(source.position() + length);
+        frame.put(source).flip();
+        buffer.position(buffer.position() + length);
+        return parseRequest(frame, pool);
+    }
+
+    private static Request parseRequest(ByteBuffer frame, BufferPool pool) throws IOException {
+        try {
+            if (frame.remaining() < 8) {
+                throw new IOException("Malformed frame: truncated request header");
+            }
+            int methodId = frame.getInt();
+            List<String> arguments = Utf8Fields.parse(frame, frame.getInt());
+            return new Request(methodId, arguments, () -> pool.release(frame));
+        } catch (IOException e) {
+            pool.release(frame);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a request and flushes the connection.
+     * @param connection    The connection to write to.
+     * @param request       The request to send.
+     * @throws IOException  Thrown on network exception.
+     */
+    public static void writeRequest(Connection connection, Request request) throws IOException {
+        byte[][] arguments = encodeAll(request.getArguments());
+        // Method identifier, number of arguments and the arguments.
+        connection.writeInt(8 + encodedLength(arguments));
+        connection.writeInt(request.getMethodId());
+        writeFields(connection, arguments);
+        connection.flushOutput();
+    }
+
+    /**
+     * Reads a response from the connection.
+     * @param connection    The connection to read from.
+     * @return              The response, whose fields are decoded lazily.
+     * @throws IOException  Thrown on network exception or if the frame is malformed.
+     */
+    public static Response readResponse(Connection connection) throws IOException {
+        ByteBuffer frame = readFrame(connection, null);
+        if (frame.remaining() < 8) {
+            throw new IOException("Malformed frame: truncated response header");
+        }
+        Boolean success = frame.getInt() > 0;
+        return new Response(success, Utf8Fields.parse(frame, frame.getInt()));
+    }
+
+    /**
+     * Writes a response and flushes the connection.
+     * @param connection    The connection to write to.
+     * @param response      The response to send.
+     * @throws IOException  Thrown on network exception.
+     */
+    public static void writeResponse(Connection connection, Response response) throws IOException {
+        byte[][] responses = encodeAll(response.getResponses());
+        // Success, number of responses and the responses.
+        connection.writeInt(8 + encodedLength(responses));
+        connection.writeInt(response.isSuccessful() ? 1 : 0);
+        writeFields(connection, responses);
+        connection.flushOutput();
+    }
+
+    /**
+     * Reads a message from the connection.
+     * @param connection    The connection to read from.
+     * @return              The message.
+     * @throws IOException  Thrown on network exception or if the frame is malformed.
+     */
+    public static Message readMessage(Connection connection) throws IOException {
+        ByteBuffer frame = readFrame(connection, null);
+        if (frame.remaining() < 8) {
+            throw new IOException("Malformed frame: truncated message header");
+        }
+        Long sentTimestamp = frame.getLong();
+        List<String> fields = Utf8Fields.parse(frame, 3);
+        return new Message(sentTimestamp, fields.get(0), fields.get(1), fields.get(2));
+    }
+
+    /**
+     * Writes a message without flushing the connection, so that a batch of
+     * messages can be sent at once. Marks the message as delivered.
+     * @param connection    The connection to write to.
+     * @param message       The message to send.
+     * @throws IOException  Thrown on network exception.
+     */
+    public static void writeMessage(Connection connection, Message message) throws IOException {
+        byte[][] fields = new byte[][] {
+                encode(message.getSender()), encode(message.getRecepient()), encode(message.getMessage())};
+        // Timestamp and the (fixed number of) fields.
+        connection.writeInt(8 + encodedLength(fields));
+        connection.writeLong(message.getSentTimestamp());
+        for (byte[] field : fields) {
+            connection.writeInt(field.length);
+            connection.writeBytes(field);
+        }
+
+        message.setDeliveredTimestamp(System.currentTimeMillis());
+    }
+
+    private static byte[] encode(String field) {
+        return field.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] encodeAll(List<String> fields) {
+        byte[][] encoded = new byte[fields.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = encode(fields.get(i));
+        }
+        return encoded;
+    }
+
+    /**
+     * The number of bytes taken by the given fields, including their lengths.
+     */
+    private static int encodedLength(byte[][] fields) {
+        int length = 0;
+        for (byte[] field : fields) {
+            length += 4 + field.length;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a count followed by the given fields.
+     */
+    private static void writeFields(Connection connection, byte[][] fields) throws IOException {
+        connection.writeInt(fields.length);
+        for (byte[] field : fields) {
+            connection.writeInt(field.length);
+            connection.writeBytes(field);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package messenger.network;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized heap ByteBuffers into which frames are read, so
+ * that receiving a frame does not allocate in the common case. Frames larger
+ * than the pooled buffers get a buffer of their own, which is not pooled.
+ *
+ * The pool may be shared by any number of threads.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * Create an empty pool.
+     * @param bufferSize    The capacity of each pooled buffer.
+     * @param maxPooled     The maximum number of idle buffers kept in the pool.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a buffer out of the pool, allocating one if none are idle.
+     * @param length    The number of bytes the buffer must hold.
+     * @return          A cleared buffer whose limit is set to `length`.
+     */
+    public ByteBuffer acquire(int length) {
+        if (length > bufferSize) {
+            return ByteBuffer.allocate(length);
+        }
+
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        } else {
+            pooled.decrementAndGet();
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must no longer be used by the
+     * caller, including by any fields lazily decoded from it.
+     * @param buffer    A buffer obtained from `acquire`.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer);
+    }
+}
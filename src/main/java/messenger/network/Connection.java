@@ -2,19 +2,33 @@ package messenger.network;
 
 import messenger.util.Logging;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages an input / output DataStream connection. This is designed
  * to be modular so that it can be easily mocked for integration tests.
+ *
+ * Both directions are buffered, so writes are only sent over the network
+ * once `flushOutput` is called. Callers writing several frames in a row
+ * (e.g. a batch of messages) should flush once after the last frame.
+ *
+ * When several threads write to the same connection (e.g. a multiplexed
+ * connection carrying both responses and messages), each frame should be
+ * written between `lockOutput` and `unlockOutput` so frames never interleave.
  */
 public class Connection {
     private final Socket clientSocket;
     private final DataInputStream inputStream;
     private final DataOutputStream outputStream;
+    private final ReentrantLock outputLock = new ReentrantLock();
 
     /**
      * Generates a Connection object from a socket.
@@ -24,8 +38,21 @@ public class Connection {
      */
     public Connection(Socket socket) throws IOException {
         this.clientSocket = socket;
-        this.inputStream = new DataInputStream(socket.getInputStream());
-        this.outputStream = new DataOutputStream(socket.getOutputStream());
+        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Generates a Connection object directly from a pair of streams, e.g.
+     * to decode or encode a frame held in memory.
+     *
+     * @param input     Stream to read from.
+     * @param output    Stream to write to.
+     */
+    public Connection(InputStream input, OutputStream output) {
+        this.clientSocket = null;
+        this.inputStream = new DataInputStream(input);
+        this.outputStream = new DataOutputStream(output);
     }
 
     /**
@@ -39,7 +66,19 @@ public class Connection {
             outputStream.close();
         }
         if (outputStream != null) inputStream.close();
-        clientSocket.close();
+        if (clientSocket != null) clientSocket.close();
+    }
+
+    /**
+     * Reads the next integer from the stream, without consuming it.
+     * @return              The next integer.
+     * @throws IOException  Thrown on network exception
+     */
+    public int peekInt() throws IOException {
+        inputStream.mark(4);
+        int next = inputStream.readInt();
+        inputStream.reset();
+        return next;
     }
 
     /**
@@ -98,6 +137,26 @@ public class Connection {
         outputStream.writeUTF(toSend);
     }
 
+    /**
+     * Reads exactly the given number of bytes from the stream.
+     * @param bytes         The array to read into.
+     * @param offset        The offset in the array to start at.
+     * @param length        The number of bytes to read.
+     * @throws IOException  Thrown on network exception
+     */
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        inputStream.readFully(bytes, offset, length);
+    }
+
+    /**
+     * Writes raw bytes to the stream.
+     * @param toSend        Bytes to send over network
+     * @throws IOException  Thrown on network exception
+     */
+    public void writeBytes(byte[] toSend) throws IOException {
+        outputStream.write(toSend);
+    }
+
     /**
      * Flush any message yet to be sent.
      * @throws IOException  Thrown on network exception
@@ -106,4 +165,19 @@ public class Connection {
         outputStream.flush();
     }
 
+    /**
+     * Acquires exclusive access to the output stream, so a frame can be
+     * written without frames from other threads interleaving with it.
+     */
+    public void lockOutput() {
+        outputLock.lock();
+    }
+
+    /**
+     * Releases the access acquired by `lockOutput`.
+     */
+    public void unlockOutput() {
+        outputLock.unlock();
+    }
+
 }
@@ -0,0 +1,154 @@
+package messenger.network;
+
+import messenger.objects.Message;
+import messenger.objects.request.Request;
+import messenger.objects.response.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Converts between ByteBuffers and the frames described in `wire_protocol.md`,
+ * for use with non-blocking channels. Bytes arrive on such channels in arbitrary
+ * chunks, so a request is only decoded once all of its bytes have been received.
+ *
+ * The actual encoding and decoding is delegated to the existing `writeToStream`
+ * and `genRequest` methods, so both server modes share the exact same framing.
+ */
+public class FrameCodec {
+
+    /**
+     * Computes the length of the request frame at the current position of the
+     * buffer, without moving the position.
+     *
+     * @param buffer    A buffer in read mode.
+     * @return          The length in bytes of the frame, or -1 if the buffer
+     *                  does not yet hold the complete frame.
+     */
+    public static int requestFrameLength(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        // Method identifier followed by the number of arguments
+        if (limit - start < 8) return -1;
+        int numArguments = buffer.getInt(start + 4);
+        int offset = start + 8;
+        for (int i = 0; i < numArguments; i++) {
+            // Each argument is a UTF string, prefixed by a 2 byte length
+            if (limit - offset < 2) return -1;
+            offset += 2 + (buffer.getShort(offset) & 0xFFFF);
+            if (offset > limit) return -1;
+        }
+        return offset - start;
+    }
+
+    /**
+     * Decodes a single request from the buffer, if it has been fully received.
+     * On success the position of the buffer is moved past the request,
+     * otherwise the buffer is left untouched.
+     *
+     * @param buffer        A buffer in read mode.
+     * @return              The decoded request, or null if it is incomplete.
+     * @throws IOException  Thrown if the frame is malformed.
+     */
+    public static Request decodeRequest(ByteBuffer buffer) throws IOException {
+        int length = requestFrameLength(buffer);
+        if (length < 0) return null;
+
+        byte[] frame = new byte[length];
+        buffer.get(frame);
+        return Request.genRequest(new Connection(new ByteArrayInputStream(frame), OutputStream.nullOutputStream()));
+    }
+
+    /**
+     * Decodes a single request from the buffer according to the negotiated
+     * protocol, if it has been fully received (including its identifier). On
+     * success the position of the buffer is moved past the request, otherwise
+     * the buffer is left untouched.
+     *
+     * @param protocol      The protocol negotiated for the connection.
+     * @param buffer        A buffer in read mode.
+     * @param pool          The pool providing buffers for version 2 frames.
+     * @return              The decoded request, or null if it is incomplete.
+     * @throws IOException  Thrown if the frame is malformed.
+     */
+    public static Request decodeRequest(Protocol protocol, ByteBuffer buffer, BufferPool pool) throws IOException {
+        int start = buffer.position();
+        int requestId = 0;
+        if (protocol.hasRequestIds()) {
+            if (buffer.remaining() < 4) return null;
+            requestId = buffer.getInt();
+        }
+
+        Request request = protocol.isV2() ? BinaryFrames.decodeRequest(buffer, pool) : decodeRequest(buffer);
+        if (request == null) {
+            buffer.position(start);
+            return null;
+        }
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    /**
+     * Decodes the protocol header, which may only be sent as the very first
+     * bytes of a connection. On success the position of the buffer is moved
+     * past the header, otherwise the buffer is left untouched.
+     *
+     * @param buffer    A buffer in read mode.
+     * @return          The negotiated protocol, `Protocol.LEGACY` if the client
+     *                  sent a request instead of the header, or null if the
+     *                  header is incomplete.
+     */
+    public static Protocol decodeProtocol(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) return null;
+        if (buffer.getInt(buffer.position()) != Protocol.MAGIC) return Protocol.LEGACY;
+        if (buffer.remaining() < 8) return null;
+
+        buffer.getInt();
+        return Protocol.supported(buffer.getInt());
+    }
+
+    /**
+     * Encodes the reply to the protocol header, i.e. the accepted flags.
+     * @param protocol  The negotiated protocol.
+     * @return          A buffer in read mode.
+     */
+    public static ByteBuffer encode(Protocol protocol) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(protocol.getFlags());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a response into a buffer ready to be written to a channel.
+     * @param protocol      The protocol negotiated for the connection.
+     * @param requestId     The identifier of the request being responded to.
+     * @param response      The response to encode.
+     * @return              A buffer in read mode.
+     * @throws IOException  Thrown on encoding exception.
+     */
+    public static ByteBuffer encode(Protocol protocol, int requestId, Response response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        protocol.writeResponse(new Connection(InputStream.nullInputStream(), bytes), requestId, response);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Encodes a batch of messages into a single buffer ready to be written to
+     * a channel, so that the batch is sent with as few writes as possible.
+     * @param protocol      The protocol negotiated for the connection.
+     * @param messages      The messages to encode.
+     * @return              A buffer in read mode.
+     * @throws IOException  Thrown on encoding exception.
+     */
+    public static ByteBuffer encode(Protocol protocol, List<Message> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        protocol.writeMessages(new Connection(InputStream.nullInputStream(), bytes), messages);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
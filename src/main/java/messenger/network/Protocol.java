@@ -0,0 +1,222 @@
+package messenger.network;
+
+import messenger.objects.Message;
+import messenger.objects.request.Request;
+import messenger.objects.response.Response;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The protocol options negotiated when a client connects, along with the
+ * helpers for writing server-to-client frames according to those options.
+ *
+ * A client which wants any option sends a header of `MAGIC` followed by the
+ * requested flags as the very first thing on the connection, and the server
+ * replies with the flags it accepted. Clients which do not send the header
+ * (their first int is a method identifier instead) get the legacy protocol.
+ *
+ * When `MULTIPLEXED` is accepted, responses and messages are both sent over
+ * the API connection, each frame being prefixed with `FRAME_RESPONSE` or
+ * `FRAME_MESSAGE`. No separate connection on `Constants.MESSAGE_PORT` is made.
+ *
+ * When `V2` is accepted, requests, responses and messages (on every connection
+ * of the client) use the length-prefixed frames of `BinaryFrames` instead of
+ * the original version 1 frames.
+ *
+ * When `REQUEST_IDS` is accepted, every request is prefixed with an identifier
+ * chosen by the client, and the response to it is prefixed with the same
+ * identifier. Clients may then send further requests before the responses
+ * to earlier ones have arrived (see `RequestPipeline`).
+ */
+public class Protocol {
+    // Spells "MSGR"; chosen so it can never be mistaken for a method identifier.
+    public static final int MAGIC = 0x4D534752;
+
+    public static final int MULTIPLEXED = 1;
+    public static final int V2 = 2;
+    public static final int REQUEST_IDS = 4;
+    // The flags the server understands.
+    public static final int SUPPORTED_FLAGS = MULTIPLEXED | V2 | REQUEST_IDS;
+
+    public static final int FRAME_RESPONSE = 0;
+    public static final int FRAME_MESSAGE = 1;
+
+    public static final Protocol LEGACY = new Protocol(0);
+
+    private final int flags;
+
+    public Protocol(int flags) {
+        this.flags = flags;
+    }
+
+    /**
+     * Gets the negotiated flags
+     * @return The flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Whether messages are sent over the same connection as responses.
+     * @return True if multiplexed
+     */
+    public Boolean isMultiplexed() {
+        return (flags & MULTIPLEXED) != 0;
+    }
+
+    /**
+     * Whether the version 2 frames are used.
+     * @return True if version 2
+     */
+    public Boolean isV2() {
+        return (flags & V2) != 0;
+    }
+
+    /**
+     * Whether requests and responses are prefixed with request identifiers.
+     * @return True if request identifiers are used
+     */
+    public Boolean hasRequestIds() {
+        return (flags & REQUEST_IDS) != 0;
+    }
+
+    /**
+     * Client side: sends the protocol header and waits for the flags accepted
+     * by the server.
+     * @param connection    The freshly opened connection to the server.
+     * @param flags         The requested flags.
+     * @return              The negotiated protocol.
+     * @throws IOException  Thrown on network exception.
+     */
+    public static Protocol negotiate(Connection connection, int flags) throws IOException {
+        connection.writeInt(MAGIC);
+        connection.writeInt(flags);
+        connection.flushOutput();
+        return new Protocol(connection.readInt());
+    }
+
+    /**
+     * Server side: reads the requested flags following the `MAGIC` header, and
+     * replies with the subset of them which the server supports.
+     * @param connection    The connection to the client, positioned just after `MAGIC`.
+     * @return              The negotiated protocol.
+     * @throws IOException  Thrown on network exception.
+     */
+    public static Protocol accept(Connection connection) throws IOException {
+        Protocol accepted = supported(connection.readInt());
+        connection.writeInt(accepted.getFlags());
+        connection.flushOutput();
+        return accepted;
+    }
+
+    /**
+     * Server side: the protocol consisting of the requested flags which the
+     * server supports.
+     * @param requestedFlags    The flags requested by the client.
+     * @return                  The negotiated protocol.
+     */
+    public static Protocol supported(int requestedFlags) {
+        return new Protocol(requestedFlags & SUPPORTED_FLAGS);
+    }
+
+    /**
+     * Reads a request frame. The request must be released once handled.
+     * @param connection    The connection to read from.
+     * @param pool          The pool providing buffers for version 2 frames.
+     * @return              The request.
+     * @throws IOException  Thrown on network exception.
+     */
+    public Request readRequest(Connection connection, BufferPool pool) throws IOException {
+        int requestId = hasRequestIds() ? connection.readInt() : 0;
+        Request request = isV2() ? BinaryFrames.readRequest(connection, pool) : Request.genRequest(connection);
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    /**
+     * Writes a request frame and flushes the connection.
+     * @param connection    The connection to write to.
+     * @param requestId     The identifier of the request, if request identifiers are used.
+     * @param request       The request to send.
+     * @throws IOException  Thrown on network exception.
+     */
+    public void writeRequest(Connection connection, int requestId, Request request) throws IOException {
+        if (hasRequestIds()) connection.writeInt(requestId);
+        if (isV2()) {
+            BinaryFrames.writeRequest(connection, request);
+        } else {
+            request.writeToStream(connection);
+        }
+    }
+
+    /**
+     * Reads a response frame. On multiplexed connections, the frame type must
+     * already have been read, and so must the request identifier if used.
+     * @param connection    The connection to read from.
+     * @return              The response.
+     * @throws IOException  Thrown on network exception.
+     */
+    public Response readResponse(Connection connection) throws IOException {
+        if (isV2()) return BinaryFrames.readResponse(connection);
+        return Response.genResponse(connection);
+    }
+
+    /**
+     * Reads a message frame. On multiplexed connections, the frame type must
+     * already have been read.
+     * @param connection    The connection to read from.
+     * @return              The message.
+     * @throws IOException  Thrown on network exception.
+     */
+    public Message readMessage(Connection connection) throws IOException {
+        if (isV2()) return BinaryFrames.readMessage(connection);
+        return Message.genMessage(connection);
+    }
+
+    /**
+     * Writes a response frame and flushes the connection.
+     * @param connection    The connection to write to.
+     * @param requestId     The identifier of the request being responded to.
+     * @param response      The response to send.
+     * @throws IOException  Thrown on network exception.
+     */
+    public void writeResponse(Connection connection, int requestId, Response response) throws IOException {
+        connection.lockOutput();
+        try {
+            if (isMultiplexed()) connection.writeInt(FRAME_RESPONSE);
+            if (hasRequestIds()) connection.writeInt(requestId);
+            if (isV2()) {
+                BinaryFrames.writeResponse(connection, response);
+            } else {
+                response.writeToStream(connection);
+            }
+        } finally {
+            connection.unlockOutput();
+        }
+    }
+
+    /**
+     * Writes a batch of message frames and flushes the connection once.
+     * @param connection    The connection to write to.
+     * @param messages      The messages to send.
+     * @throws IOException  Thrown on network exception.
+     */
+    public void writeMessages(Connection connection, List<Message> messages) throws IOException {
+        connection.lockOutput();
+        try {
+            for (Message message : messages) {
+                if (isMultiplexed()) connection.writeInt(FRAME_MESSAGE);
+                if (isV2()) {
+                    BinaryFrames.writeMessage(connection, message);
+                } else {
+                    message.writeToStream(connection);
+                }
+            }
+            connection.flushOutput();
+        } finally {
+            connection.unlockOutput();
+        }
+    }
+}
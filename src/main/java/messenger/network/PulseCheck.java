@@ -10,8 +10,21 @@ import messenger.util.Logging;
 import java.io.IOException;
 
 public class PulseCheck implements Runnable {
+    // The default time between checks of the connection.
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+
     private final ClientCore core;
     private final ClientGRPC client;
+    private final long intervalMillis = intervalFromSystemProperties();
+
+    /**
+     * Reads the time between checks of the connection from the
+     * `messenger.client.pulseMs` system property.
+     * @return  The interval in milliseconds.
+     */
+    public static long intervalFromSystemProperties() {
+        return Long.getLong("messenger.client.pulseMs", DEFAULT_INTERVAL_MILLIS);
+    }
 
     public PulseCheck(ClientGRPC client) {
         this.client = client;
@@ -22,7 +35,7 @@ public class PulseCheck implements Runnable {
     public void run() {
         while (true) {
             try {
-                Thread.sleep(1000);
+                Thread.sleep(intervalMillis);
                 if (core.getExit()) break;
                 if (!core.getConnectionStatus()) {
                     // Attempt handshake
@@ -0,0 +1,122 @@
+package messenger.network;
+
+import messenger.objects.Message;
+import messenger.objects.request.Request;
+import messenger.objects.response.Response;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Client side of a connection on which any number of requests may be in
+ * flight at once. Requests are written as soon as they are sent, and their
+ * responses are read by a separate thread (running this Runnable), which
+ * completes the future returned for each request.
+ *
+ * If request identifiers were negotiated, responses are matched to requests
+ * by their identifier; otherwise the server responds in order, so responses
+ * are matched to requests in the order the requests were sent. On multiplexed
+ * connections, messages are passed to the message listener.
+ */
+public class RequestPipeline implements Runnable {
+    private final Connection connection;
+    private final Protocol protocol;
+    private final Consumer<Message> messageListener;
+
+    // Requests which have not been responded to yet, by identifier.
+    private final Map<Integer, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    // The identifiers of the pending requests in the order they were sent,
+    // only used if the protocol does not include the identifiers.
+    private final Queue<Integer> sendOrder = new ConcurrentLinkedQueue<>();
+    // Only accessed while holding the output lock of the connection.
+    private int nextRequestId = 1;
+    private volatile IOException failure = null;
+
+    /**
+     * Create a pipeline on a connection, after the protocol has been negotiated.
+     * @param connection        The connection to the server.
+     * @param protocol          The negotiated protocol.
+     * @param messageListener   Called with messages received over a multiplexed connection.
+     */
+    public RequestPipeline(Connection connection, Protocol protocol, Consumer<Message> messageListener) {
+        this.connection = connection;
+        this.protocol = protocol;
+        this.messageListener = messageListener;
+    }
+
+    /**
+     * Sends a request without waiting for the response. May be called from
+     * any thread.
+     * @param request       The request to send.
+     * @return              A future completed with the response, or completed
+     *                      exceptionally if the connection is lost first.
+     * @throws IOException  Thrown on network exception.
+     */
+    public CompletableFuture<Response> send(Request request) throws IOException {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        connection.lockOutput();
+        try {
+            if (failure != null) throw failure;
+            int requestId = nextRequestId++;
+            pending.put(requestId, response);
+            if (!protocol.hasRequestIds()) sendOrder.add(requestId);
+            protocol.writeRequest(connection, requestId, request);
+        } finally {
+            connection.unlockOutput();
+        }
+        return response;
+    }
+
+    /**
+     * The number of requests waiting for a response.
+     * @return  The number of requests in flight.
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Reads frames until the connection is lost, completing the futures of the
+     * requests being responded to.
+     */
+    public void run() {
+        try {
+            while (true) {
+                if (protocol.isMultiplexed()) {
+                    int frameType = connection.readInt();
+                    if (frameType == Protocol.FRAME_MESSAGE) {
+                        messageListener.accept(protocol.readMessage(connection));
+                        continue;
+                    } else if (frameType != Protocol.FRAME_RESPONSE) {
+                        throw new IOException("Unknown frame type " + frameType);
+                    }
+                }
+
+                Integer requestId = protocol.hasRequestIds() ? connection.readInt() : sendOrder.poll();
+                Response response = protocol.readResponse(connection);
+                CompletableFuture<Response> future = requestId == null ? null : pending.remove(requestId);
+                if (future == null) {
+                    throw new IOException("Received a response to an unknown request " + requestId);
+                }
+                future.complete(response);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            if (failure == null) failure = new IOException("Connection to server lost");
+            // Fail any request still waiting, including those sent concurrently.
+            connection.lockOutput();
+            try {
+                pending.values().forEach(future -> future.completeExceptionally(failure));
+                pending.clear();
+            } finally {
+                connection.unlockOutput();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package messenger.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+
+/**
+ * A list of length-prefixed UTF-8 strings which are parsed in place from a
+ * frame buffer. Only the offsets of the strings are recorded up front; each
+ * string is decoded the first time it is accessed.
+ *
+ * The list is only valid as long as the underlying buffer is not reused.
+ */
+public class Utf8Fields extends AbstractList<String> {
+    private final ByteBuffer buffer;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final String[] decoded;
+
+    private Utf8Fields(ByteBuffer buffer, int[] offsets, int[] lengths) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.decoded = new String[offsets.length];
+    }
+
+    /**
+     * Records the positions of the given number of fields, starting at the
+     * current position of the buffer, and moves the position past them.
+     *
+     * @param buffer        A buffer in read mode.
+     * @param count         The number of fields.
+     * @return              The fields.
+     * @throws IOException  Thrown if the fields do not fit in the buffer.
+     */
+    public static Utf8Fields parse(ByteBuffer buffer, int count) throws IOException {
+        // Every field takes at least 4 bytes, which bounds any sane count.
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IOException("Malformed frame: invalid number of fields " + count);
+        }
+
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 4) {
+                throw new IOException("Malformed frame: truncated field length");
+            }
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Malformed frame: invalid field length " + length);
+            }
+            offsets[i] = buffer.position();
+            lengths[i] = length;
+            buffer.position(buffer.position() + length);
+        }
+        return new Utf8Fields(buffer, offsets, lengths);
+    }
+
+    /**
+     * Decodes the field, if it has not been decoded already.
+     * @param index The index of the field.
+     * @return      The field.
+     */
+    @Override
+    public String get(int index) {
+        if (decoded[index] == null) {
+            if (buffer.hasArray()) {
+                decoded[index] = new String(buffer.array(), buffer.arrayOffset() + offsets[index],
+                        lengths[index], StandardCharsets.UTF_8);
+            } else {
+                ByteBuffer field = buffer.duplicate();
+                field.limit(offsets[index] + lengths[index]).position(offsets[index]);
+                decoded[index] = StandardCharsets.UTF_8.decode(field).toString();
+            }
+        }
+        return decoded[index];
+    }
+
+    @Override
+    public int size() {
+        return offsets.length;
+    }
+}
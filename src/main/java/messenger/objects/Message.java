@@ -102,7 +102,8 @@ public class Message extends Object {
     }
 
     /**
-     * Writes a message to the stream over the given Connection.
+     * Writes a message to the stream over the given Connection. The connection
+     * is not flushed, so that a batch of messages can be sent at once.
      * @param connection    The connection to use to send messages.
      * @throws IOException  Thrown on network exception.
      */
@@ -111,7 +112,6 @@ public class Message extends Object {
         connection.writeString(sender);
         connection.writeString(receiver);
         connection.writeString(message);
-        connection.flushOutput();
 
         setDeliveredTimestamp(System.currentTimeMillis());
     }
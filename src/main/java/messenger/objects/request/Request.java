@@ -12,6 +12,10 @@ import java.util.List;
 public class Request {
     private final int methodId;
     private final List<String> arguments;
+    // Returns the buffer the request was parsed from, if any.
+    private final Runnable releaser;
+    // Identifies the request on connections which use request identifiers.
+    private int requestId = 0;
 
     /**
      * Form a Request object with the given
@@ -20,8 +24,20 @@ public class Request {
      * @param arguments The arguments
      */
     public Request(int methodId, List<String> arguments) {
+        this(methodId, arguments, null);
+    }
+
+    /**
+     * Form a Request object whose arguments are backed by a pooled buffer,
+     * which is returned by calling `release`.
+     * @param methodID The method ID
+     * @param arguments The arguments
+     * @param releaser Returns the buffer backing the arguments
+     */
+    public Request(int methodId, List<String> arguments, Runnable releaser) {
         this.methodId = methodId;
         this.arguments = arguments;
+        this.releaser = releaser;
     }
 
     /**
@@ -30,8 +46,17 @@ public class Request {
      */
     public static Request genRequest(Connection connection) throws IOException {
         // Read method identifier
+        return genRequest(connection, connection.readInt());
+    }
+
+    /**
+     * Form a Request object by reading from a connection, when the method
+     * identifier has already been read.
+     * @input connection    A connection object to read from
+     * @input methodId      The method identifier which was already read
+     */
+    public static Request genRequest(Connection connection, int methodId) throws IOException {
         List<String> arguments = new ArrayList<>();
-        int methodId = connection.readInt();
         int numArguments = connection.readInt();
         // All methods currently expect one argument
         while (numArguments > 0) {
@@ -51,6 +76,21 @@ public class Request {
         return this.methodId;
     }
 
+    /**
+     * Get the identifier the client assigned to the request
+     */
+    public int getRequestId() {
+        return this.requestId;
+    }
+
+    /**
+     * Set the identifier the client assigned to the request
+     * @param requestId The request identifier
+     */
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
     /**
      * Get the arguments of the request
      */
@@ -58,6 +98,14 @@ public class Request {
         return this.arguments;
     }
 
+    /**
+     * Called once the request has been handled. The arguments must not be
+     * accessed afterwards, since the buffer backing them may be reused.
+     */
+    public void release() {
+        if (releaser != null) releaser.run();
+    }
+
     /**
      * Write to stream corresponding to the connection object
      * @input connection    A connection object to write to
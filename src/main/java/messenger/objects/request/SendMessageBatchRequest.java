@@ -0,0 +1,113 @@
+package messenger.objects.request;
+
+import messenger.api.API;
+import messenger.api.APIException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request object for SendMessageBatch API call. A batch has a single
+ * sender and any number of (recipient, message) pairs, which are all
+ * sent in one round trip.
+ */
+public class SendMessageBatchRequest implements MethodRequestInterface {
+    private final String sender;
+    private final List<String> recipients;
+    private final List<String> messages;
+
+    /**
+     * Specify a SendMessageBatchRequest with the given sender, and
+     * recipients and messages. The i-th message is sent to the i-th recipient.
+     * @param sender        The sender
+     * @param recipients    The recipients
+     * @param messages      The messages
+     */
+    public SendMessageBatchRequest(String sender, List<String> recipients, List<String> messages) {
+        if (recipients.size() != messages.size()) {
+            throw new IllegalArgumentException("Expected one message per recipient, got "
+                    + recipients.size() + " recipients and " + messages.size() + " messages");
+        }
+        this.sender = sender;
+        this.recipients = recipients;
+        this.messages = messages;
+    }
+
+    /**
+     * Converts a generic Request (e.g. received by
+     * the server) into a SendMessageBatchRequest. The arguments are
+     * the sender, followed by each recipient and its message.
+     * @param request       The generic request.
+     * @throws APIException Thrown on API-level exception.
+     */
+    public SendMessageBatchRequest(Request request) throws APIException {
+        List<String> args = request.getArguments();
+        if (args.size() % 2 != 1) {
+            throw new APIException("SendMessageBatchRequest expects a sender followed by " +
+                    "recipient and message pairs, got " + args.size() + " arguments");
+        }
+        this.sender = args.get(0);
+        this.recipients = new ArrayList<>();
+        this.messages = new ArrayList<>();
+        for (int i = 1; i < args.size(); i += 2) {
+            recipients.add(args.get(i));
+            messages.add(args.get(i + 1));
+        }
+    }
+
+    /**
+     * Gets the identifier associated to Send Message Batch
+     * @return The identifier
+     */
+    @Override
+    public int getIdentifier() {
+        return API.SEND_MESSAGE_BATCH.getIdentifier();
+    }
+
+    /**
+     * Creates a generic request assocated with the request
+     * @return The generic request assocated with the request
+     */
+    @Override
+    public Request genGenericRequest() {
+        List<String> args = new ArrayList<>(1 + 2 * recipients.size());
+        args.add(sender);
+        for (int i = 0; i < recipients.size(); i++) {
+            args.add(recipients.get(i));
+            args.add(messages.get(i));
+        }
+        return new Request(getIdentifier(), args);
+    }
+
+    /**
+     * Fetch the sender associated with this request.
+     * @return The sender
+     */
+    public String getSender() {
+        return this.sender;
+    }
+
+    /**
+     * Fetch the number of messages in the batch.
+     * @return The number of messages
+     */
+    public int size() {
+        return recipients.size();
+    }
+
+    /**
+     * Fetch the recipients, in the order of the messages.
+     * @return The recipients
+     */
+    public List<String> getRecipients() {
+        return this.recipients;
+    }
+
+    /**
+     * Fetch the messages, in the order of the recipients.
+     * @return The messages
+     */
+    public List<String> getMessages() {
+        return this.messages;
+    }
+}
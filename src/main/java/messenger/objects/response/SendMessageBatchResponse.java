@@ -0,0 +1,86 @@
+package messenger.objects.response;
+
+import messenger.api.APIException;
+import messenger.objects.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response object for SendMessageBatch API call, with a Status for each
+ * message in the batch, in the order the messages were sent.
+ */
+public class SendMessageBatchResponse implements MethodResponseInterface {
+    private final Boolean success;
+    private final List<Status> statuses;
+
+    /**
+     * Specify a SendMessageBatchResponse with the given
+     * success and per-message statuses.
+     * @param success   Indicates if the batch was processed
+     * @param statuses  The status of each message
+     */
+    public SendMessageBatchResponse(Boolean success, List<Status> statuses) {
+        this.success = success;
+        this.statuses = statuses;
+    }
+
+    /**
+     * Converts a generic Response into a SendMessageBatchResponse. Each
+     * status is encoded as its success indicator followed by its message.
+     * @param response      The generic response.
+     * @throws APIException Thrown on API-level exception.
+     */
+    public SendMessageBatchResponse(Response response) throws APIException {
+        this.success = response.isSuccessful();
+
+        List<String> args = response.getResponses();
+        if (args.size() % 2 != 0) {
+            throw new APIException("SendMessageBatchResponse expects pairs of arguments, got " + args.size());
+        }
+        this.statuses = new ArrayList<>(args.size() / 2);
+        for (int i = 0; i < args.size(); i += 2) {
+            statuses.add(new Status(Boolean.valueOf(args.get(i)), args.get(i + 1)));
+        }
+    }
+
+    /**
+     * Fetch the success indicator associated with this response.
+     * @return The success indicator
+     */
+    public Boolean isSuccessful() {
+        return success;
+    }
+
+    /**
+     * Fetch the status of each message in the batch.
+     * @return The statuses
+     */
+    public List<Status> getStatuses() {
+        return statuses;
+    }
+
+    /**
+     * Get the status string
+     * @return The status string
+     */
+    @Override
+    public String getStringStatus() {
+        long sent = statuses.stream().filter(Status::isSuccess).count();
+        return sent + " of " + statuses.size() + " messages sent.";
+    }
+
+    /**
+     * Creates a generic response assocated with the response
+     * @return The generic response assocated with the response
+     */
+    @Override
+    public Response genGenericResponse() {
+        List<String> args = new ArrayList<>(2 * statuses.size());
+        for (Status status : statuses) {
+            args.add(status.isSuccess().toString());
+            args.add(status.getMessage());
+        }
+        return new Response(success, args);
+    }
+}
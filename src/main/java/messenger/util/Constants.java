@@ -16,4 +16,24 @@ public class Constants {
     public static String getUndeliveredFileName(int offset) {
         return "undelivered_messages" + offset + ".txt";
     }
+
+    public static String getOperationLogFileName(int offset, long generation) {
+        return "operations" + offset + "." + generation + ".log";
+    }
+
+    public static String getSnapshotFileName(int offset) {
+        return "snapshot" + offset + ".log";
+    }
+
+    public static String getMessageStoreDirectoryName(int offset) {
+        return "undelivered_segments" + offset;
+    }
+
+    public static String getSpillDirectoryName(int offset) {
+        return "spilled_messages" + offset;
+    }
+
+    public static String getRaftStateFileName(int offset) {
+        return "raft" + offset + ".state";
+    }
 }
@@ -1,5 +1,7 @@
 package messenger.util;
 
+import io.grpc.Metadata;
+import io.grpc.StatusRuntimeException;
 import messenger.grpc.Message;
 import messenger.grpc.Status;
 import messenger.grpc.StatusReply;
@@ -10,6 +12,43 @@ import java.text.SimpleDateFormat;
  * Utility functions for constructing and working with GRPC objects.
  */
 public class GRPCUtil {
+    // The trailer holding the offset of the primary, sent by the other servers
+    // when failing a call only the primary serves.
+    public static final Metadata.Key<String> LEADER_KEY =
+            Metadata.Key.of("messenger-leader", Metadata.ASCII_STRING_MARSHALLER);
+
+    /**
+     * Create the error failing a call which only the primary serves.
+     * @param leader    The offset of the primary, or -1 if not known.
+     * @return          The error, redirecting the client to the primary if known.
+     */
+    public static StatusRuntimeException notPrimaryException(int leader) {
+        Metadata trailers = new Metadata();
+        String description = "Server is not the primary.";
+        if (leader >= 0) {
+            trailers.put(LEADER_KEY, Integer.toString(leader));
+            description = "Server is not the primary, try server " + leader + ".";
+        }
+        return io.grpc.Status.FAILED_PRECONDITION.withDescription(description).asRuntimeException(trailers);
+    }
+
+    /**
+     * Get the primary a failed call was redirected to.
+     * @param e The failure of the call.
+     * @return  The offset of the primary, or -1 if the call was not redirected.
+     */
+    public static int leaderFromException(StatusRuntimeException e) {
+        Metadata trailers = e.getTrailers();
+        if (trailers == null || trailers.get(LEADER_KEY) == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(trailers.get(LEADER_KEY));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
     /**
      * Simple method to turn a Status into a StatusReply.
      * @param status    The status to convert.
@@ -0,0 +1,194 @@
+package messenger.util;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds messages which did not fit in memory on disk, as one file of JSON
+ * lines per queue. Messages are appended to the end of a queue and taken
+ * from its front, so each queue stays in the order the messages were sent.
+ *
+ * Each queue should only be accessed by one thread at a time (e.g. while
+ * holding the lock of its recipient); different queues may be accessed
+ * concurrently. Nothing is written to disk until a message is spilled.
+ *
+ * @param <T>   The type of the messages.
+ */
+public class MessageSpill<T> {
+    private static final String SUFFIX = ".jsonl";
+
+    private final Path directory;
+    private final Class<T> type;
+    private final Gson gson = new Gson();
+    // The number of messages on disk, by queue.
+    private final Map<String, Integer> sizes = new ConcurrentHashMap<>();
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Create a spill in the given directory, picking up any messages spilled
+     * to the directory previously.
+     * @param directory The directory holding the files.
+     * @param type      The type of the messages.
+     */
+    public MessageSpill(Path directory, Class<T> type) {
+        this.directory = directory;
+        this.type = type;
+        if (!Files.isDirectory(directory)) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int size = Files.readAllLines(file, StandardCharsets.UTF_8).size();
+                sizes.put(decodeKey(name.substring(0, name.length() - SUFFIX.length())), size);
+                total.addAndGet(size);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Logging.logInfo("Failed to read spilled messages from " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create a spill in a new temporary directory, for servers which do not
+     * persist their messages.
+     * @param type  The type of the messages.
+     * @param <T>   The type of the messages.
+     * @return      The spill.
+     */
+    public static <T> MessageSpill<T> temporary(Class<T> type) {
+        Path directory = Path.of(System.getProperty("java.io.tmpdir"),
+                "messenger-spill-" + ProcessHandle.current().pid() + "-" + System.nanoTime());
+        return new MessageSpill<>(directory, type);
+    }
+
+    /**
+     * Get the number of messages on disk for a queue.
+     * @param key   The name of the queue.
+     * @return      The number of messages.
+     */
+    public int size(String key) {
+        return sizes.getOrDefault(key, 0);
+    }
+
+    /**
+     * Get the number of messages on disk across all queues.
+     * @return  The number of messages.
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Appends a message to the end of a queue.
+     * @param key           The name of the queue.
+     * @param message       The message.
+     * @throws IOException  Thrown if the message could not be written.
+     */
+    public void append(String key, T message) throws IOException {
+        Files.createDirectories(directory);
+        try (BufferedWriter writer = Files.newBufferedWriter(fileFor(key), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(gson.toJson(message));
+            writer.newLine();
+        }
+        sizes.merge(key, 1, Integer::sum);
+        total.incrementAndGet();
+    }
+
+    /**
+     * Reads the messages of a queue without removing them.
+     * @param key           The name of the queue.
+     * @return              The messages, oldest first.
+     * @throws IOException  Thrown if the messages could not be read.
+     */
+    public List<T> peek(String key) throws IOException {
+        List<T> messages = new ArrayList<>();
+        if (size(key) == 0) return messages;
+        for (String line : Files.readAllLines(fileFor(key), StandardCharsets.UTF_8)) {
+            messages.add(gson.fromJson(line, type));
+        }
+        return messages;
+    }
+
+    /**
+     * Removes messages from the front of a queue. The rest of the queue is
+     * rewritten, so messages should be taken in batches rather than one by one.
+     * @param key           The name of the queue.
+     * @param max           The maximum number of messages to remove.
+     * @return              The removed messages, oldest first.
+     * @throws IOException  Thrown if the messages could not be read or rewritten.
+     */
+    public List<T> take(String key, int max) throws IOException {
+        List<T> messages = new ArrayList<>();
+        if (size(key) == 0 || max <= 0) return messages;
+        Path file = fileFor(key);
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        int count = Math.min(max, lines.size());
+        for (String line : lines.subList(0, count)) {
+            messages.add(gson.fromJson(line, type));
+        }
+        if (count == lines.size()) {
+            Files.delete(file);
+            sizes.remove(key);
+        } else {
+            Path rest = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(rest, lines.subList(count, lines.size()), StandardCharsets.UTF_8);
+            Files.move(rest, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            sizes.put(key, lines.size() - count);
+        }
+        total.addAndGet(-count);
+        return messages;
+    }
+
+    /**
+     * Removes every message of a queue.
+     * @param key           The name of the queue.
+     * @throws IOException  Thrown if the file could not be deleted.
+     */
+    public void clear(String key) throws IOException {
+        Integer size = sizes.remove(key);
+        if (size != null) {
+            total.addAndGet(-size);
+            Files.deleteIfExists(fileFor(key));
+        }
+    }
+
+    /**
+     * Gets the file holding a queue. Keys contain user names, so they are hex
+     * encoded to give valid file names.
+     * @param key   The name of the queue.
+     * @return      The file.
+     */
+    private Path fileFor(String key) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            name.append(String.format("%02x", b));
+        }
+        return directory.resolve(name + SUFFIX);
+    }
+
+    /**
+     * Decodes the name of a queue from the name of its file.
+     * @param name  The file name, without the suffix.
+     * @return      The name of the queue.
+     */
+    private static String decodeKey(String name) {
+        if (name.length() % 2 != 0) throw new IllegalArgumentException("Unexpected file " + name);
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(name.substring(2 * i, 2 * i + 2), 16);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package messenger.util;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of named counters, which only ever increase, and gauges, whose
+ * value is read whenever the metrics are reported.
+ */
+public class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the counter with the given name, creating it if necessary.
+     * @param name  The name of the counter.
+     * @return      The counter.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name.
+     * @param name  The name of the gauge.
+     * @param value Reads the current value of the gauge.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Reads the current value of every counter and gauge.
+     * @return  The values, by name.
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    /**
+     * Logs the metrics periodically from a daemon thread.
+     * @param intervalSeconds   The number of seconds between reports.
+     * @return                  The executor logging the metrics, which may be shut down to stop.
+     */
+    public ScheduledExecutorService logEvery(long intervalSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> Logging.logInfo("Metrics " + this),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return executor;
+    }
+
+    /**
+     * Reads the interval at which servers should log their metrics from the
+     * `messenger.metrics.interval` system property.
+     * @return  The interval in seconds, or 0 if metrics should not be logged.
+     */
+    public static long intervalFromSystemProperties() {
+        return Long.getLong("messenger.metrics.interval", 0);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,150 @@
+package messenger.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies `QueueLimits` to the per-recipient queues of a server. The limiter
+ * keeps count of the messages held in memory across all queues, while the
+ * server passes in the depth of the queue a message is added to.
+ */
+public class QueueLimiter {
+
+    /**
+     * What to do with a message which is about to be queued.
+     */
+    public enum Admission {
+        // Add the message to the queue.
+        ACCEPT,
+        // Remove the oldest message from the queue, then add the message.
+        DROP_OLDEST,
+        // Write the message to disk instead of the queue.
+        SPILL,
+        // Do not queue the message.
+        REJECT
+    }
+
+    private final QueueLimits limits;
+    // The number of messages in memory, across all queues.
+    private final AtomicLong depth = new AtomicLong();
+    private final LongAdder rejected;
+    private final LongAdder dropped;
+    private final LongAdder spilled;
+
+    /**
+     * Create a limiter, reporting to the given metrics.
+     * @param limits    The limits to apply.
+     * @param metrics   The metrics to report the queue depth and overflows to.
+     */
+    public QueueLimiter(QueueLimits limits, Metrics metrics) {
+        this.limits = limits;
+        this.rejected = metrics.counter("messages.rejected");
+        this.dropped = metrics.counter("messages.dropped");
+        this.spilled = metrics.counter("messages.spilled");
+        metrics.gauge("queue.depth", depth::get);
+    }
+
+    /**
+     * Get the limits applied.
+     * @return  The limits.
+     */
+    public QueueLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Decides what to do with a message about to be added to a queue. If the
+     * message is accepted, it counts towards the total until `release` is called.
+     * @param queueDepth    The number of messages in memory in the queue.
+     * @param spilling      Whether earlier messages for the queue are still on
+     *                      disk, in which case the message is spilled as well so
+     *                      that the queue stays in order.
+     * @return              What to do with the message.
+     */
+    public Admission admit(int queueDepth, boolean spilling) {
+        if (spilling) {
+            spilled.increment();
+            return Admission.SPILL;
+        }
+        if (queueDepth < limits.getMaxPerRecipient() && reserve(1) == 1) {
+            return Admission.ACCEPT;
+        }
+        switch (limits.getPolicy()) {
+            case DROP_OLDEST:
+                // Replacing a message of the same queue keeps the total unchanged.
+                if (queueDepth > 0) {
+                    dropped.increment();
+                    return Admission.DROP_OLDEST;
+                }
+                break;
+            case SPILL_TO_DISK:
+                spilled.increment();
+                return Admission.SPILL;
+            default:
+                break;
+        }
+        rejected.increment();
+        return Admission.REJECT;
+    }
+
+    /**
+     * Counts a rejected message, e.g. when it could not be spilled after all.
+     */
+    public void reject() {
+        rejected.increment();
+    }
+
+    /**
+     * Reserves room for messages being read back from disk into a queue.
+     * @param queueDepth    The number of messages in memory in the queue.
+     * @param count         The number of messages waiting on disk.
+     * @return              The number of messages which may be added to the queue.
+     */
+    public int reserveRoom(int queueDepth, int count) {
+        return (int) reserve(Math.min(count, limits.getMaxPerRecipient() - queueDepth));
+    }
+
+    /**
+     * Counts messages towards the total regardless of the limits, e.g. when
+     * restoring the queues of a server.
+     * @param count The number of messages.
+     */
+    public void acquire(int count) {
+        depth.addAndGet(count);
+    }
+
+    /**
+     * Stops counting messages which have left memory.
+     * @param count The number of messages.
+     */
+    public void release(int count) {
+        depth.addAndGet(-count);
+    }
+
+    /**
+     * Get the number of messages in memory across all queues.
+     * @return  The number of messages.
+     */
+    public long getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Atomically adds as many as possible of `count` messages to the total
+     * without exceeding its limit.
+     * @param count The number of messages.
+     * @return      The number of messages added.
+     */
+    private long reserve(long count) {
+        while (count > 0) {
+            long current = depth.get();
+            long reserved = Math.min(count, limits.getMaxTotal() - current);
+            if (reserved <= 0) {
+                return 0;
+            } else if (depth.compareAndSet(current, current + reserved)) {
+                return reserved;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,97 @@
+package messenger.util;
+
+import java.util.Locale;
+
+/**
+ * Limits on the number of messages a server keeps in memory for recipients
+ * which have not received them yet, and what to do with a message which
+ * would exceed the limits.
+ *
+ * The limits are read from system properties by `fromSystemProperties`:
+ * `messenger.queue.maxPerRecipient`, `messenger.queue.maxTotal` and
+ * `messenger.queue.overflow` (one of `reject`, `drop_oldest` or `spill_to_disk`).
+ */
+public class QueueLimits {
+
+    /**
+     * What to do with a message sent to a recipient whose queue is full.
+     */
+    public enum OverflowPolicy {
+        // Fail the request sending the message.
+        REJECT,
+        // Discard the oldest message in the recipient's queue to make room.
+        DROP_OLDEST,
+        // Write the message to disk, to be read back once the queue has room.
+        SPILL_TO_DISK
+    }
+
+    public static final int DEFAULT_MAX_PER_RECIPIENT = 10_000;
+    public static final long DEFAULT_MAX_TOTAL = 1_000_000;
+
+    private final int maxPerRecipient;
+    private final long maxTotal;
+    private final OverflowPolicy policy;
+
+    /**
+     * Specify the limits on queued messages.
+     * @param maxPerRecipient   The maximum number of messages in memory for a single recipient.
+     * @param maxTotal          The maximum number of messages in memory across all recipients.
+     * @param policy            What to do with messages beyond either limit.
+     */
+    public QueueLimits(int maxPerRecipient, long maxTotal, OverflowPolicy policy) {
+        this.maxPerRecipient = maxPerRecipient;
+        this.maxTotal = maxTotal;
+        this.policy = policy;
+    }
+
+    /**
+     * Limits which are never reached.
+     * @return  The limits.
+     */
+    public static QueueLimits unbounded() {
+        return new QueueLimits(Integer.MAX_VALUE, Long.MAX_VALUE, OverflowPolicy.REJECT);
+    }
+
+    /**
+     * Reads the limits from the system properties, using the defaults for any
+     * property which is not set.
+     * @return  The limits.
+     */
+    public static QueueLimits fromSystemProperties() {
+        int maxPerRecipient = Integer.getInteger("messenger.queue.maxPerRecipient", DEFAULT_MAX_PER_RECIPIENT);
+        long maxTotal = Long.getLong("messenger.queue.maxTotal", DEFAULT_MAX_TOTAL);
+        String policy = System.getProperty("messenger.queue.overflow", OverflowPolicy.REJECT.name());
+        return new QueueLimits(maxPerRecipient, maxTotal,
+                OverflowPolicy.valueOf(policy.toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * Get the maximum number of messages in memory for a single recipient.
+     * @return  The limit.
+     */
+    public int getMaxPerRecipient() {
+        return maxPerRecipient;
+    }
+
+    /**
+     * Get the maximum number of messages in memory across all recipients.
+     * @return  The limit.
+     */
+    public long getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * Get what to do with messages beyond the limits.
+     * @return  The overflow policy.
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d per recipient, %d in total, %s on overflow",
+                maxPerRecipient, maxTotal, policy.name().toLowerCase(Locale.ROOT));
+    }
+}
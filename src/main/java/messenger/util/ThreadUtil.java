@@ -0,0 +1,37 @@
+package messenger.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Helpers for choosing the threads on which the servers run their handlers.
+ */
+public class ThreadUtil {
+
+    /**
+     * Returns an executor which runs every task on a new platform thread
+     * (reusing idle threads where possible).
+     * @return  The executor.
+     */
+    public static ExecutorService newPlatformThreadExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Returns an executor which runs every task on a new virtual thread, so that
+     * blocking socket reads park the task instead of holding an OS thread.
+     * Virtual threads are only available from Java 21, so on older JVMs this
+     * falls back to `newPlatformThreadExecutor`.
+     * @return  The executor.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Logging.logInfo("Virtual threads are not supported by this JVM, using platform threads instead.");
+            return newPlatformThreadExecutor();
+        }
+    }
+}
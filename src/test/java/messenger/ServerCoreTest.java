@@ -1,13 +1,26 @@
 package messenger;
 
 import messenger.objects.Message;
+import messenger.objects.Status;
+import messenger.objects.request.*;
 import messenger.objects.response.*;
+import messenger.util.QueueLimits;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class ServerCoreTest {
 
@@ -133,6 +146,194 @@ public class ServerCoreTest {
         Assertions.assertEquals(TestUtils.testMessage, messageList.get().get(0).getMessage());
     }
 
+    /**
+     * Test sending a batch of messages to a mix of logged in, logged out and
+     * non-existent users. Each message should get its own status.
+     */
+    @Test
+    void testSendMessageBatch() throws Exception {
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser));
+        server.logoutUserAPI(new LogoutRequest(TestUtils.testSecondUser));
+
+        SendMessageBatchRequest request = new SendMessageBatchRequest("sender",
+                Arrays.asList(TestUtils.testUser, "nobody", TestUtils.testSecondUser, TestUtils.testUser),
+                Arrays.asList("first", "lost", "second", "third"));
+        // The batch should survive being sent over the wire.
+        SendMessageBatchResponse response = new SendMessageBatchResponse(server.sendMessageBatchAPI(
+                new SendMessageBatchRequest(request.genGenericRequest())).genGenericResponse());
+        Assertions.assertTrue(response.isSuccessful());
+        List<Status> statuses = response.getStatuses();
+        Assertions.assertEquals(4, statuses.size());
+        Assertions.assertTrue(statuses.get(0).isSuccess());
+        Assertions.assertFalse(statuses.get(1).isSuccess());
+        Assertions.assertEquals("Recipient does not exist.", statuses.get(1).getMessage());
+        Assertions.assertTrue(statuses.get(2).isSuccess());
+        Assertions.assertTrue(statuses.get(3).isSuccess());
+
+        // Messages to the same recipient should be queued in order.
+        List<Message> queued = server.getQueuedMessages(TestUtils.testUser).get();
+        Assertions.assertEquals(2, queued.size());
+        Assertions.assertEquals("first", queued.get(0).getMessage());
+        Assertions.assertEquals("third", queued.get(1).getMessage());
+        List<Message> undelivered = server.getUndeliveredMessagesAPI(
+                new GetUndeliveredMessagesRequest(TestUtils.testSecondUser)).getMessages();
+        Assertions.assertEquals(1, undelivered.size());
+        Assertions.assertEquals("second", undelivered.get(0).getMessage());
+    }
+
+    /**
+     * Sends the messages "0", "1", ... from the test user to itself.
+     * @param count The number of messages to send.
+     * @return      Whether each message was sent.
+     */
+    private List<Boolean> sendToTestUser(int count) {
+        List<Boolean> sent = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SendMessageRequest request = new SendMessageRequest(TestUtils.testUser, TestUtils.testUser, String.valueOf(i));
+            sent.add(server.sendMessageAPI(request).isSuccessful());
+        }
+        return sent;
+    }
+
+    /**
+     * Get the text of the messages queued for the test user.
+     * @return  The text of each message.
+     */
+    private List<String> queuedForTestUser() {
+        List<String> queued = new ArrayList<>();
+        server.getQueuedMessages(TestUtils.testUser).ifPresent(
+                messages -> messages.forEach(message -> queued.add(message.getMessage())));
+        return queued;
+    }
+
+    /**
+     * Messages beyond the per-recipient or total limit should be rejected.
+     */
+    @Test
+    void testQueueLimitReject() {
+        server = new ServerCore(new QueueLimits(2, 3, QueueLimits.OverflowPolicy.REJECT));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser));
+
+        Assertions.assertEquals(Arrays.asList(true, true, false), sendToTestUser(3));
+        Assertions.assertEquals(Arrays.asList("0", "1"), queuedForTestUser());
+
+        // Only one more message fits in total.
+        Assertions.assertTrue(server.sendMessageAPI(new SendMessageRequest(TestUtils.testUser,
+                TestUtils.testSecondUser, "first")).isSuccessful());
+        Assertions.assertFalse(server.sendMessageAPI(new SendMessageRequest(TestUtils.testUser,
+                TestUtils.testSecondUser, "second")).isSuccessful());
+
+        Map<String, Long> metrics = server.getMetrics().snapshot();
+        Assertions.assertEquals(Long.valueOf(3), metrics.get("queue.depth"));
+        Assertions.assertEquals(Long.valueOf(2), metrics.get("queue.max_recipient_depth"));
+        Assertions.assertEquals(Long.valueOf(2), metrics.get("messages.rejected"));
+
+        // Delivering messages makes room again.
+        server.unqueueMessages(TestUtils.testUser, server.getQueuedMessages(TestUtils.testUser).get());
+        Assertions.assertEquals(Long.valueOf(1), server.getMetrics().snapshot().get("queue.depth"));
+        Assertions.assertEquals(Arrays.asList(true, true), sendToTestUser(2));
+    }
+
+    /**
+     * Fetching undelivered messages should remove them, including those spilled
+     * to disk, and make room for new messages.
+     */
+    @Test
+    void testGetUndeliveredMessagesDrains() {
+        server = new ServerCore(new QueueLimits(2, 3, QueueLimits.OverflowPolicy.REJECT));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        server.logoutUserAPI(TestUtils.testLogoutTestUser());
+        Assertions.assertEquals(Arrays.asList(true, true, false), sendToTestUser(3));
+
+        List<Message> messages = server.getUndeliveredMessagesAPI(
+                TestUtils.testGetUndeliveredMessagesToTestUser()).getMessages();
+        Assertions.assertEquals(2, messages.size());
+        Assertions.assertEquals(Long.valueOf(0), server.getMetrics().snapshot().get("queue.depth"));
+        Assertions.assertTrue(server.getUndeliveredMessagesAPI(
+                TestUtils.testGetUndeliveredMessagesToTestUser()).getMessages().isEmpty());
+        Assertions.assertEquals(Arrays.asList(true, true), sendToTestUser(2));
+
+        server = new ServerCore(new QueueLimits(1, 100, QueueLimits.OverflowPolicy.SPILL_TO_DISK));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        server.logoutUserAPI(TestUtils.testLogoutTestUser());
+        Assertions.assertEquals(Arrays.asList(true, true, true), sendToTestUser(3));
+        messages = server.getUndeliveredMessagesAPI(
+                TestUtils.testGetUndeliveredMessagesToTestUser()).getMessages();
+        Assertions.assertEquals(3, messages.size());
+        Assertions.assertEquals("2", messages.get(2).getMessage());
+        Map<String, Long> metrics = server.getMetrics().snapshot();
+        Assertions.assertEquals(Long.valueOf(0), metrics.get("queue.spilled"));
+        Assertions.assertEquals(Long.valueOf(0), metrics.get("queue.depth"));
+    }
+
+    /**
+     * Deleting an account should discard its messages and make room for others.
+     */
+    @Test
+    void testDeleteAccountReleasesQueue() {
+        server = new ServerCore(new QueueLimits(2, 2, QueueLimits.OverflowPolicy.REJECT));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser));
+        Assertions.assertEquals(Arrays.asList(true, true), sendToTestUser(2));
+        Assertions.assertFalse(server.sendMessageAPI(new SendMessageRequest(TestUtils.testUser,
+                TestUtils.testSecondUser, "first")).isSuccessful());
+
+        server.deleteAccountAPI(TestUtils.testDeleteUserRequest(TestUtils.testUser));
+        Assertions.assertEquals(Long.valueOf(0), server.getMetrics().snapshot().get("queue.depth"));
+        Assertions.assertTrue(server.sendMessageAPI(new SendMessageRequest(TestUtils.testSecondUser,
+                TestUtils.testSecondUser, "first")).isSuccessful());
+    }
+
+    /**
+     * Messages beyond the limit should replace the oldest message, and only
+     * the delivered messages which were not dropped should be unqueued.
+     */
+    @Test
+    void testQueueLimitDropOldest() {
+        server = new ServerCore(new QueueLimits(2, 100, QueueLimits.OverflowPolicy.DROP_OLDEST));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+
+        Assertions.assertEquals(Arrays.asList(true, true), sendToTestUser(2));
+        List<Message> delivered = server.getQueuedMessages(TestUtils.testUser).get();
+        // Sent while the first two messages are being delivered.
+        Assertions.assertTrue(server.sendMessageAPI(new SendMessageRequest(TestUtils.testUser,
+                TestUtils.testUser, "2")).isSuccessful());
+        Assertions.assertEquals(Arrays.asList("1", "2"), queuedForTestUser());
+
+        server.unqueueMessages(TestUtils.testUser, delivered);
+        Assertions.assertEquals(Arrays.asList("2"), queuedForTestUser());
+        Map<String, Long> metrics = server.getMetrics().snapshot();
+        Assertions.assertEquals(Long.valueOf(1), metrics.get("messages.dropped"));
+        Assertions.assertEquals(Long.valueOf(1), metrics.get("queue.depth"));
+    }
+
+    /**
+     * Messages beyond the limit should be spilled to disk, and read back in
+     * order as the queue is delivered.
+     */
+    @Test
+    void testQueueLimitSpill() {
+        server = new ServerCore(new QueueLimits(2, 100, QueueLimits.OverflowPolicy.SPILL_TO_DISK));
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+
+        Assertions.assertEquals(Arrays.asList(true, true, true, true, true), sendToTestUser(5));
+        Assertions.assertEquals(Long.valueOf(3), server.getMetrics().snapshot().get("queue.spilled"));
+
+        List<String> delivered = new ArrayList<>();
+        while (server.getQueuedMessages(TestUtils.testUser).isPresent()) {
+            List<Message> messages = server.getQueuedMessages(TestUtils.testUser).get();
+            Assertions.assertTrue(messages.size() <= 2);
+            messages.forEach(message -> delivered.add(message.getMessage()));
+            server.unqueueMessages(TestUtils.testUser, messages);
+        }
+        Assertions.assertEquals(Arrays.asList("0", "1", "2", "3", "4"), delivered);
+        Map<String, Long> metrics = server.getMetrics().snapshot();
+        Assertions.assertEquals(Long.valueOf(0), metrics.get("queue.spilled"));
+        Assertions.assertEquals(Long.valueOf(0), metrics.get("queue.depth"));
+    }
+
     /**
      * Test whether logging a user out correctly removes them from
      * the loggedIn users set.
@@ -161,4 +362,116 @@ public class ServerCoreTest {
         LoginResponse response = server.loginUserAPI(TestUtils.testLoginRequest(TestUtils.testUser));
         Assertions.assertFalse(response.isSuccessful());
     }
+
+    /**
+     * A dispatcher waiting for messages should be woken up as soon as a
+     * message is sent to its user, and the message should stay queued
+     * until it is unqueued.
+     */
+    @Test
+    void testAwaitQueuedMessages() throws Exception {
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        CompletableFuture<Optional<List<Message>>> dispatched = CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.awaitQueuedMessages(TestUtils.testUser);
+            } catch (InterruptedException e) {
+                return Optional.empty();
+            }
+        });
+        server.sendMessageAPI(TestUtils.testSendToTestUser());
+
+        Optional<List<Message>> messageList = dispatched.get(5, TimeUnit.SECONDS);
+        Assertions.assertTrue(messageList.isPresent());
+        Assertions.assertEquals(TestUtils.testMessage, messageList.get().get(0).getMessage());
+
+        // Messages are only removed from the queue once delivered.
+        Assertions.assertTrue(server.getQueuedMessages(TestUtils.testUser).isPresent());
+        server.unqueueMessages(TestUtils.testUser, messageList.get());
+        Assertions.assertFalse(server.getQueuedMessages(TestUtils.testUser).isPresent());
+    }
+
+    /**
+     * A dispatcher waiting for messages should be woken up when its user logs out.
+     */
+    @Test
+    void testAwaitQueuedMessagesLogout() throws Exception {
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        CompletableFuture<Optional<List<Message>>> dispatched = CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.awaitQueuedMessages(TestUtils.testUser);
+            } catch (InterruptedException e) {
+                return Optional.empty();
+            }
+        });
+        server.logoutUserAPI(TestUtils.testLogoutTestUser());
+
+        Assertions.assertFalse(dispatched.get(5, TimeUnit.SECONDS).isPresent());
+    }
+
+    /**
+     * Many senders sending to several recipients at once, while their dispatchers
+     * deliver and unqueue the messages and other accounts are created and listed.
+     * Every message should be delivered exactly once.
+     */
+    @Test
+    void testConcurrentDelivery() throws Exception {
+        int numSenders = 8;
+        int numRecipients = 4;
+        int messagesPerRecipient = 500;
+        for (int i = 0; i < numRecipients; i++) {
+            server.createAccountAPI(new CreateAccountRequest("recipient" + i));
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<List<String>>> dispatchers = new ArrayList<>();
+            for (int i = 0; i < numRecipients; i++) {
+                String recipient = "recipient" + i;
+                dispatchers.add(executor.submit(() -> {
+                    List<String> delivered = new ArrayList<>();
+                    while (delivered.size() < numSenders * messagesPerRecipient) {
+                        List<Message> messageList = server.awaitQueuedMessages(recipient).get();
+                        for (Message message : messageList) {
+                            delivered.add(message.getMessage());
+                        }
+                        server.unqueueMessages(recipient, messageList);
+                    }
+                    return delivered;
+                }));
+            }
+
+            List<Future<?>> senders = new ArrayList<>();
+            for (int i = 0; i < numSenders; i++) {
+                String sender = "sender" + i;
+                senders.add(executor.submit(() -> {
+                    for (int j = 0; j < messagesPerRecipient; j++) {
+                        for (int k = 0; k < numRecipients; k++) {
+                            server.sendMessageAPI(new SendMessageRequest(sender, "recipient" + k, sender + "-" + j));
+                        }
+                    }
+                }));
+            }
+            senders.add(executor.submit(() -> {
+                for (int j = 0; j < 500; j++) {
+                    server.createAccountAPI(new CreateAccountRequest("other" + j));
+                    server.getAccountsAPI(new GetAccountsRequest("other.*"));
+                }
+            }));
+
+            for (Future<?> sender : senders) {
+                sender.get(30, TimeUnit.SECONDS);
+            }
+            for (Future<List<String>> dispatcher : dispatchers) {
+                List<String> delivered = dispatcher.get(30, TimeUnit.SECONDS);
+                Set<String> unique = new HashSet<>(delivered);
+                Assertions.assertEquals(numSenders * messagesPerRecipient, delivered.size());
+                Assertions.assertEquals(delivered.size(), unique.size());
+            }
+            for (int i = 0; i < numRecipients; i++) {
+                Assertions.assertFalse(server.getQueuedMessages("recipient" + i).isPresent());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -10,6 +10,8 @@ import org.mockito.Mockito;
 import java.io.EOFException;
 import java.io.IOException;
 
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -52,4 +54,32 @@ public class ServerIntegrationTest {
             Assertions.fail();
         }
     }
+
+    /**
+     * Test that a MessageHandler delivers all queued messages for its user
+     * and only flushes the connection once for the whole batch.
+     */
+    @Test
+    void integrationTestDeliverQueuedMessages() throws Exception {
+        ServerCore core = new ServerCore();
+        Connection connection = Mockito.mock(Connection.class);
+        core.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        for (int i = 0; i < 3; i++) {
+            core.sendMessageAPI(TestUtils.testSendToTestUser());
+        }
+
+        Thread handler = new Thread(
+                new Server.ClientHandler.MessageHandler(connection, core, TestUtils.testUser));
+        handler.start();
+        // Wait until the messages have been delivered, then log out the user
+        // to stop the handler.
+        while (core.getQueuedMessages(TestUtils.testUser).isPresent()) {
+            Thread.sleep(10);
+        }
+        core.logoutUser(TestUtils.testUser);
+        handler.join(5000);
+
+        verify(connection, times(3)).writeString(TestUtils.testMessage);
+        verify(connection, times(1)).flushOutput();
+    }
 }
@@ -3,6 +3,8 @@ package messenger.grpc;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+
 /**
  * Tests client-specific behavior. The primary responsibility of the
  * client is to maintain a user's logged in state correctly. Thus,
@@ -35,4 +37,49 @@ class ClientTest {
         Assertions.assertFalse(client.isLoggedIn());
     }
 
+    /**
+     * The server which is already the primary should be chosen, otherwise the
+     * server named as the primary, otherwise the first server to respond from
+     * the given offset on.
+     */
+    @Test
+    void testChoosePrimary() {
+        HandshakeResponse backup = HandshakeResponse.newBuilder().setIsPrimary(false).build();
+        HandshakeResponse primary = HandshakeResponse.newBuilder().setIsPrimary(true).build();
+        HandshakeResponse redirect = HandshakeResponse.newBuilder().setIsPrimary(false).setLeader(2).build();
+
+        Assertions.assertEquals(2, ClientGRPC.choosePrimary(Arrays.asList(backup, null, primary), 0));
+        Assertions.assertEquals(2, ClientGRPC.choosePrimary(Arrays.asList(backup, null, backup), 1));
+        Assertions.assertEquals(1, ClientGRPC.choosePrimary(Arrays.asList(null, backup, null), 2));
+        Assertions.assertEquals(-1, ClientGRPC.choosePrimary(Arrays.asList(null, null, null), 0));
+        Assertions.assertEquals(2, ClientGRPC.choosePrimary(Arrays.asList(redirect, backup, backup), 0));
+        // A server named as the primary which did not respond is skipped.
+        Assertions.assertEquals(0, ClientGRPC.choosePrimary(Arrays.asList(redirect, null, null), 0));
+    }
+
+    @Test
+    void testTakeRedirect() {
+        ClientCore client = new ClientCore();
+        Assertions.assertEquals(-1, client.takeRedirect());
+        client.setRedirect(1);
+        Assertions.assertEquals(1, client.takeRedirect());
+        Assertions.assertEquals(-1, client.takeRedirect());
+    }
+
+    @Test
+    void testChooseReplica() {
+        ClientCore first = new ClientCore();
+        ClientCore second = new ClientCore();
+        ClientCore third = new ClientCore();
+        Assertions.assertEquals(-1, ClientGRPC.chooseReplica(Arrays.asList(first, second, third), 0));
+
+        first.setConnected();
+        third.setConnected();
+        Assertions.assertEquals(0, ClientGRPC.chooseReplica(Arrays.asList(first, second, third), 0));
+        // A disconnected server is skipped, wrapping around after the last.
+        Assertions.assertEquals(2, ClientGRPC.chooseReplica(Arrays.asList(first, second, third), 1));
+        third.setDisconnected();
+        Assertions.assertEquals(0, ClientGRPC.chooseReplica(Arrays.asList(first, second, third), 2));
+    }
+
 }
@@ -0,0 +1,121 @@
+package messenger.grpc;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests storing undelivered messages in memory-mapped segments.
+ */
+public class MessageStoreTest {
+
+    // Small enough that a few messages fill a segment.
+    private static final int SEGMENT_SIZE = 256;
+
+    private MessageStore store;
+
+    @BeforeEach
+    public void init() {
+        store = MessageStore.temporary(SEGMENT_SIZE);
+    }
+
+    @AfterEach
+    public void close() {
+        store.close();
+    }
+
+    private static Message message(String recipient, int i) {
+        return Message.newBuilder().setSender("sender").setRecipient(recipient).setMessage("message " + i).build();
+    }
+
+    /**
+     * Messages should be read back per recipient, in order, across segments.
+     */
+    @Test
+    void testAppendAcrossSegments() throws IOException {
+        List<Message> first = new ArrayList<>();
+        List<Message> second = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            first.add(message("first", i));
+            second.add(message("second", i));
+            store.append(first.get(i));
+            store.append(second.get(i));
+        }
+        Assertions.assertTrue(store.getSegmentCount() > 1);
+        Assertions.assertEquals(40, store.getTotal());
+        Assertions.assertEquals(first, store.get("first"));
+        Assertions.assertEquals(Map.of("first", first, "second", second), store.toMap());
+
+        store.removeOldest("first");
+        Assertions.assertEquals(first.subList(1, 20), store.get("first"));
+    }
+
+    /**
+     * A segment should be deleted once none of its messages remain.
+     */
+    @Test
+    void testRemoveDeletesSegments() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            store.append(message("first", i));
+        }
+        store.append(message("second", 0));
+        long segments = store.getSegmentCount();
+
+        Assertions.assertEquals(20, store.remove("first"));
+        // Only the segment being appended to, which holds the second user's message, remains.
+        Assertions.assertTrue(store.getSegmentCount() < segments);
+        Assertions.assertEquals(1, store.getSegmentCount());
+        Assertions.assertEquals(List.of(message("second", 0)), store.get("second"));
+        Assertions.assertEquals(0, store.size("first"));
+    }
+
+    /**
+     * A view should still read the messages held when it was taken, even once
+     * they have been removed from the store.
+     */
+    @Test
+    void testViewOutlivesRemoval() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(message("first", i));
+            store.append(messages.get(i));
+        }
+        MessageStore.View view = store.view();
+        store.remove("first");
+        store.append(message("second", 0));
+
+        List<Message> read = new ArrayList<>();
+        view.forEach(read::add);
+        Assertions.assertEquals(messages, read);
+        Assertions.assertEquals(20, view.size());
+        view.close();
+        Assertions.assertEquals(1, store.getSegmentCount());
+    }
+
+    /**
+     * Removing the messages at given locations should skip those already removed,
+     * without removing newer messages in their place.
+     */
+    @Test
+    void testRemoveOldestAtLocations() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(message("first", i));
+            store.append(messages.get(i));
+        }
+        long[] oldest = store.oldest("first", 3);
+        Assertions.assertEquals(messages.subList(0, 3), store.read(oldest));
+
+        // The oldest message is dropped in the meantime.
+        store.removeOldest("first");
+        Assertions.assertEquals(2, store.removeOldest("first", oldest));
+        Assertions.assertEquals(messages.subList(3, 5), store.get("first"));
+        Assertions.assertEquals(0, store.removeOldest("first", oldest));
+    }
+}
@@ -0,0 +1,143 @@
+package messenger.grpc;
+
+import messenger.grpc.OperationLog.Durability;
+import messenger.util.Constants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests committing records to the operation log with each durability.
+ */
+public class OperationLogTest {
+
+    private static final int OFFSET = 8;
+
+    /**
+     * Records the accounts created by replayed operations.
+     */
+    private static class AccountsReplayer implements OperationLog.Handler {
+        private final Set<String> accounts = new HashSet<>();
+
+        @Override
+        public void createUser(String username) {
+            accounts.add(username);
+        }
+
+        @Override
+        public void deleteUser(String username) {
+            accounts.remove(username);
+        }
+
+        @Override
+        public void enqueue(Message message) {}
+
+        @Override
+        public void dropOldest(String username) {}
+
+        @Override
+        public void drain(String username) {}
+
+        @Override
+        public void removeOldest(String username, int count) {}
+
+        @Override
+        public void queue(Message message) {}
+
+        @Override
+        public void unqueue(String username, int count) {}
+    }
+
+    @AfterEach
+    public void deleteLog() throws IOException {
+        Files.deleteIfExists(Path.of(Constants.getOperationLogFileName(OFFSET, 0)));
+    }
+
+    private static Set<String> replay() throws IOException {
+        AccountsReplayer replayer = new AccountsReplayer();
+        OperationLog.open(OFFSET, Durability.NONE, 0, replayer).close();
+        return replayer.accounts;
+    }
+
+    /**
+     * Committing a record should write it to the file, even without syncing.
+     */
+    @Test
+    void testCommitWithoutSync() throws IOException {
+        OperationLog log = OperationLog.open(OFFSET, Durability.NONE, 0, new AccountsReplayer());
+        log.commit(log.createUser("user"));
+        Assertions.assertTrue(Files.size(Path.of(Constants.getOperationLogFileName(OFFSET, 0))) > 0);
+        Assertions.assertEquals(0, log.getSyncCount());
+        log.close();
+        Assertions.assertEquals(Set.of("user"), replay());
+    }
+
+    /**
+     * Each commit should sync the records not yet synced.
+     */
+    @Test
+    void testCommitPerOperation() throws IOException {
+        OperationLog log = OperationLog.open(OFFSET, Durability.PER_OPERATION, 0, new AccountsReplayer());
+        log.commit(log.createUser("first"));
+        log.commit(log.createUser("second"));
+        Assertions.assertEquals(2, log.getSyncCount());
+        // Already synced, so not synced again.
+        log.commit(1);
+        Assertions.assertEquals(2, log.getSyncCount());
+        log.close();
+        Assertions.assertEquals(Set.of("first", "second"), replay());
+    }
+
+    /**
+     * Records committed concurrently should share syncs, and every commit should
+     * only return once its record has been synced.
+     */
+    @Test
+    void testCommitBatched() throws Exception {
+        OperationLog log = OperationLog.open(OFFSET, Durability.BATCHED, 50, new AccountsReplayer());
+        int writers = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        Set<String> accounts = Collections.synchronizedSet(new HashSet<>());
+        for (int i = 0; i < writers; i++) {
+            String username = "user" + i;
+            commits.add(CompletableFuture.runAsync(() -> {
+                try {
+                    start.await();
+                    log.commit(log.createUser(username));
+                    accounts.add(username);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        start.countDown();
+        CompletableFuture.allOf(commits.toArray(new CompletableFuture[0])).get();
+
+        Assertions.assertEquals(writers, accounts.size());
+        Assertions.assertTrue(log.getSyncCount() < writers);
+        log.close();
+        Assertions.assertEquals(accounts, replay());
+    }
+
+    /**
+     * Records cannot be appended once the log is closed.
+     */
+    @Test
+    void testAppendAfterClose() throws IOException {
+        OperationLog log = OperationLog.open(OFFSET, Durability.BATCHED, 0, new AccountsReplayer());
+        log.close();
+        Assertions.assertThrows(IOException.class, () -> log.createUser("user"));
+    }
+}
@@ -0,0 +1,122 @@
+package messenger.grpc;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects Raft nodes in memory, in place of the `Raft` service, so that tests
+ * can cut servers off from the others and reconnect them.
+ */
+public class RaftNetwork {
+
+    // The handlers of the requests sent to each server, by offset.
+    private final Map<Integer, RaftNode.Peer> servers = new ConcurrentHashMap<>();
+    // The servers which can neither send nor receive requests.
+    private final Set<Integer> isolated = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Get the peers of a server, which send requests to the other servers
+     * unless either is isolated.
+     * @param id    The offset of the server.
+     * @param count The number of servers.
+     * @return      The peers, by offset.
+     */
+    public Map<Integer, RaftNode.Peer> peersOf(int id, int count) {
+        Map<Integer, RaftNode.Peer> peers = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (i == id) continue;
+            int to = i;
+            peers.put(to, new RaftNode.Peer() {
+                @Override
+                public RequestVoteReply requestVote(RequestVoteRequest request) throws Exception {
+                    return serverFor(id, to).requestVote(request);
+                }
+
+                @Override
+                public AppendEntriesReply appendEntries(AppendEntriesRequest request) throws Exception {
+                    return serverFor(id, to).appendEntries(request);
+                }
+
+                @Override
+                public InstallSnapshotReply installSnapshot(InstallSnapshotRequest request) throws Exception {
+                    return serverFor(id, to).installSnapshot(request);
+                }
+            });
+        }
+        return peers;
+    }
+
+    private RaftNode.Peer serverFor(int from, int to) throws IOException {
+        RaftNode.Peer server = servers.get(to);
+        if (server == null || isolated.contains(from) || isolated.contains(to)) {
+            throw new IOException("Server " + to + " unreachable from server " + from);
+        }
+        return server;
+    }
+
+    /**
+     * Registers the node handling the requests sent to a server.
+     * @param id    The offset of the server.
+     * @param node  The node.
+     */
+    public void register(int id, RaftNode node) {
+        servers.put(id, new RaftNode.Peer() {
+            @Override
+            public RequestVoteReply requestVote(RequestVoteRequest request) {
+                return node.requestVote(request);
+            }
+
+            @Override
+            public AppendEntriesReply appendEntries(AppendEntriesRequest request) {
+                return node.appendEntries(request);
+            }
+
+            @Override
+            public InstallSnapshotReply installSnapshot(InstallSnapshotRequest request) {
+                return node.installSnapshot(request);
+            }
+        });
+    }
+
+    /**
+     * Registers the server handling the requests sent to it.
+     * @param id    The offset of the server.
+     * @param core  The server.
+     */
+    public void register(int id, ServerCore core) {
+        servers.put(id, new RaftNode.Peer() {
+            @Override
+            public RequestVoteReply requestVote(RequestVoteRequest request) {
+                return core.requestVoteAPI(request);
+            }
+
+            @Override
+            public AppendEntriesReply appendEntries(AppendEntriesRequest request) {
+                return core.appendEntriesAPI(request);
+            }
+
+            @Override
+            public InstallSnapshotReply installSnapshot(InstallSnapshotRequest request) {
+                return core.installSnapshotAPI(request);
+            }
+        });
+    }
+
+    /**
+     * Cuts a server off from the others, as if partitioned from them.
+     * @param id    The offset of the server.
+     */
+    public void isolate(int id) {
+        isolated.add(id);
+    }
+
+    /**
+     * Reconnects every server.
+     */
+    public void heal() {
+        isolated.clear();
+    }
+}
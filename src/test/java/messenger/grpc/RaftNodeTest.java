@@ -0,0 +1,455 @@
+package messenger.grpc;
+
+import com.google.protobuf.ByteString;
+import messenger.util.Logging;
+import messenger.util.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests electing a leader and replicating its log between Raft nodes
+ * connected in memory.
+ */
+public class RaftNodeTest {
+
+    private static final RaftConfig CONFIG = new RaftConfig(50, 10, 1000, 1000);
+
+    /**
+     * Holds the operations applied, in order, as strings.
+     */
+    private static class ListMachine implements RaftNode.StateMachine {
+        private final List<String> operations = new ArrayList<>();
+        private long index = 0;
+        private int snapshotsInstalled = 0;
+        // The index and term of the entry the machine claims to have persisted, or null.
+        private final long[] persisted;
+
+        ListMachine() {
+            this(null);
+        }
+
+        ListMachine(long[] persisted) {
+            this.persisted = persisted;
+        }
+
+        @Override
+        public synchronized void apply(long index, long term, List<byte[]> operations) {
+            for (byte[] operation : operations) {
+                if (operation.length > 0) {
+                    this.operations.add(new String(operation, StandardCharsets.UTF_8));
+                }
+            }
+            this.index = index + operations.size() - 1;
+        }
+
+        @Override
+        public long[] getPersistedEntry() {
+            return persisted;
+        }
+
+        @Override
+        public synchronized RaftNode.Snapshot takeSnapshot() {
+            List<byte[]> copy = new ArrayList<>();
+            for (String operation : operations) {
+                copy.add(operation.getBytes(StandardCharsets.UTF_8));
+            }
+            return new RaftNode.Snapshot(index, copy, null);
+        }
+
+        @Override
+        public synchronized void reset() {
+            operations.clear();
+        }
+
+        @Override
+        public synchronized void restore(List<byte[]> operations) {
+            for (byte[] operation : operations) {
+                this.operations.add(new String(operation, StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public synchronized void restored(long index, long term) {
+            this.index = index;
+            snapshotsInstalled++;
+        }
+
+        @Override
+        public void roleChanged(boolean leader) {
+        }
+
+        synchronized List<String> getOperations() {
+            return new ArrayList<>(operations);
+        }
+
+        synchronized int getSnapshotsInstalled() {
+            return snapshotsInstalled;
+        }
+    }
+
+    private final RaftNetwork network = new RaftNetwork();
+    private final List<RaftNode> nodes = new ArrayList<>();
+    private final List<ListMachine> machines = new ArrayList<>();
+
+    @AfterEach
+    public void close() {
+        nodes.forEach(RaftNode::close);
+    }
+
+    private void startCluster(int count, RaftConfig config) throws IOException {
+        for (int i = 0; i < count; i++) {
+            ListMachine machine = new ListMachine();
+            RaftNode node = new RaftNode(i, network.peersOf(i, count), machine, null, config, new Metrics());
+            network.register(i, node);
+            machines.add(machine);
+            nodes.add(node);
+        }
+        nodes.forEach(RaftNode::start);
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, message);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Waits until one of the given nodes is a ready leader.
+     * @return  The offset of the leader.
+     */
+    private int awaitLeader(List<Integer> candidates) throws InterruptedException {
+        int[] leader = {-1};
+        await(() -> {
+            for (int i : candidates) {
+                if (nodes.get(i).isReady()) {
+                    leader[0] = i;
+                    return true;
+                }
+            }
+            return false;
+        }, "No leader was elected");
+        return leader[0];
+    }
+
+    private int awaitLeader() throws InterruptedException {
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            all.add(i);
+        }
+        return awaitLeader(all);
+    }
+
+    /**
+     * Executes an operation on a node and proposes it, as the ServerCore does.
+     * @return  The index and term of the entry, with an index of 0 if not proposed.
+     */
+    private long[] propose(int id, String operation) {
+        ListMachine machine = machines.get(id);
+        synchronized (machine) {
+            machine.operations.add(operation);
+            long term = nodes.get(id).getCurrentTerm();
+            long index = nodes.get(id).propose(term, operation.getBytes(StandardCharsets.UTF_8));
+            if (index > 0) {
+                machine.index = index;
+            }
+            return new long[]{index, term};
+        }
+    }
+
+    private boolean proposeAndCommit(int id, String operation, long timeoutMillis) throws InterruptedException {
+        long[] entry = propose(id, operation);
+        return entry[0] > 0 && nodes.get(id).awaitCommit(entry[0], entry[1], timeoutMillis);
+    }
+
+    private void awaitConverged() throws InterruptedException {
+        await(() -> {
+            for (ListMachine machine : machines) {
+                if (!machine.getOperations().equals(machines.get(0).getOperations())) return false;
+            }
+            return true;
+        }, "The servers did not converge");
+    }
+
+    @Test
+    void testElectsSingleLeader() throws Exception {
+        startCluster(3, CONFIG);
+        int leader = awaitLeader();
+        await(() -> {
+            for (RaftNode node : nodes) {
+                if (node.getLeaderId() != leader) return false;
+            }
+            return true;
+        }, "Not every server knows the leader");
+        for (int i = 0; i < nodes.size(); i++) {
+            Assertions.assertEquals(i == leader, nodes.get(i).getRole() == RaftNode.Role.LEADER);
+        }
+    }
+
+    @Test
+    void testReplicatesCommittedEntries() throws Exception {
+        startCluster(3, CONFIG);
+        int leader = awaitLeader();
+        for (int i = 0; i < 100; i++) {
+            propose(leader, "operation " + i);
+        }
+        Assertions.assertTrue(proposeAndCommit(leader, "last", 1000));
+        awaitConverged();
+        Assertions.assertEquals(101, machines.get((leader + 1) % 3).getOperations().size());
+    }
+
+    /**
+     * A leader cut off from the others should be replaced, and the operations
+     * it executes once cut off should not be committed, but discarded once it
+     * is reconnected.
+     */
+    @Test
+    void testReplacesPartitionedLeader() throws Exception {
+        startCluster(3, CONFIG);
+        int leader = awaitLeader();
+        Assertions.assertTrue(proposeAndCommit(leader, "committed", 1000));
+
+        network.isolate(leader);
+        long start = System.nanoTime();
+        long[] lost = propose(leader, "lost");
+        List<Integer> others = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != leader) others.add(i);
+        }
+        int newLeader = awaitLeader(others);
+        Logging.logInfo(String.format("Failed over in %dms.", (System.nanoTime() - start) / 1_000_000));
+        Assertions.assertFalse(nodes.get(leader).awaitCommit(lost[0], lost[1], 200));
+        Assertions.assertTrue(proposeAndCommit(newLeader, "after failover", 1000));
+
+        network.heal();
+        await(() -> nodes.get(leader).getRole() == RaftNode.Role.FOLLOWER
+                && nodes.get(leader).getLeaderId() == newLeader, "The old leader did not step down");
+        awaitConverged();
+        Assertions.assertEquals(List.of("committed", "after failover"), machines.get(leader).getOperations());
+    }
+
+    /**
+     * A leader cut off from the majority should step down once its lease
+     * expires, without hearing from the new leader.
+     */
+    @Test
+    void testLeaderStepsDownWithoutLease() throws Exception {
+        startCluster(3, CONFIG);
+        int leader = awaitLeader();
+        network.isolate(leader);
+        await(() -> nodes.get(leader).getRole() != RaftNode.Role.LEADER, "The leader did not step down");
+        Assertions.assertFalse(nodes.get(leader).isReady());
+    }
+
+    /**
+     * A server cut off from the leader should not disrupt it once reconnected,
+     * and no server should vote while it hears from the leader.
+     */
+    @Test
+    void testReconnectedServerDoesNotDisrupt() throws Exception {
+        startCluster(3, CONFIG);
+        int leader = awaitLeader();
+        long term = nodes.get(leader).getCurrentTerm();
+        int follower = (leader + 1) % 3;
+
+        network.isolate(follower);
+        Thread.sleep(300);
+        network.heal();
+        Assertions.assertTrue(proposeAndCommit(leader, "operation", 1000));
+        Assertions.assertEquals(term, nodes.get(leader).getCurrentTerm());
+        Assertions.assertTrue(nodes.get(leader).isReady());
+
+        RequestVoteRequest vote = RequestVoteRequest.newBuilder()
+                .setTerm(term + 1)
+                .setCandidate(follower)
+                .setLastLogIndex(Long.MAX_VALUE)
+                .setLastLogTerm(term)
+                .build();
+        int other = (leader + 2) % 3;
+        Assertions.assertFalse(nodes.get(other).requestVote(vote).getVoteGranted());
+        Assertions.assertFalse(nodes.get(other).requestVote(vote.toBuilder().setPreVote(true).build())
+                .getVoteGranted());
+        Assertions.assertEquals(term, nodes.get(other).getCurrentTerm());
+    }
+
+    /**
+     * With the default timing, a new leader should take over from a failed one
+     * within a few hundred milliseconds.
+     */
+    @Test
+    void testFailoverWithDefaultTiming() throws Exception {
+        startCluster(3, RaftConfig.fromSystemProperties());
+        int leader = awaitLeader();
+        network.isolate(leader);
+        long start = System.nanoTime();
+        List<Integer> others = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != leader) others.add(i);
+        }
+        awaitLeader(others);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        Logging.logInfo(String.format("Failed over in %dms with the default timing.", millis));
+        Assertions.assertTrue(millis < 1000, "Failover took " + millis + "ms");
+    }
+
+    @Test
+    void testMinorityCannotCommit() throws Exception {
+        startCluster(3, CONFIG);
+        int leader = awaitLeader();
+        network.isolate((leader + 1) % 3);
+        network.isolate((leader + 2) % 3);
+        Assertions.assertFalse(proposeAndCommit(leader, "operation", 300));
+    }
+
+    /**
+     * A server missing entries the leader has discarded should be sent the
+     * state of the leader, then the entries since.
+     */
+    @Test
+    void testSendsSnapshotToLaggingServer() throws Exception {
+        startCluster(3, new RaftConfig(50, 10, 1000, 10));
+        int leader = awaitLeader();
+        int follower = (leader + 1) % 3;
+        await(() -> machines.get(follower).getSnapshotsInstalled() > 0, "No snapshot was installed on start");
+        int installed = machines.get(follower).getSnapshotsInstalled();
+
+        network.isolate(follower);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(proposeAndCommit(leader, "operation " + i, 1000));
+        }
+        network.heal();
+        Assertions.assertTrue(proposeAndCommit(leader, "last", 1000));
+        awaitConverged();
+        Assertions.assertTrue(machines.get(follower).getSnapshotsInstalled() > installed);
+    }
+
+    @Test
+    void testPersistsTermAndVote() throws Exception {
+        Path stateFile = Files.createTempFile("raft", ".state");
+        Files.delete(stateFile);
+        try {
+            RaftNode node = new RaftNode(0, new RaftNetwork().peersOf(0, 3), new ListMachine(), stateFile,
+                    CONFIG, new Metrics());
+            // A server which has just started may have heard from the leader, so does not vote yet.
+            Assertions.assertFalse(node.requestVote(RequestVoteRequest.newBuilder()
+                    .setTerm(5).setCandidate(2).build()).getVoteGranted());
+            Thread.sleep(2 * CONFIG.getElectionTimeoutMillis());
+            RequestVoteReply reply = node.requestVote(RequestVoteRequest.newBuilder()
+                    .setTerm(5).setCandidate(2).build());
+            Assertions.assertTrue(reply.getVoteGranted());
+
+            RaftNode restarted = new RaftNode(0, new RaftNetwork().peersOf(0, 3), new ListMachine(), stateFile,
+                    CONFIG, new Metrics());
+            Assertions.assertEquals(5, restarted.getCurrentTerm());
+            // Having voted for server 2 in term 5, the server does not vote for another.
+            Assertions.assertFalse(restarted.requestVote(RequestVoteRequest.newBuilder()
+                    .setTerm(5).setCandidate(1).build()).getVoteGranted());
+        } finally {
+            Files.deleteIfExists(stateFile);
+            Files.deleteIfExists(Path.of(stateFile + ".log"));
+        }
+    }
+
+    private static LogEntry entry(long term, String operation) {
+        return LogEntry.newBuilder().setTerm(term).setOperation(ByteString.copyFromUtf8(operation)).build();
+    }
+
+    @Test
+    void testPersistsLog() throws Exception {
+        Path stateFile = Files.createTempFile("raft", ".state");
+        Files.delete(stateFile);
+        try {
+            RaftNode node = new RaftNode(0, new RaftNetwork().peersOf(0, 3), new ListMachine(), stateFile,
+                    CONFIG, new Metrics());
+            // A server which has just started is stale, so is first sent the state of the leader.
+            Assertions.assertTrue(node.installSnapshot(InstallSnapshotRequest.newBuilder()
+                    .setTerm(2).setLeader(1).setReset(true).setDone(true).build()).getSuccess());
+            Assertions.assertTrue(node.appendEntries(AppendEntriesRequest.newBuilder()
+                    .setTerm(2).setLeader(1)
+                    .addEntries(entry(1, "a")).addEntries(entry(2, "b")).addEntries(entry(2, "c"))
+                    .build()).getSuccess());
+            // The leader of term 3 replaces the entries after the first.
+            Assertions.assertTrue(node.appendEntries(AppendEntriesRequest.newBuilder()
+                    .setTerm(3).setLeader(2).setPrevLogIndex(1).setPrevLogTerm(1)
+                    .addEntries(entry(3, "d"))
+                    .build()).getSuccess());
+            node.close();
+
+            RaftNode restarted = new RaftNode(0, new RaftNetwork().peersOf(0, 3), new ListMachine(), stateFile,
+                    CONFIG, new Metrics());
+            Thread.sleep(2 * CONFIG.getElectionTimeoutMillis());
+            // The restarted server does not vote for a candidate missing the entry of term 3.
+            Assertions.assertFalse(restarted.requestVote(RequestVoteRequest.newBuilder()
+                    .setTerm(4).setCandidate(1).setLastLogIndex(3).setLastLogTerm(2).build()).getVoteGranted());
+            Assertions.assertTrue(restarted.requestVote(RequestVoteRequest.newBuilder()
+                    .setTerm(4).setCandidate(2).setLastLogIndex(2).setLastLogTerm(3).build()).getVoteGranted());
+        } finally {
+            Files.deleteIfExists(stateFile);
+            Files.deleteIfExists(Path.of(stateFile + ".log"));
+        }
+    }
+
+    /**
+     * A server restarted with state reflecting an entry its log still holds
+     * applies the committed entries after it, rather than being stale.
+     */
+    @Test
+    void testAppliesEntriesAfterPersistedEntry() throws Exception {
+        Path stateFile = Files.createTempFile("raft", ".state");
+        Files.delete(stateFile);
+        try {
+            RaftNode node = new RaftNode(0, new RaftNetwork().peersOf(0, 3), new ListMachine(), stateFile,
+                    CONFIG, new Metrics());
+            Assertions.assertTrue(node.installSnapshot(InstallSnapshotRequest.newBuilder()
+                    .setTerm(2).setLeader(1).setReset(true).setDone(true).build()).getSuccess());
+            Assertions.assertTrue(node.appendEntries(AppendEntriesRequest.newBuilder()
+                    .setTerm(2).setLeader(1)
+                    .addEntries(entry(1, "a")).addEntries(entry(2, "b")).addEntries(entry(2, "c"))
+                    .build()).getSuccess());
+            node.close();
+
+            AppendEntriesRequest commit = AppendEntriesRequest.newBuilder()
+                    .setTerm(3).setLeader(1).setPrevLogIndex(3).setPrevLogTerm(2).setLeaderCommit(3).build();
+            // The state reflects an entry of another term, so the server is stale.
+            RaftNode stale = new RaftNode(0, new RaftNetwork().peersOf(0, 3), new ListMachine(new long[]{1, 5}),
+                    stateFile, CONFIG, new Metrics());
+            Assertions.assertTrue(stale.appendEntries(commit).getNeedsSnapshot());
+            stale.close();
+
+            ListMachine machine = new ListMachine(new long[]{1, 1});
+            RaftNode restarted = new RaftNode(0, new RaftNetwork().peersOf(0, 3), machine, stateFile,
+                    CONFIG, new Metrics());
+            nodes.add(restarted);
+            restarted.start();
+            Assertions.assertTrue(restarted.appendEntries(commit).getSuccess());
+            await(() -> machine.getOperations().equals(List.of("b", "c")), "The committed entries were not applied");
+            Assertions.assertEquals(0, machine.getSnapshotsInstalled());
+        } finally {
+            Files.deleteIfExists(stateFile);
+            Files.deleteIfExists(Path.of(stateFile + ".log"));
+        }
+    }
+
+    @Test
+    void testRefusesVoteIfNotPersisted() throws Exception {
+        Path directory = Files.createTempDirectory("raft");
+        RaftNode node = new RaftNode(0, new RaftNetwork().peersOf(0, 3), new ListMachine(),
+                directory.resolve("raft.state"), CONFIG, new Metrics());
+        Thread.sleep(2 * CONFIG.getElectionTimeoutMillis());
+        // The vote can no longer be persisted.
+        Files.delete(directory.resolve("raft.state.log"));
+        Files.delete(directory);
+        Assertions.assertFalse(node.requestVote(RequestVoteRequest.newBuilder()
+                .setTerm(5).setCandidate(2).build()).getVoteGranted());
+    }
+}
@@ -0,0 +1,328 @@
+package messenger.grpc;
+
+import messenger.util.Constants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests replicating the changes made on the leader to the other servers, with
+ * the servers connected in memory.
+ */
+public class ReplicatedServerTest {
+
+    private static final RaftConfig CONFIG = new RaftConfig(50, 10, 1000, 1000);
+    private static final int NUM_SERVERS = 3;
+    private static final int PERSISTENT_OFFSET = 10;
+
+    private final RaftNetwork network = new RaftNetwork();
+    private final List<ServerCore> servers = new ArrayList<>();
+
+    @BeforeEach
+    public void init() {
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            ServerCore server = new ServerCore();
+            network.register(i, server);
+            servers.add(server);
+        }
+    }
+
+    @AfterEach
+    public void close() {
+        servers.forEach(ServerCore::close);
+    }
+
+    private void startRaft() throws IOException {
+        startRaft(CONFIG);
+    }
+
+    private void startRaft(RaftConfig config) throws IOException {
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            servers.get(i).startRaft(i, network.peersOf(i, NUM_SERVERS), null, config);
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, message);
+            Thread.sleep(5);
+        }
+    }
+
+    private ServerCore awaitPrimary() throws InterruptedException {
+        await(() -> servers.stream().anyMatch(ServerCore::isPrimary), "No primary was elected");
+        return servers.stream().filter(ServerCore::isPrimary).findFirst().get();
+    }
+
+    private void awaitConverged(ServerCore primary) throws InterruptedException {
+        await(() -> servers.stream().allMatch(server ->
+                server.getAccounts().equals(primary.getAccounts())
+                && server.getUndeliveredMessagesMap().equals(primary.getUndeliveredMessagesMap())),
+                "The servers did not converge");
+    }
+
+    /**
+     * Each change should be replicated, without the client sending it to the
+     * other servers.
+     */
+    @Test
+    void testReplicatesChanges() throws Exception {
+        startRaft();
+        ServerCore primary = awaitPrimary();
+
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser));
+        Assertions.assertTrue(primary.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+        awaitConverged(primary);
+        for (ServerCore server : servers) {
+            Assertions.assertEquals(1, server.getUndeliveredMessages(TestUtils.testUser).size());
+        }
+
+        primary.getUndeliveredMessagesAPI(TestUtils.testGetUndeliveredMessagesToTestUser());
+        primary.deleteAccountAPI(TestUtils.testDeleteUserRequest(TestUtils.testSecondUser));
+        awaitConverged(primary);
+        for (ServerCore server : servers) {
+            Assertions.assertFalse(server.undeliveredMessageContainsKey(TestUtils.testUser));
+        }
+    }
+
+    /**
+     * A message queued for a logged in user should be replicated, and removed
+     * from every server once delivered.
+     */
+    @Test
+    void testReplicatesQueuedMessages() throws Exception {
+        startRaft();
+        ServerCore primary = awaitPrimary();
+
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        primary.loginUserAPI(TestUtils.testLoginRequest(TestUtils.testUser));
+        Assertions.assertTrue(primary.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+        for (ServerCore server : servers) {
+            await(() -> server.getQueuedMessages(TestUtils.testUser).isPresent(), "The queued message was not replicated");
+        }
+
+        primary.unqueueMessages(TestUtils.testUser, primary.getQueuedMessages(TestUtils.testUser).get());
+        for (ServerCore server : servers) {
+            await(() -> !server.getQueuedMessages(TestUtils.testUser).isPresent(), "The delivered message was not removed");
+        }
+    }
+
+    /**
+     * The servers may hold different state when started, in which case the
+     * state of the first leader replaces the others.
+     */
+    @Test
+    void testTransfersStateOfLeader() throws Exception {
+        servers.get(0).createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        servers.get(1).createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser));
+        servers.get(1).sendMessageAPI(TestUtils.testSendToTestUser());
+        startRaft();
+        ServerCore primary = awaitPrimary();
+        awaitConverged(primary);
+
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testFourthUser));
+        awaitConverged(primary);
+        Assertions.assertTrue(servers.get(2).usernameExists(TestUtils.testFourthUser));
+    }
+
+    /**
+     * A change made on a server which is not the leader should fail, and be
+     * undone once the server is sent the state of the leader.
+     */
+    @Test
+    void testFollowerRejectsChanges() throws Exception {
+        startRaft();
+        ServerCore primary = awaitPrimary();
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        ServerCore follower = servers.get((servers.indexOf(primary) + 1) % NUM_SERVERS);
+
+        Assertions.assertThrows(ReplicationException.class,
+                () -> follower.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testThirdUser)));
+        awaitConverged(primary);
+        Assertions.assertFalse(follower.usernameExists(TestUtils.testThirdUser));
+    }
+
+    /**
+     * Once the leader is cut off, another server should take over with every
+     * change the leader committed.
+     */
+    @Test
+    void testFailsOverToNewLeader() throws Exception {
+        startRaft();
+        ServerCore primary = awaitPrimary();
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+
+        network.isolate(servers.indexOf(primary));
+        Assertions.assertThrows(ReplicationException.class,
+                () -> primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser)));
+        await(() -> servers.stream().anyMatch(server -> server != primary && server.isPrimary()),
+                "No new primary was elected");
+        ServerCore newPrimary = servers.stream().filter(server -> server != primary && server.isPrimary())
+                .findFirst().get();
+        Assertions.assertTrue(newPrimary.usernameExists(TestUtils.testUser));
+        Assertions.assertTrue(newPrimary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testThirdUser))
+                .getStatus().getSuccess());
+
+        network.heal();
+        awaitConverged(newPrimary);
+        Assertions.assertFalse(primary.usernameExists(TestUtils.testSecondUser));
+    }
+
+    /**
+     * A change which the leader cannot commit within the commit timeout, here
+     * shorter than its lease, should fail rather than be acknowledged.
+     */
+    @Test
+    void testUncommittedChangeFailsAfterTimeout() throws Exception {
+        startRaft(new RaftConfig(50, 10, 20, 1000));
+        ServerCore primary = awaitPrimary();
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser));
+
+        network.isolate(servers.indexOf(primary));
+        Assertions.assertThrows(ReplicationException.class,
+                () -> primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testThirdUser)));
+        Assertions.assertThrows(ReplicationException.class,
+                () -> primary.sendMessageAPI(TestUtils.testSendMessageRequest(TestUtils.testUser,
+                        TestUtils.testSecondUser, "Hello")));
+    }
+
+    /**
+     * Every server should serve reads, reflecting the changes up to the
+     * sequence number the read requires.
+     */
+    @Test
+    void testFollowerServesReads() throws Exception {
+        startRaft();
+        ServerCore primary = awaitPrimary();
+        ServerCore follower = servers.get((servers.indexOf(primary) + 1) % NUM_SERVERS);
+        long sequence = primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser)).getSequence();
+        Assertions.assertTrue(sequence > 0);
+
+        GetAccountsReply reply = follower.getAccountsAPI(GetAccountsRequest.newBuilder()
+                .setMinSequence(sequence).build());
+        Assertions.assertTrue(reply.getStatus().getSuccess());
+        Assertions.assertTrue(reply.getSequence() >= sequence);
+        Assertions.assertTrue(reply.getAccountsList().contains(TestUtils.testUser));
+
+        // The changes up to a sequence number the primary has not reached are not applied in time.
+        Assertions.assertFalse(follower.getAccountsAPI(GetAccountsRequest.newBuilder()
+                .setMinSequence(primary.getAppliedSequence() + 100).build()).getStatus().getSuccess());
+    }
+
+    /**
+     * A server cut off from the primary should stop serving reads, as its
+     * state may be arbitrarily stale.
+     */
+    @Test
+    void testPartitionedFollowerRejectsReads() throws Exception {
+        startRaft();
+        ServerCore primary = awaitPrimary();
+        int follower = (servers.indexOf(primary) + 1) % NUM_SERVERS;
+        Assertions.assertTrue(servers.get(follower).getAccountsAPI(GetAccountsRequest.newBuilder().build())
+                .getStatus().getSuccess());
+
+        network.isolate(follower);
+        await(() -> !servers.get(follower).getAccountsAPI(GetAccountsRequest.newBuilder().build())
+                .getStatus().getSuccess(), "The partitioned server kept serving reads");
+        Assertions.assertTrue(primary.getAccountsAPI(GetAccountsRequest.newBuilder().build())
+                .getStatus().getSuccess());
+    }
+
+    /**
+     * The leader should not list an account whose creation it has not committed.
+     */
+    @Test
+    void testLeaderReadsOnlyCommittedChanges() throws Exception {
+        startRaft();
+        ServerCore primary = awaitPrimary();
+        network.isolate(servers.indexOf(primary));
+        Thread create = new Thread(() -> {
+            try {
+                primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+            } catch (ReplicationException e) {
+                // Expected, since the other servers cannot be reached.
+            }
+        });
+        create.start();
+        await(() -> primary.usernameExists(TestUtils.testUser), "The account was not created");
+
+        GetAccountsReply reply = primary.getAccountsAPI(GetAccountsRequest.newBuilder().build());
+        Assertions.assertFalse(reply.getStatus().getSuccess() && reply.getAccountsList().contains(TestUtils.testUser));
+        create.join();
+    }
+
+    /**
+     * Servers restarted with their operation and Raft logs know the last entry
+     * their state reflects, so apply only the entries after it.
+     */
+    @Test
+    void testRestartsWithPersistedLog() throws Exception {
+        Path directory = Files.createTempDirectory("raft");
+        servers.forEach(ServerCore::close);
+        try {
+            startPersistentServers(directory);
+            ServerCore primary = awaitPrimary();
+            primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+            awaitConverged(primary);
+            servers.forEach(ServerCore::close);
+
+            startPersistentServers(directory);
+            for (ServerCore server : servers) {
+                Assertions.assertTrue(server.getAppliedSequence() > 0);
+            }
+            primary = awaitPrimary();
+            primary.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testFourthUser));
+            awaitConverged(primary);
+            for (ServerCore server : servers) {
+                Assertions.assertTrue(server.usernameExists(TestUtils.testUser));
+                Assertions.assertTrue(server.usernameExists(TestUtils.testFourthUser));
+            }
+        } finally {
+            servers.forEach(ServerCore::close);
+            deleteRecursively(directory);
+            for (int i = 0; i < NUM_SERVERS; i++) {
+                Files.deleteIfExists(Path.of(Constants.getSnapshotFileName(PERSISTENT_OFFSET + i)));
+                Files.deleteIfExists(Path.of(Constants.getOperationLogFileName(PERSISTENT_OFFSET + i, 0)));
+                deleteRecursively(Path.of(Constants.getMessageStoreDirectoryName(PERSISTENT_OFFSET + i)));
+                deleteRecursively(Path.of(Constants.getSpillDirectoryName(PERSISTENT_OFFSET + i)));
+            }
+        }
+    }
+
+    /**
+     * Replaces the servers with ones persisting their state, as if restarted.
+     * @param directory The directory holding the Raft logs.
+     */
+    private void startPersistentServers(Path directory) throws IOException {
+        servers.clear();
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            ServerCore server = new ServerCore(PERSISTENT_OFFSET + i);
+            network.register(i, server);
+            servers.add(server);
+        }
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            servers.get(i).startRaft(i, network.peersOf(i, NUM_SERVERS), directory.resolve("raft" + i + ".state"), CONFIG);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (var files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package messenger.grpc;
 
 import messenger.util.Constants;
+import messenger.util.QueueLimits;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -10,14 +12,22 @@ import java.util.Optional;
 
 
 import java.util.*;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class ServerCoreTest {
 
+    // The offset of the servers whose state is persisted by the tests.
+    private static final int PERSISTENT_OFFSET = 9;
+
     private ServerCore server;
 
     private LoginReply createAndLogInUser(String user, String ipAddress) {
@@ -30,6 +40,27 @@ public class ServerCoreTest {
         server = new ServerCore();
     }
 
+    @AfterEach
+    public void deletePersistedState() throws IOException {
+        server.close();
+        Files.deleteIfExists(Path.of(Constants.getSnapshotFileName(PERSISTENT_OFFSET)));
+        for (long generation = 0; generation < 10; generation++) {
+            Files.deleteIfExists(Path.of(Constants.getOperationLogFileName(PERSISTENT_OFFSET, generation)));
+        }
+        Files.deleteIfExists(Path.of(Constants.getMessageStoreDirectoryName(PERSISTENT_OFFSET)));
+    }
+
+    /**
+     * Simulates restarting the server by creating a new ServerCore from the
+     * persisted state of the current one.
+     * @return  The restarted ServerCore.
+     */
+    private ServerCore restart() {
+        server.close();
+        server = new ServerCore(PERSISTENT_OFFSET);
+        return server;
+    }
+
     /**
      * Test creating a user. User should be logged in after the fact.
      */
@@ -76,6 +107,29 @@ public class ServerCoreTest {
         Assertions.assertFalse(server.isLoggedIn(TestUtils.testUser));
     }
 
+    /**
+     * Deleting an account should discard the messages queued for it, making
+     * room for others, so that an account created with the same name does not
+     * receive them.
+     */
+    @Test
+    void testDeleteAccountReleasesQueue() {
+        server = new ServerCore(new QueueLimits(2, 2, QueueLimits.OverflowPolicy.REJECT));
+        createAndLogInUser(TestUtils.testUser, "");
+        createAndLogInUser(TestUtils.testSecondUser, "");
+        Assertions.assertTrue(server.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+        Assertions.assertTrue(server.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+        Assertions.assertFalse(server.sendMessageAPI(TestUtils.testSendMessageRequest(TestUtils.testUser,
+                TestUtils.testSecondUser, "first")).getStatus().getSuccess());
+
+        server.deleteAccountAPI(TestUtils.testDeleteUserRequest(TestUtils.testUser));
+        Assertions.assertEquals(Long.valueOf(0), server.getMetrics().snapshot().get("queue.depth"));
+        createAndLogInUser(TestUtils.testUser, "");
+        Assertions.assertFalse(server.getQueuedMessages(TestUtils.testUser).isPresent());
+        Assertions.assertTrue(server.sendMessageAPI(TestUtils.testSendMessageRequest(TestUtils.testUser,
+                TestUtils.testSecondUser, "first")).getStatus().getSuccess());
+    }
+
     /**
      * Test whether deleting a non-existent user fails.
      */
@@ -124,8 +178,9 @@ public class ServerCoreTest {
         server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
         server.logoutUserAPI(TestUtils.testLogoutTestUser());
 
-        Assertions.assertTrue(server.sendMessageAPI(TestUtils.testSendToTestUser())
-                .getStatus().getSuccess());
+        Status status = server.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus();
+        Assertions.assertTrue(status.getSuccess());
+        Assertions.assertTrue(status.getQueued());
 
         GetUndeliveredMessagesReply response = server.getUndeliveredMessagesAPI(
                 TestUtils.testGetUndeliveredMessagesToTestUser());
@@ -148,6 +203,86 @@ public class ServerCoreTest {
         Assertions.assertEquals(TestUtils.testMessage, messageList.get().get(0).getMessage());
     }
 
+    /**
+     * Test sending a batch of messages to a logged in user, a logged out user
+     * and a non-existent user. Each message should get its own status, and the
+     * undelivered message should be persisted.
+     */
+    @Test
+    void testSendMessageBatch() {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        createAndLogInUser(TestUtils.testUser, "");
+        createAndLogInUser(TestUtils.testSecondUser, "");
+        server.logoutUserAPI(TestUtils.testLogoutTestUser(TestUtils.testSecondUser));
+
+        SendMessageBatchRequest request = SendMessageBatchRequest.newBuilder()
+                .addMessages(Message.newBuilder().setRecipient(TestUtils.testUser).setMessage("first"))
+                .addMessages(Message.newBuilder().setRecipient("nobody").setMessage("lost"))
+                .addMessages(Message.newBuilder().setRecipient(TestUtils.testSecondUser).setMessage("second"))
+                .build();
+        SendMessageBatchReply reply = server.sendMessageBatchAPI(request);
+        Assertions.assertTrue(reply.getStatus().getSuccess());
+        Assertions.assertEquals(3, reply.getStatusesCount());
+        Assertions.assertTrue(reply.getStatuses(0).getSuccess());
+        Assertions.assertFalse(reply.getStatuses(0).getQueued());
+        Assertions.assertFalse(reply.getStatuses(1).getSuccess());
+        Assertions.assertTrue(reply.getStatuses(2).getSuccess());
+        Assertions.assertTrue(reply.getStatuses(2).getQueued());
+
+        Optional<List<Message>> queued = server.getQueuedMessages(TestUtils.testUser);
+        Assertions.assertTrue(queued.isPresent());
+        Assertions.assertEquals("first", queued.get().get(0).getMessage());
+        Assertions.assertEquals("second", server.getUndeliveredMessages(TestUtils.testSecondUser).get(0).getMessage());
+
+        Assertions.assertEquals(server.getUndeliveredMessagesMap(), restart().getUndeliveredMessagesMap());
+    }
+
+    /**
+     * Messages beyond the per-recipient limit should be rejected, both for
+     * logged in users and for users who are not logged in.
+     */
+    @Test
+    void testQueueLimitReject() {
+        server = new ServerCore(new QueueLimits(1, 100, QueueLimits.OverflowPolicy.REJECT));
+        createAndLogInUser(TestUtils.testUser, "");
+        Assertions.assertTrue(server.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+        Assertions.assertFalse(server.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+
+        server.logoutUserAPI(TestUtils.testLogoutTestUser());
+        Assertions.assertTrue(server.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+        Assertions.assertFalse(server.sendMessageAPI(TestUtils.testSendToTestUser()).getStatus().getSuccess());
+
+        Map<String, Long> metrics = server.getMetrics().snapshot();
+        Assertions.assertEquals(Long.valueOf(2), metrics.get("queue.depth"));
+        Assertions.assertEquals(Long.valueOf(2), metrics.get("messages.rejected"));
+
+        // Fetching the undelivered messages makes room again.
+        server.getUndeliveredMessagesAPI(TestUtils.testGetUndeliveredMessagesToTestUser());
+        Assertions.assertEquals(Long.valueOf(1), server.getMetrics().snapshot().get("queue.depth"));
+    }
+
+    /**
+     * A MessageHandler waiting for messages should be woken up as soon as a
+     * message is sent to its user.
+     */
+    @Test
+    void testAwaitQueuedMessages() throws Exception {
+        createAndLogInUser(TestUtils.testUser, "");
+        CompletableFuture<Optional<List<Message>>> dispatched = CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.awaitQueuedMessages(TestUtils.testUser);
+            } catch (InterruptedException e) {
+                return Optional.empty();
+            }
+        });
+        server.sendMessageAPI(TestUtils.testSendToTestUser());
+
+        Optional<List<Message>> messageList = dispatched.get(5, TimeUnit.SECONDS);
+        Assertions.assertTrue(messageList.isPresent());
+        server.unqueueMessages(TestUtils.testUser, messageList.get());
+        Assertions.assertFalse(server.getQueuedMessages(TestUtils.testUser).isPresent());
+    }
+
     /**
      * Test whether logging a user out correctly removes them from
      * the loggedIn users set.
@@ -177,81 +312,177 @@ public class ServerCoreTest {
         Assertions.assertFalse(response.getStatus().getSuccess());
     }
 
-    @Test
     /**
-     * Test whether two users creating accounts on the same IP address are assigned distinct ports.
+     * Test whether several users can be logged in from the same IP address at once.
      */
-    void testCreateAccountSameIPAddress() {
-        // Add two users on the same IP address
+    @Test
+    void testLoginSameIPAddress() {
         LoginReply response = createAndLogInUser(TestUtils.testUser, TestUtils.testIpAddress);
         LoginReply secondResponse = createAndLogInUser(TestUtils.testSecondUser, TestUtils.testIpAddress);
+        Assertions.assertTrue(response.getStatus().getSuccess());
+        Assertions.assertTrue(secondResponse.getStatus().getSuccess());
+        Assertions.assertTrue(server.isLoggedIn(TestUtils.testUser));
+        Assertions.assertTrue(server.isLoggedIn(TestUtils.testSecondUser));
 
-        // For two users on the same IP adress, want the message sender to assign distinct ports
-        Assertions.assertTrue(response.getReceiverPort() == Constants.MESSAGE_PORT);
-        Assertions.assertTrue(secondResponse.getReceiverPort() == Constants.MESSAGE_PORT + 1);
-
-        // Delete the second user
-        server.deleteAccountAPI(TestUtils.testDeleteUserRequest(TestUtils.testSecondUser));
-        // Recreate the second user
-        secondResponse = createAndLogInUser(TestUtils.testSecondUser, TestUtils.testIpAddress);
-        // Test that the second user gets port Constants.MESSAGE_PORT + 1 again
-        Assertions.assertTrue(secondResponse.getReceiverPort() == Constants.MESSAGE_PORT + 1);
-        // Delete the first user
-        server.deleteAccountAPI(TestUtils.testDeleteUserRequest(TestUtils.testUser));
-        // Recreate the first user
-        response = createAndLogInUser(TestUtils.testUser, TestUtils.testIpAddress);
-        // Test that the first user gets port Constants.MESSAGE_PORT again
-        Assertions.assertTrue(response.getReceiverPort() == Constants.MESSAGE_PORT);
+        // Logging out one user leaves the other logged in.
+        server.logoutUserAPI(TestUtils.testLogoutTestUser(TestUtils.testUser));
+        Assertions.assertFalse(server.isLoggedIn(TestUtils.testUser));
+        Assertions.assertTrue(server.isLoggedIn(TestUtils.testSecondUser));
+    }
 
+    private Status subscribeTestUser(int window, ServerCore.Subscriber subscriber) throws InterruptedException {
+        return server.subscribeAPI(TestUtils.testSubscribeRequest(TestUtils.testUser), window, subscriber);
     }
 
-    @Test
     /**
-     * Test whether two users creating accounts on different IP addresses are assigned the same port.
+     * Get a subscriber which records the messages it receives, and acknowledges
+     * each window once its last message is received, as the client does.
+     * @param username  The user subscribing.
+     * @param delivered The list the received messages are added to.
+     * @return          The subscriber.
      */
-    void testCreateAccountDifferentIPAddress() {
-        // Add two users on different IP address
-        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser, TestUtils.testIpAddress));
-        LoginReply response = server.loginUserAPI(TestUtils.testLoginRequest(TestUtils.testUser, TestUtils.testIpAddress));
-        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testSecondUser, TestUtils.testSecondIpAddress));
-        LoginReply secondResponse = server.loginUserAPI(TestUtils.testLoginRequest(TestUtils.testSecondUser, TestUtils.testSecondIpAddress));
-        // For two users on the same IP adress, want the message sender to assign the same port
-        Assertions.assertTrue(response.getReceiverPort() == Constants.MESSAGE_PORT);
-        Assertions.assertTrue(secondResponse.getReceiverPort() == Constants.MESSAGE_PORT);
+    private ServerCore.Subscriber acknowledgingSubscriber(String username, List<Message> delivered) {
+        int[] received = {0};
+        return message -> {
+            delivered.add(message);
+            received[0]++;
+            if (message.getLastInWindow()) {
+                server.acknowledgeAPI(TestUtils.testAcknowledgeRequest(username, received[0]));
+                received[0] = 0;
+            }
+        };
     }
 
+    /**
+     * A user which is not logged in cannot subscribe to their messages.
+     */
     @Test
+    void testSubscribeNotLoggedIn() throws InterruptedException {
+        server.createAccountAPI(TestUtils.testCreateUserRequest(TestUtils.testUser));
+        Status status = subscribeTestUser(ServerCore.DEFAULT_DELIVERY_WINDOW, message -> {
+            Assertions.fail("No messages should be delivered.");
+        });
+        Assertions.assertFalse(status.getSuccess());
+    }
+
     /**
-     * Testing the following functionality:
-     * 1. User 1 creates account
-     * 2. User 2 creates account on same ip
-     * 3. User 1 logs out
-     * 4. User 3 creates account on same ip
-     * 5. User 4 creates account on same ip
-     * Here, user 3 should get the same port number as user 1 initially did
-     * User 4 should get the port Constants.MESSAGE_PORT + 2
-     */
-    void testCreateThreeAccountsIPAddress () {
-        // Login two users on same IP address
-        LoginReply response = createAndLogInUser(TestUtils.testUser, TestUtils.testIpAddress);
-        LoginReply secondResponse = createAndLogInUser(TestUtils.testSecondUser, TestUtils.testIpAddress);
-        Assertions.assertTrue(response.getReceiverPort() == Constants.MESSAGE_PORT);
-        Assertions.assertTrue(secondResponse.getReceiverPort() == Constants.MESSAGE_PORT + 1);
+     * A subscription should deliver the messages sent to its user, and end
+     * successfully once the user logs out, releasing it. A second subscription
+     * for the same user is rejected while the first is active.
+     */
+    @Test
+    void testSubscribe() throws Exception {
+        createAndLogInUser(TestUtils.testUser, TestUtils.testIpAddress);
+        List<Message> delivered = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Status> subscription = CompletableFuture.supplyAsync(() -> {
+            try {
+                return subscribeTestUser(ServerCore.DEFAULT_DELIVERY_WINDOW, acknowledgingSubscriber(TestUtils.testUser, delivered));
+            } catch (InterruptedException e) {
+                return Status.newBuilder().setSuccess(false).build();
+            }
+        });
+        server.sendMessageAPI(TestUtils.testSendToTestUser());
+
+        // Wait for the message to be delivered and unqueued.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getQueuedMessages(TestUtils.testUser).isPresent()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertFalse(server.getQueuedMessages(TestUtils.testUser).isPresent());
+        Assertions.assertEquals(1, delivered.size());
+        Assertions.assertEquals(TestUtils.testMessage, delivered.get(0).getMessage());
+
+        Status second = subscribeTestUser(ServerCore.DEFAULT_DELIVERY_WINDOW, delivered::add);
+        Assertions.assertFalse(second.getSuccess());
+        Assertions.assertEquals(Long.valueOf(1), server.getMetrics().snapshot().get("subscriptions"));
 
-        // Logout first user
         server.logoutUserAPI(TestUtils.testLogoutTestUser(TestUtils.testUser));
+        Assertions.assertTrue(subscription.get(5, TimeUnit.SECONDS).getSuccess());
+        Assertions.assertEquals(Long.valueOf(0), server.getMetrics().snapshot().get("subscriptions"));
+    }
 
-        // User 3 creates account on same IP
-        LoginReply thirdResponse = createAndLogInUser(TestUtils.testThirdUser, TestUtils.testIpAddress);
+    /**
+     * If sending a message fails, only the windows which were sent in full are
+     * unqueued. The remaining messages are sent by the next subscription.
+     */
+    @Test
+    void testSubscribeFailedDelivery() throws Exception {
+        createAndLogInUser(TestUtils.testUser, TestUtils.testIpAddress);
+        for (int i = 0; i < 3; i++) {
+            server.sendMessageAPI(TestUtils.testSendToTestUser());
+        }
 
-        // User 3 should get the same port number as user 1 initially did
-        Assertions.assertTrue(thirdResponse.getReceiverPort() == Constants.MESSAGE_PORT);
+        List<Message> delivered = new ArrayList<>();
+        ServerCore.Subscriber subscriber = acknowledgingSubscriber(TestUtils.testUser, delivered);
+        Assertions.assertThrows(IllegalStateException.class, () -> subscribeTestUser(2, message -> {
+            if (delivered.size() == 2) {
+                throw new IllegalStateException("Connection lost");
+            }
+            subscriber.deliver(message);
+        }));
+        Assertions.assertEquals(1, server.getQueuedMessages(TestUtils.testUser).get().size());
+        Assertions.assertEquals(Long.valueOf(0), server.getMetrics().snapshot().get("subscriptions"));
+
+        // The failed message is sent again by the next subscription.
+        CompletableFuture<Status> subscription = CompletableFuture.supplyAsync(() -> {
+            try {
+                return subscribeTestUser(2, subscriber);
+            } catch (InterruptedException e) {
+                return Status.newBuilder().setSuccess(false).build();
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getQueuedMessages(TestUtils.testUser).isPresent()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        server.logoutUserAPI(TestUtils.testLogoutTestUser(TestUtils.testUser));
+        Assertions.assertTrue(subscription.get(5, TimeUnit.SECONDS).getSuccess());
+        Assertions.assertEquals(3, delivered.size());
+    }
 
-        // User 4 creates account on same IP
-        LoginReply fourthResponse = createAndLogInUser(TestUtils.testFourthUser, TestUtils.testIpAddress);
+    /**
+     * Messages should only be unqueued once acknowledged, and the next window
+     * only sent once the last is acknowledged in full. Once the user logs out,
+     * the acknowledged messages are unqueued and the others remain queued.
+     */
+    @Test
+    void testSubscribeUnacknowledged() throws Exception {
+        createAndLogInUser(TestUtils.testUser, TestUtils.testIpAddress);
+        for (int i = 0; i < 3; i++) {
+            server.sendMessageAPI(TestUtils.testSendToTestUser());
+        }
+        Assertions.assertFalse(server.acknowledgeAPI(TestUtils.testAcknowledgeRequest(TestUtils.testUser, 1))
+                .getStatus().getSuccess());
 
-        // User 4 should get port Constants.MESSAGE_PORT + 2
-        Assertions.assertTrue(fourthResponse.getReceiverPort() == Constants.MESSAGE_PORT + 2);
+        List<Message> delivered = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Status> subscription = CompletableFuture.supplyAsync(() -> {
+            try {
+                return subscribeTestUser(2, delivered::add);
+            } catch (InterruptedException e) {
+                return Status.newBuilder().setSuccess(false).build();
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delivered.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(2, delivered.size());
+        Assertions.assertFalse(delivered.get(0).getLastInWindow());
+        Assertions.assertTrue(delivered.get(1).getLastInWindow());
+        Assertions.assertEquals(3, server.getQueuedMessages(TestUtils.testUser).get().size());
+
+        // A partial acknowledgement holds up the next window.
+        Assertions.assertTrue(server.acknowledgeAPI(TestUtils.testAcknowledgeRequest(TestUtils.testUser, 1))
+                .getStatus().getSuccess());
+        Thread.sleep(100);
+        Assertions.assertEquals(2, delivered.size());
+        Assertions.assertEquals(3, server.getQueuedMessages(TestUtils.testUser).get().size());
+
+        server.logoutUserAPI(TestUtils.testLogoutTestUser(TestUtils.testUser));
+        Assertions.assertTrue(subscription.get(5, TimeUnit.SECONDS).getSuccess());
+        Assertions.assertEquals(2, server.getQueuedMessages(TestUtils.testUser).get().size());
     }
 
     /**
@@ -274,75 +505,244 @@ public class ServerCoreTest {
     }
 
     /**
-     * Testing the function for adding a user to the server's set of accounts and to the all_users.txt file
+     * Undelivered messages should be streamed in pages of the requested size, and
+     * each page removed once it has been sent, also after a restart.
      */
-    @Test 
-    void testPersistenceAddUser() {
-        try{
-            server.addUser(TestUtils.testUser);
-            BufferedReader usersReader = new BufferedReader(new FileReader(Constants.getUsersFileName(0)));
-            String usersList = usersReader.readLine();
-            Gson gson = new Gson();
-            HashSet<String> usersSet = gson.fromJson(usersList, new TypeToken<HashSet<String>>(){}.getType());
-            Assertions.assertTrue(server.getAccounts().equals(usersSet));
-        } catch (IOException e) {
-            System.out.println("IOException");
-            e.printStackTrace();
+    @Test
+    void testStreamUndeliveredMessages() throws InterruptedException {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        server.addUser(TestUtils.testUser);
+        for (int i = 0; i < 5; i++) {
+            server.addUndeliveredMessage(Message.newBuilder().setSender(TestUtils.testSecondUser)
+                    .setRecipient(TestUtils.testUser).setMessage(TestUtils.testMessage + i).build());
         }
+        GetUndeliveredMessagesRequest request = TestUtils.testGetUndeliveredMessagesToTestUser().toBuilder()
+                .setPageSize(2).build();
+
+        // The second page fails to send, so only the first page is removed.
+        List<GetUndeliveredMessagesReply> pages = new ArrayList<>();
+        Assertions.assertThrows(IllegalStateException.class, () -> server.streamUndeliveredMessagesAPI(request, page -> {
+            if (!pages.isEmpty()) {
+                throw new IllegalStateException("Connection lost");
+            }
+            pages.add(page);
+        }));
+        Assertions.assertEquals(3, restart().getUndeliveredMessages(TestUtils.testUser).size());
+
+        server.streamUndeliveredMessagesAPI(request, pages::add);
+        Assertions.assertEquals(List.of(2, 2, 1), pages.stream()
+                .map(GetUndeliveredMessagesReply::getMessagesCount).collect(Collectors.toList()));
+        Assertions.assertEquals(TestUtils.testMessage + 4, pages.get(2).getMessages(0).getMessage());
+        Assertions.assertTrue(server.getUndeliveredMessages(TestUtils.testUser).isEmpty());
+        Assertions.assertTrue(restart().getUndeliveredMessages(TestUtils.testUser).isEmpty());
     }
 
     /**
-     * Testing the function for deleting a user from the server's set of accounts and to the all_users.txt file
+     * Testing that adding a user is persisted, so the user exists after a restart
      */
-    @Test 
+    @Test
+    void testPersistenceAddUser() {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        server.addUser(TestUtils.testUser);
+        Assertions.assertEquals(server.getAccounts(), restart().getAccounts());
+    }
+
+    /**
+     * Testing that deleting a user is persisted, so the user no longer exists after a restart
+     */
+    @Test
     void testPersistenceDeleteUser() {
-        try{
-            server.deleteUser(TestUtils.testUser);
-            BufferedReader usersReader = new BufferedReader(new FileReader(Constants.getUsersFileName(0)));
-            String usersList = usersReader.readLine();
-            Gson gson = new Gson();
-            HashSet<String> usersSet = gson.fromJson(usersList, new TypeToken<HashSet<String>>(){}.getType());
-            Assertions.assertTrue(server.getAccounts().equals(usersSet));
-        } catch (IOException e) {
-            System.out.println("IOException");
-            e.printStackTrace();
-        }
+        server = new ServerCore(PERSISTENT_OFFSET);
+        server.addUser(TestUtils.testUser);
+        server.addUser(TestUtils.testSecondUser);
+        server.deleteUser(TestUtils.testUser);
+        Set<String> accounts = restart().getAccounts();
+        Assertions.assertEquals(Set.of(TestUtils.testSecondUser), accounts);
     }
 
     /**
-     * Testing the function for removing an undelivered messages from the server's map of undelivered messages and from the undelivered_messages.txt file
+     * Testing that removing the undelivered messages of a user is persisted
      */
-    @Test 
-    void testPersistenceRemoveUndeliveredMessage () {
-        try{
-            server.removeUndeliveredMessage(TestUtils.testUser);
-            BufferedReader undeliveredMessagesReader = new BufferedReader(new FileReader(Constants.getUndeliveredFileName(0)));
-            String undeliveredMsgs = undeliveredMessagesReader.readLine();
-            Gson gson = new Gson();
-            HashMap<String, List<Message>> undeliveredMsgsFromJSON = gson.fromJson(undeliveredMsgs, new TypeToken<HashMap<String, List<Message>>>(){}.getType());
-            Assertions.assertTrue(server.getUndeliveredMessagesMap().equals(undeliveredMsgsFromJSON));
-        } catch (IOException e) {
-            System.out.println("IOException");
-            e.printStackTrace();
+    @Test
+    void testPersistenceRemoveUndeliveredMessage() {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        Message message = Message.newBuilder().setSender(TestUtils.testUser).setRecipient(TestUtils.testSecondUser).setMessage(TestUtils.testMessage).build();
+        server.addUndeliveredMessage(message);
+        server.removeUndeliveredMessage(TestUtils.testSecondUser);
+        Assertions.assertTrue(restart().getUndeliveredMessagesMap().isEmpty());
+    }
+
+    /**
+     * Testing that adding undelivered messages is persisted, in order
+     */
+    @Test
+    void testPersistenceAddUndeliveredMessage() {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        for (int i = 0; i < 3; i++) {
+            server.addUndeliveredMessage(Message.newBuilder().setSender(TestUtils.testUser)
+                    .setRecipient(TestUtils.testSecondUser).setMessage(TestUtils.testMessage + i).build());
         }
+        Assertions.assertEquals(server.getUndeliveredMessagesMap(), restart().getUndeliveredMessagesMap());
+    }
+
+    /**
+     * Testing that messages queued for a logged in user are persisted until
+     * delivered, including across a snapshot
+     */
+    @Test
+    void testPersistenceQueuedMessages() {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        createAndLogInUser(TestUtils.testUser, "");
+        server.sendMessageAPI(TestUtils.testSendMessageRequest(TestUtils.testSecondUser, TestUtils.testUser, TestUtils.testMessage));
+        server.sendMessageAPI(TestUtils.testSendMessageRequest(TestUtils.testSecondUser, TestUtils.testUser, TestUtils.testMessage + 1));
+        List<Message> queued = server.getQueuedMessages(TestUtils.testUser).get();
+        server.unqueueMessages(TestUtils.testUser, queued.subList(0, 1));
+
+        List<Message> remaining = restart().getQueuedMessages(TestUtils.testUser).get();
+        Assertions.assertEquals(1, remaining.size());
+        Assertions.assertEquals(TestUtils.testMessage + 1, remaining.get(0).getMessage());
+
+        server.snapshot();
+        Assertions.assertEquals(remaining, restart().getQueuedMessages(TestUtils.testUser).get());
     }
 
     /**
-     * Testing the function for adding an undelivered messages to the server's map of undelivered messages and to the undelivered_messages.txt file
+     * A record which was only partially written when the server stopped should
+     * be discarded on restart, while the records before it are replayed and
+     * records appended afterwards are replayed on the next restart.
      */
     @Test
-    void testPersistenceAddUndeliveredMessage () {
-        try{
-            Message message = Message.newBuilder().setSender(TestUtils.testUser).setRecipient(TestUtils.testSecondUser).setMessage(TestUtils.testMessage).build();
-            server.addUndeliveredMessage(message);
-            BufferedReader undeliveredMessagesReader = new BufferedReader(new FileReader(Constants.getUndeliveredFileName(0)));
-            String undeliveredMsgs = undeliveredMessagesReader.readLine();
-            Gson gson = new Gson();
-            HashMap<String, List<Message>> undeliveredMsgsFromJSON = gson.fromJson(undeliveredMsgs, new TypeToken<HashMap<String, List<Message>>>(){}.getType());
-            Assertions.assertTrue(server.getUndeliveredMessagesMap().equals(undeliveredMsgsFromJSON));
-        } catch (IOException e) {
-            System.out.println("IOException");
-            e.printStackTrace();
+    void testPersistenceIncompleteRecord() throws IOException {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        server.addUser(TestUtils.testUser);
+        Files.write(Path.of(Constants.getOperationLogFileName(PERSISTENT_OFFSET, 0)), new byte[] {0, 0, 0, 20, 1, 2},
+                StandardOpenOption.APPEND);
+
+        Assertions.assertEquals(Set.of(TestUtils.testUser), restart().getAccounts());
+        server.addUser(TestUtils.testSecondUser);
+        Assertions.assertEquals(Set.of(TestUtils.testUser, TestUtils.testSecondUser), restart().getAccounts());
+    }
+
+    /**
+     * A snapshot should replace the operation log written before it, and the
+     * state should be restored from the snapshot plus the operations after it.
+     */
+    @Test
+    void testPersistenceSnapshot() {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        server.addUser(TestUtils.testUser);
+        server.addUser(TestUtils.testSecondUser);
+        server.addUndeliveredMessage(Message.newBuilder().setSender(TestUtils.testUser)
+                .setRecipient(TestUtils.testSecondUser).setMessage(TestUtils.testMessage).build());
+        server.snapshot();
+        Assertions.assertTrue(Files.exists(Path.of(Constants.getSnapshotFileName(PERSISTENT_OFFSET))));
+        Assertions.assertFalse(Files.exists(Path.of(Constants.getOperationLogFileName(PERSISTENT_OFFSET, 0))));
+
+        server.addUser(TestUtils.testThirdUser);
+        server.deleteUser(TestUtils.testUser);
+        server.addUndeliveredMessage(Message.newBuilder().setSender(TestUtils.testThirdUser)
+                .setRecipient(TestUtils.testSecondUser).setMessage(TestUtils.testMessage + 1).build());
+
+        Set<String> accounts = new HashSet<>(server.getAccounts());
+        Map<String, List<Message>> messages = new HashMap<>(server.getUndeliveredMessagesMap());
+        restart();
+        Assertions.assertEquals(accounts, server.getAccounts());
+        Assertions.assertEquals(messages, server.getUndeliveredMessagesMap());
+
+        // A second snapshot replaces the first, and the restored state is unchanged.
+        server.snapshot();
+        Assertions.assertFalse(Files.exists(Path.of(Constants.getOperationLogFileName(PERSISTENT_OFFSET, 1))));
+        restart();
+        Assertions.assertEquals(accounts, server.getAccounts());
+        Assertions.assertEquals(messages, server.getUndeliveredMessagesMap());
+    }
+
+    /**
+     * Many senders sending to logged in and logged out recipients at once, while
+     * the logged in recipients' subscriptions deliver their messages and snapshots
+     * are written. Every message should be delivered, or persisted as undelivered,
+     * exactly once and in the order it was sent.
+     */
+    @Test
+    void testConcurrentDelivery() throws Exception {
+        server = new ServerCore(PERSISTENT_OFFSET);
+        int numSenders = 16;
+        int numRecipients = 4;
+        int messagesPerRecipient = 50;
+        for (int i = 0; i < numRecipients; i++) {
+            server.createAccountAPI(TestUtils.testCreateUserRequest("online" + i));
+            server.loginUserAPI(TestUtils.testLoginRequest("online" + i));
+            server.createAccountAPI(TestUtils.testCreateUserRequest("offline" + i));
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<List<Message>> delivered = new ArrayList<>();
+            List<Future<Status>> subscriptions = new ArrayList<>();
+            for (int i = 0; i < numRecipients; i++) {
+                List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+                delivered.add(messages);
+                SubscribeRequest request = TestUtils.testSubscribeRequest("online" + i);
+                ServerCore.Subscriber subscriber = acknowledgingSubscriber("online" + i, messages);
+                subscriptions.add(executor.submit(() -> server.subscribeAPI(request, 8, subscriber)));
+            }
+
+            List<Future<?>> senders = new ArrayList<>();
+            for (int i = 0; i < numSenders; i++) {
+                String sender = "sender" + i;
+                senders.add(executor.submit(() -> {
+                    for (int j = 0; j < messagesPerRecipient; j++) {
+                        for (int k = 0; k < numRecipients; k++) {
+                            for (String recipient : List.of("online" + k, "offline" + k)) {
+                                Message message = Message.newBuilder().setSender(sender)
+                                        .setRecipient(recipient).setMessage(String.valueOf(j)).build();
+                                Assertions.assertTrue(server.sendMessageAPI(SendMessageRequest.newBuilder()
+                                        .setMessage(message).build()).getStatus().getSuccess());
+                            }
+                        }
+                    }
+                }));
+            }
+            senders.add(executor.submit(() -> {
+                for (int j = 0; j < 5; j++) {
+                    server.snapshot();
+                }
+            }));
+            for (Future<?> sender : senders) {
+                sender.get(60, TimeUnit.SECONDS);
+            }
+
+            long deadline = System.currentTimeMillis() + 10000;
+            for (int i = 0; i < numRecipients; i++) {
+                while (server.getQueuedMessages("online" + i).isPresent()
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                server.logoutUserAPI(TestUtils.testLogoutTestUser("online" + i));
+                Assertions.assertTrue(subscriptions.get(i).get(5, TimeUnit.SECONDS).getSuccess());
+                assertDeliveredInOrder(delivered.get(i), numSenders, messagesPerRecipient);
+            }
+
+            Map<String, List<Message>> undelivered = restart().getUndeliveredMessagesMap();
+            for (int i = 0; i < numRecipients; i++) {
+                assertDeliveredInOrder(undelivered.get("offline" + i), numSenders, messagesPerRecipient);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Asserts that every sender's messages were received exactly once, in the
+     * order they were sent.
+     */
+    private static void assertDeliveredInOrder(List<Message> messages, int numSenders, int messagesPerSender) {
+        Assertions.assertEquals(numSenders * messagesPerSender, messages.size());
+        Map<String, Integer> next = new HashMap<>();
+        for (Message message : messages) {
+            int expected = next.getOrDefault(message.getSender(), 0);
+            Assertions.assertEquals(String.valueOf(expected), message.getMessage());
+            next.put(message.getSender(), expected + 1);
         }
     }
 }
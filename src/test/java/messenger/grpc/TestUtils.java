@@ -1,7 +1,6 @@
 package messenger.grpc;
 
 import messenger.grpc.*;
-import messenger.util.Constants;
 
 /**
  * Basic test utilities
@@ -16,7 +15,6 @@ public class TestUtils {
     public static final String testMessage = "test message";
     public static final String testIpAddress = "127.0.0.1";
     public static final String testSecondIpAddress = "127.0.0.2";
-    public static final int testPort = Constants.MESSAGE_PORT;
 
     /**
      * Creates a simple CreateAccountRequest
@@ -83,8 +81,20 @@ public class TestUtils {
     }
 
     public static LoginReply testSuccessfulLoginReply() {
-        return LoginReply.newBuilder().setReceiverPort(testPort).setStatus(testSuccessfulStatus())
-                .build();
+        return LoginReply.newBuilder().setStatus(testSuccessfulStatus()).build();
+    }
+
+    /**
+     * Create a simple SubscribeRequest.
+     * @param username  Username subscribing to their messages.
+     * @return          a SubscribeRequest
+     */
+    public static SubscribeRequest testSubscribeRequest(String username) {
+        return SubscribeRequest.newBuilder().setUsername(username).build();
+    }
+
+    public static AcknowledgeRequest testAcknowledgeRequest(String username, int count) {
+        return AcknowledgeRequest.newBuilder().setUsername(username).setCount(count).build();
     }
 
     public static GetAccountsRequest testGetAllAccountsRequest() {
@@ -111,6 +121,20 @@ public class TestUtils {
                 .setMessage(testMessage).build()).build();
     }
 
+    /**
+     * Create a SendMessageRequest between two users.
+     * @param sender    The sender.
+     * @param recipient The recipient.
+     * @param message   The text of the message.
+     * @return          A SendMessageRequest.
+     */
+    public static SendMessageRequest testSendMessageRequest(String sender, String recipient, String message) {
+        return SendMessageRequest.newBuilder().setMessage(Message.newBuilder()
+                .setSender(sender)
+                .setRecipient(recipient)
+                .setMessage(message).build()).build();
+    }
+
     /**
      * Create a test request for undelivered messages to the `testUser`.
      * @return  A GetUndeliveredMessagesRequest
@@ -0,0 +1,123 @@
+package messenger.network;
+
+import messenger.api.API;
+import messenger.objects.Message;
+import messenger.objects.request.Request;
+import messenger.objects.request.SendMessageRequest;
+import messenger.objects.response.Response;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests encoding and decoding the version 2 (length-prefixed) frames.
+ */
+public class BinaryFramesTest {
+
+    private static byte[] encode(Request request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryFrames.writeRequest(new Connection(InputStream.nullInputStream(), bytes), request);
+        return bytes.toByteArray();
+    }
+
+    private static Connection reader(byte[] bytes) {
+        return new Connection(new ByteArrayInputStream(bytes), OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Arguments longer than 64KB and outside of ASCII should survive a round trip.
+     */
+    @Test
+    void testRequestRoundTrip() throws IOException {
+        String message = "x".repeat(100000) + "\u00e9\u4e2d";
+        byte[] frame = encode(new SendMessageRequest("sender", "recipient", message).genGenericRequest());
+
+        BufferPool pool = new BufferPool(1024, 4);
+        Request request = BinaryFrames.readRequest(reader(frame), pool);
+        Assertions.assertEquals(API.SEND_MESSAGE.getIdentifier(), request.getMethodId());
+        Assertions.assertEquals(3, request.getArguments().size());
+        Assertions.assertEquals("sender", request.getArguments().get(0));
+        Assertions.assertEquals(message, request.getArguments().get(2));
+        request.release();
+    }
+
+    /**
+     * A request should only be decoded once every byte has arrived.
+     */
+    @Test
+    void testPartialRequest() throws IOException {
+        byte[] frame = encode(new SendMessageRequest("sender", "recipient", "message").genGenericRequest());
+        BufferPool pool = new BufferPool(1024, 4);
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame, 0, frame.length - 1);
+        Assertions.assertNull(BinaryFrames.decodeRequest(buffer, pool));
+        Assertions.assertEquals(0, buffer.position());
+
+        buffer = ByteBuffer.wrap(frame);
+        Request request = BinaryFrames.decodeRequest(buffer, pool);
+        Assertions.assertFalse(buffer.hasRemaining());
+        Assertions.assertEquals("recipient", request.getArguments().get(1));
+        request.release();
+    }
+
+    /**
+     * Released buffers should be reused, except for those too large to pool.
+     */
+    @Test
+    void testBufferPool() {
+        BufferPool pool = new BufferPool(1024, 4);
+        ByteBuffer buffer = pool.acquire(16);
+        Assertions.assertEquals(16, buffer.limit());
+        pool.release(buffer);
+        Assertions.assertSame(buffer, pool.acquire(32));
+
+        ByteBuffer large = pool.acquire(2048);
+        pool.release(large);
+        Assertions.assertNotSame(large, pool.acquire(2048));
+    }
+
+    /**
+     * Frames announcing an invalid length or number of fields should be rejected
+     * rather than allocated.
+     */
+    @Test
+    void testMalformedFrames() {
+        BufferPool pool = new BufferPool(1024, 4);
+        ByteBuffer tooLarge = ByteBuffer.allocate(4).putInt(BinaryFrames.MAX_FRAME_SIZE + 1);
+        tooLarge.flip();
+        Assertions.assertThrows(IOException.class, () -> BinaryFrames.decodeRequest(tooLarge, pool));
+
+        ByteBuffer tooManyFields = ByteBuffer.allocate(16).putInt(12).putInt(1).putInt(1000).putInt(0);
+        tooManyFields.flip();
+        Assertions.assertThrows(IOException.class, () -> BinaryFrames.decodeRequest(tooManyFields, pool));
+    }
+
+    /**
+     * Responses and messages should survive a round trip.
+     */
+    @Test
+    void testResponseAndMessage() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Connection writer = new Connection(InputStream.nullInputStream(), bytes);
+        BinaryFrames.writeResponse(writer, new Response(true, Arrays.asList("first", "second")));
+        BinaryFrames.writeMessage(writer, new Message(42L, "sender", "recipient", "message"));
+        writer.flushOutput();
+
+        Connection connection = reader(bytes.toByteArray());
+        Response response = BinaryFrames.readResponse(connection);
+        Assertions.assertTrue(response.isSuccessful());
+        Assertions.assertEquals(Arrays.asList("first", "second"), response.getResponses());
+
+        Message message = BinaryFrames.readMessage(connection);
+        Assertions.assertEquals(Long.valueOf(42), message.getSentTimestamp());
+        Assertions.assertEquals("recipient", message.getRecepient());
+        Assertions.assertEquals("message", message.getMessage());
+    }
+}
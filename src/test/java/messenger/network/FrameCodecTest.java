@@ -0,0 +1,66 @@
+package messenger.network;
+
+import messenger.api.API;
+import messenger.objects.request.Request;
+import messenger.objects.request.SendMessageRequest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests decoding requests from ByteBuffers which may only hold part of
+ * a request, as is the case for the non-blocking server.
+ */
+public class FrameCodecTest {
+
+    private static byte[] encode(Request request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.writeToStream(new Connection(InputStream.nullInputStream(), bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A request should only be decoded once every byte has arrived.
+     */
+    @Test
+    void testPartialRequest() throws IOException {
+        byte[] frame = encode(new SendMessageRequest("sender", "recipient", "message").genGenericRequest());
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+        for (int i = 0; i < frame.length - 1; i++) {
+            buffer.put(frame[i]);
+            buffer.flip();
+            Assertions.assertNull(FrameCodec.decodeRequest(buffer));
+            // The buffer should be left untouched.
+            Assertions.assertEquals(0, buffer.position());
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+        buffer.put(frame[frame.length - 1]);
+        buffer.flip();
+
+        Request request = FrameCodec.decodeRequest(buffer);
+        Assertions.assertNotNull(request);
+        Assertions.assertEquals(API.SEND_MESSAGE.getIdentifier(), request.getMethodId());
+        Assertions.assertEquals("message", request.getArguments().get(2));
+        Assertions.assertFalse(buffer.hasRemaining());
+    }
+
+    /**
+     * Several requests received at once should be decoded one at a time.
+     */
+    @Test
+    void testMultipleRequests() throws IOException {
+        byte[] first = encode(new SendMessageRequest("a", "b", "first").genGenericRequest());
+        byte[] second = encode(new SendMessageRequest("a", "b", "second").genGenericRequest());
+        ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length);
+        buffer.put(first).put(second).flip();
+
+        Assertions.assertEquals("first", FrameCodec.decodeRequest(buffer).getArguments().get(2));
+        Assertions.assertEquals("second", FrameCodec.decodeRequest(buffer).getArguments().get(2));
+        Assertions.assertNull(FrameCodec.decodeRequest(buffer));
+    }
+}
@@ -0,0 +1,88 @@
+package messenger.network;
+
+import messenger.objects.Message;
+import messenger.objects.response.Response;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests negotiating the protocol options, and the frames written for
+ * multiplexed connections.
+ */
+public class ProtocolTest {
+
+    /**
+     * The server should only accept the flags it supports, and reply with them.
+     */
+    @Test
+    void testAccept() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        Connection client = new Connection(InputStream.nullInputStream(), header);
+        client.writeInt(Protocol.MAGIC);
+        client.writeInt(Protocol.MULTIPLEXED | 0x100);
+        client.flushOutput();
+
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        Connection server = new Connection(new ByteArrayInputStream(header.toByteArray()), reply);
+        // The server reads the magic number before negotiating.
+        Assertions.assertEquals(Protocol.MAGIC, server.readInt());
+        Protocol protocol = Protocol.accept(server);
+        Assertions.assertTrue(protocol.isMultiplexed());
+        Assertions.assertEquals(Protocol.MULTIPLEXED, protocol.getFlags());
+        Assertions.assertEquals(Protocol.MULTIPLEXED, ByteBuffer.wrap(reply.toByteArray()).getInt());
+    }
+
+    /**
+     * The non-blocking server should decode the header only once it is complete,
+     * and treat anything else as a legacy client.
+     */
+    @Test
+    void testDecodeProtocol() {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(Protocol.MAGIC).flip();
+        Assertions.assertNull(FrameCodec.decodeProtocol(buffer));
+
+        buffer.limit(8);
+        buffer.putInt(4, Protocol.MULTIPLEXED);
+        Assertions.assertTrue(FrameCodec.decodeProtocol(buffer).isMultiplexed());
+        Assertions.assertFalse(buffer.hasRemaining());
+
+        ByteBuffer request = ByteBuffer.allocate(8);
+        request.putInt(1).putInt(1).flip();
+        Assertions.assertSame(Protocol.LEGACY, FrameCodec.decodeProtocol(request));
+        Assertions.assertEquals(0, request.position());
+    }
+
+    /**
+     * Responses and messages written to a multiplexed connection should be
+     * told apart by their frame type.
+     */
+    @Test
+    void testMultiplexedFrames() throws IOException {
+        Protocol protocol = new Protocol(Protocol.MULTIPLEXED);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Connection server = new Connection(InputStream.nullInputStream(), bytes);
+        List<Message> messages = Arrays.asList(
+                new Message(1L, "sender", "recipient", "first"),
+                new Message(2L, "sender", "recipient", "second"));
+        protocol.writeResponse(server, 0, new Response(true, Arrays.asList("response")));
+        protocol.writeMessages(server, messages);
+
+        Connection client = new Connection(new ByteArrayInputStream(bytes.toByteArray()), OutputStream.nullOutputStream());
+        Assertions.assertEquals(Protocol.FRAME_RESPONSE, client.readInt());
+        Assertions.assertEquals("response", Response.genResponse(client).getResponses().get(0));
+        Assertions.assertEquals(Protocol.FRAME_MESSAGE, client.readInt());
+        Assertions.assertEquals("first", Message.genMessage(client).getMessage());
+        Assertions.assertEquals(Protocol.FRAME_MESSAGE, client.readInt());
+        Assertions.assertEquals("second", Message.genMessage(client).getMessage());
+    }
+}
@@ -0,0 +1,106 @@
+package messenger.network;
+
+import messenger.objects.Message;
+import messenger.objects.request.Request;
+import messenger.objects.request.SendMessageRequest;
+import messenger.objects.response.Response;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests sending several requests before any response has arrived, and
+ * matching the responses to the requests.
+ */
+public class RequestPipelineTest {
+
+    private static Response response(String text) {
+        return new Response(true, Arrays.asList(text));
+    }
+
+    private static Request request(String text) {
+        return new SendMessageRequest("sender", "recipient", text).genGenericRequest();
+    }
+
+    /**
+     * Responses arriving out of order should be matched by their identifier,
+     * while messages in between are passed to the listener.
+     */
+    @Test
+    void testOutOfOrderResponses() throws Exception {
+        Protocol protocol = new Protocol(Protocol.MULTIPLEXED | Protocol.V2 | Protocol.REQUEST_IDS);
+
+        // What the server sends, responding to the requests in reverse order.
+        ByteArrayOutputStream fromServer = new ByteArrayOutputStream();
+        Connection server = new Connection(InputStream.nullInputStream(), fromServer);
+        protocol.writeResponse(server, 3, response("third"));
+        protocol.writeMessages(server, Arrays.asList(new Message(1L, "sender", "recipient", "message")));
+        protocol.writeResponse(server, 2, response("second"));
+        protocol.writeResponse(server, 1, response("first"));
+
+        ByteArrayOutputStream toServer = new ByteArrayOutputStream();
+        Connection connection = new Connection(new ByteArrayInputStream(fromServer.toByteArray()), toServer);
+        List<Message> messages = new ArrayList<>();
+        RequestPipeline pipeline = new RequestPipeline(connection, protocol, messages::add);
+        CompletableFuture<Response> first = pipeline.send(request("first"));
+        CompletableFuture<Response> second = pipeline.send(request("second"));
+        CompletableFuture<Response> third = pipeline.send(request("third"));
+        Assertions.assertEquals(3, pipeline.inFlight());
+
+        // Every request should have been written, each with its own identifier.
+        Connection received = new Connection(new ByteArrayInputStream(toServer.toByteArray()),
+                OutputStream.nullOutputStream());
+        BufferPool pool = new BufferPool(1024, 4);
+        for (int i = 1; i <= 3; i++) {
+            Request request = protocol.readRequest(received, pool);
+            Assertions.assertEquals(i, request.getRequestId());
+            request.release();
+        }
+
+        pipeline.run();
+        Assertions.assertEquals("first", first.get().getResponses().get(0));
+        Assertions.assertEquals("second", second.get().getResponses().get(0));
+        Assertions.assertEquals("third", third.get().getResponses().get(0));
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertEquals(0, pipeline.inFlight());
+    }
+
+    /**
+     * Without identifiers, responses should be matched in the order requests were
+     * sent, and requests which are never responded to should fail once the
+     * connection is lost.
+     */
+    @Test
+    void testInOrderResponses() throws Exception {
+        Protocol protocol = Protocol.LEGACY;
+        ByteArrayOutputStream fromServer = new ByteArrayOutputStream();
+        Connection server = new Connection(InputStream.nullInputStream(), fromServer);
+        protocol.writeResponse(server, 0, response("first"));
+        protocol.writeResponse(server, 0, response("second"));
+
+        Connection connection = new Connection(new ByteArrayInputStream(fromServer.toByteArray()),
+                OutputStream.nullOutputStream());
+        RequestPipeline pipeline = new RequestPipeline(connection, protocol, message -> {});
+        CompletableFuture<Response> first = pipeline.send(request("first"));
+        CompletableFuture<Response> second = pipeline.send(request("second"));
+        CompletableFuture<Response> lost = pipeline.send(request("lost"));
+
+        pipeline.run();
+        Assertions.assertEquals("first", first.get().getResponses().get(0));
+        Assertions.assertEquals("second", second.get().getResponses().get(0));
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, lost::get);
+        Assertions.assertTrue(e.getCause() instanceof IOException);
+        // No further requests can be sent once the connection is lost.
+        Assertions.assertThrows(IOException.class, () -> pipeline.send(request("later")));
+    }
+}